@@ -0,0 +1,481 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategyFactory;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Alternative to MirrorMaster that drives the whole mirror through the non-blocking SDK v2 S3AsyncClient.
+ * Each key runs as a chain of async stages (HEAD destination, compare, COPY, verify), and at most
+ * maxInFlight keys are in progress at any time. The listing thread blocks on a permit when the window
+ * is full, which is the only backpressure needed: no worker threads are held while requests are pending.
+ */
+@Slf4j
+public class AsyncMirrorMaster {
+
+    // parts of one multipart copy in flight at once
+    private static final int MAX_PARTS_IN_FLIGHT = 10;
+
+    private final S3AsyncClient sourceClient;
+    private final S3AsyncClient destinationClient;
+    private final MirrorContext context;
+    private final ComparisonStrategy comparisonStrategy;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    public AsyncMirrorMaster(S3AsyncClient sourceClient, S3AsyncClient destinationClient, MirrorContext context) {
+        this.sourceClient = sourceClient;
+        this.destinationClient = destinationClient;
+        this.context = context;
+        // the layouts the comparison needs are looked up before it, see lookUpLayout()
+        this.comparisonStrategy = ComparisonStrategyFactory.getStrategy(context.getOptions(), summary -> {
+            final Long partSize = context.getPartLayouts().getCached(summary);
+            return partSize == null || partSize > 0;
+        });
+        this.maxInFlight = context.getOptions().getMaxInFlight();
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public void mirror() {
+
+        log.info("version "+MirrorMaster.VERSION+" starting (async engine, maxInFlight="+maxInFlight+")");
+
+        final MirrorOptions options = context.getOptions();
+
+        if (options.isVerbose() && options.hasCtime()) log.info("will not copy anything older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+")");
+
+        try {
+            list(options.getSourceBucket(), options.getPrefix(), this::copy);
+
+            if (options.isDeleteRemoved()) {
+                final String destPrefix = options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix();
+                list(options.getDestinationBucket(), destPrefix, this::delete);
+            }
+
+            // wait for the last in-flight keys to finish
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+            log.info("mirror: completed");
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
+        } catch (Exception e) {
+            log.error("Unexpected exception in mirror: "+e, e);
+        }
+    }
+
+    private void list(String bucket, String prefix, Function<S3VersionSummary, CompletableFuture<?>> handler) throws InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final boolean verbose = options.isVerbose();
+
+        ListObjectVersionsRequest request = ListObjectVersionsRequest.builder()
+                .bucket(bucket).prefix(prefix).maxKeys(options.getListPageSize()).build();
+        while (true) {
+            context.getStats().s3getCount.incrementAndGet();
+            final ListObjectVersionsResponse listing = clientFor(bucket).listObjectVersions(request).join();
+            context.getStats().objectsRead.addAndGet(listing.versions().size());
+            if (verbose) log.info("queued next set of " + listing.versions().size() + " keys from " + bucket);
+
+            for (ObjectVersion version : listing.versions()) {
+                inFlight.acquire();
+                final S3VersionSummary summary = toSummary(bucket, version);
+                final CompletableFuture<?> future;
+                try {
+                    future = handler.apply(summary);
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                future.whenComplete((r, e) -> {
+                    if (e != null) log.error("error handling key: " + summary.getKey() + ": " + unwrap(e));
+                    if (verbose) log.info("done with " + summary.getKey());
+                    inFlight.release();
+                });
+            }
+
+            if (!listing.isTruncated()) {
+                log.info("No more keys found in " + bucket + ", exiting");
+                return;
+            }
+            request = request.toBuilder()
+                    .keyMarker(listing.nextKeyMarker())
+                    .versionIdMarker(listing.nextVersionIdMarker())
+                    .build();
+        }
+    }
+
+    private CompletableFuture<?> copy(S3VersionSummary summary) {
+        final MirrorOptions options = context.getOptions();
+        final boolean verbose = options.isVerbose();
+        final String key = summary.getKey();
+        final String keydest = options.hasDestPrefix()
+                ? options.getDestPrefix() + key.substring(options.getPrefixLength())
+                : key;
+
+        if (options.hasCtime() && summary.getLastModified() != null && summary.getLastModified().getTime() < options.getMaxAge()) {
+            if (verbose) log.info("key "+key+" (lastmod="+summary.getLastModified()+") is older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+"), not copying");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // a multipart source is copied in the same parts, so the copy gets the same ETag (see MultipartKeyCopyJob)
+        final boolean multipart = summary.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE || sameLayout(summary);
+
+        return head(options.getDestinationBucket(), keydest)
+                .thenCompose(destination -> lookUpLayout(summary, destination).thenApply(v -> destination))
+                .thenApply(destination -> {
+                    if (destination == null) {
+                        if (verbose) log.info("Key not found in destination bucket (will copy): " + keydest);
+                        return true;
+                    }
+                    final boolean objectChanged = comparisonStrategy.sourceDifferent(summary, destination);
+                    if (verbose && !objectChanged) log.info("Destination file is same as source, not copying: " + key);
+                    return objectChanged;
+                })
+                .thenCompose(shouldTransfer -> {
+                    if (!shouldTransfer) return CompletableFuture.completedFuture(false);
+                    if (options.isDryRun()) {
+                        log.info("Would have copied " + key + " to destination: " + keydest);
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    return getGrants(key, summary.getVersionId())
+                            .thenCompose(grants -> multipart
+                                    ? multipartCopy(summary, keydest, grants)
+                                    : singleCopy(summary, keydest, grants))
+                            .thenApply(r -> true);
+                })
+                // wraps the HEAD and the comparison too: a key that can't be compared didn't get copied either
+                .handle((copied, e) -> {
+                    if (e != null) {
+                        log.error("error copying key: " + key + " to: " + keydest + ": " + unwrap(e));
+                        context.getStats().copyErrors.incrementAndGet();
+                        context.getStats().getReconciliation().failed(keydest);
+                    } else if (copied) {
+                        context.getStats().objectsCopied.incrementAndGet();
+                        context.getStats().bytesCopied.addAndGet(summary.getSize());
+                        if (verbose) log.info("successfully copied: " + key + " to: " + keydest);
+                    }
+                    return null;
+                });
+    }
+
+    private CompletableFuture<Void> singleCopy(S3VersionSummary summary, String keydest, GrantHeaders grants) {
+        final MirrorOptions options = context.getOptions();
+        final CopyObjectRequest.Builder request = CopyObjectRequest.builder()
+                .sourceBucket(options.getSourceBucket())
+                .sourceKey(summary.getKey())
+                .sourceVersionId(summary.getVersionId())
+                .destinationBucket(options.getDestinationBucket())
+                .destinationKey(keydest)
+                .storageClass(getStorageClass(options))
+                .metadataDirective(MetadataDirective.COPY);
+        if (options.isEncrypt()) request.serverSideEncryption(ServerSideEncryption.AES256);
+        grants.apply(request);
+
+        context.getStats().s3copyCount.incrementAndGet();
+        return destinationClient.copyObject(request.build())
+                .thenCompose(r -> head(options.getDestinationBucket(), keydest))
+                .thenAccept(destination -> {
+                    // a copy in one request has the source's MD5 as its ETag, unless the source's was not one (multipart, SSE-KMS)
+                    final boolean md5Etag = destination != null && PartLayouts.partCount(summary.getETag()) == 0 && destination.getSSEAwsKmsKeyId() == null;
+                    if (destination == null || destination.getContentLength() != summary.getSize() || (md5Etag && !summary.getETag().equals(destination.getETag()))) {
+                        log.error("error in copying the file, etag mismatch: fileName [{}] versionId[{}]", summary.getKey(), summary.getVersionId());
+                        throw new CompletionException(new IllegalStateException("copy of " + summary.getKey() + " at " + keydest + " is not the source's"));
+                    }
+                });
+    }
+
+    /**
+     * @return true if the object is copied with the part layout of its source, for the ETags to compare
+     */
+    private boolean sameLayout(S3VersionSummary summary) {
+        return ComparisonStrategyFactory.comparesEtags(context.getOptions()) && PartLayouts.partCount(summary.getETag()) > 0;
+    }
+
+    /**
+     * Looks up the part layout of a multipart source if the comparison needs it: the destination has as many parts, but another ETag
+     */
+    private CompletableFuture<Void> lookUpLayout(S3VersionSummary summary, ObjectMetadata destination) {
+        if (destination == null || !sameLayout(summary) || context.getPartLayouts().getCached(summary) != null
+                || summary.getETag().equals(destination.getETag()) || PartLayouts.partCount(summary.getETag()) != PartLayouts.partCount(destination.getETag())) {
+            return CompletableFuture.completedFuture(null);
+        }
+        context.getStats().s3getCount.incrementAndGet();
+        return sourceClient.headObject(HeadObjectRequest.builder().bucket(context.getOptions().getSourceBucket()).key(summary.getKey())
+                        .versionId(summary.getVersionId()).partNumber(1).build())
+                .handle((part1, e) -> {
+                    if (e == null) {
+                        context.getPartLayouts().setPart1Size(summary, part1.contentLength(), context);
+                    } else {
+                        // not cached, the layout is taken to be reproducible
+                        log.warn("Error looking up the part size of " + summary.getKey() + ": " + unwrap(e));
+                    }
+                    return null;
+                });
+    }
+
+    private CompletableFuture<Void> multipartCopy(S3VersionSummary summary, String keydest, GrantHeaders grants) {
+        final MirrorOptions options = context.getOptions();
+        final String sourceBucket = options.getSourceBucket();
+        final String destBucket = options.getDestinationBucket();
+
+        // the HEAD of the source's metadata also gives the size of its part 1, if its layout is not known yet
+        final boolean sameLayout = sameLayout(summary);
+        final Long knownPartSize = sameLayout ? context.getPartLayouts().getCached(summary) : null;
+        final HeadObjectRequest.Builder head = HeadObjectRequest.builder().bucket(sourceBucket).key(summary.getKey()).versionId(summary.getVersionId());
+        if (sameLayout && knownPartSize == null) head.partNumber(1);
+
+        context.getStats().s3getCount.incrementAndGet();
+        return sourceClient.headObject(head.build())
+                .thenCompose(source -> {
+                    final long layout = !sameLayout ? -1 : knownPartSize != null ? knownPartSize
+                            : context.getPartLayouts().setPart1Size(summary, source.contentLength(), context);
+                    final long partSize = layout > 0 ? layout : options.getUploadPartSize();
+                    final CreateMultipartUploadRequest.Builder request = CreateMultipartUploadRequest.builder()
+                            .bucket(destBucket)
+                            .key(keydest)
+                            .metadata(source.metadata())
+                            .contentType(source.contentType())
+                            .storageClass(getStorageClass(options));
+                    if (options.isEncrypt()) request.serverSideEncryption(ServerSideEncryption.AES256);
+                    grants.apply(request);
+                    return destinationClient.createMultipartUpload(request.build())
+                            .thenCompose(upload -> copyParts(summary, keydest, upload.uploadId(), partSize));
+                })
+                .thenAccept(r -> {
+                    if (options.isVerbose()) log.info("completed multipart request for : " + summary.getKey());
+                });
+    }
+
+    private CompletableFuture<CompleteMultipartUploadResponse> copyParts(S3VersionSummary summary, String keydest, String uploadId, long partSize) {
+        final MirrorOptions options = context.getOptions();
+        final String sourceBucket = options.getSourceBucket();
+        final String destBucket = options.getDestinationBucket();
+        final long objectSize = summary.getSize();
+        final List<Supplier<CompletableFuture<CompletedPart>>> parts = new ArrayList<>();
+        long bytePosition = 0;
+        for (int i = 1; bytePosition < objectSize; i++) {
+            final long firstByte = bytePosition;
+            final long lastByte = Math.min(bytePosition + partSize, objectSize) - 1;
+            final int partNumber = i;
+            parts.add(() -> {
+                context.getStats().s3copyCount.incrementAndGet();
+                return destinationClient.uploadPartCopy(UploadPartCopyRequest.builder()
+                                .sourceBucket(sourceBucket)
+                                .sourceKey(summary.getKey())
+                                .sourceVersionId(summary.getVersionId())
+                                .destinationBucket(destBucket)
+                                .destinationKey(keydest)
+                                .uploadId(uploadId)
+                                .copySourceRange("bytes=" + firstByte + "-" + lastByte)
+                                .partNumber(partNumber)
+                                .build())
+                        .thenApply(r -> CompletedPart.builder().partNumber(partNumber).eTag(r.copyPartResult().eTag()).build());
+            });
+            bytePosition += partSize;
+        }
+        // a few lanes take the parts in turn, so a large object does not put all its parts in flight at once
+        final AtomicInteger next = new AtomicInteger(0);
+        final CompletedPart[] completed = new CompletedPart[parts.size()];
+        final List<CompletableFuture<Void>> lanes = new ArrayList<>();
+        for (int i = 0; i < Math.min(MAX_PARTS_IN_FLIGHT, parts.size()); i++) lanes.add(copyParts(parts, next, completed));
+        return CompletableFuture.allOf(lanes.toArray(new CompletableFuture[0]))
+                .thenCompose(v -> destinationClient.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                        .bucket(destBucket)
+                        .key(keydest)
+                        .uploadId(uploadId)
+                        .multipartUpload(CompletedMultipartUpload.builder()
+                                .parts(completed)
+                                .build())
+                        .build()))
+                .whenComplete((r, e) -> {
+                    if (e != null) {
+                        log.error("Exception while doing multipart copy of " + summary.getKey() + ", aborting upload: " + unwrap(e));
+                        destinationClient.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                                .bucket(destBucket).key(keydest).uploadId(uploadId).build());
+                    }
+                });
+    }
+
+    /**
+     * Copies the next part not yet taken, then the next, until there are none left or one of them fails
+     */
+    private static CompletableFuture<Void> copyParts(List<Supplier<CompletableFuture<CompletedPart>>> parts, AtomicInteger next, CompletedPart[] completed) {
+        final int i = next.getAndIncrement();
+        if (i >= parts.size()) return CompletableFuture.completedFuture(null);
+        return parts.get(i).get()
+                .whenComplete((part, e) -> {
+                    // the other lanes take no more parts
+                    if (e != null) next.set(parts.size());
+                })
+                .thenCompose(part -> {
+                    completed[i] = part;
+                    return copyParts(parts, next, completed);
+                });
+    }
+
+    private CompletableFuture<?> delete(S3VersionSummary summary) {
+        final MirrorOptions options = context.getOptions();
+        final boolean verbose = options.isVerbose();
+        final String key = summary.getKey(); // NOTE: this is the key in the destination bucket
+        final String keysrc = options.hasPrefix()
+                ? options.getPrefix() + key.substring(options.getDestPrefixLength())
+                : key;
+
+        return head(options.getSourceBucket(), keysrc)
+                .thenCompose(source -> {
+                    if (source != null) return CompletableFuture.completedFuture(null);
+                    if (verbose) log.info("Key not found in source bucket (will delete from destination): " + keysrc);
+                    if (options.isDryRun()) {
+                        log.info("Would have deleted " + key + " from destination because " + keysrc + " does not exist in source");
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    context.getStats().s3deleteCount.incrementAndGet();
+                    return destinationClient.deleteObject(DeleteObjectRequest.builder().bucket(options.getDestinationBucket()).key(key).build())
+                            .handle((r, e) -> {
+                                if (e != null) {
+                                    log.error("exception deleting " + key + ": " + unwrap(e));
+                                    context.getStats().deleteErrors.incrementAndGet();
+                                } else {
+                                    context.getStats().objectsDeleted.incrementAndGet();
+                                    if (verbose) log.info("successfully deleted: " + key);
+                                }
+                                return null;
+                            });
+                });
+    }
+
+    /**
+     * HEAD an object, completing with null if it does not exist.
+     */
+    private CompletableFuture<ObjectMetadata> head(String bucket, String key) {
+        context.getStats().s3getCount.incrementAndGet();
+        return clientFor(bucket).headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build())
+                .handle((response, e) -> {
+                    if (e == null) return toMetadata(response);
+                    final Throwable cause = unwrap(e);
+                    if (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 404) return null;
+                    throw new CompletionException(cause);
+                });
+    }
+
+    private CompletableFuture<GrantHeaders> getGrants(String key, String versionId) {
+        final MirrorOptions options = context.getOptions();
+        context.getStats().s3getCount.incrementAndGet();
+        return sourceClient.getObjectAcl(GetObjectAclRequest.builder().bucket(options.getSourceBucket()).key(key).versionId(versionId).build())
+                .handle((acl, e) -> {
+                    if (e != null) {
+                        // same fallback as KeyJob.getAccessControlList: we may not own the source object
+                        log.warn("Unable to obtain object ACL, copying item without ACL data.");
+                        return new GrantHeaders(new ArrayList<>(), options.isCrossAccountCopy() ? context.getOwner().getId() : null);
+                    }
+                    List<Grant> grants = acl.grants();
+                    if (options.isCrossAccountCopy()) {
+                        grants = grants.stream()
+                                .filter(g -> g.grantee().type() == Type.GROUP)
+                                .collect(Collectors.toList());
+                        return new GrantHeaders(grants, context.getOwner().getId());
+                    }
+                    return new GrantHeaders(grants, null);
+                });
+    }
+
+    private S3AsyncClient clientFor(String bucket) {
+        return bucket.equals(context.getOptions().getSourceBucket()) ? sourceClient : destinationClient;
+    }
+
+    private static software.amazon.awssdk.services.s3.model.StorageClass getStorageClass(MirrorOptions options) {
+        // the option uses the v1 enum names (Standard | ReducedRedundancy | ...)
+        return software.amazon.awssdk.services.s3.model.StorageClass.fromValue(
+                com.amazonaws.services.s3.model.StorageClass.valueOf(options.getStorageClass()).toString());
+    }
+
+    static S3VersionSummary toSummary(String bucket, ObjectVersion version) {
+        final S3VersionSummary summary = new S3VersionSummary();
+        summary.setBucketName(bucket);
+        summary.setKey(version.key());
+        summary.setVersionId(version.versionId());
+        summary.setSize(version.size());
+        summary.setETag(removeQuotes(version.eTag()));
+        summary.setIsLatest(version.isLatest());
+        if (version.lastModified() != null) summary.setLastModified(Date.from(version.lastModified()));
+        if (version.storageClassAsString() != null) summary.setStorageClass(version.storageClassAsString());
+        return summary;
+    }
+
+    static ObjectMetadata toMetadata(HeadObjectResponse response) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(response.contentLength());
+        metadata.setHeader(Headers.ETAG, removeQuotes(response.eTag()));
+        if (response.lastModified() != null) metadata.setLastModified(Date.from(response.lastModified()));
+        if (response.contentType() != null) metadata.setContentType(response.contentType());
+        if (response.ssekmsKeyId() != null) metadata.setHeader(Headers.SERVER_SIDE_ENCRYPTION_AWS_KMS_KEYID, response.ssekmsKeyId());
+        metadata.setUserMetadata(response.metadata());
+        return metadata;
+    }
+
+    // the v1 client strips the quotes around ETags, the comparison strategies expect them that way
+    private static String removeQuotes(String etag) {
+        if (etag == null) return null;
+        return etag.startsWith("\"") && etag.endsWith("\"") && etag.length() > 1 ? etag.substring(1, etag.length() - 1) : etag;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        return e;
+    }
+
+    /**
+     * Source object grants, rendered as the x-amz-grant-* headers accepted by CopyObject and CreateMultipartUpload.
+     */
+    private static class GrantHeaders {
+        private final Map<Permission, String> headers;
+
+        GrantHeaders(List<Grant> grants, String fullControlOwnerId) {
+            headers = grants.stream().collect(Collectors.groupingBy(Grant::permission,
+                    Collectors.mapping(g -> toHeaderValue(g.grantee()), Collectors.joining(", "))));
+            if (fullControlOwnerId != null) {
+                headers.merge(Permission.FULL_CONTROL, "id=" + fullControlOwnerId, (a, b) -> a + ", " + b);
+            }
+        }
+
+        private static String toHeaderValue(Grantee grantee) {
+            switch (grantee.type()) {
+                case GROUP: return "uri=" + grantee.uri();
+                case AMAZON_CUSTOMER_BY_EMAIL: return "emailAddress=" + grantee.emailAddress();
+                default: return "id=" + grantee.id();
+            }
+        }
+
+        void apply(CopyObjectRequest.Builder request) {
+            request.grantFullControl(headers.get(Permission.FULL_CONTROL))
+                    .grantRead(headers.get(Permission.READ))
+                    .grantReadACP(headers.get(Permission.READ_ACP))
+                    .grantWriteACP(headers.get(Permission.WRITE_ACP));
+        }
+
+        void apply(CreateMultipartUploadRequest.Builder request) {
+            request.grantFullControl(headers.get(Permission.FULL_CONTROL))
+                    .grantRead(headers.get(Permission.READ))
+                    .grantReadACP(headers.get(Permission.READ_ACP))
+                    .grantWriteACP(headers.get(Permission.WRITE_ACP));
+        }
+    }
+}
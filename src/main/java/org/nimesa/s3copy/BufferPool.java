@@ -0,0 +1,165 @@
+package org.nimesa.s3copy;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.nimesa.s3copy.MirrorConstants.*;
+
+/**
+ * Buffers for the bytes that pass through this process (streamed objects, local transfers), so they do
+ * not each allocate a fresh array on the heap.
+ *
+ * Buffers are direct ByteBuffers in a few fixed size classes, each four times the one before, and go
+ * back to their class's free list when released, to be reused. All the buffers allocated, free or in
+ * use, never add up to more than the pool's capacity: when a buffer is needed and there is no room,
+ * free buffers of other classes are dropped to make some, and if there are none, acquire() waits for a
+ * release. That wait is the backpressure: transfers slow down to what the destination takes, instead of
+ * growing memory.
+ *
+ * The JVM caps direct memory at -XX:MaxDirectMemorySize (by default, the heap size), which must be at
+ * least the pool's capacity.
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 64 * (int) KB;
+    public static final int MAX_BUFFER_SIZE = 256 * (int) MB;
+    private static final int CLASS_FACTOR_BITS = 2;
+
+    @Getter private final long capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final ArrayDeque<ByteBuffer>[] free;
+
+    // guarded by lock
+    private long allocated = 0;
+    private long inUse = 0;
+    private long peakInUse = 0;
+
+    private final AtomicLong acquired = new AtomicLong(0);
+    private final AtomicLong reused = new AtomicLong(0);
+    private final AtomicLong waits = new AtomicLong(0);
+    private final AtomicLong waitMillis = new AtomicLong(0);
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(long capacity) {
+        if (capacity < MIN_BUFFER_SIZE) throw new IllegalArgumentException("buffer pool capacity must be at least " + MIN_BUFFER_SIZE + " bytes");
+        this.capacity = capacity;
+        free = new ArrayDeque[sizeClass(MAX_BUFFER_SIZE) + 1];
+        for (int i = 0; i < free.length; i++) free[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * @return the largest buffer that can be asked for
+     */
+    public long getMaxBufferSize() {
+        long size = classSize(free.length - 1);
+        while (size > capacity) size >>= CLASS_FACTOR_BITS;
+        return size;
+    }
+
+    /**
+     * @return the size of the buffers that size bytes get, which they may as well fill
+     */
+    public static long bufferSizeFor(long size) {
+        return size > MAX_BUFFER_SIZE ? size : classSize(sizeClass((int) size));
+    }
+
+    private static int sizeClass(int size) {
+        int sizeClass = 0;
+        while (classSize(sizeClass) < size) sizeClass++;
+        return sizeClass;
+    }
+
+    private static int classSize(int sizeClass) {
+        return MIN_BUFFER_SIZE << (CLASS_FACTOR_BITS * sizeClass);
+    }
+
+    /**
+     * Waits until a buffer of at least size bytes is available, then takes it.
+     *
+     * @return a cleared buffer, limited to size bytes, to give back with release()
+     */
+    public ByteBuffer acquire(int size) throws InterruptedException {
+        if (size > getMaxBufferSize()) throw new IllegalArgumentException("no buffer of " + size + " bytes in a pool of at most " + getMaxBufferSize());
+        final int sizeClass = sizeClass(size);
+        final int classSize = classSize(sizeClass);
+        ByteBuffer buffer;
+        lock.lockInterruptibly();
+        try {
+            long waitStart = 0;
+            while (true) {
+                buffer = free[sizeClass].pollFirst();
+                if (buffer != null) {
+                    reused.incrementAndGet();
+                    break;
+                }
+                if (allocated + classSize <= capacity || dropFree(classSize)) {
+                    buffer = ByteBuffer.allocateDirect(classSize);
+                    allocated += classSize;
+                    break;
+                }
+                if (waitStart == 0) {
+                    waitStart = System.currentTimeMillis();
+                    waits.incrementAndGet();
+                }
+                released.await();
+            }
+            if (waitStart != 0) waitMillis.addAndGet(System.currentTimeMillis() - waitStart);
+            inUse += classSize;
+            peakInUse = Math.max(peakInUse, inUse);
+        } finally {
+            lock.unlock();
+        }
+        acquired.incrementAndGet();
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Drops free buffers (largest first) until there is room to allocate needed bytes. Call with the lock held.
+     *
+     * @return true if there is room now
+     */
+    private boolean dropFree(long needed) {
+        for (int i = free.length - 1; i >= 0 && allocated + needed > capacity; i--) {
+            // the memory itself goes back to the system when the dropped buffers are collected
+            while (!free[i].isEmpty() && allocated + needed > capacity) {
+                free[i].pollFirst();
+                allocated -= classSize(i);
+            }
+        }
+        return allocated + needed <= capacity;
+    }
+
+    public void release(ByteBuffer buffer) {
+        final int sizeClass = sizeClass(buffer.capacity());
+        lock.lock();
+        try {
+            free[sizeClass].addFirst(buffer);
+            inUse -= buffer.capacity();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a report of the pool's use, for the stats
+     */
+    public String report() {
+        lock.lock();
+        try {
+            return "buffer pool: " + (inUse / MB) + " MB in use (peak " + (peakInUse / MB) + " MB), " + (allocated / MB) + " MB allocated of " + (capacity / MB) + " MB\n"
+                    + "buffers acquired: " + acquired + " (" + reused + " reused), waited for " + waits + " (" + TimeUnit.MILLISECONDS.toSeconds(waitMillis.get()) + " seconds)\n";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
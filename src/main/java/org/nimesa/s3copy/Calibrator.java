@@ -0,0 +1,200 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.nimesa.s3copy.MirrorConstants.*;
+
+/**
+ * Picks maxThreads, maxConnections, the listing page size and the multipart part size for a bucket pair.
+ *
+ * It samples the first few listing pages of the source to learn the object size distribution, then
+ * runs a short ramp of HEAD requests (against both source and destination, as the copy jobs do) at
+ * increasing concurrency. The concurrency where throughput stops improving, latency starts to
+ * climb, or requests start to fail or be throttled, is the knee we size the thread pool for.
+ */
+@Slf4j
+public class Calibrator {
+
+    public static final int[] CONCURRENCY_LEVELS = {4, 8, 16, 32, 64, 128, 256};
+    public static final int MAX_CONCURRENCY = CONCURRENCY_LEVELS[CONCURRENCY_LEVELS.length - 1];
+
+    private static final int SAMPLE_PAGES = 5;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int REQUESTS_PER_THREAD = 8;
+
+    // stop ramping when one doubling of concurrency buys less than this much throughput...
+    private static final double MIN_THROUGHPUT_GAIN = 1.10;
+    // ...or when median latency has grown by more than this factor over the first level
+    private static final double MAX_LATENCY_GROWTH = 2.0;
+    // ...or when more than this share of its requests failed or were throttled
+    private static final double MAX_FAILURE_RATE = 0.01;
+
+    private final MirrorClients clients;
+    private final MirrorOptions options;
+
+    public Calibrator(MirrorClients clients, MirrorOptions options) {
+        this.clients = clients;
+        this.options = options;
+    }
+
+    public void calibrate() {
+        final long start = System.currentTimeMillis();
+        final List<S3ObjectSummary> sample = sampleSource();
+        if (sample.isEmpty()) {
+            log.info("calibrate: source is empty, keeping configured settings");
+            return;
+        }
+
+        final long[] sizes = sample.stream().mapToLong(S3ObjectSummary::getSize).sorted().toArray();
+        final long medianSize = sizes[sizes.length / 2];
+        final long maxSize = sizes[sizes.length - 1];
+        log.info("calibrate: sampled " + sizes.length + " keys, median size=" + medianSize + " p90=" + sizes[(int) (sizes.length * 0.9)] + " max=" + maxSize);
+
+        final int threads = findConcurrencyKnee(sample);
+
+        options.setMaxThreads(threads);
+        // one connection per worker on each side, plus one for the lister
+        options.setMaxConnections(threads + 1);
+        options.setSourceMaxConnections(threads + 1);
+        options.setDestMaxConnections(threads + 1);
+        // a full page is the cheapest way to list, unless the sample shows the bucket is tiny
+        options.setListPageSize(Math.min(MAX_PAGE_SIZE, Math.max(sizes.length, threads)));
+        // S3 allows at most 10000 parts per upload; only grow the part size when the largest sampled object needs it
+        final long minPartSize = (maxSize + 9999) / 10000;
+        if (minPartSize > options.getUploadPartSize()) {
+            options.setUploadPartSize(((minPartSize + MB - 1) / MB) * MB);
+        }
+
+        log.info("calibrate: chose maxThreads=" + options.getMaxThreads()
+                + " maxConnections=" + options.getMaxConnections()
+                + " listPageSize=" + options.getListPageSize()
+                + " uploadPartSize=" + options.getUploadPartSize()
+                + " (calibration took " + (System.currentTimeMillis() - start) + "ms)");
+    }
+
+    private List<S3ObjectSummary> sampleSource() {
+        final ObjectStore client = clients.getSourceClient();
+        final List<S3ObjectSummary> sample = new ArrayList<>();
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(options.getSourceBucket())
+                .withPrefix(options.getPrefix())
+                .withMaxKeys(MAX_PAGE_SIZE);
+        for (int page = 0; page < SAMPLE_PAGES; page++) {
+            final ListObjectsV2Result result = client.listObjectsV2(request);
+            sample.addAll(result.getObjectSummaries());
+            if (!result.isTruncated()) break;
+            request = request.withContinuationToken(result.getNextContinuationToken());
+        }
+        return sample;
+    }
+
+    private int findConcurrencyKnee(List<S3ObjectSummary> sample) {
+        final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENCY);
+        try {
+            int best = CONCURRENCY_LEVELS[0];
+            double bestThroughput = 0;
+            double baseLatency = 0;
+            for (int concurrency : CONCURRENCY_LEVELS) {
+                final long[] latencies = runHeads(executor, sample, concurrency);
+                final long failures = latencies[latencies.length - 1];
+                final double seconds = latencies[latencies.length - 2] / 1000.0;
+                final long[] perRequest = Arrays.copyOf(latencies, latencies.length - 2);
+                Arrays.sort(perRequest);
+                final double throughput = perRequest.length / Math.max(seconds, 0.001);
+                final double medianLatency = perRequest[perRequest.length / 2];
+                log.info("calibrate: concurrency=" + concurrency + " throughput=" + String.format("%.1f", throughput) + " req/s, median latency=" + medianLatency + "ms"
+                        + (failures > 0 ? ", " + failures + " failed or throttled" : ""));
+
+                if (failures > perRequest.length * MAX_FAILURE_RATE) {
+                    // the service is pushing back already: stay at the last level that went through
+                    break;
+                }
+
+                if (baseLatency == 0) baseLatency = Math.max(medianLatency, 1);
+                if (throughput < bestThroughput * MIN_THROUGHPUT_GAIN || medianLatency > baseLatency * MAX_LATENCY_GROWTH) {
+                    // past the knee: if throughput still improved a bit, take this level, otherwise stay at the last one
+                    if (throughput > bestThroughput) best = concurrency;
+                    break;
+                }
+                best = concurrency;
+                bestThroughput = throughput;
+            }
+            return best;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the latency of each request in ms, followed by the wall-clock time of the whole level and the
+     * number of requests that failed or were throttled
+     */
+    private long[] runHeads(ExecutorService executor, List<S3ObjectSummary> sample, int concurrency) {
+        final int total = concurrency * REQUESTS_PER_THREAD;
+        final long[] latencies = new long[total + 2];
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final List<Future<?>> futures = new ArrayList<>();
+        final long start = System.currentTimeMillis();
+        for (int t = 0; t < concurrency; t++) {
+            futures.add(executor.submit(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < total) {
+                    final String key = sample.get(i % sample.size()).getKey();
+                    final long requestStart = System.currentTimeMillis();
+                    // alternate sides, the copy pipeline HEADs both
+                    final boolean ok;
+                    if (i % 2 == 0) {
+                        ok = head(clients.getSourceClient(), options.getSourceBucket(), key);
+                    } else {
+                        ok = head(clients.getDestinationClient(), options.getDestinationBucket(), toDestinationKey(key));
+                    }
+                    if (!ok) failures.incrementAndGet();
+                    latencies[i] = System.currentTimeMillis() - requestStart;
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                throw new IllegalStateException("calibrate: error running HEAD requests: " + e, e);
+            }
+        }
+        latencies[total] = System.currentTimeMillis() - start;
+        latencies[total + 1] = failures.get();
+        return latencies;
+    }
+
+    /**
+     * @return false if the request failed or was throttled
+     */
+    private boolean head(ObjectStore client, String bucket, String key) {
+        try {
+            client.getObjectMetadata(bucket, key);
+            return true;
+        } catch (AmazonS3Exception e) {
+            // a missing destination key costs the same round trip, which is what we are measuring
+            return e.getStatusCode() == 404;
+        } catch (SdkClientException e) {
+            return false;
+        }
+    }
+
+    private String toDestinationKey(String key) {
+        return options.hasDestPrefix() ? options.getDestPrefix() + key.substring(options.getPrefixLength()) : key;
+    }
+}
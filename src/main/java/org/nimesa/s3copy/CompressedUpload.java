@@ -0,0 +1,195 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.*;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.nimesa.s3copy.MirrorConstants.*;
+
+/**
+ * Uploads an object gzipped (see Compression): the data is compressed as it is read, into a buffer from
+ * the BufferPool, and each time the buffer fills up it is uploaded as the next part of a multipart upload.
+ * An object that compresses into a single buffer is sent with a single PUT.
+ *
+ * The object is one gzip stream, compressed on its job's thread: objects compress in parallel with each
+ * other, but the parts of one are not compressed separately, as parts of data that compresses well would
+ * fall under the 5 MB minimum part size. Only one buffer is held at a time, so the upload cannot wait on
+ * the pool while holding others.
+ */
+@Slf4j
+class CompressedUpload extends OutputStream {
+
+    private static final long MIN_PART_SIZE = 5 * MB;
+    private static final long MAX_PART_SIZE = 16 * MB;
+    private static final int MAX_PARTS = 10000;
+    private static final int CHUNK_SIZE = 64 * (int) KB;
+
+    private final KeyCopyJob job;
+    private final MirrorOptions options;
+    private final ObjectStore client;
+    private final BufferPool pool;
+    private final ObjectMetadata metadata;
+    private final AccessControlList acl;
+    private final long size;
+    private final int partSize;
+
+    private ByteBuffer buffer;
+    private String uploadId;
+    private final List<PartETag> etags = new ArrayList<>();
+
+    @Getter private long compressedSize = 0;
+    /**
+     * The checksum of the uncompressed data, with the algorithm given to upload()
+     */
+    @Getter private String checksum;
+    @Getter private String versionId;
+
+    /**
+     * @param metadata the destination object's metadata, which the compression headers are added to
+     */
+    CompressedUpload(KeyCopyJob job, long size, ObjectMetadata metadata, AccessControlList acl) {
+        this.job = job;
+        this.options = job.context.getOptions();
+        this.client = job.clients.getDestinationClient();
+        this.pool = job.clients.getBufferPool();
+        this.metadata = metadata;
+        this.acl = acl;
+        this.size = size;
+
+        // the compressed data is at most a little more than the original, which must fit in MAX_PARTS parts
+        long partSize = Math.max(MIN_PART_SIZE, Math.min(options.getUploadPartSize(), MAX_PART_SIZE));
+        partSize = BufferPool.bufferSizeFor(Math.max(partSize, (size + size / 100 + MAX_PARTS - 1) / MAX_PARTS));
+        if (partSize > pool.getMaxBufferSize()) {
+            throw new IllegalStateException("parts of " + job.keydest + " (" + partSize + " bytes) do not fit in the buffer pool, raise --buffer-memory");
+        }
+        this.partSize = (int) partSize;
+    }
+
+    /**
+     * Compresses everything read from raw, and uploads it to the job's destination key
+     *
+     * @param algorithm        the checksum to compute of the uncompressed data, or null for none
+     * @param originalChecksum that checksum, if it is known already. It is recorded in the metadata, which
+     *                         a multipart upload sets before any data is read, so a checksum computed on the
+     *                         way is only recorded when the object takes a single PUT.
+     */
+    void upload(InputStream raw, ContentChecksum.Algorithm algorithm, String originalChecksum) throws Exception {
+        Compression.setCompressed(metadata, size, algorithm, originalChecksum);
+        final ContentChecksum.Digest digest = algorithm == null ? null : algorithm.newDigest();
+        buffer = pool.acquire(partSize);
+        try {
+            long read = 0;
+            // the Deflater takes arrays, so the data goes through a small one on its way to the buffer. It is not
+            // from the pool: waiting there for it while holding the part buffer could deadlock the uploads
+            final byte[] chunk = new byte[CHUNK_SIZE];
+            try (GZIPOutputStream gzip = new GZIPOutputStream(this, CHUNK_SIZE)) {
+                int n;
+                while ((n = raw.read(chunk)) != -1) {
+                    if (digest != null) digest.update(ByteBuffer.wrap(chunk, 0, n));
+                    gzip.write(chunk, 0, n);
+                    read += n;
+                }
+            }
+            if (read != size) throw new IOException("read " + read + " bytes of " + job.summary.getKey() + ", expected " + size);
+            checksum = digest == null ? null : ContentChecksum.full(digest.finish());
+            job.checkSourceChecksum(checksum);
+            buffer.flip();
+
+            if (uploadId == null) {
+                if (originalChecksum == null) Compression.setCompressed(metadata, size, algorithm, checksum);
+                metadata.setContentLength(buffer.remaining());
+                final PutObjectResult result = job.withRetries("upload of " + job.keydest, () -> {
+                    final PutObjectRequest request = new PutObjectRequest(options.getDestinationBucket(), job.keydest, new LocalStore.ByteBufferInputStream(buffer.duplicate()), metadata)
+                            .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+                    if (acl != null) request.setAccessControlList(acl);
+                    job.context.getStats().s3copyCount.incrementAndGet();
+                    return client.putObject(request);
+                });
+                versionId = result.getVersionId();
+            } else {
+                uploadPart();
+                versionId = client.completeMultipartUpload(new CompleteMultipartUploadRequest(options.getDestinationBucket(), job.keydest, uploadId, etags)).getVersionId();
+            }
+            job.context.getStats().objectsCompressed.incrementAndGet();
+            job.context.getStats().bytesBeforeCompression.addAndGet(size);
+            job.context.getStats().bytesCompressed.addAndGet(compressedSize);
+            if (options.isVerbose()) log.info("compressed " + job.keydest + " from " + size + " to " + compressedSize + " bytes");
+
+        } catch (Exception e) {
+            if (uploadId != null) {
+                try {
+                    client.abortMultipartUpload(new AbortMultipartUploadRequest(options.getDestinationBucket(), job.keydest, uploadId));
+                } catch (Exception abortError) {
+                    log.warn("Error aborting multipart upload of " + job.keydest + " (uploadId=" + uploadId + "): " + abortError);
+                }
+            }
+            throw e;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            // a full buffer is only sent once more data comes, so the last part is never empty
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                uploadPart();
+                buffer.clear().limit(partSize);
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+            compressedSize += n;
+        }
+    }
+
+    /**
+     * Uploads the (flipped) buffer as the next part, initiating the upload on the first
+     */
+    private void uploadPart() throws IOException {
+        try {
+            if (uploadId == null) {
+                final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(options.getDestinationBucket(), job.keydest, metadata)
+                        .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+                if (acl != null) initiateRequest.setAccessControlList(acl);
+                uploadId = client.initiateMultipartUpload(initiateRequest).getUploadId();
+            }
+            final int number = etags.size() + 1;
+            final int length = buffer.remaining();
+            etags.add(job.withRetries("upload of part " + number + " of " + job.keydest, () -> {
+                final UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(options.getDestinationBucket())
+                        .withKey(job.keydest)
+                        .withUploadId(uploadId)
+                        .withPartNumber(number)
+                        .withPartSize(length)
+                        .withInputStream(new LocalStore.ByteBufferInputStream(buffer.duplicate()));
+                job.context.getStats().s3copyCount.incrementAndGet();
+                return client.uploadPart(request).getPartETag();
+            }));
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted uploading " + job.keydest);
+        } catch (Exception e) {
+            throw new IOException("upload of " + job.keydest + " failed: " + e, e);
+        }
+    }
+}
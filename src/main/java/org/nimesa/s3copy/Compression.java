@@ -0,0 +1,151 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gzip compression of objects on their way to the destination (--compress), and back (--decompress).
+ *
+ * A compressed object gets Content-Encoding: gzip, so HTTP clients that fetch it see the original, and
+ * carries its original size (and checksum, where it is known before the upload starts) in its metadata.
+ * Comparisons use the original size (see SourceEtagComparisonStrategy), so compressed copies are not
+ * taken to differ from their sources. Only objects whose content type matches --compress-types, and
+ * not --compress-exclude, are compressed; objects that already have a Content-Encoding never are.
+ */
+public class Compression {
+
+    public static final String GZIP = "gzip";
+
+    /**
+     * User metadata that compressed objects carry: how, and their size and checksum before compression
+     */
+    public static final String COMPRESSION_METADATA = "s3mirror-compression";
+    public static final String ORIGINAL_SIZE_METADATA = "s3mirror-original-size";
+    public static final String ORIGINAL_CHECKSUM_METADATA_PREFIX = "s3mirror-original-";
+
+    public static final String DEFAULT_TYPES = "text/*,application/json,application/x-ndjson,application/xml,application/javascript,application/csv";
+
+    // below this, the gzip header and a request's overhead outweigh what is saved
+    private static final long MIN_SIZE = 1024;
+
+    // content types of files, which have none of their own, by extension; for those the JDK does not know
+    private static final Map<String, String> TYPES_BY_EXTENSION = new HashMap<>();
+    static {
+        TYPES_BY_EXTENSION.put("log", "text/plain");
+        TYPES_BY_EXTENSION.put("txt", "text/plain");
+        TYPES_BY_EXTENSION.put("csv", "text/csv");
+        TYPES_BY_EXTENSION.put("tsv", "text/tab-separated-values");
+        TYPES_BY_EXTENSION.put("json", "application/json");
+        TYPES_BY_EXTENSION.put("ndjson", "application/x-ndjson");
+        TYPES_BY_EXTENSION.put("jsonl", "application/x-ndjson");
+        TYPES_BY_EXTENSION.put("xml", "application/xml");
+        TYPES_BY_EXTENSION.put("yaml", "text/yaml");
+        TYPES_BY_EXTENSION.put("yml", "text/yaml");
+        TYPES_BY_EXTENSION.put("sql", "text/plain");
+        TYPES_BY_EXTENSION.put("md", "text/markdown");
+    }
+
+    private final List<String> include;
+    private final List<String> exclude;
+
+    public Compression(MirrorOptions options) {
+        include = parseTypes(options.getCompressTypes());
+        exclude = parseTypes(options.getCompressExclude());
+    }
+
+    private static List<String> parseTypes(String types) {
+        if (types == null) return Collections.emptyList();
+        final List<String> parsed = new ArrayList<>();
+        for (String type : types.split(",")) {
+            if (type.trim().length() > 0) parsed.add(type.trim().toLowerCase());
+        }
+        return parsed;
+    }
+
+    /**
+     * @return true if the object should be compressed on its way to the destination
+     */
+    public boolean shouldCompress(String key, ObjectMetadata metadata) {
+        if (metadata.getContentEncoding() != null || isCompressed(metadata)) return false;
+        if (metadata.getContentLength() < MIN_SIZE) return false;
+        final String contentType = contentTypeOf(key, metadata);
+        if (contentType == null) return false;
+        return matches(include, contentType) && !matches(exclude, contentType);
+    }
+
+    private static boolean matches(List<String> patterns, String contentType) {
+        for (String pattern : patterns) {
+            if (pattern.endsWith("/*") ? contentType.startsWith(pattern.substring(0, pattern.length() - 1)) : contentType.equals(pattern)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the object's content type without its parameters, guessed from the key's extension if it has none, or null
+     */
+    public static String contentTypeOf(String key, ObjectMetadata metadata) {
+        String contentType = metadata.getContentType();
+        // S3's default for objects uploaded without one says nothing
+        if (contentType == null || contentType.equals("binary/octet-stream")) {
+            final int dot = key.lastIndexOf('.');
+            if (dot != -1 && key.indexOf('/', dot) == -1) contentType = TYPES_BY_EXTENSION.get(key.substring(dot + 1).toLowerCase());
+            if (contentType == null) contentType = URLConnection.getFileNameMap().getContentTypeFor(key);
+        }
+        if (contentType == null) return null;
+        final int semicolon = contentType.indexOf(';');
+        return (semicolon == -1 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+    }
+
+    /**
+     * Marks the metadata of an object about to be uploaded compressed
+     *
+     * @param originalChecksum the checksum of the uncompressed data, or null if it is not known yet
+     */
+    public static void setCompressed(ObjectMetadata metadata, long originalSize, ContentChecksum.Algorithm algorithm, String originalChecksum) {
+        metadata.setContentEncoding(GZIP);
+        metadata.addUserMetadata(COMPRESSION_METADATA, GZIP);
+        metadata.addUserMetadata(ORIGINAL_SIZE_METADATA, String.valueOf(originalSize));
+        if (originalChecksum != null) metadata.addUserMetadata(ORIGINAL_CHECKSUM_METADATA_PREFIX + algorithm.name().toLowerCase(), originalChecksum);
+    }
+
+    public static boolean isCompressed(ObjectMetadata metadata) {
+        return GZIP.equals(metadata.getUserMetaDataOf(COMPRESSION_METADATA));
+    }
+
+    /**
+     * @return the size of the object before it was compressed, or -1 if it was not
+     */
+    public static long getOriginalSize(ObjectMetadata metadata) {
+        final String size = metadata.getUserMetaDataOf(ORIGINAL_SIZE_METADATA);
+        if (size == null) return -1;
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the checksum of the object before it was compressed, or null if it has none of this algorithm
+     */
+    public static String getOriginalChecksum(ObjectMetadata metadata, ContentChecksum.Algorithm algorithm) {
+        return metadata.getUserMetaDataOf(ORIGINAL_CHECKSUM_METADATA_PREFIX + algorithm.name().toLowerCase());
+    }
+
+    /**
+     * @return the algorithm of the original checksum recorded in the metadata (the configured one first), or null if there is none
+     */
+    public static ContentChecksum.Algorithm getOriginalChecksumAlgorithm(ObjectMetadata metadata, ContentChecksum.Algorithm preferred) {
+        if (preferred != null && getOriginalChecksum(metadata, preferred) != null) return preferred;
+        for (ContentChecksum.Algorithm algorithm : ContentChecksum.Algorithm.values()) {
+            if (getOriginalChecksum(metadata, algorithm) != null) return algorithm;
+        }
+        return null;
+    }
+}
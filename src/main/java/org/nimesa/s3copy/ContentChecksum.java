@@ -0,0 +1,162 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Content checksums for --checksum, in the form S3 keeps them as "additional checksums": the base64
+ * checksum of the whole object, or for an object uploaded in parts, the base64 checksum of the
+ * concatenated part checksums followed by "-" and the number of parts.
+ *
+ * Two checksums can only be compared if they have the same form, and for multipart objects the same
+ * part count (a composite checksum depends on where the parts start and end).
+ */
+public class ContentChecksum {
+
+    /**
+     * Asks S3 to return the object's checksums with a HEAD or GET
+     */
+    public static final String CHECKSUM_MODE_HEADER = "x-amz-checksum-mode";
+    /**
+     * Asks S3 to compute a checksum of the new object, on a copy or an upload
+     */
+    public static final String CHECKSUM_ALGORITHM_HEADER = "x-amz-checksum-algorithm";
+
+    public enum Algorithm {
+        CRC32C("x-amz-checksum-crc32c"),
+        SHA256("x-amz-checksum-sha256");
+
+        /**
+         * Header the checksum goes in, on an upload and in the object's metadata
+         */
+        public final String header;
+
+        Algorithm(String header) {
+            this.header = header;
+        }
+
+        /**
+         * @return the checksum of the buffer's remaining bytes, without moving its position.
+         * CRC32C of a direct buffer runs on the CPU's CRC instructions where it has them.
+         */
+        public byte[] digest(ByteBuffer buffer) {
+            final Digest digest = newDigest();
+            digest.update(buffer.duplicate());
+            return digest.finish();
+        }
+
+        public Digest newDigest() {
+            switch (this) {
+                case CRC32C: return new Crc32cDigest();
+                default: return new MessageDigestDigest("SHA-256");
+            }
+        }
+    }
+
+    /**
+     * A checksum being computed, over data that comes in pieces
+     */
+    public interface Digest {
+        void update(ByteBuffer buffer);
+        byte[] finish();
+    }
+
+    private static class Crc32cDigest implements Digest {
+        private final CRC32C crc = new CRC32C();
+
+        @Override public void update(ByteBuffer buffer) { crc.update(buffer); }
+
+        @Override
+        public byte[] finish() {
+            return ByteBuffer.allocate(4).putInt((int) crc.getValue()).array();
+        }
+    }
+
+    private static class MessageDigestDigest implements Digest {
+        private final MessageDigest digest;
+
+        MessageDigestDigest(String algorithm) {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(algorithm + " not available: " + e, e);
+            }
+        }
+
+        @Override public void update(ByteBuffer buffer) { digest.update(buffer); }
+        @Override public byte[] finish() { return digest.digest(); }
+    }
+
+    /**
+     * @return the checksum of a whole object, as S3 shows it
+     */
+    public static String full(byte[] digest) {
+        return Base64.getEncoder().encodeToString(digest);
+    }
+
+    /**
+     * @param parts the checksums of the parts, in part order
+     * @return the checksum of an object uploaded in these parts, as S3 shows it
+     */
+    public static String composite(Algorithm algorithm, List<byte[]> parts) {
+        final Digest digest = algorithm.newDigest();
+        for (byte[] part : parts) digest.update(ByteBuffer.wrap(part));
+        return full(digest.finish()) + "-" + parts.size();
+    }
+
+    /**
+     * @param parts the checksums of the parts an object was moved in, in part order
+     * @return the object's checksum: a full one if it was moved in one part, a composite one otherwise
+     */
+    public static String of(Algorithm algorithm, List<byte[]> parts) {
+        return parts.size() == 1 ? full(parts.get(0)) : composite(algorithm, parts);
+    }
+
+    /**
+     * @return the checksum in the metadata of a HEAD made with the checksum mode, or null if the object has none
+     */
+    public static String get(ObjectMetadata metadata, Algorithm algorithm) {
+        final Object value = metadata.getRawMetadataValue(algorithm.header);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * @return a copy of the metadata without its checksums, fit to be given to a new object
+     * (which gets checksums of its own, if any)
+     */
+    public static ObjectMetadata withoutChecksums(ObjectMetadata metadata) {
+        final ObjectMetadata copy = new ObjectMetadata();
+        for (Map.Entry<String, Object> header : metadata.getRawMetadata().entrySet()) {
+            if (!header.getKey().toLowerCase().startsWith("x-amz-checksum-")) copy.setHeader(header.getKey(), header.getValue());
+        }
+        copy.setUserMetadata(metadata.getUserMetadata());
+        return copy;
+    }
+
+    /**
+     * @return true if both are checksums of the same form, for the same number of parts
+     */
+    public static boolean comparable(String a, String b) {
+        return a != null && b != null && partCount(a) == partCount(b);
+    }
+
+    /**
+     * @return the number of parts a composite checksum covers, or 0 for a full one
+     */
+    public static int partCount(String checksum) {
+        final int dash = checksum.lastIndexOf('-');
+        if (dash == -1) return 0;
+        try {
+            return Integer.parseInt(checksum.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
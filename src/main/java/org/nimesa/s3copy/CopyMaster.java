@@ -1,20 +1,33 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.extern.slf4j.Slf4j;
 import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
 import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategyFactory;
-import org.nimesa.s3copy.comparisonstrategies.SizeOnlyComparisonStrategy;
+import org.nimesa.s3copy.comparisonstrategies.DecompressedComparisonStrategy;
+import org.nimesa.s3copy.comparisonstrategies.SourceEtagComparisonStrategy;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 
+@Slf4j
 public class CopyMaster extends KeyMaster {
     private final ComparisonStrategy comparisonStrategy;
+    private final List<MirrorDestination> additionalDestinations;
 
-    public CopyMaster(AmazonS3Client client, MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        super(client, context, workQueue, executorService);
-        comparisonStrategy = ComparisonStrategyFactory.getStrategy(context.getOptions());
+    public CopyMaster(MirrorClients clients, MirrorContext context, Semaphore queueSlots, ThreadPoolExecutor executorService) {
+        this(clients, context, queueSlots, executorService, Collections.emptyList());
+    }
+
+    public CopyMaster(MirrorClients clients, MirrorContext context, Semaphore queueSlots, ThreadPoolExecutor executorService, List<MirrorDestination> additionalDestinations) {
+        super(clients, context, queueSlots, executorService);
+        comparisonStrategy = ComparisonStrategyFactory.getStrategy(context.getOptions(),
+                source -> context.getPartLayouts().isReproducible(clients.getSourceClient(), context.getOptions().getSourceBucket(), source, context));
+        this.additionalDestinations = additionalDestinations;
     }
 
     protected String getPrefix(MirrorOptions options) {
@@ -25,10 +38,80 @@ public class CopyMaster extends KeyMaster {
         return options.getSourceBucket();
     }
 
-    protected KeyCopyJob getTask(S3VersionSummary summary) {
-        if (summary.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
-            return new MultipartKeyCopyJob(client, context, summary, notifyLock, new SizeOnlyComparisonStrategy());
+    protected ObjectStore getClient() {
+        return clients.getSourceClient();
+    }
+
+    protected LocalStore getStore() {
+        return clients.getSourceStore();
+    }
+
+    @Override
+    protected MirrorJournal getJournal() {
+        return context.getJournal();
+    }
+
+    @Override
+    protected boolean accept(S3VersionSummary summary) {
+        // the archives and indexes of --pack hold keys, they are not keys themselves
+        if (context.getPacker() != null && context.getPacker().isPackObject(context.getOptions().getSourceBucket(), summary.getKey())) return false;
+        if (context.getPackCatalog() != null && context.getPackCatalog().isPackObject(summary.getKey())) return false;
+
+        final Date lastModified = summary.getLastModified();
+        if (lastModified == null || !isTooOld(context, lastModified)) return true;
+
+        if (context.getOptions().isVerbose()) log.info("key " + summary.getKey() + " (lastmod=" + lastModified + ") is older than the cutoff, skipping");
+        context.getStats().objectsSkippedAtListing.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return true if a key last modified then is not looked at: not modified since the watermark, or older than --ctime
+     */
+    static boolean isTooOld(MirrorContext context, Date lastModified) {
+        final MirrorOptions options = context.getOptions();
+        final Watermark watermark = context.getWatermark();
+        final boolean modified = watermark == null || watermark.isModifiedSince(lastModified);
+        return !modified || (options.hasCtime() && lastModified.getTime() < options.getMaxAge());
+    }
+
+    @Override
+    protected MirrorPlan.Action getPlannedAction() {
+        return MirrorPlan.Action.COPY;
+    }
+
+    protected KeyJob getTask(S3VersionSummary summary) {
+        if (additionalDestinations.isEmpty()) return getCopyJob(clients, context, summary);
+
+        final List<KeyCopyJob> jobs = new ArrayList<>(additionalDestinations.size() + 1);
+        jobs.add(getCopyJob(clients, context, summary));
+        for (MirrorDestination destination : additionalDestinations) {
+            jobs.add(getCopyJob(destination.getClients(), destination.getContext(), summary));
+        }
+        return new FanOutKeyCopyJob(clients, context, summary, notifyLock, jobs);
+    }
+
+    private KeyCopyJob getCopyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary) {
+        if (clients.hasLocalSide()) {
+            // uploads may be compressed, downloads decompressed: neither keeps the source's size
+            final ComparisonStrategy strategy = new SourceEtagComparisonStrategy(comparisonStrategy);
+            return new LocalKeyCopyJob(clients, context, summary, notifyLock, context.getOptions().isDecompress() ? new DecompressedComparisonStrategy(strategy) : strategy);
+        }
+        if (context.getPacker() != null && summary.getSize() < context.getOptions().getPackMaxObject()) {
+            return new PackKeyCopyJob(clients, context, summary, notifyLock, comparisonStrategy);
+        }
+        if (context.getPackCatalog() != null) {
+            final PackIndex.Entry entry = context.getPackCatalog().lookup(summary);
+            if (entry != null) return new UnpackKeyCopyJob(clients, context, summary, notifyLock, comparisonStrategy, entry);
+        }
+        if (context.getOptions().isStreaming()) {
+            return new StreamingKeyCopyJob(clients, context, summary, notifyLock, new SourceEtagComparisonStrategy(comparisonStrategy));
+        }
+        // a multipart source is copied in the same parts, so the copy gets the same ETag
+        if (summary.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE
+                || (ComparisonStrategyFactory.comparesEtags(context.getOptions()) && PartLayouts.partCount(summary.getETag()) > 0)) {
+            return new MultipartKeyCopyJob(clients, context, summary, notifyLock, comparisonStrategy);
         }
-        return new KeyCopyJob(client, context, summary, notifyLock, comparisonStrategy);
+        return new KeyCopyJob(clients, context, summary, notifyLock, comparisonStrategy);
     }
 }
@@ -0,0 +1,159 @@
+package org.nimesa.s3copy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the copies that were attempted but not verified, so they can be reported.
+ *
+ * Only outstanding keys are held: a key is added when its copy starts and dropped as soon as the
+ * copy is verified, so the in-flight set is about as big as the thread pool. Keys whose copy failed
+ * are final; the first few are kept for the report and the rest are appended to a spill file,
+ * next to the journal if there is one, which is kept once the reconciliation is closed.
+ * Keys are held as UTF-8 bytes rather than Strings.
+ */
+@Slf4j
+public class CopyReconciliation implements AutoCloseable {
+
+    // failed keys kept in memory before spilling to disk
+    private static final int MAX_FAILED_IN_MEMORY = 1000;
+    // keys listed by report(), per category
+    private static final int MAX_REPORTED = 20;
+
+    private final Set<Key> inFlight = ConcurrentHashMap.newKeySet();
+    private final List<Key> failed = new ArrayList<>();
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong verifiedCount = new AtomicLong(0);
+    private final AtomicLong uncheckedCount = new AtomicLong(0);
+    // where to spill, or null for a temporary file
+    private File spillTo;
+    private File spillFile;
+    private Writer spill;
+
+    /**
+     * Spills to this file rather than a temporary one. One left by an earlier run is removed, so it is not taken for this run's
+     */
+    public void setSpillTo(File file) {
+        if (file.exists() && !file.delete()) log.warn("could not delete " + file + " from an earlier run");
+        spillTo = file;
+    }
+
+    public void attempted(String key) {
+        inFlight.add(new Key(key));
+    }
+
+    public void verified(String key) {
+        inFlight.remove(new Key(key));
+        verifiedCount.incrementAndGet();
+    }
+
+    /**
+     * The copy went through, but was not checked (see CopyVerifier)
+     */
+    public void unchecked(String key) {
+        inFlight.remove(new Key(key));
+        uncheckedCount.incrementAndGet();
+    }
+
+    public void failed(String key) {
+        final Key k = new Key(key);
+        inFlight.remove(k);
+        failedCount.incrementAndGet();
+        synchronized (failed) {
+            if (failed.size() < MAX_FAILED_IN_MEMORY) {
+                failed.add(k);
+                return;
+            }
+            try {
+                if (spill == null) {
+                    spillFile = spillTo != null ? spillTo : File.createTempFile("s3mirror-failed-", ".txt");
+                    spill = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile), StandardCharsets.UTF_8));
+                    log.info("more than " + MAX_FAILED_IN_MEMORY + " failed copies, writing the rest to " + spillFile);
+                }
+                spill.write(key);
+                spill.write('\n');
+            } catch (IOException e) {
+                log.warn("error writing failed key " + key + " to " + spillFile + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @return a summary of the outstanding keys; its cost depends on the number of outstanding keys only
+     */
+    public String report() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("verified copies: ").append(verifiedCount).append("\n");
+        sb.append("copies not checked: ").append(uncheckedCount).append("\n");
+        sb.append("copies in flight: ").append(inFlight.size()).append(sample(inFlight)).append("\n");
+        synchronized (failed) {
+            sb.append("failed copies: ").append(failedCount).append(sample(failed));
+            if (spill != null) {
+                try {
+                    spill.flush();
+                } catch (IOException e) {
+                    log.warn("error flushing " + spillFile + ": " + e);
+                }
+                sb.append(" (more in ").append(spillFile).append(")");
+            }
+        }
+        return sb.append("\n").toString();
+    }
+
+    /**
+     * Closes the spill file, which is left for the user to go through
+     */
+    @Override
+    public void close() {
+        synchronized (failed) {
+            if (spill == null) return;
+            try {
+                spill.close();
+            } catch (IOException e) {
+                log.warn("error closing " + spillFile + ": " + e);
+            } finally {
+                spill = null;
+            }
+            log.info((failedCount.get() - MAX_FAILED_IN_MEMORY) + " failed copies not listed in the report are in " + spillFile.getAbsolutePath());
+        }
+    }
+
+    private static String sample(Iterable<Key> keys) {
+        final StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (Key key : keys) {
+            if (count++ == MAX_REPORTED) {
+                sb.append(", ...");
+                break;
+            }
+            sb.append(count == 1 ? " [" : ", ").append(key);
+        }
+        return count == 0 ? "" : sb.append("]").toString();
+    }
+
+    private static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(String key) {
+            this.bytes = key.getBytes(StandardCharsets.UTF_8);
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof Key && hash == ((Key) o).hash && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+
+        @Override public int hashCode() { return hash; }
+
+        @Override public String toString() { return new String(bytes, StandardCharsets.UTF_8); }
+    }
+}
@@ -0,0 +1,342 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks copies after the fact, on threads of its own (--verify), so the copy threads go on to the next
+ * key instead of waiting for a HEAD of the one they just copied.
+ *
+ * NONE takes a copy's successful response as the check. SAMPLED checks a share of the copies (--verify-sample)
+ * with a HEAD each. FULL checks every copy, in batches of keys against listings of the destination
+ * ranges they fall in: where copies are close together, a LIST request per thousand keys instead of a
+ * HEAD per key. Listings have sizes and ETags but no checksums, so with --checksum every copy gets a HEAD.
+ *
+ * A copy that does not check out (missing, or of another size, ETag or checksum) is copied again, up to
+ * MAX_RECOPIES times, then counted as failed. Transfers through this process are checked on the way, as
+ * their data passes through (see StreamingKeyCopyJob, LocalKeyCopyJob), and never come here.
+ */
+@Slf4j
+public class CopyVerifier {
+
+    public enum Mode { NONE, SAMPLED, FULL }
+
+    static final int BATCH_SIZE = 1000;
+    // a listing run of a batch ends after this many pages without a key of the batch
+    static final int MAX_MISSED_PAGES = 1;
+    // a batch that fills slowly (events) is listed anyway after this long
+    private static final long MAX_BATCH_AGE = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_QUEUED = 10000;
+    private static final int MAX_RECOPIES = 2;
+
+    /**
+     * A copy to check: what the destination key should look like
+     */
+    static class Copy {
+        final KeyCopyJob job;
+        final long size;
+        // null if it cannot be known in advance
+        final String etag;
+
+        Copy(KeyCopyJob job, long size, String etag) {
+            this.job = job;
+            this.size = size;
+            this.etag = etag;
+        }
+
+        String getKey() { return job.keydest; }
+    }
+
+    private final MirrorContext context;
+    private final Mode mode;
+    private final ThreadPoolExecutor executor;
+
+    // copies waiting for a listing, by destination key, with FULL; guarded by this
+    private TreeMap<String, Copy> batch = new TreeMap<>();
+    private long batchStarted = 0;
+    // tasks submitted that have not finished yet; guarded by this
+    private int pending = 0;
+    private final AtomicLong failures = new AtomicLong(0);
+
+    public CopyVerifier(MirrorContext context) {
+        this.context = context;
+        this.mode = context.getOptions().getVerify();
+        final AtomicInteger count = new AtomicInteger();
+        final int threads = context.getOptions().getVerifyThreads();
+        // once it is this far behind, the copy threads do the checking themselves, rather than queue more
+        executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+            final Thread thread = new Thread(r, "verify-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (task, pool) -> {
+            // as CallerRunsPolicy, but once stopped the task is dropped with its pending count, so awaitDone() does not wait for it
+            if (pool.isShutdown()) {
+                taskDone();
+            } else {
+                task.run();
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Takes a copy that just completed, to be checked later (or not, depending on the mode)
+     */
+    public void submit(Copy copy) {
+        final MirrorOptions options = context.getOptions();
+        final boolean check;
+        switch (mode) {
+            case FULL: check = true; break;
+            case SAMPLED: check = ThreadLocalRandom.current().nextDouble(100) < options.getVerifySample(); break;
+            default: check = false;
+        }
+        if (!check) {
+            unchecked(copy);
+            return;
+        }
+        if (mode == Mode.FULL && !options.hasChecksum()) {
+            final TreeMap<String, Copy> full;
+            synchronized (this) {
+                if (batch.isEmpty()) batchStarted = System.currentTimeMillis();
+                batch.put(copy.getKey(), copy);
+                if (batch.size() < BATCH_SIZE && System.currentTimeMillis() - batchStarted < MAX_BATCH_AGE) return;
+                full = batch;
+                batch = new TreeMap<>();
+            }
+            run(() -> verifyByListing(full));
+        } else {
+            run(() -> verifyByHead(copy));
+        }
+    }
+
+    private void run(Runnable task) {
+        synchronized (this) {
+            // stopped: nothing runs it
+            if (executor.isShutdown()) return;
+            pending++;
+        }
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("Unexpected exception verifying copies: " + e, e);
+            } finally {
+                taskDone();
+            }
+        });
+    }
+
+    private synchronized void taskDone() {
+        if (--pending == 0) notifyAll();
+    }
+
+    /**
+     * Checks the copies waiting for a listing if the batch has been filling for longer than MAX_BATCH_AGE, for
+     * callers that copy in trickles (events), where the next copy may be long in coming
+     */
+    public void flushAged() {
+        final TreeMap<String, Copy> aged;
+        synchronized (this) {
+            if (batch.isEmpty() || System.currentTimeMillis() - batchStarted < MAX_BATCH_AGE) return;
+            aged = batch;
+            batch = new TreeMap<>();
+        }
+        run(() -> verifyByListing(aged));
+    }
+
+    /**
+     * Checks the copies still waiting for a listing, and waits until every check (and recopy) submitted is done
+     */
+    public void awaitDone() throws InterruptedException {
+        final TreeMap<String, Copy> rest;
+        synchronized (this) {
+            rest = batch;
+            batch = new TreeMap<>();
+        }
+        if (!rest.isEmpty()) run(() -> verifyByListing(rest));
+        synchronized (this) {
+            while (pending > 0) wait();
+        }
+        // a recopy may have left another partial batch
+        synchronized (this) {
+            if (batch.isEmpty()) return;
+        }
+        awaitDone();
+    }
+
+    /**
+     * @return true if a copy failed verification for good
+     */
+    public boolean hasFailures() {
+        return failures.get() > 0;
+    }
+
+    /**
+     * Drops the checks not started yet; their copies stay in flight in the reconciliation report
+     */
+    public void stop() {
+        final int dropped = executor.shutdownNow().size();
+        synchronized (this) {
+            pending -= dropped;
+            if (pending == 0) notifyAll();
+        }
+    }
+
+    private void verifyByHead(Copy copy) {
+        if (context.isStopRequested()) return;
+        final MirrorOptions options = context.getOptions();
+        final ObjectMetadata metadata;
+        try {
+            metadata = copy.job.getDestinationMetadata(copy.getKey(), options);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                mismatch(copy, "not found");
+            } else {
+                log.warn("Error verifying " + copy.getKey() + ", not checked: " + e);
+                unchecked(copy);
+            }
+            return;
+        } catch (Exception e) {
+            log.warn("Error verifying " + copy.getKey() + ", not checked: " + e);
+            unchecked(copy);
+            return;
+        }
+        context.getStats().verificationHeads.incrementAndGet();
+
+        if (options.hasChecksum()) {
+            final String sourceChecksum = copy.job.sourceChecksum;
+            final String checksum = ContentChecksum.get(metadata, options.getChecksum());
+            if (ContentChecksum.comparable(sourceChecksum, checksum)) {
+                if (!sourceChecksum.equals(checksum)) {
+                    context.getStats().checksumMismatches.incrementAndGet();
+                    mismatch(copy, "checksum " + checksum + ", expected " + sourceChecksum);
+                    return;
+                }
+                context.getStats().checksumsVerified.incrementAndGet();
+            } else {
+                if (options.isVerbose()) log.info("no comparable checksums for " + copy.getKey() + " (source: " + sourceChecksum + ", destination: " + checksum + "), checking size");
+                context.getStats().checksumsUnavailable.incrementAndGet();
+            }
+        }
+        check(copy, metadata.getContentLength(), metadata.getETag());
+    }
+
+    /**
+     * Checks the (sorted) keys of the batch against listings of the destination, in runs of nearby keys: a run lists
+     * from the first key left, and ends once it went past the last key or MAX_MISSED_PAGES pages in a row had none
+     * of them, so keys scattered across a large bucket do not have it listed through. A key left on its own is HEADed.
+     */
+    private void verifyByListing(TreeMap<String, Copy> copies) {
+        while (copies.size() > 1) {
+            if (context.isStopRequested()) return;
+            if (!listRun(copies)) return;
+        }
+        for (Copy copy : copies.values()) verifyByHead(copy);
+    }
+
+    /**
+     * Lists one run, and takes the keys it went past out of the batch
+     *
+     * @return false if the listing failed: the copies left are not checked
+     */
+    private boolean listRun(TreeMap<String, Copy> copies) {
+        final Copy first = copies.firstEntry().getValue();
+        final String firstKey = copies.firstKey();
+        final String lastKey = copies.lastKey();
+        final ObjectStore client = first.job.clients.getDestinationClient();
+
+        // the longest prefix the keys share narrows the listing down; it starts just before the first key
+        int common = 0;
+        while (common < Math.min(firstKey.length(), lastKey.length()) && firstKey.charAt(common) == lastKey.charAt(common)) common++;
+        final ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(context.getOptions().getDestinationBucket())
+                .withPrefix(firstKey.substring(0, common));
+        if (firstKey.length() > common) request.setStartAfter(firstKey.substring(0, firstKey.length() - 1));
+
+        try {
+            ListObjectsV2Result result;
+            int missed = 0;
+            do {
+                context.getStats().s3getCount.incrementAndGet();
+                context.getStats().verificationListings.incrementAndGet();
+                result = client.listObjectsV2(request);
+                boolean hit = false;
+                for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                    final Copy copy = copies.remove(summary.getKey());
+                    if (copy != null) {
+                        check(copy, summary.getSize(), summary.getETag());
+                        hit = true;
+                    }
+                }
+                // pages before the first key do not count, the run has not started yet
+                missed = hit || lastListed(result).compareTo(firstKey) < 0 ? 0 : missed + 1;
+                request.setContinuationToken(result.getNextContinuationToken());
+            } while (result.isTruncated() && !copies.isEmpty() && lastListed(result).compareTo(lastKey) < 0 && missed < MAX_MISSED_PAGES);
+
+            // keys the listing went past without seeing
+            final Map<String, Copy> passed = result.isTruncated() ? copies.headMap(lastListed(result), true) : copies;
+            for (Copy copy : passed.values()) mismatch(copy, "not found");
+            passed.clear();
+        } catch (Exception e) {
+            log.warn("Error listing " + context.getOptions().getDestinationBucket() + " from " + firstKey + " to verify " + copies.size() + " copies, not checked: " + e);
+            for (Copy copy : copies.values()) unchecked(copy);
+            copies.clear();
+            return false;
+        }
+        return true;
+    }
+
+    private static String lastListed(ListObjectsV2Result result) {
+        final int n = result.getObjectSummaries().size();
+        return n == 0 ? "" : result.getObjectSummaries().get(n - 1).getKey();
+    }
+
+    private void check(Copy copy, long size, String etag) {
+        if (size != copy.size) {
+            mismatch(copy, size + " bytes, expected " + copy.size);
+        } else if (copy.etag != null && !copy.etag.equals(etag)) {
+            mismatch(copy, "ETag " + etag + ", expected " + copy.etag);
+        } else {
+            context.getStats().getReconciliation().verified(copy.getKey());
+            copy.job.verified(true);
+        }
+    }
+
+    /**
+     * The copy went through but is not checked: its successful response stands for the check
+     */
+    private void unchecked(Copy copy) {
+        context.getStats().getReconciliation().unchecked(copy.getKey());
+        copy.job.verified(true);
+    }
+
+    private void mismatch(Copy copy, String what) {
+        final MirrorStats stats = context.getStats();
+        stats.verificationMismatches.incrementAndGet();
+        if (copy.job.recopies >= MAX_RECOPIES || context.isStopRequested()) {
+            log.error("copy of " + copy.job.summary.getKey() + " to " + copy.getKey() + " failed verification (" + what + "), giving up");
+            failures.incrementAndGet();
+            stats.getReconciliation().failed(copy.getKey());
+            stats.copyErrors.incrementAndGet();
+            copy.job.verified(false);
+            return;
+        }
+        log.warn("copy of " + copy.job.summary.getKey() + " to " + copy.getKey() + " failed verification (" + what + "), copying it again");
+        stats.recopies.incrementAndGet();
+        // the new copy is submitted for checking in turn
+        run(copy.job::recopy);
+    }
+}
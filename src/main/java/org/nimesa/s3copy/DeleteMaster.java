@@ -1,16 +1,15 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.S3VersionSummary;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 
 public class DeleteMaster extends KeyMaster {
 
-    public DeleteMaster(AmazonS3Client client, MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        super(client, context, workQueue, executorService);
+    public DeleteMaster(MirrorClients clients, MirrorContext context, Semaphore queueSlots, ThreadPoolExecutor executorService) {
+        super(clients, context, queueSlots, executorService);
     }
 
     protected String getPrefix(MirrorOptions options) {
@@ -19,8 +18,15 @@ public class DeleteMaster extends KeyMaster {
 
     protected String getBucket(MirrorOptions options) { return options.getDestinationBucket(); }
 
+    protected ObjectStore getClient() { return clients.getDestinationClient(); }
+
+    protected LocalStore getStore() { return clients.getDestinationStore(); }
+
+    @Override
+    protected MirrorPlan.Action getPlannedAction() { return MirrorPlan.Action.DELETE; }
+
     @Override
     protected KeyJob getTask(S3VersionSummary summary) {
-        return new KeyDeleteJob(client, context, summary, notifyLock);
+        return new KeyDeleteJob(clients, context, summary, notifyLock);
     }
 }
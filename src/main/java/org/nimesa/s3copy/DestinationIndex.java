@@ -0,0 +1,572 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.extern.slf4j.Slf4j;
+import org.nimesa.s3copy.comparisonstrategies.SourceEtagComparisonStrategy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * What we know about the keys of a destination bucket (size, ETag, last-modified, version), kept on
+ * disk between runs so unchanged keys can be skipped without a HEAD request.
+ *
+ * It is a small log-structured store: updates go to an in-memory sorted map, which is flushed to a
+ * sorted segment file when it gets big. Lookups check the map, then the segments newest first, then
+ * the base table. Each table keeps only a sparse index in memory (the first key of every block), so
+ * memory stays bounded whatever the size of the bucket; segments also keep a Bloom filter, so a key
+ * they don't have costs no read. Once there are more than MAX_SEGMENTS segments they are merged into
+ * one, and closing the index merges everything into a new base table. Segments are written without
+ * holding the lock, which is only taken to publish them.
+ *
+ * Entries older than the maximum age are not trusted: the key gets a HEAD again, and the fresh answer
+ * replaces the entry. This is how the index is reconciled with changes made behind our back.
+ */
+@Slf4j
+public class DestinationIndex implements AutoCloseable {
+
+    private static final int MAGIC = 0x53334958; // "S3IX"
+    private static final int BLOCK_ENTRIES = 64;
+    private static final int MAX_MEMTABLE = 200000;
+    private static final int MAX_SEGMENTS = 4;
+    private static final int BLOOM_BITS_PER_KEY = 10;
+
+    private final File file;
+    private final String bucket;
+    private final long maxAge;
+
+    private volatile ConcurrentSkipListMap<String, Entry> memtable = new ConcurrentSkipListMap<>();
+    // size() of the skip list is not constant time, so count the keys ourselves
+    private final AtomicInteger memtableSize = new AtomicInteger(0);
+    // in-memory updates being written to a segment, newest first. Guarded by lock
+    private final List<Map<String, Entry>> flushing = new ArrayList<>();
+    // newest first, the base table (if any) is last. Guarded by lock
+    private final List<Table> tables = new ArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // one flush (and merge) at a time
+    private final AtomicBoolean flushRunning = new AtomicBoolean(false);
+    private final AtomicInteger segments = new AtomicInteger(0);
+    private boolean hasBase = false;
+    private boolean closed = false;
+
+    /**
+     * @param maxAgeMillis entries recorded longer ago than this are ignored, and refreshed by a HEAD
+     */
+    public DestinationIndex(File file, String bucket, long maxAgeMillis) throws IOException {
+        this.file = file;
+        this.bucket = bucket;
+        this.maxAge = maxAgeMillis;
+        if (file.exists()) {
+            final Table base = new Table(file);
+            if (!base.bucket.equals(bucket)) {
+                base.close();
+                throw new IllegalArgumentException("destination index " + file + " is for bucket " + base.bucket + ", not " + bucket);
+            }
+            tables.add(base);
+            hasBase = true;
+            log.info("loaded destination index " + file + " (" + base.count + " keys)");
+        }
+    }
+
+    /**
+     * @return what the index knows about the key, as the metadata a HEAD would have returned, or null if
+     * the key is unknown, deleted, or its entry is too old to be trusted
+     */
+    public ObjectMetadata lookup(String key) throws IOException {
+        Entry entry = memtable.get(key);
+        if (entry == null) {
+            lock.readLock().lock();
+            try {
+                if (closed) return null;
+                for (Map<String, Entry> updates : flushing) {
+                    entry = updates.get(key);
+                    if (entry != null) break;
+                }
+                if (entry == null) for (Table table : tables) {
+                    entry = table.get(key);
+                    if (entry != null) break;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        if (entry == null || entry.deleted) return null;
+        if (maxAge >= 0 && System.currentTimeMillis() - entry.recordedAt > maxAge) return null;
+        return entry.toMetadata();
+    }
+
+    public void put(String key, ObjectMetadata metadata) {
+        // a streamed copy is known by its source's ETag, as it is compared on it (see SourceEtagComparisonStrategy)
+        final String sourceEtag = SourceEtagComparisonStrategy.getSourceEtag(metadata);
+        put(new Entry(key, metadata.getContentLength(), sourceEtag != null ? sourceEtag : metadata.getETag(),
+                metadata.getLastModified() == null ? System.currentTimeMillis() : metadata.getLastModified().getTime(),
+                metadata.getVersionId(), System.currentTimeMillis(), false));
+    }
+
+    public void put(String key, long size, String etag, Date lastModified, String versionId) {
+        put(new Entry(key, size, etag, lastModified == null ? System.currentTimeMillis() : lastModified.getTime(), versionId, System.currentTimeMillis(), false));
+    }
+
+    public void remove(String key) {
+        put(new Entry(key, 0, null, 0, null, System.currentTimeMillis(), true));
+    }
+
+    private void put(Entry entry) {
+        lock.readLock().lock();
+        try {
+            if (closed) return;
+            if (memtable.put(entry.key, entry) == null) memtableSize.incrementAndGet();
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (memtableSize.get() >= MAX_MEMTABLE) flush();
+    }
+
+    /**
+     * Writes the in-memory updates out to a new segment file, and merges the segments if there are too many.
+     */
+    private void flush() {
+        if (!flushRunning.compareAndSet(false, true)) return;
+        try {
+            final Map<String, Entry> updates;
+            lock.writeLock().lock();
+            try {
+                if (closed || memtableSize.get() < MAX_MEMTABLE) return;
+                updates = memtable;
+                flushing.add(0, updates);
+                memtable = new ConcurrentSkipListMap<>();
+                memtableSize.set(0);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // no more writes to it, and lookups still find it in flushing
+            final File segment = nextSegmentFile();
+            try {
+                Table.write(segment, bucket, updates.values().iterator(), true);
+                publish(Collections.singletonList(updates), Collections.emptyList(), new Table(segment));
+            } catch (IOException e) {
+                // keep the updates in memory, the merge on close will still get them
+                log.warn("error flushing destination index segment: " + e);
+                Files.deleteIfExists(segment.toPath());
+                return;
+            }
+            mergeSegments();
+        } catch (IOException e) {
+            log.warn("error cleaning up destination index segment: " + e);
+        } finally {
+            flushRunning.set(false);
+        }
+    }
+
+    /**
+     * Merges the segments into one once there are more than MAX_SEGMENTS, so a miss doesn't have to go through them all.
+     */
+    private void mergeSegments() throws IOException {
+        final List<Table> merged;
+        lock.readLock().lock();
+        try {
+            if (closed) return;
+            merged = new ArrayList<>(tables.subList(0, tables.size() - (hasBase ? 1 : 0)));
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (merged.size() <= MAX_SEGMENTS) return;
+
+        // only a flush adds tables, and it is us: nothing changes them while we merge
+        final List<Iterator<Entry>> sources = new ArrayList<>();
+        for (Table table : merged) sources.add(table.iterator());
+        final File segment = nextSegmentFile();
+        try {
+            // deletions are kept, the base table may still have the key
+            final int count = Table.write(segment, bucket, new MergeIterator(sources, true), true);
+            publish(Collections.emptyList(), merged, new Table(segment));
+            log.info("merged " + merged.size() + " destination index segments (" + count + " keys)");
+        } catch (IOException e) {
+            log.warn("error merging destination index segments: " + e);
+            Files.deleteIfExists(segment.toPath());
+        }
+    }
+
+    /**
+     * Swaps in a segment for the in-memory updates or the segments it was written from.
+     */
+    private void publish(List<Map<String, Entry>> updates, List<Table> segments, Table segment) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                // close() merged what it replaces already
+                segment.close();
+                Files.deleteIfExists(segment.file.toPath());
+                return;
+            }
+            flushing.removeAll(updates);
+            tables.removeAll(segments);
+            tables.add(0, segment);
+            for (Table table : segments) {
+                table.close();
+                Files.deleteIfExists(table.file.toPath());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private File nextSegmentFile() {
+        return new File(file.getPath() + ".seg" + segments.getAndIncrement());
+    }
+
+    /**
+     * Merges the segments and in-memory updates into a new base table, which atomically replaces the old one.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            final List<Iterator<Entry>> sources = new ArrayList<>();
+            sources.add(memtable.values().iterator());
+            for (Map<String, Entry> updates : flushing) sources.add(updates.values().iterator());
+            for (Table table : tables) sources.add(table.iterator());
+
+            final File tmp = new File(file.getPath() + ".tmp");
+            // no Bloom filter on the base table, it would grow with the bucket
+            final int count = Table.write(tmp, bucket, new MergeIterator(sources, false), false);
+            for (Table table : tables) table.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Table table : tables) {
+                if (!table.file.equals(file)) Files.deleteIfExists(table.file.toPath());
+            }
+            log.info("destination index " + file + " saved (" + count + " keys)");
+        } catch (IOException e) {
+            log.error("error saving destination index " + file + ", the next run will HEAD more keys: " + e, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public static long hoursToMillis(int hours) {
+        return hours < 0 ? -1 : TimeUnit.HOURS.toMillis(hours);
+    }
+
+    private static class Entry {
+        final String key;
+        final long size;
+        final String etag;
+        final long lastModified;
+        final String versionId;
+        final long recordedAt;
+        final boolean deleted;
+
+        Entry(String key, long size, String etag, long lastModified, String versionId, long recordedAt, boolean deleted) {
+            this.key = key;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.versionId = versionId;
+            this.recordedAt = recordedAt;
+            this.deleted = deleted;
+        }
+
+        ObjectMetadata toMetadata() {
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(size);
+            if (etag != null) metadata.setHeader("ETag", etag);
+            metadata.setLastModified(new Date(lastModified));
+            if (versionId != null) metadata.setHeader("x-amz-version-id", versionId);
+            return metadata;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeLong(size);
+            out.writeUTF(etag == null ? "" : etag);
+            out.writeLong(lastModified);
+            out.writeUTF(versionId == null ? "" : versionId);
+            out.writeLong(recordedAt);
+            out.writeBoolean(deleted);
+        }
+
+        static Entry readFrom(DataInput in) throws IOException {
+            final String key = in.readUTF();
+            final long size = in.readLong();
+            final String etag = in.readUTF();
+            final long lastModified = in.readLong();
+            final String versionId = in.readUTF();
+            final long recordedAt = in.readLong();
+            final boolean deleted = in.readBoolean();
+            return new Entry(key, size, etag.isEmpty() ? null : etag, lastModified, versionId.isEmpty() ? null : versionId, recordedAt, deleted);
+        }
+    }
+
+    /**
+     * Immutable sorted file: blocks of entries, followed by the sparse index, an optional Bloom filter and a footer.
+     * Only the sparse index and the filter are held in memory; blocks are read with positional reads on lookup.
+     */
+    private static class Table implements Closeable {
+        final File file;
+        final String bucket;
+        final int count;
+        private final FileChannel channel;
+        private final long dataEnd;
+        private final String[] blockKeys;
+        private final long[] blockOffsets;
+        private final BloomFilter bloom;
+
+        Table(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            final long size = channel.size();
+            final ByteBuffer footer = ByteBuffer.allocate(12);
+            channel.read(footer, size - 12);
+            footer.flip();
+            final long indexOffset = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                channel.close();
+                throw new IOException("not a destination index: " + file);
+            }
+            final ByteBuffer index = ByteBuffer.allocate((int) (size - 12 - indexOffset));
+            channel.read(index, indexOffset);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+            bucket = in.readUTF();
+            count = in.readInt();
+            final int blocks = in.readInt();
+            blockKeys = new String[blocks];
+            blockOffsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockKeys[i] = in.readUTF();
+                blockOffsets[i] = in.readLong();
+            }
+            // tables written before there were filters end here
+            bloom = in.available() > 0 ? BloomFilter.readFrom(in) : null;
+            dataEnd = indexOffset;
+        }
+
+        Entry get(String key) throws IOException {
+            if (bloom != null && !bloom.mightContain(key)) return null;
+            int pos = Arrays.binarySearch(blockKeys, key);
+            if (pos < 0) pos = -pos - 2;
+            if (pos < 0) return null;
+            final long start = blockOffsets[pos];
+            final long end = pos + 1 < blockOffsets.length ? blockOffsets[pos + 1] : dataEnd;
+            final ByteBuffer block = ByteBuffer.allocate((int) (end - start));
+            while (block.hasRemaining()) {
+                if (channel.read(block, start + block.position()) < 0) break;
+            }
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(block.array()));
+            while (in.available() > 0) {
+                final Entry entry = Entry.readFrom(in);
+                final int c = entry.key.compareTo(key);
+                if (c == 0) return entry;
+                if (c > 0) break;
+            }
+            return null;
+        }
+
+        Iterator<Entry> iterator() throws IOException {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            return new Iterator<Entry>() {
+                int remaining = count;
+                @Override public boolean hasNext() { return remaining > 0; }
+                @Override public Entry next() {
+                    if (remaining <= 0) throw new NoSuchElementException();
+                    try {
+                        final Entry entry = Entry.readFrom(in);
+                        if (--remaining == 0) in.close();
+                        return entry;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * @param entries in key order
+         * @param withBloom true to add a Bloom filter of the keys
+         * @return the number of entries written
+         */
+        static int write(File file, String bucket, Iterator<Entry> entries, boolean withBloom) throws IOException {
+            final List<String> blockKeys = new ArrayList<>();
+            final List<Long> blockOffsets = new ArrayList<>();
+            // the filter is sized once the number of keys is known
+            long[] hashes = new long[withBloom ? 1024 : 0];
+            int count = 0;
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                final CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+                final DataOutputStream out = new DataOutputStream(counting);
+                while (entries.hasNext()) {
+                    final Entry entry = entries.next();
+                    if (count % BLOCK_ENTRIES == 0) {
+                        blockKeys.add(entry.key);
+                        blockOffsets.add(counting.count);
+                    }
+                    entry.writeTo(out);
+                    if (withBloom) {
+                        if (count == hashes.length) hashes = Arrays.copyOf(hashes, count * 2);
+                        hashes[count] = BloomFilter.hash(entry.key);
+                    }
+                    count++;
+                }
+                out.flush();
+                final long indexOffset = counting.count;
+                out.writeUTF(bucket);
+                out.writeInt(count);
+                out.writeInt(blockKeys.size());
+                for (int i = 0; i < blockKeys.size(); i++) {
+                    out.writeUTF(blockKeys.get(i));
+                    out.writeLong(blockOffsets.get(i));
+                }
+                if (withBloom) BloomFilter.of(hashes, count).writeTo(out);
+                out.writeLong(indexOffset);
+                out.writeInt(MAGIC);
+                out.flush();
+                fos.getChannel().force(true);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Bloom filter over the keys of a table, with k hash functions made from two halves of one 64-bit hash.
+     */
+    private static class BloomFilter {
+        private static final int HASHES = 7;
+        private final long[] bits;
+
+        private BloomFilter(long[] bits) { this.bits = bits; }
+
+        static BloomFilter of(long[] hashes, int count) {
+            final BloomFilter filter = new BloomFilter(new long[Math.max(1, (int) (((long) count * BLOOM_BITS_PER_KEY + 63) / 64))]);
+            for (int i = 0; i < count; i++) filter.add(hashes[i]);
+            return filter;
+        }
+
+        static long hash(String key) {
+            // FNV-1a
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                h ^= key.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+
+        private void add(long hash) {
+            final long size = bits.length * 64L;
+            for (int i = 0; i < HASHES; i++) {
+                final long bit = Math.floorMod((int) hash + i * (int) (hash >>> 32), size);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(String key) {
+            final long hash = hash(key);
+            final long size = bits.length * 64L;
+            for (int i = 0; i < HASHES; i++) {
+                final long bit = Math.floorMod((int) hash + i * (int) (hash >>> 32), size);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(bits.length);
+            for (long word : bits) out.writeLong(word);
+        }
+
+        static BloomFilter readFrom(DataInput in) throws IOException {
+            final long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) bits[i] = in.readLong();
+            return new BloomFilter(bits);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+        CountingOutputStream(OutputStream out) { super(out); }
+        @Override public void write(int b) throws IOException { out.write(b); count++; }
+        @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); count += len; }
+    }
+
+    /**
+     * Merges sorted sources into one sorted stream. When a key is in several sources the earliest source
+     * wins (sources are given newest first); deleted keys are dropped, unless they are to be kept.
+     */
+    private static class MergeIterator implements Iterator<Entry> {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+        private final boolean keepDeleted;
+        private Entry next;
+
+        private static class Head implements Comparable<Head> {
+            final int source;
+            final Iterator<Entry> iterator;
+            Entry entry;
+            Head(int source, Iterator<Entry> iterator) { this.source = source; this.iterator = iterator; }
+            @Override public int compareTo(Head o) {
+                final int c = entry.key.compareTo(o.entry.key);
+                return c != 0 ? c : Integer.compare(source, o.source);
+            }
+        }
+
+        MergeIterator(List<Iterator<Entry>> sources, boolean keepDeleted) {
+            this.keepDeleted = keepDeleted;
+            for (int i = 0; i < sources.size(); i++) advance(new Head(i, sources.get(i)));
+            next = computeNext();
+        }
+
+        private void advance(Head head) {
+            if (head.iterator.hasNext()) {
+                head.entry = head.iterator.next();
+                heads.add(head);
+            }
+        }
+
+        private Entry computeNext() {
+            while (!heads.isEmpty()) {
+                final Head head = heads.poll();
+                final Entry entry = head.entry;
+                advance(head);
+                // skip the older versions of the same key
+                while (!heads.isEmpty() && heads.peek().entry.key.equals(entry.key)) advance(heads.poll());
+                if (keepDeleted || !entry.deleted) return entry;
+            }
+            return null;
+        }
+
+        @Override public boolean hasNext() { return next != null; }
+
+        @Override public Entry next() {
+            if (next == null) throw new NoSuchElementException();
+            final Entry result = next;
+            next = computeNext();
+            return result;
+        }
+    }
+}
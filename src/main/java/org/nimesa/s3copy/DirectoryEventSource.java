@@ -0,0 +1,100 @@
+package org.nimesa.s3copy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Reads S3 event notifications from files dropped in a directory (one notification per file, or one
+ * per line), oldest name first. A file is renamed to *.done once the keys of all its events are in sync,
+ * so whatever delivers the notifications (a queue poller, a test) only has to write files, and a file
+ * whose keys did not make it (a failed copy, a crash) is read again on the next start. A file that is
+ * not a notification is renamed to *.bad.
+ */
+@Slf4j
+public class DirectoryEventSource implements EventSource {
+
+    public static final String DONE_SUFFIX = ".done";
+    public static final String BAD_SUFFIX = ".bad";
+
+    private final File directory;
+    // files read, with the number of their events not done yet, and the file of each of those events. Guarded by "this"
+    private final Map<File, Integer> pending = new HashMap<>();
+    private final Map<ObjectEvent, File> fileOf = new IdentityHashMap<>();
+
+    public DirectoryEventSource(File directory) {
+        if (!directory.isDirectory()) throw new IllegalArgumentException("not a directory: " + directory);
+        this.directory = directory;
+    }
+
+    @Override
+    public List<ObjectEvent> poll(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            final List<ObjectEvent> events = readNewFiles();
+            if (!events.isEmpty() || System.currentTimeMillis() >= deadline) return events;
+            Thread.sleep(Math.min(100, Math.max(1, deadline - System.currentTimeMillis())));
+        }
+    }
+
+    private synchronized List<ObjectEvent> readNewFiles() {
+        final List<ObjectEvent> events = new ArrayList<>();
+        // files still being written start with a dot, and are renamed when complete
+        final File[] files = directory.listFiles((dir, name) -> !name.endsWith(DONE_SUFFIX) && !name.endsWith(BAD_SUFFIX) && !name.startsWith("."));
+        if (files == null) return events;
+        Arrays.sort(files);
+        for (File file : files) {
+            // read already, its keys are not all in sync yet
+            if (pending.containsKey(file)) continue;
+            final String notification;
+            try {
+                notification = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                log.warn("error reading event file " + file + " (will try again): " + e);
+                continue;
+            }
+            final List<ObjectEvent> fileEvents;
+            try {
+                fileEvents = ObjectEvent.parse(notification);
+            } catch (IOException e) {
+                log.warn("event file " + file + " is not an event notification, renaming it to " + BAD_SUFFIX + ": " + e);
+                rename(file, BAD_SUFFIX);
+                continue;
+            }
+            if (fileEvents.isEmpty()) {
+                rename(file, DONE_SUFFIX);
+                continue;
+            }
+            pending.put(file, fileEvents.size());
+            for (ObjectEvent event : fileEvents) fileOf.put(event, file);
+            events.addAll(fileEvents);
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized void done(ObjectEvent event) {
+        final File file = fileOf.remove(event);
+        if (file == null) return;
+        final int left = pending.get(file) - 1;
+        if (left > 0) {
+            pending.put(file, left);
+        } else {
+            pending.remove(file);
+            rename(file, DONE_SUFFIX);
+        }
+    }
+
+    private static void rename(File file, String suffix) {
+        if (!file.renameTo(new File(file.getPath() + suffix))) {
+            log.warn("could not rename event file " + file + " to " + suffix + ", it may be read again");
+        }
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,313 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.util.BinaryUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.stream.Stream;
+
+/**
+ * A SimulatedObjectStore with its buckets on disk, under a directory (--backend DISK --backend-dir), so they are
+ * still there for the next run: a bucket is a directory with a small metadata file per key, and the bytes of
+ * all the objects are in a data directory next to the buckets. It is not the keys as files, for other tools
+ * to read: to mirror to or from a directory, give it as file:///path instead.
+ *
+ * The keys of a bucket are read into memory the first time it is used, and listed from there. Multipart
+ * uploads in progress do not outlive the process.
+ */
+@Slf4j
+public class DiskObjectStore extends SimulatedObjectStore {
+
+    private static final ConcurrentHashMap<Path, DiskObjectStore> STORES = new ConcurrentHashMap<>();
+
+    private static final String DATA_DIR = ".data";
+    private static final String TMP_DIR = ".tmp";
+    private static final String META_SUFFIX = ".meta";
+    private static final int LOCKS = 64;
+
+    private final Path root;
+    private final Path data;
+    private final Path tmp;
+    private final ConcurrentHashMap<String, ConcurrentNavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+    // a key's metadata file and its entry in the index change together
+    private final Object[] locks = new Object[LOCKS];
+
+    /**
+     * @return the store for this directory, one per directory for the whole process
+     */
+    public static DiskObjectStore forRoot(String dir) {
+        return STORES.computeIfAbsent(Paths.get(dir).toAbsolutePath().normalize(), DiskObjectStore::new);
+    }
+
+    private DiskObjectStore(Path root) {
+        this.root = root;
+        this.data = root.resolve(DATA_DIR);
+        this.tmp = root.resolve(TMP_DIR);
+        for (int i = 0; i < LOCKS; i++) locks[i] = new Object();
+        try {
+            Files.createDirectories(data);
+            Files.createDirectories(tmp);
+            // what is left there is from uploads of an earlier process
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tmp)) {
+                for (Path leftover : leftovers) Files.deleteIfExists(leftover);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error opening object store " + root + ": " + e, e);
+        }
+        log.info("object store in " + root);
+    }
+
+    @Override
+    protected ConcurrentNavigableMap<String, StoredObject> bucket(String bucket) {
+        return buckets.computeIfAbsent(bucket, this::load);
+    }
+
+    private ConcurrentNavigableMap<String, StoredObject> load(String bucket) {
+        if (bucket.isEmpty() || bucket.startsWith(".") || bucket.contains("/") || bucket.contains(File.separator)) {
+            throw error(400, "InvalidBucketName", "The specified bucket is not valid: " + bucket);
+        }
+        final ConcurrentNavigableMap<String, StoredObject> objects = newBucket();
+        final Path dir = root.resolve(bucket);
+        if (!Files.isDirectory(dir)) return objects;
+        final long start = System.currentTimeMillis();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.filter(file -> file.getFileName().toString().endsWith(META_SUFFIX)).forEach(file -> {
+                try {
+                    final Properties meta = new Properties();
+                    try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                        meta.load(in);
+                    }
+                    final StoredObject object = fromMeta(meta);
+                    if (Files.exists(((FileContent) object.content).path)) {
+                        objects.put(meta.getProperty("key"), object);
+                    } else {
+                        log.warn("the data of " + bucket + "/" + meta.getProperty("key") + " is missing, leaving it out");
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Error reading " + file + ", leaving it out: " + e);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Error loading bucket " + dir + ": " + e, e);
+        }
+        log.info("loaded " + objects.size() + " keys of bucket " + bucket + " from " + dir + " in " + (System.currentTimeMillis() - start) + "ms");
+        return objects;
+    }
+
+    @Override
+    protected StoredObject store(String bucket, String key, StoredObject object) throws IOException {
+        final ConcurrentNavigableMap<String, StoredObject> objects = bucket(bucket);
+        // new content is made in the temporary directory, it moves to the data directory with its key
+        final Path path = dataPath(UUID.randomUUID().toString());
+        Files.createDirectories(path.getParent());
+        Files.move(((FileContent) object.content).path, path, StandardCopyOption.ATOMIC_MOVE);
+        final StoredObject stored = object.withContent(new FileContent(path, object.size));
+
+        final Path metaPath = metaPath(bucket, key);
+        final Path metaTmp = tmpPath();
+        try (Writer out = Files.newBufferedWriter(metaTmp, StandardCharsets.UTF_8)) {
+            toMeta(key, stored).store(out, null);
+        }
+        synchronized (lock(bucket, key)) {
+            Files.createDirectories(metaPath.getParent());
+            Files.move(metaTmp, metaPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return objects.put(key, stored);
+        }
+    }
+
+    @Override
+    protected StoredObject remove(String bucket, String key) throws IOException {
+        final ConcurrentNavigableMap<String, StoredObject> objects = bucket(bucket);
+        synchronized (lock(bucket, key)) {
+            Files.deleteIfExists(metaPath(bucket, key));
+            return objects.remove(key);
+        }
+    }
+
+    private Object lock(String bucket, String key) {
+        return locks[Math.floorMod(31 * bucket.hashCode() + key.hashCode(), LOCKS)];
+    }
+
+    /**
+     * @return where the metadata of the key goes: its name is the SHA-1 of the key, keys can be longer than file names
+     */
+    private Path metaPath(String bucket, String key) {
+        final String name;
+        try {
+            name = BinaryUtils.toHex(MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available: " + e, e);
+        }
+        return root.resolve(bucket).resolve(name.substring(0, 2)).resolve(name + META_SUFFIX);
+    }
+
+    private Path dataPath(String id) {
+        return data.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    private Path tmpPath() {
+        return tmp.resolve(UUID.randomUUID().toString());
+    }
+
+    private Properties toMeta(String key, StoredObject object) {
+        final Properties meta = new Properties();
+        meta.setProperty("key", key);
+        meta.setProperty("size", Long.toString(object.size));
+        meta.setProperty("etag", object.etag);
+        meta.setProperty("lastModified", Long.toString(object.lastModified));
+        meta.setProperty("storageClass", object.storageClass);
+        meta.setProperty("data", data.relativize(((FileContent) object.content).path).toString());
+        if (object.partSizes != null) {
+            final StringBuilder parts = new StringBuilder();
+            for (long size : object.partSizes) parts.append(parts.length() == 0 ? "" : ",").append(size);
+            meta.setProperty("parts", parts.toString());
+        }
+        if (object.expires != null) meta.setProperty("expires", Long.toString(object.expires.getTime()));
+        if (object.headers != null) object.headers.forEach((name, value) -> meta.setProperty("header." + name, value));
+        if (object.userMetadata != null) object.userMetadata.forEach((name, value) -> meta.setProperty("user." + name, value));
+        return meta;
+    }
+
+    private StoredObject fromMeta(Properties meta) {
+        final long size = Long.parseLong(meta.getProperty("size"));
+        long[] partSizes = null;
+        if (meta.getProperty("parts") != null) {
+            partSizes = Arrays.stream(meta.getProperty("parts").split(",")).mapToLong(Long::parseLong).toArray();
+        }
+        Map<String, String> headers = null;
+        Map<String, String> userMetadata = null;
+        for (String name : meta.stringPropertyNames()) {
+            if (name.startsWith("header.")) {
+                if (headers == null) headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                headers.put(name.substring("header.".length()), meta.getProperty(name));
+            } else if (name.startsWith("user.")) {
+                if (userMetadata == null) userMetadata = new HashMap<>();
+                userMetadata.put(name.substring("user.".length()), meta.getProperty(name));
+            }
+        }
+        final String expires = meta.getProperty("expires");
+        return new StoredObject(size, meta.getProperty("etag"), Long.parseLong(meta.getProperty("lastModified")), meta.getProperty("storageClass"),
+                partSizes, headers, userMetadata, expires == null ? null : new Date(Long.parseLong(expires)),
+                new FileContent(data.resolve(meta.getProperty("data")), size));
+    }
+
+    @Override
+    protected Content write(InputStream in, long length, MessageDigest md5) throws IOException {
+        final Path path = tmpPath();
+        long written = 0;
+        try (OutputStream out = Files.newOutputStream(path)) {
+            final byte[] buffer = new byte[64 * 1024];
+            while (length < 0 || written < length) {
+                final int n = in.read(buffer, 0, (int) (length < 0 ? buffer.length : Math.min(buffer.length, length - written)));
+                if (n == -1) {
+                    if (length < 0) break;
+                    throw new EOFException("expected " + length + " bytes, got " + written);
+                }
+                md5.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                written += n;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return new FileContent(path, written);
+    }
+
+    @Override
+    protected Content copyRange(Content content, long first, long last, MessageDigest md5) throws IOException {
+        try (InputStream in = content.open(first, last)) {
+            return write(in, last - first + 1, md5);
+        }
+    }
+
+    @Override
+    protected Content duplicate(Content content) throws IOException {
+        final FileContent source = (FileContent) content;
+        final Path path = tmpPath();
+        try {
+            Files.createLink(path, source.path);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source.path, path);
+        }
+        return new FileContent(path, source.size);
+    }
+
+    @Override
+    protected Content concat(List<Content> parts) throws IOException {
+        final Path path = tmpPath();
+        long size = 0;
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (Content part : parts) {
+                try (FileChannel in = FileChannel.open(((FileContent) part).path, StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < part.size()) position += in.transferTo(position, part.size() - position, out);
+                }
+                size += part.size();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return new FileContent(path, size);
+    }
+
+    private static class FileContent implements Content {
+        final Path path;
+        private final long size;
+
+        FileContent(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        @Override public long size() { return size; }
+
+        @Override
+        public InputStream open(long first, long last) throws IOException {
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            channel.position(first);
+            return new InputStream() {
+                private long remaining = last - first + 1;
+
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) return 0;
+                    if (remaining == 0) return -1;
+                    final int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)));
+                    if (n > 0) remaining -= n;
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+
+        @Override
+        public void discard() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Error deleting " + path + ": " + e);
+            }
+        }
+    }
+}
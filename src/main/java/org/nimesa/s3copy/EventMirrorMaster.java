@@ -0,0 +1,175 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategyFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mirrors from object change events instead of listing: every ObjectCreated event becomes a KeyCopyJob,
+ * and with --delete-removed every ObjectRemoved event becomes a KeyDeleteJob.
+ *
+ * Events are coalesced per key: the first event for a key opens a window, and when it closes only the
+ * latest event seen for the key is acted on, so a key overwritten many times in a burst is copied
+ * once. Jobs go to the thread pool through the same queue slots as the listing masters, so when the
+ * pool falls behind the event source is simply not polled.
+ */
+@Slf4j
+public class EventMirrorMaster {
+
+    private final MirrorClients clients;
+    private final MirrorContext context;
+    private final EventSource source;
+    private final ComparisonStrategy comparisonStrategy;
+    private final Object notifyLock = new Object();
+
+    // keyed by source key, in the order the keys were first seen
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private static class Pending {
+        final long firstSeen;
+        ObjectEvent event;
+
+        Pending(long firstSeen, ObjectEvent event) {
+            this.firstSeen = firstSeen;
+            this.event = event;
+        }
+    }
+
+    public EventMirrorMaster(MirrorClients clients, MirrorContext context, EventSource source) {
+        this.clients = clients;
+        this.context = context;
+        this.source = source;
+        this.comparisonStrategy = ComparisonStrategyFactory.getStrategy(context.getOptions(),
+                summary -> context.getPartLayouts().isReproducible(clients.getSourceClient(), context.getOptions().getSourceBucket(), summary, context));
+    }
+
+    public void mirror() {
+        final MirrorOptions options = context.getOptions();
+        final long window = options.getEventWindow();
+        final long pollTimeout = Math.max(10, Math.min(1000, window / 2));
+
+        final Semaphore queueSlots = new Semaphore(MirrorMaster.getMaxQueueCapacity(options) + options.getMaxThreads());
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(options.getMaxThreads(), options.getMaxThreads(), 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+
+        log.info("mirroring from events, coalescing window " + window + "ms");
+        try {
+            while (!context.isStopRequested()) {
+                for (ObjectEvent event : source.poll(pollTimeout)) add(event);
+                dispatch(System.currentTimeMillis() - window, queueSlots, executor);
+                // with few events, a batch of copies to check would otherwise wait for the next copy
+                context.getVerifier().flushAged();
+            }
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
+        } catch (Exception e) {
+            log.error("Unexpected exception in event mirror: " + e, e);
+
+        } finally {
+            if (!pending.isEmpty()) log.warn("stopping with " + pending.size() + " keys still waiting for their coalescing window, they are not mirrored");
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(KeyMaster.STOP_TIMEOUT, TimeUnit.MILLISECONDS)) executor.shutdownNow();
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+            }
+            source.close();
+            context.getVerifier().stop();
+            context.closeResources();
+            finished.countDown();
+        }
+    }
+
+    public void stop() {
+        context.requestStop();
+        try {
+            if (!finished.await(KeyMaster.STOP_TIMEOUT * 2, TimeUnit.MILLISECONDS)) {
+                log.warn("event mirror didn't stop within " + 2 * KeyMaster.STOP_TIMEOUT_SECONDS + " seconds");
+            }
+        } catch (InterruptedException e) {
+            log.error("interrupted while stopping event mirror");
+        }
+    }
+
+    private void add(ObjectEvent event) {
+        final MirrorOptions options = context.getOptions();
+        if (!event.getBucket().equals(options.getSourceBucket()) || (options.hasPrefix() && !event.getKey().startsWith(options.getPrefix()))) {
+            source.done(event);
+            return;
+        }
+        context.getStats().objectsRead.incrementAndGet();
+
+        final Pending p = pending.get(event.getKey());
+        if (p == null) {
+            pending.put(event.getKey(), new Pending(System.currentTimeMillis(), event));
+        } else {
+            context.getStats().eventsCoalesced.incrementAndGet();
+            // the one superseded needs nothing more
+            if (event.isAfter(p.event)) {
+                source.done(p.event);
+                p.event = event;
+            } else {
+                source.done(event);
+            }
+        }
+    }
+
+    /**
+     * Submits the keys whose window opened before the cutoff, blocking while the thread pool is full.
+     */
+    private void dispatch(long cutoff, Semaphore queueSlots, ThreadPoolExecutor executor) throws InterruptedException {
+        final Iterator<Pending> i = pending.values().iterator();
+        while (i.hasNext()) {
+            final Pending p = i.next();
+            if (p.firstSeen > cutoff) break;
+            i.remove();
+            final KeyJob job = getTask(p.event);
+            if (job == null) {
+                source.done(p.event);
+                continue;
+            }
+            queueSlots.acquire();
+            executor.execute(() -> {
+                try {
+                    if (!context.isStopRequested()) {
+                        job.run();
+                        // a key that did not make it is left for the source to deliver again; a copy is only in
+                        // sync once it checked out (see CopyVerifier)
+                        job.getOutcome().thenAccept(inSync -> {
+                            if (inSync) source.done(p.event);
+                        });
+                    }
+                } finally {
+                    queueSlots.release();
+                }
+            });
+        }
+    }
+
+    private KeyJob getTask(ObjectEvent event) {
+        final MirrorOptions options = context.getOptions();
+        final S3VersionSummary summary = event.toSummary();
+        if (event.getType() == ObjectEvent.Type.REMOVED) {
+            if (!options.isDeleteRemoved()) return null;
+            // delete jobs work on the destination key, and only delete it if the source key is really gone
+            if (options.hasDestPrefix()) summary.setKey(options.getDestPrefix() + event.getKey().substring(options.getPrefixLength()));
+            return new KeyDeleteJob(clients, context, summary, notifyLock);
+        }
+        if (summary.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
+            return new MultipartKeyCopyJob(clients, context, summary, notifyLock, comparisonStrategy);
+        }
+        return new KeyCopyJob(clients, context, summary, notifyLock, comparisonStrategy);
+    }
+}
@@ -0,0 +1,26 @@
+package org.nimesa.s3copy;
+
+import java.util.List;
+
+/**
+ * Where object change events come from, for event-driven mirroring (see EventMirrorMaster).
+ * A queue service, a directory of notification files, or an in-process queue.
+ */
+public interface EventSource extends AutoCloseable {
+
+    /**
+     * Waits up to the timeout for events.
+     *
+     * @return the events that arrived, possibly none
+     */
+    List<ObjectEvent> poll(long timeoutMillis) throws InterruptedException;
+
+    /**
+     * Called once the key of an event returned by poll is in sync, or the event was dropped (filtered out,
+     * or superseded by a later event for the same key). Events never acknowledged may be delivered again.
+     */
+    default void done(ObjectEvent event) {}
+
+    @Override
+    void close();
+}
@@ -0,0 +1,203 @@
+package org.nimesa.s3copy;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue for a thread pool shared by several mirror jobs. Tasks are grouped by job (see tagged()),
+ * and taken round-robin across the groups that have work, so a job with a huge backlog cannot starve
+ * the others. Within a group, tasks run in the order they were queued. Unbounded, like the queue of
+ * a single mirror: the callers' queue slots keep it in check.
+ */
+public class FairQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final Object DEFAULT_GROUP = new Object();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // groups with queued tasks, the next one to serve first
+    private final LinkedHashMap<Object, ArrayDeque<Runnable>> groups = new LinkedHashMap<>();
+    private int count = 0;
+
+    private static final class GroupedTask implements Runnable {
+        final Object group;
+        final Runnable task;
+
+        GroupedTask(Object group, Runnable task) {
+            this.group = group;
+            this.task = task;
+        }
+
+        @Override public void run() { task.run(); }
+    }
+
+    /**
+     * @return the task, marked as belonging to the given group (any object, compared by equals)
+     */
+    public static Runnable tagged(Object group, Runnable task) {
+        return new GroupedTask(group, task);
+    }
+
+    private static Object groupOf(Runnable task) {
+        return task instanceof GroupedTask ? ((GroupedTask) task).group : DEFAULT_GROUP;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) throw new NullPointerException();
+        lock.lock();
+        try {
+            groups.computeIfAbsent(groupOf(task), g -> new ArrayDeque<>()).addLast(task);
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    // call with the lock held and count > 0
+    private Runnable dequeue() {
+        final Iterator<Map.Entry<Object, ArrayDeque<Runnable>>> i = groups.entrySet().iterator();
+        final Map.Entry<Object, ArrayDeque<Runnable>> first = i.next();
+        final ArrayDeque<Runnable> queue = first.getValue();
+        final Runnable task = queue.pollFirst();
+        i.remove();
+        // back of the line, behind the other groups
+        if (!queue.isEmpty()) groups.put(first.getKey(), queue);
+        count--;
+        return task;
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            return count == 0 ? null : groups.values().iterator().next().peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Runnable)) return false;
+        lock.lock();
+        try {
+            final Object group = groupOf((Runnable) o);
+            final ArrayDeque<Runnable> queue = groups.get(group);
+            if (queue == null || !queue.remove(o)) return false;
+            if (queue.isEmpty()) groups.remove(group);
+            count--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (count > 0 && n < maxElements) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a snapshot of the queue
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            final List<Runnable> snapshot = new ArrayList<>(count);
+            for (ArrayDeque<Runnable> queue : groups.values()) snapshot.addAll(queue);
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
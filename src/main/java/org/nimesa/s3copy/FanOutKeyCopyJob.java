@@ -0,0 +1,55 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Copies one source key to several destinations. The source metadata and ACL are fetched once, and
+ * only if at least one destination actually needs the key.
+ */
+@Slf4j
+public class FanOutKeyCopyJob extends KeyJob {
+
+    private final List<KeyCopyJob> jobs;
+
+    public FanOutKeyCopyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock, List<KeyCopyJob> jobs) {
+        super(clients, context, summary, notifyLock);
+        this.jobs = jobs;
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override
+    public CompletableFuture<Boolean> getOutcome() {
+        CompletableFuture<Boolean> all = CompletableFuture.completedFuture(true);
+        for (KeyCopyJob job : jobs) all = all.thenCombine(job.getOutcome(), (a, b) -> a && b);
+        return all;
+    }
+
+    @Override
+    public void run() {
+        final String key = summary.getKey();
+        final KeyCopyJob.SourceObject source = new KeyCopyJob.SourceObject();
+        try {
+            boolean allInSync = true;
+            for (KeyCopyJob job : jobs) {
+                try {
+                    job.copy(source);
+                } catch (Exception e) {
+                    log.error("error copying key: " + key + " to " + job.context.getOptions().getDestinationBucket() + ": " + e);
+                }
+                allInSync &= job.isInSync();
+            }
+            inSync = allInSync;
+        } finally {
+            synchronized (notifyLock) {
+                notifyLock.notifyAll();
+            }
+            if (context.getOptions().isVerbose()) log.info("done with " + key);
+        }
+    }
+}
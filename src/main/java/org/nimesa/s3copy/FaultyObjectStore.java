@@ -0,0 +1,84 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.services.s3.model.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An ObjectStore in front of another, that makes every request take longer and now and then fail as S3 does
+ * (--backend-latency, --backend-errors, --backend-throttle): to see how the retries, back-off and queues of a
+ * mirror hold up, with a MemoryObjectStore or DiskObjectStore behind it, or S3 itself.
+ *
+ * A request that fails does so before it reaches the store behind, so it has no effect there.
+ */
+public class FaultyObjectStore implements ObjectStore {
+
+    private final ObjectStore store;
+    // each request takes between half and one and a half times this
+    private final long latency;
+    private final double errorPercent;
+    private final double throttlePercent;
+
+    public FaultyObjectStore(ObjectStore store, long latency, double errorPercent, double throttlePercent) {
+        this.store = store;
+        this.latency = latency;
+        this.errorPercent = errorPercent;
+        this.throttlePercent = throttlePercent;
+    }
+
+    private void request() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency / 2 + random.nextLong(latency + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException();
+            }
+        }
+        final double roll = random.nextDouble(100);
+        if (roll < throttlePercent) {
+            throw SimulatedObjectStore.error(503, "SlowDown", "Please reduce your request rate.");
+        }
+        if (roll < throttlePercent + errorPercent) {
+            throw SimulatedObjectStore.error(500, "InternalError", "We encountered an internal error. Please try again.");
+        }
+    }
+
+    @Override public VersionListing listVersions(ListVersionsRequest request) { request(); return store.listVersions(request); }
+
+    @Override public VersionListing listNextBatchOfVersions(VersionListing previous) { request(); return store.listNextBatchOfVersions(previous); }
+
+    @Override public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) { request(); return store.listObjectsV2(request); }
+
+    @Override public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) { request(); return store.getObjectMetadata(request); }
+
+    @Override public S3Object getObject(GetObjectRequest request) { request(); return store.getObject(request); }
+
+    @Override public AccessControlList getObjectAcl(String bucket, String key) { request(); return store.getObjectAcl(bucket, key); }
+
+    @Override public AccessControlList getBucketAcl(String bucket) { request(); return store.getBucketAcl(bucket); }
+
+    @Override public CopyObjectResult copyObject(CopyObjectRequest request) { request(); return store.copyObject(request); }
+
+    @Override public PutObjectResult putObject(PutObjectRequest request) { request(); return store.putObject(request); }
+
+    @Override public void deleteObject(DeleteObjectRequest request) { request(); store.deleteObject(request); }
+
+    @Override public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) { request(); return store.initiateMultipartUpload(request); }
+
+    @Override public UploadPartResult uploadPart(UploadPartRequest request) { request(); return store.uploadPart(request); }
+
+    @Override public CopyPartResult copyPart(CopyPartRequest request) { request(); return store.copyPart(request); }
+
+    @Override public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) { request(); return store.completeMultipartUpload(request); }
+
+    @Override public void abortMultipartUpload(AbortMultipartUploadRequest request) { request(); store.abortMultipartUpload(request); }
+
+    @Override public PartListing listParts(ListPartsRequest request) { request(); return store.listParts(request); }
+
+    @Override public MultipartUploadListing listMultipartUploads(ListMultipartUploadsRequest request) { request(); return store.listMultipartUploads(request); }
+
+    @Override public void shutdown() { store.shutdown(); }
+}
@@ -1,12 +1,23 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.model.*;
 import lombok.extern.slf4j.Slf4j;
 import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.nimesa.s3copy.comparisonstrategies.SourceEtagComparisonStrategy;
 import org.slf4j.Logger;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Handles a single key. Determines if it should be copied, and if so, performs the copy operation.
@@ -17,10 +28,18 @@ public class KeyCopyJob extends KeyJob {
     protected String keydest;
 
     protected String sourceVersionId;
+    /**
+     * With --checksum, the source's checksum, if S3 has one
+     */
+    protected String sourceChecksum;
     protected ComparisonStrategy comparisonStrategy;
 
-    public KeyCopyJob(AmazonS3Client client, MirrorContext context, S3VersionSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
-        super(client, context, summary, notifyLock);
+    // set when the copy is handed to the CopyVerifier, completes with whether it checked out
+    private volatile CompletableFuture<Boolean> verification;
+    private volatile CompletableFuture<Boolean> outcome;
+
+    public KeyCopyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
+        super(clients, context, summary, notifyLock);
 
         keydest = summary.getKey();
         sourceVersionId = summary.getVersionId();
@@ -39,19 +58,7 @@ public class KeyCopyJob extends KeyJob {
         final MirrorOptions options = context.getOptions();
         final String key = summary.getKey();
         try {
-            if (!shouldTransfer()) return;
-            final ObjectMetadata sourceMetadata = getObjectMetadata(options.getSourceBucket(), key, options);
-            final AccessControlList objectAcl = getAccessControlList(options, key);
-
-            if (options.isDryRun()) {
-                log.info("Would have copied " + key + " to destination: " + keydest);
-            } else {
-                if (keyCopied(sourceMetadata, objectAcl)) {
-                    context.getStats().objectsCopied.incrementAndGet();
-                } else {
-                    context.getStats().copyErrors.incrementAndGet();
-                }
-            }
+            copy(new SourceObject());
         } catch (Exception e) {
             log.error("error copying key: " + key + ": " + e);
 
@@ -63,6 +70,88 @@ public class KeyCopyJob extends KeyJob {
         }
     }
 
+    /**
+     * Copies the key to this job's destination, if it needs to be. The source metadata and ACL come from
+     * the given SourceObject, so the jobs for several destinations of the same key can share one fetch.
+     */
+    void copy(SourceObject source) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final String key = summary.getKey();
+        final long start = System.currentTimeMillis();
+
+        try {
+            if (!shouldTransfer()) {
+                recordResult(keydest, inSync ? ResultManifest.Action.SKIPPED : ResultManifest.Action.FAILED, 0, start);
+                return;
+            }
+            source.fetch(this);
+        } catch (Exception e) {
+            error = e.getClass().getName();
+            recordResult(keydest, ResultManifest.Action.FAILED, 0, start);
+            throw e;
+        }
+
+        if (options.isDryRun()) {
+            log.info("Would have copied " + key + " to destination: " + keydest);
+        } else {
+            context.getStats().getReconciliation().attempted(keydest);
+            sourceChecksum = source.checksum;
+            if (keyCopied(source.metadata, source.acl)) {
+                if (verification == null) {
+                    copyConfirmed(start);
+                } else {
+                    // counted as copied once the CopyVerifier says so
+                    outcome = verification.thenApply(verified -> {
+                        if (verified) {
+                            copyConfirmed(start);
+                        } else {
+                            recordResult(keydest, ResultManifest.Action.FAILED, 0, start);
+                        }
+                        return verified;
+                    });
+                }
+            } else {
+                context.getStats().getReconciliation().failed(keydest);
+                context.getStats().copyErrors.incrementAndGet();
+                recordResult(keydest, ResultManifest.Action.FAILED, 0, start);
+            }
+        }
+    }
+
+    private void copyConfirmed(long start) {
+        inSync = true;
+        context.getStats().objectsCopied.incrementAndGet();
+        recordResult(keydest, ResultManifest.Action.COPIED, summary.getSize(), start);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> getOutcome() {
+        final CompletableFuture<Boolean> pending = outcome;
+        return pending != null ? pending : super.getOutcome();
+    }
+
+    /**
+     * Metadata, ACL and checksum of the source object, fetched the first time a job needs them.
+     */
+    static class SourceObject {
+        private ObjectMetadata metadata;
+        private AccessControlList acl;
+        private String checksum;
+
+        void fetch(KeyCopyJob job) throws Exception {
+            if (metadata != null) return;
+            final MirrorOptions options = job.context.getOptions();
+            final String key = job.summary.getKey();
+            metadata = job.getSourceMetadata(key, options);
+            if (options.hasChecksum()) {
+                checksum = ContentChecksum.get(metadata, options.getChecksum());
+                // the copy gets a checksum of its own
+                metadata = ContentChecksum.withoutChecksums(metadata);
+            }
+            acl = job.getAccessControlList(options, key);
+        }
+    }
+
     boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
         String key = summary.getKey();
         MirrorOptions options = context.getOptions();
@@ -71,41 +160,45 @@ public class KeyCopyJob extends KeyJob {
         MirrorStats stats = context.getStats();
         for (int tries = 0; tries < maxRetries; tries++) {
             if (verbose) log.info("copying (try #" + tries + "): " + key + " to: " + keydest);
-            log.error("sourceVersionId : "+ sourceVersionId);
+            if (log.isDebugEnabled()) log.debug("sourceVersionId : " + sourceVersionId);
             final CopyObjectRequest request = new CopyObjectRequest(options.getSourceBucket(), key, sourceVersionId,options.getDestinationBucket(), keydest);
             request.setStorageClass(StorageClass.valueOf(options.getStorageClass()));
             if (options.isEncrypt()) {
 				request.putCustomRequestHeader("x-amz-server-side-encryption", "AES256");
 			}
             request.setNewObjectMetadata(sourceMetadata);
+            if (options.hasChecksum()) {
+                // S3 computes it as it copies, so it covers the bytes that landed
+                request.putCustomRequestHeader(ContentChecksum.CHECKSUM_ALGORITHM_HEADER, options.getChecksum().name());
+            }
             if (options.isCrossAccountCopy()) {
                 request.setAccessControlList(buildCrossAccountAcl(objectAcl));
             } else {
                 request.setAccessControlList(objectAcl);
             }
             try {
-                log.error("adding to sourceBucketList list");
-                stats.sourceBucketList.add(keydest);
                 stats.s3copyCount.incrementAndGet();
-                client.copyObject(request);
-                final ObjectMetadata destinationMetadata = client.getObjectMetadata(options.getDestinationBucket(),key);
-                if(destinationMetadata.getETag().equals(sourceMetadata.getETag())) {
-                    log.error("adding to destinationBucketList list");
-                    stats.destinationBucketList.add(keydest);
-                } else {
-                    log.error("error in copying the file, etag mismatch: fileName [{}] versionId[{}]", key,sourceVersionId);
+                final CopyObjectResult result = clients.getDestinationClient().copyObject(request);
+                if (context.getDestinationIndex() != null) {
+                    context.getDestinationIndex().put(keydest, sourceMetadata.getContentLength(), result.getETag(), result.getLastModifiedDate(), result.getVersionId());
                 }
+                // a copy in one request has the source's MD5 as its ETag, unless the source's was not one (multipart, SSE-KMS)
+                final boolean md5Etag = PartLayouts.partCount(sourceMetadata.getETag()) == 0 && sourceMetadata.getSSEAwsKmsKeyId() == null;
+                verifyLater(sourceMetadata.getContentLength(), md5Etag ? sourceMetadata.getETag() : result.getETag());
                 stats.bytesCopied.addAndGet(sourceMetadata.getContentLength());
                 if (verbose) log.info("successfully copied (on try #" + tries + "): " + key + " to: " + keydest);
                 return true;
             } catch (AmazonS3Exception s3e) {
+                error = s3e.getClass().getName() + "/" + s3e.getErrorCode();
                 log.error("s3 exception copying (try #" + tries + ") " + key + " to: " + keydest + ": " + s3e);
             } catch (Exception e) {
+                error = e.getClass().getName();
                 log.error("unexpected exception copying (try #" + tries + ") " + key + " to: " + keydest + ": " + e);
             }
             try {
                 Thread.sleep(10);
             } catch (InterruptedException e) {
+                error = e.getClass().getName();
                 log.error("interrupted while waiting to retry key: " + key);
                 return false;
             }
@@ -113,6 +206,153 @@ public class KeyCopyJob extends KeyJob {
         return false;
     }
 
+    /**
+     * Hands the new destination object to the CopyVerifier, to be checked against the source later, off this thread
+     *
+     * @param etag the ETag it should have, or null if that cannot be told in advance
+     */
+    protected void verifyLater(long size, String etag) {
+        // a recopy is checked for the same outcome
+        if (verification == null) verification = new CompletableFuture<>();
+        context.getVerifier().submit(new CopyVerifier.Copy(this, size, etag));
+    }
+
+    /**
+     * Called by the CopyVerifier once the copy checked out (or could not be checked), or failed for good
+     */
+    void verified(boolean ok) {
+        if (verification != null) verification.complete(ok);
+    }
+
+    // times this key was copied again after failing verification
+    int recopies = 0;
+
+    /**
+     * Copies the key again, after its copy failed verification (see CopyVerifier). The new copy is verified in turn.
+     */
+    void recopy() {
+        recopies++;
+        try {
+            final SourceObject source = new SourceObject();
+            source.fetch(this);
+            sourceChecksum = source.checksum;
+            if (keyCopied(source.metadata, source.acl)) return;
+        } catch (Exception e) {
+            error = e.getClass().getName();
+            log.error("error copying key again: " + summary.getKey() + ": " + e);
+        }
+        context.getStats().getReconciliation().failed(keydest);
+        context.getStats().copyErrors.incrementAndGet();
+        verified(false);
+    }
+
+    /**
+     * Checks what was written against the source: the checksums, if the source has one that the
+     * destination's can be compared with, the sizes otherwise. Counts the copy as verified if they match.
+     *
+     * @param checksum the destination's checksum, or one computed from the data on its way there (null if there is none)
+     * @return false if they differ
+     */
+    protected boolean verifyChecksum(long expectedSize, long size, String checksum) {
+        final MirrorStats stats = context.getStats();
+        if (size != expectedSize) {
+            error = "SizeMismatch";
+            log.error("size mismatch copying " + summary.getKey() + " to " + keydest + ": " + size + " bytes, expected " + expectedSize);
+            return false;
+        }
+        if (ContentChecksum.comparable(sourceChecksum, checksum)) {
+            if (!sourceChecksum.equals(checksum)) {
+                error = "ChecksumMismatch";
+                stats.checksumMismatches.incrementAndGet();
+                log.error("checksum mismatch copying " + summary.getKey() + " to " + keydest + ": " + checksum + ", expected " + sourceChecksum);
+                return false;
+            }
+            stats.checksumsVerified.incrementAndGet();
+        } else {
+            if (context.getOptions().isVerbose()) log.info("no comparable checksums for " + summary.getKey() + " (source: " + sourceChecksum + ", destination: " + checksum + "), sizes match");
+            stats.checksumsUnavailable.incrementAndGet();
+        }
+        stats.getReconciliation().verified(keydest);
+        return true;
+    }
+
+    /**
+     * Fails a transfer through this process before anything is written if the data read does not have the source's checksum
+     *
+     * @param checksum the checksum of the data read, or null if there is none
+     */
+    protected void checkSourceChecksum(String checksum) throws IOException {
+        if (ContentChecksum.comparable(sourceChecksum, checksum) && !sourceChecksum.equals(checksum)) {
+            context.getStats().checksumMismatches.incrementAndGet();
+            throw new IOException("checksum mismatch reading " + summary.getKey() + ": " + checksum + ", expected " + sourceChecksum);
+        }
+    }
+
+    /**
+     * Reads the source object from start to end with one GET. A read that fails picks up where it
+     * stopped with a ranged GET, up to --max-retries times, so a long read survives dropped connections.
+     */
+    protected class SourceInputStream extends InputStream {
+        private final long size;
+        private long position = 0;
+        private int retries = 0;
+        private S3Object object;
+        private InputStream in;
+
+        public SourceInputStream(long size) {
+            this.size = size;
+        }
+
+        private void open() throws IOException {
+            final MirrorOptions options = context.getOptions();
+            final GetObjectRequest request = new GetObjectRequest(options.getSourceBucket(), summary.getKey(), sourceVersionId);
+            if (position > 0) request.setRange(position, size - 1);
+            context.getStats().s3getCount.incrementAndGet();
+            object = clients.getSourceClient().getObject(request);
+            in = object.getObjectContent();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= size) return -1;
+            while (true) {
+                try {
+                    if (in == null) open();
+                    final int n = in.read(b, off, len);
+                    if (n == -1) throw new IOException("got " + position + " bytes of " + summary.getKey() + ", expected " + size);
+                    position += n;
+                    return n;
+                } catch (IOException | AmazonClientException e) {
+                    close();
+                    if (++retries >= context.getOptions().getMaxRetries() || context.isStopRequested()) {
+                        throw e instanceof IOException ? (IOException) e : new IOException("reading " + summary.getKey() + " failed: " + e, e);
+                    }
+                    log.warn("reading " + summary.getKey() + " failed at " + position + " (try #" + retries + "), resuming: " + e);
+                    if (Sleep.sleep(10)) throw new InterruptedIOException("interrupted while waiting to resume reading " + summary.getKey());
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (object == null) return;
+            try {
+                // what is left unread is not worth draining, the connection is dropped
+                if (position < size) object.getObjectContent().abort();
+                object.close();
+            } finally {
+                object = null;
+                in = null;
+            }
+        }
+    }
+
     private boolean shouldTransfer() {
         final MirrorOptions options = context.getOptions();
         final String key = summary.getKey();
@@ -126,32 +366,94 @@ public class KeyCopyJob extends KeyJob {
             } else {
                 if (lastModified.getTime() < options.getMaxAge()) {
                     if (verbose) log.info("key "+key+" (lastmod="+lastModified+") is older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+"), not copying");
+                    inSync = true;
                     return false;
                 }
             }
         }
+        // a plan (see --run-plan) only has the keys its listing of the destination showed to need a copy
+        if (context.getPlan() != null) return true;
+
+        final DestinationIndex index = context.getDestinationIndex();
+        ObjectMetadata indexed = null;
+        if (index != null) {
+            try {
+                indexed = index.lookup(keydest);
+            } catch (Exception e) {
+                log.warn("Error reading destination index for " + keydest + " (checking S3 instead): " + e);
+            }
+        }
         final ObjectMetadata metadata;
         try {
-            metadata = getObjectMetadata(options.getDestinationBucket(), keydest, options);
+            if (indexed != null) {
+                context.getStats().destIndexHits.incrementAndGet();
+                metadata = indexed;
+            } else {
+                metadata = getDestinationMetadata(keydest, options);
+                if (index != null) {
+                    // a compressed copy is indexed with the size it was compressed from, which it is compared on
+                    if (SourceEtagComparisonStrategy.isCompressedCopy(summary, metadata)) {
+                        final ObjectMetadata recorded = metadata.clone();
+                        recorded.setContentLength(summary.getSize());
+                        index.put(keydest, recorded);
+                    } else {
+                        index.put(keydest, metadata);
+                    }
+                }
+            }
         } catch (AmazonS3Exception e) {
             if (e.getStatusCode() == 404) {
                 if (verbose) log.info("Key not found in destination bucket (will copy): "+ keydest);
                 return true;
             } else {
+                error = e.getClass().getName() + "/" + e.getErrorCode();
                 log.warn("Error getting metadata for " + options.getDestinationBucket() + "/" + keydest + " (not copying): " + e);
                 return false;
             }
         } catch (Exception e) {
+            error = e.getClass().getName();
             log.warn("Error getting metadata for " + options.getDestinationBucket() + "/" + keydest + " (not copying): " + e);
             return false;
         }
 
-        if (summary.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
-            return metadata.getContentLength() != summary.getSize();
-        }
         final boolean objectChanged = comparisonStrategy.sourceDifferent(summary, metadata);
         if (verbose && !objectChanged) log.info("Destination file is same as source, not copying: "+ key);
-
+        inSync = !objectChanged;
         return objectChanged;
     }
+
+    protected <T> T withRetries(String what, Callable<T> call) throws Exception {
+        final int maxRetries = context.getOptions().getMaxRetries();
+        Exception last = null;
+        for (int tries = 0; tries < maxRetries; tries++) {
+            if (context.isStopRequested()) throw new InterruptedException("stop requested");
+            try {
+                return call.call();
+            } catch (Exception e) {
+                last = e;
+                log.warn(what + " failed (try #" + tries + "): " + e);
+            }
+            if (Sleep.sleep(10)) throw new InterruptedException("interrupted while waiting to retry " + what);
+        }
+        throw last;
+    }
+
+    /**
+     * Runs the parts on the given pool and waits for all of them. If one fails, the others are cancelled.
+     *
+     * @return the results, in part order
+     */
+    protected static <T> List<T> runParts(ExecutorService executor, List<Callable<T>> parts) throws Exception {
+        final List<Future<T>> futures = new ArrayList<>(parts.size());
+        for (Callable<T> part : parts) futures.add(executor.submit(part));
+        final List<T> results = new ArrayList<>(parts.size());
+        try {
+            for (Future<T> future : futures) results.add(future.get());
+            return results;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<T> future : futures) future.cancel(true);
+        }
+    }
 }
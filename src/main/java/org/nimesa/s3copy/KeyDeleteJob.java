@@ -1,6 +1,5 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -10,14 +9,15 @@ public class KeyDeleteJob extends KeyJob {
 
     private String keysrc;
 
-    public KeyDeleteJob (AmazonS3Client client, MirrorContext context, S3VersionSummary summary, Object notifyLock) {
-        super(client, context, summary, notifyLock);
+    public KeyDeleteJob (MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock) {
+        super(clients, context, summary, notifyLock);
 
         final MirrorOptions options = context.getOptions();
         keysrc = summary.getKey(); // NOTE: summary.getKey is the key in the destination bucket
-        if (options.hasPrefix()) {
+        // the reverse of the mapping in KeyCopyJob: keys only differ when there is a dest prefix
+        if (options.hasDestPrefix()) {
             keysrc = keysrc.substring(options.getDestPrefixLength());
-            keysrc = options.getPrefix() + keysrc;
+            keysrc = (options.hasPrefix() ? options.getPrefix() : "") + keysrc;
         }
     }
 
@@ -30,6 +30,7 @@ public class KeyDeleteJob extends KeyJob {
         final boolean verbose = options.isVerbose();
         final int maxRetries = options.getMaxRetries();
         final String key = summary.getKey();
+        final long start = System.currentTimeMillis();
         try {
             if (!shouldDelete()) return;
 
@@ -42,16 +43,22 @@ public class KeyDeleteJob extends KeyJob {
                 for (int tries=0; tries<maxRetries; tries++) {
                     if (verbose) log.info("deleting (try #"+tries+"): "+key);
                     try {
-                        stats.s3deleteCount.incrementAndGet();
-                        client.deleteObject(request);
+                        if (clients.getDestinationStore() != null) {
+                            clients.getDestinationStore().delete(key);
+                        } else {
+                            stats.s3deleteCount.incrementAndGet();
+                            clients.getDestinationClient().deleteObject(request);
+                        }
                         deletedOK = true;
                         if (verbose) log.info("successfully deleted (on try #"+tries+"): "+key);
                         break;
 
                     } catch (AmazonS3Exception s3e) {
+                        error = s3e.getClass().getName() + "/" + s3e.getErrorCode();
                         log.error("s3 exception deleting (try #"+tries+") "+key+": "+s3e);
 
                     } catch (Exception e) {
+                        error = e.getClass().getName();
                         log.error("unexpected exception deleting (try #"+tries+") "+key+": "+e);
                     }
                     try {
@@ -62,9 +69,13 @@ public class KeyDeleteJob extends KeyJob {
                     }
                 }
                 if (deletedOK) {
+                    inSync = true;
                     context.getStats().objectsDeleted.incrementAndGet();
+                    if (context.getDestinationIndex() != null) context.getDestinationIndex().remove(key);
+                    recordResult(key, ResultManifest.Action.DELETED, 0, start);
                 } else {
                     context.getStats().deleteErrors.incrementAndGet();
+                    recordResult(key, ResultManifest.Action.FAILED, 0, start);
                 }
             }
 
@@ -86,7 +97,8 @@ public class KeyDeleteJob extends KeyJob {
 
         // Does it exist in the source bucket
         try {
-            ObjectMetadata metadata = getObjectMetadata(options.getSourceBucket(), keysrc, options);
+            ObjectMetadata metadata = getSourceMetadata(keysrc, options);
+            inSync = true;
             return false; // object exists in source bucket, don't delete it from destination bucket
 
         } catch (AmazonS3Exception e) {
@@ -1,18 +1,24 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
 import org.slf4j.Logger;
 
+import java.util.concurrent.CompletableFuture;
+
 public abstract class KeyJob implements Runnable {
 
-    protected final AmazonS3Client client;
+    protected final MirrorClients clients;
     protected final MirrorContext context;
     protected final S3VersionSummary summary;
     protected final Object notifyLock;
 
-    public KeyJob(AmazonS3Client client, MirrorContext context, S3VersionSummary summary, Object notifyLock) {
-        this.client = client;
+    /**
+     * Set once the key is known to be in sync at the destination: copied, or found to need no copy.
+     */
+    protected volatile boolean inSync = false;
+
+    public KeyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock) {
+        this.clients = clients;
         this.context = context;
         this.summary = summary;
         this.notifyLock = notifyLock;
@@ -20,14 +26,52 @@ public abstract class KeyJob implements Runnable {
 
     public abstract Logger getLog();
 
+    public boolean isInSync() { return inSync; }
+
+    /**
+     * @return completes with whether the key is in sync once that is known: when run() returns, or for a copy
+     * checked later (see CopyVerifier), once it has been checked. It never completes if the check is dropped.
+     */
+    public CompletableFuture<Boolean> getOutcome() { return CompletableFuture.completedFuture(inSync); }
+
+    /**
+     * Class of the last error this job ran into, for the result manifest
+     */
+    protected volatile String error;
+
+    /**
+     * Adds the outcome for this key to the result manifest, if there is one. Dry runs are not recorded.
+     *
+     * @param key   the key in the destination bucket
+     * @param start when processing of the key started
+     */
+    protected void recordResult(String key, ResultManifest.Action action, long bytes, long start) {
+        final ResultManifest manifest = context.getManifest();
+        if (manifest == null || context.getOptions().isDryRun()) return;
+        manifest.record(context.getOptions().getDestinationBucket(), key, summary.getVersionId(), action, bytes,
+                System.currentTimeMillis() - start, action == ResultManifest.Action.FAILED ? error : null);
+    }
+
     @Override public String toString() { return summary.getKey(); }
 
-    protected ObjectMetadata getObjectMetadata(String bucket, String key, MirrorOptions options) throws Exception {
+    protected ObjectMetadata getSourceMetadata(String key, MirrorOptions options) throws Exception {
+        return getObjectMetadata(clients.getSourceClient(), clients.getSourceStore(), options.getSourceBucket(), key, options);
+    }
+
+    protected ObjectMetadata getDestinationMetadata(String key, MirrorOptions options) throws Exception {
+        return getObjectMetadata(clients.getDestinationClient(), clients.getDestinationStore(), options.getDestinationBucket(), key, options);
+    }
+
+    private ObjectMetadata getObjectMetadata(ObjectStore client, LocalStore store, String bucket, String key, MirrorOptions options) throws Exception {
+        if (store != null) return store.getObjectMetadata(key);
+
         Exception ex = null;
         for (int tries=0; tries<options.getMaxRetries(); tries++) {
             try {
                 context.getStats().s3getCount.incrementAndGet();
-                return client.getObjectMetadata(bucket, key);
+                final GetObjectMetadataRequest request = new GetObjectMetadataRequest(bucket, key);
+                if (options.hasChecksum()) request.putCustomRequestHeader(ContentChecksum.CHECKSUM_MODE_HEADER, "ENABLED");
+                return client.getObjectMetadata(request);
 
             } catch (AmazonS3Exception e) {
                 if (e.getStatusCode() == 404) throw e;
@@ -48,12 +92,17 @@ public abstract class KeyJob implements Runnable {
     }
 
     protected AccessControlList getAccessControlList(MirrorOptions options, String key) throws Exception {
+        // files have no ACL: none to read from a local source, and none to give a local destination
+        if (clients.hasLocalSide()) return null;
+        // and grants to the source's account mean nothing to a destination with its own endpoint or credentials
+        if (options.hasSeparateDestination()) return null;
+
         Exception ex = null;
 
         for (int tries=0; tries<=options.getMaxRetries(); tries++) {
             try {
                 context.getStats().s3getCount.incrementAndGet();
-                return client.getObjectAcl(options.getSourceBucket(), key);
+                return clients.getSourceClient().getObjectAcl(options.getSourceBucket(), key);
 
             } catch (Exception e) {
                 ex = e;
@@ -1,57 +1,126 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ListVersionsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3VersionSummary;
 import com.amazonaws.services.s3.model.VersionListing;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public class KeyLister implements Runnable {
 
-    private AmazonS3Client client;
-    private MirrorContext context;
-    private int maxQueueCapacity;
+    private ObjectStore client;
+    protected final MirrorContext context;
+    private final int maxQueueCapacity;
 
-    private final List<S3VersionSummary> summaries;
+    // compacted, the buffer can hold many keys (see KeyRecord)
+    private final List<KeyRecord> summaries;
     private final AtomicBoolean done = new AtomicBoolean(false);
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    // true only if the listing reached its end, as opposed to being stopped or failing
+    private volatile boolean completed = false;
 
     private VersionListing versionListing;
+    private final MirrorJournal journal;
 
     public boolean isDone() {
         return done.get();
     }
 
-    public KeyLister(AmazonS3Client client, MirrorContext context, int maxQueueCapacity, String bucket, String prefix) {
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * For listers of something other than a bucket, which feed the buffer with addPage() from their own run()
+     */
+    protected KeyLister(MirrorContext context, int maxQueueCapacity) {
+        this.context = context;
+        this.maxQueueCapacity = maxQueueCapacity;
+        this.summaries = new ArrayList<>(maxQueueCapacity + context.getOptions().getListPageSize());
+        this.journal = null;
+    }
+
+    public KeyLister(ObjectStore client, MirrorContext context, int maxQueueCapacity, String bucket, String prefix) {
+        this(client, context, maxQueueCapacity, bucket, prefix, null);
+    }
+
+    /**
+     * @param journal if not null, listing starts at the journal's resume marker and every page is reported to it
+     */
+    public KeyLister(ObjectStore client, MirrorContext context, int maxQueueCapacity, String bucket, String prefix, MirrorJournal journal) {
         this.client = client;
         this.context = context;
         this.maxQueueCapacity = maxQueueCapacity;
 
         final MirrorOptions options = context.getOptions();
-        int fetchSize = options.getMaxThreads();
-        this.summaries = new ArrayList<>(10 * fetchSize);
+        int fetchSize = options.getListPageSize();
+        this.summaries = new ArrayList<>(maxQueueCapacity + fetchSize);
 
-        ListVersionsRequest listVersionsRequest = new ListVersionsRequest(bucket, prefix, null, null, null, fetchSize);
+        this.journal = journal;
+        final String keyMarker = journal == null ? null : journal.getKeyMarker();
+        final String versionIdMarker = journal == null ? null : journal.getVersionIdMarker();
+        ListVersionsRequest listVersionsRequest = new ListVersionsRequest(bucket, prefix, keyMarker, versionIdMarker, null, fetchSize);
 
         versionListing = s3getFirstBatchVersion(client, listVersionsRequest);
         synchronized (summaries) {
             final List<S3VersionSummary> objectSummaries = versionListing.getVersionSummaries();
-            summaries.addAll(objectSummaries);
+            if (journal != null) journal.pageListed(objectSummaries.size(), versionListing.getNextKeyMarker(), versionListing.getNextVersionIdMarker(), versionListing.isTruncated());
+            summaries.addAll(KeyRecord.fromPage(objectSummaries));
             context.getStats().objectsRead.addAndGet(objectSummaries.size());
             if (options.isVerbose()) log.info("added initial set of " + objectSummaries.size() + " keys");
         }
     }
 
+    /**
+     * Asks the run loop to exit after the current request, and wakes up anyone waiting on it.
+     */
+    public void stop() {
+        stopped.set(true);
+        synchronized (summaries) {
+            summaries.notifyAll();
+        }
+    }
+
+    protected boolean isStopped() {
+        return stopped.get();
+    }
+
+    /**
+     * Adds a page of keys to the buffer, once the consumer has made room for it. The page must be sorted (see KeyRecord.fromPage).
+     *
+     * @return false if the lister was stopped instead
+     */
+    protected boolean addPage(List<S3VersionSummary> page) throws InterruptedException {
+        synchronized (summaries) {
+            while (summaries.size() >= maxQueueCapacity && !stopped.get()) {
+                summaries.wait();
+            }
+            if (stopped.get()) return false;
+            summaries.addAll(KeyRecord.fromPage(page));
+            context.getStats().objectsRead.addAndGet(page.size());
+            summaries.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Marks the listing as over, waking up the consumer.
+     *
+     * @param completed true if everything was listed, as opposed to the lister being stopped or failing
+     */
+    protected void listingDone(boolean completed) {
+        this.completed = completed;
+        synchronized (summaries) {
+            done.set(true);
+            summaries.notifyAll();
+        }
+    }
+
     @Override
     public void run() {
         final MirrorOptions options = context.getOptions();
@@ -59,71 +128,47 @@ public class KeyLister implements Runnable {
         int counter = 0;
         log.info("starting...");
         try {
-            while (true) {
-                while (getSize() < maxQueueCapacity) {
-                    if (versionListing.isTruncated()) {
-                        versionListing = s3getNextBatchVersion();
-                        if (++counter % 100 == 0) {
-                            context.getStats().logStats();
-                            final Set<String> sourceBucketList = context.getStats().getSourceBucketList();
-                            final Set<String> destinationBucketList = context.getStats().getDestinationBucketList();
-                            final List<String> arrayList = new ArrayList<>(CollectionUtils.disjunction(sourceBucketList, destinationBucketList));
-                            log.error("error files that not copied [{}]", arrayList.toString());
-                        }
-                        synchronized (summaries) {
-                            final List<S3VersionSummary> objectSummaries = versionListing.getVersionSummaries();
-                            summaries.addAll(objectSummaries);
-                            context.getStats().objectsRead.addAndGet(objectSummaries.size());
-                            if (verbose)
-                                log.info("queued next set of " + objectSummaries.size() + " keys (total now=" + getSize() + ")");
-                        }
-
-                    } else {
-                        log.info("No more keys found in source bucket, exiting");
-                        return;
+            while (!stopped.get()) {
+                synchronized (summaries) {
+                    // wait for the consumer to drain the buffer before fetching more
+                    while (summaries.size() >= maxQueueCapacity && !stopped.get()) {
+                        summaries.wait();
                     }
                 }
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    log.error("interrupted!");
+                if (stopped.get()) break;
+
+                if (versionListing.isTruncated()) {
+                    versionListing = s3getNextBatchVersion();
+                    if (++counter % 100 == 0) context.getStats().logStats();
+                    synchronized (summaries) {
+                        final List<S3VersionSummary> objectSummaries = versionListing.getVersionSummaries();
+                        if (journal != null) journal.pageListed(objectSummaries.size(), versionListing.getNextKeyMarker(), versionListing.getNextVersionIdMarker(), versionListing.isTruncated());
+                        summaries.addAll(KeyRecord.fromPage(objectSummaries));
+                        context.getStats().objectsRead.addAndGet(objectSummaries.size());
+                        if (verbose)
+                            log.info("queued next set of " + objectSummaries.size() + " keys (total now=" + summaries.size() + ")");
+                        summaries.notifyAll();
+                    }
+
+                } else {
+                    log.info("No more keys found in source bucket, exiting");
+                    completed = true;
                     return;
                 }
             }
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
         } catch (Exception e) {
             log.error("Error in run loop, KeyLister thread now exiting: " + e);
 
         } finally {
             if (verbose) log.info("KeyLister run loop finished");
-            done.set(true);
-        }
-    }
-
-    private ObjectListing s3getFirstBatch(AmazonS3Client client, ListObjectsRequest request) {
-        final MirrorOptions options = context.getOptions();
-        final boolean verbose = options.isVerbose();
-        final int maxRetries = options.getMaxRetries();
-
-        Exception lastException = null;
-        for (int tries = 0; tries < maxRetries; tries++) {
-            try {
-                context.getStats().s3getCount.incrementAndGet();
-                ObjectListing listing = client.listObjects(request);
-                if (verbose) log.info("successfully got first batch of objects (on try #" + tries + ")");
-                return listing;
-            } catch (Exception e) {
-                lastException = e;
-                log.warn("s3getFirstBatch: error listing (try #" + tries + "): " + e);
-                if (Sleep.sleep(50)) {
-                    log.info("s3getFirstBatch: interrupted while waiting for next try");
-                    break;
-                }
-            }
+            listingDone(completed);
         }
-        throw new IllegalStateException("s3getFirstBatch: error listing: " + lastException, lastException);
     }
 
-    private VersionListing s3getFirstBatchVersion(AmazonS3Client client, ListVersionsRequest request) {
+    private VersionListing s3getFirstBatchVersion(ObjectStore client, ListVersionsRequest request) {
         final MirrorOptions options = context.getOptions();
         final boolean verbose = options.isVerbose();
         final int maxRetries = options.getMaxRetries();
@@ -195,12 +240,6 @@ public class KeyLister implements Runnable {
         throw new IllegalStateException("Too many errors trying to list objects (maxRetries=" + maxRetries + ")");
     }
 
-    private int getSize() {
-        synchronized (summaries) {
-            return summaries.size();
-        }
-    }
-
     /* public List<S3ObjectSummary> getNextBatch() {
         List<S3ObjectSummary> copy;
         synchronized (summaries) {
@@ -210,12 +249,25 @@ public class KeyLister implements Runnable {
         return copy;
     } */
 
-    public List<S3VersionSummary> getNextBatch() {
-        List<S3VersionSummary> copy;
+    public List<KeyRecord> getNextBatch() {
+        List<KeyRecord> copy;
         synchronized (summaries) {
             copy = new ArrayList<>(summaries);
             summaries.clear();
+            summaries.notifyAll();
         }
         return copy;
     }
+
+    /**
+     * Like getNextBatch, but blocks until keys are available. An empty list means the lister is done.
+     */
+    public List<KeyRecord> takeNextBatch() throws InterruptedException {
+        synchronized (summaries) {
+            while (summaries.isEmpty() && !done.get()) {
+                summaries.wait();
+            }
+            return getNextBatch();
+        }
+    }
 }
\ No newline at end of file
@@ -1,42 +1,61 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.S3VersionSummary;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 public abstract class KeyMaster implements Runnable {
 
     public static final int STOP_TIMEOUT_SECONDS = 10;
-    private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(STOP_TIMEOUT_SECONDS);
+    static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(STOP_TIMEOUT_SECONDS);
 
-    protected AmazonS3Client client;
+    protected MirrorClients clients;
     protected MirrorContext context;
 
     private AtomicBoolean done = new AtomicBoolean(false);
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    // set when the whole listing went through without a stop or an error
+    private volatile boolean listingComplete = false;
+    private final AtomicLong notInSync = new AtomicLong(0);
 
     public boolean isDone() {
         return done.get();
     }
 
-    private BlockingQueue<Runnable> workQueue;
+    /**
+     * @return true if the whole source was listed, and every key it submitted ended up in sync
+     */
+    public boolean isFullySynced() {
+        return listingComplete && notInSync.get() == 0;
+    }
+
+    /**
+     * Shared by all the KeyMasters feeding the same executor, one permit per job that is queued or running
+     */
+    private Semaphore queueSlots;
     private ThreadPoolExecutor executorService;
     protected final Object notifyLock = new Object();
 
+    // jobs submitted by this master that have not finished yet, guarded by notifyLock
+    private int inFlight = 0;
+
     private Thread thread;
+    private volatile KeyLister lister;
 
-    public KeyMaster(AmazonS3Client client, MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        this.client = client;
+    public KeyMaster(MirrorClients clients, MirrorContext context, Semaphore queueSlots, ThreadPoolExecutor executorService) {
+        this.clients = clients;
         this.context = context;
-        this.workQueue = workQueue;
+        this.queueSlots = queueSlots;
         this.executorService = executorService;
     }
 
@@ -44,33 +63,71 @@ public abstract class KeyMaster implements Runnable {
 
     protected abstract String getBucket(MirrorOptions options);
 
+    /**
+     * @return the client for the bucket this master lists
+     */
+    protected abstract ObjectStore getClient();
+
+    /**
+     * @return the local directory this master lists instead, or null if it lists a bucket
+     */
+    protected abstract LocalStore getStore();
+
     protected abstract KeyJob getTask(S3VersionSummary summary);
 
+    /**
+     * @return which keys of a plan (see --run-plan) this master takes, in place of its listing
+     */
+    protected abstract MirrorPlan.Action getPlannedAction();
+
+    /**
+     * @return the checkpoint journal for the keys this master lists, or null if they are not journaled
+     */
+    protected MirrorJournal getJournal() {
+        return null;
+    }
+
+    /**
+     * Listing-time filter: keys this returns false for get no job (and no request) at all.
+     */
+    protected boolean accept(S3VersionSummary summary) {
+        return true;
+    }
+
     public void start() {
-        this.thread = new Thread(this);
+        this.thread = new Thread(this, getClass().getSimpleName());
         this.thread.start();
     }
 
+    /**
+     * Blocks until the lister is exhausted and every job this master submitted has finished.
+     */
+    public void awaitDone() throws InterruptedException {
+        finished.await();
+    }
+
+    /**
+     * Cooperative stop: the lister stops fetching, no new jobs are submitted, and queued jobs are skipped
+     * (see MirrorContext.requestStop). Jobs that are already running are given STOP_TIMEOUT to finish.
+     */
     public void stop() {
         final String name = getClass().getSimpleName();
-        final long start = System.currentTimeMillis();
         log.info("stopping " + name + "...");
+        if (isDone()) {
+            log.info(name + " stopped");
+            return;
+        }
+        final KeyLister l = lister;
+        if (l != null) l.stop();
+        if (thread != null) thread.interrupt();
         try {
-            if (isDone()) return;
-            this.thread.interrupt();
-            while (!isDone() && System.currentTimeMillis() - start < STOP_TIMEOUT) {
-                if (Sleep.sleep(50)) return;
+            if (finished.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                log.info(name + " stopped");
+            } else {
+                log.warn(name + " didn't stop within " + STOP_TIMEOUT_SECONDS + " seconds, abandoning it");
             }
-        } finally {
-            if (!isDone()) {
-                try {
-                    log.warn(name + " didn't stop within " + STOP_TIMEOUT_SECONDS + " after interrupting it, forcibly killing the thread...");
-                    this.thread.stop();
-                } catch (Exception e) {
-                    log.error("Error calling Thread.stop on " + name + ": " + e, e);
-                }
-            }
-            if (isDone()) log.info(name + " stopped");
+        } catch (InterruptedException e) {
+            log.error("interrupted while stopping " + name);
         }
     }
 
@@ -81,61 +138,151 @@ public abstract class KeyMaster implements Runnable {
 
         final int maxQueueCapacity = MirrorMaster.getMaxQueueCapacity(options);
 
-        int counter = 0;
-        try {
-            final KeyLister lister = new KeyLister(client, context, maxQueueCapacity, getBucket(options), getPrefix(options));
-            executorService.submit(lister);
-
+        final MirrorJournal journal = getJournal();
 
+        long counter = 0;
+        try {
+            if (journal != null && !journal.getFailed().isEmpty()) {
+                retryFailed(journal);
+                // before listing, so a key listed again is not copied twice at once
+                awaitInFlight();
+            }
+            if (journal != null && journal.isFinished()) {
+                log.info("journal shows the previous run completed, nothing to resume");
+                listingComplete = true;
+                return;
+            }
+            if (context.getPlan() != null) {
+                lister = context.getPlan().newLister(context, maxQueueCapacity, getPlannedAction());
+            } else if (context.getPackCatalog() != null) {
+                lister = context.getPackCatalog().newLister(getClient(), context, maxQueueCapacity, getBucket(options));
+            } else if (getStore() != null) {
+                lister = new LocalKeyLister(context, maxQueueCapacity, getStore(), getPrefix(options));
+            } else {
+                lister = new KeyLister(getClient(), context, maxQueueCapacity, getBucket(options), getPrefix(options), journal);
+            }
+            new Thread(lister, getClass().getSimpleName() + "-lister").start();
 
-            List<S3VersionSummary> summaries = lister.getNextBatch();
-//            List<S3VersionSummary> summaries = summaries_1.stream().sorted(Comparator.comparing(S3VersionSummary::getLastModified)).collect(Collectors.toUnmodifiableList());
+            List<KeyRecord> summaries = lister.takeNextBatch();
             if (verbose) log.info(summaries.size() + " keys found in first batch from source bucket -- processing...");
 
-            while (true) {
-                for (S3VersionSummary summary : summaries) {
-                    while (workQueue.size() >= maxQueueCapacity) {
-                        try {
-                            synchronized (notifyLock) {
-                                notifyLock.wait(50);
-                            }
-                            Thread.sleep(50);
-
-                        } catch (InterruptedException e) {
-                            log.error("interrupted!");
-                            return;
-                        }
+            while (!summaries.isEmpty()) {
+                for (KeyRecord record : summaries) {
+                    if (context.isStopRequested()) return;
+                    final long ordinal = counter++;
+                    // short-lived, the job gets its own copy when it runs
+                    final S3VersionSummary summary = record.toSummary();
+                    if (!accept(summary)) {
+                        if (journal != null) journal.keyFinished(ordinal, summary, true);
+                        continue;
                     }
-                    executorService.submit(getTask(summary));
-                    counter++;
+                    if (journal != null && journal.isConfirmed(summary)) {
+                        journal.keyFinished(ordinal, summary, true);
+                        continue;
+                    }
+                    submit(record, journal, ordinal);
                 }
 
-                summaries = lister.getNextBatch();
-                if (summaries.size() > 0) {
-                    if (verbose)
-                        log.info(summaries.size() + " more keys found in source bucket -- continuing (queue size=" + workQueue.size() + ", total processed=" + counter + ")...");
-
-                } else if (lister.isDone()) {
-                    if (verbose) log.info("No more keys found in source bucket -- ALL DONE");
-                    return;
-
-                } else {
-                    if (verbose) log.info("Lister has no keys queued, but is not done, waiting and retrying");
-                    if (Sleep.sleep(50)) return;
+                summaries = lister.takeNextBatch();
+                if (verbose && summaries.size() > 0) {
+                    log.info(summaries.size() + " more keys found in source bucket -- continuing (in flight=" + getInFlight() + ", total processed=" + counter + ")...");
                 }
             }
+            if (verbose) log.info("No more keys found in source bucket -- ALL DONE");
+            listingComplete = lister.isCompleted();
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
 
         } catch (Exception e) {
             log.error("Unexpected exception in MirrorMaster: " + e, e);
 
         } finally {
-            while (workQueue.size() > 0 || executorService.getActiveCount() > 0) {
-                // wait for the queue to be empty
-                if (Sleep.sleep(100)) break;
-            }
-            // this will wait for currently executing tasks to finish
-            executorService.shutdown();
+            if (lister != null) lister.stop();
+            awaitInFlight();
             done.set(true);
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Submits again the keys that failed in the run being resumed: the journal's marker went on past them.
+     */
+    private void retryFailed(MirrorJournal journal) throws InterruptedException {
+        final List<S3VersionSummary> failed = journal.getFailed();
+        log.info("trying again " + failed.size() + " keys that failed in the run being resumed");
+        // out of the listing's ordinals, so they don't count for its pages
+        long ordinal = -1;
+        for (KeyRecord record : KeyRecord.fromPage(failed)) {
+            if (context.isStopRequested()) return;
+            submit(record, journal, ordinal--);
+        }
+    }
+
+    /**
+     * Queues the key for processing. Only the compact record waits in the queue, the job is built when a thread picks it up.
+     */
+    private void submit(KeyRecord record, MirrorJournal journal, long ordinal) throws InterruptedException {
+        queueSlots.acquire();
+        synchronized (notifyLock) {
+            inFlight++;
+        }
+        try {
+            // tagged with the context, so a pool shared by several jobs (see MirrorBatch) can take turns between them
+            executorService.execute(FairQueue.tagged(context, () -> {
+                KeyJob job = null;
+                try {
+                    // once a stop is requested, jobs still sitting in the queue are skipped rather than started
+                    if (!context.isStopRequested()) {
+                        job = getTask(record.toSummary());
+                        job.run();
+                    }
+                } finally {
+                    if (job == null) {
+                        keyFinished(journal, ordinal, record.toSummary(), false);
+                    } else {
+                        // a copy checked later (see CopyVerifier) is only in sync once it checked out
+                        final S3VersionSummary summary = job.summary;
+                        job.getOutcome().thenAccept(inSync -> keyFinished(journal, ordinal, summary, inSync));
+                    }
+                    jobFinished();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            jobFinished();
+            throw e;
+        }
+    }
+
+    private void keyFinished(MirrorJournal journal, long ordinal, S3VersionSummary summary, boolean inSync) {
+        if (!inSync) notInSync.incrementAndGet();
+        if (journal != null) journal.keyFinished(ordinal, summary, inSync);
+    }
+
+    private void jobFinished() {
+        queueSlots.release();
+        synchronized (notifyLock) {
+            if (--inFlight == 0) notifyLock.notifyAll();
+        }
+    }
+
+    private int getInFlight() {
+        synchronized (notifyLock) {
+            return inFlight;
+        }
+    }
+
+    private void awaitInFlight() {
+        synchronized (notifyLock) {
+            while (inFlight > 0) {
+                try {
+                    notifyLock.wait();
+                } catch (InterruptedException e) {
+                    log.warn("interrupted while waiting for " + inFlight + " jobs to finish");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
     }
 }
@@ -0,0 +1,159 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact form of an S3VersionSummary, for keys that sit in the lister buffer or the job queue.
+ *
+ * The key is stored as UTF-8 bytes, split into a prefix shared by every key of its listing page and
+ * its own suffix. Size and Last-Modified are primitives, an ETag that is an MD5 is stored as its 16
+ * bytes, and the values that repeat from key to key (bucket, storage class, owner) are interned.
+ * The summary is rebuilt, short-lived, only when the key is actually processed.
+ */
+public final class KeyRecord {
+
+    private static final byte LATEST = 1;
+    private static final byte DELETE_MARKER = 2;
+    private static final byte ETAG_MD5 = 4;
+    private static final byte NULL_VERSION = 8;
+
+    private static final ConcurrentMap<String, String> strings = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Owner> owners = new ConcurrentHashMap<>();
+
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private final long size;
+    private final long lastModified;
+    private final byte[] etag;
+    private final byte[] versionId;
+    private final String bucket;
+    private final String storageClass;
+    private final Owner owner;
+    private final byte flags;
+
+    private KeyRecord(byte[] prefix, S3VersionSummary summary) {
+        this.prefix = prefix;
+        final byte[] key = summary.getKey().getBytes(StandardCharsets.UTF_8);
+        this.suffix = new byte[key.length - prefix.length];
+        System.arraycopy(key, prefix.length, suffix, 0, suffix.length);
+        this.size = summary.getSize();
+        this.lastModified = summary.getLastModified() == null ? -1 : summary.getLastModified().getTime();
+        this.bucket = intern(summary.getBucketName());
+        this.storageClass = intern(summary.getStorageClass());
+        this.owner = intern(summary.getOwner());
+
+        byte f = 0;
+        if (summary.isLatest()) f |= LATEST;
+        if (summary.isDeleteMarker()) f |= DELETE_MARKER;
+        final String e = summary.getETag();
+        if (isMd5(e)) {
+            f |= ETAG_MD5;
+            this.etag = fromHex(e);
+        } else {
+            this.etag = e == null ? null : e.getBytes(StandardCharsets.UTF_8);
+        }
+        final String v = summary.getVersionId();
+        if ("null".equals(v)) {
+            f |= NULL_VERSION;
+            this.versionId = null;
+        } else {
+            this.versionId = v == null ? null : v.getBytes(StandardCharsets.UTF_8);
+        }
+        this.flags = f;
+    }
+
+    /**
+     * Compacts a listing page. Keys come back from S3 sorted, so the prefix common to the first and
+     * last keys is common to the whole page.
+     */
+    public static List<KeyRecord> fromPage(List<S3VersionSummary> page) {
+        final List<KeyRecord> records = new ArrayList<>(page.size());
+        if (page.isEmpty()) return records;
+        final byte[] prefix = commonPrefix(page.get(0).getKey().getBytes(StandardCharsets.UTF_8),
+                page.get(page.size() - 1).getKey().getBytes(StandardCharsets.UTF_8));
+        for (S3VersionSummary summary : page) records.add(new KeyRecord(prefix, summary));
+        return records;
+    }
+
+    public S3VersionSummary toSummary() {
+        final S3VersionSummary summary = new S3VersionSummary();
+        summary.setBucketName(bucket);
+        summary.setKey(getKey());
+        summary.setSize(size);
+        if (lastModified >= 0) summary.setLastModified(new Date(lastModified));
+        summary.setStorageClass(storageClass);
+        summary.setOwner(owner);
+        summary.setIsLatest((flags & LATEST) != 0);
+        summary.setIsDeleteMarker((flags & DELETE_MARKER) != 0);
+        if (etag != null) summary.setETag((flags & ETAG_MD5) != 0 ? toHex(etag) : new String(etag, StandardCharsets.UTF_8));
+        if ((flags & NULL_VERSION) != 0) {
+            summary.setVersionId("null");
+        } else if (versionId != null) {
+            summary.setVersionId(new String(versionId, StandardCharsets.UTF_8));
+        }
+        return summary;
+    }
+
+    public String getKey() {
+        final byte[] key = new byte[prefix.length + suffix.length];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        System.arraycopy(suffix, 0, key, prefix.length, suffix.length);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    @Override public String toString() { return getKey(); }
+
+    private static byte[] commonPrefix(byte[] a, byte[] b) {
+        int n = 0;
+        final int max = Math.min(a.length, b.length);
+        while (n < max && a[n] == b[n]) n++;
+        // don't split a multi-byte character, the suffix must stay decodable on its own
+        while (n > 0 && n < a.length && (a[n] & 0xC0) == 0x80) n--;
+        final byte[] prefix = new byte[n];
+        System.arraycopy(a, 0, prefix, 0, n);
+        return prefix;
+    }
+
+    private static String intern(String s) {
+        if (s == null) return null;
+        final String existing = strings.putIfAbsent(s, s);
+        return existing == null ? s : existing;
+    }
+
+    private static Owner intern(Owner owner) {
+        if (owner == null || owner.getId() == null) return owner;
+        final Owner existing = owners.putIfAbsent(owner.getId(), owner);
+        return existing == null ? owner : existing;
+    }
+
+    private static boolean isMd5(String etag) {
+        if (etag == null || etag.length() != 32) return false;
+        for (int i = 0; i < 32; i++) {
+            final char c = etag.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+        }
+        return true;
+    }
+
+    private static byte[] fromHex(String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,337 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.*;
+import lombok.extern.slf4j.Slf4j;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+
+import static org.nimesa.s3copy.MirrorConstants.*;
+
+/**
+ * Copies a key when one side of the mirror is a local directory (see LocalStore): uploads a file to S3,
+ * downloads an object to a file, or copies a file to another directory.
+ *
+ * Files are read through memory-mapped FileChannel regions and written with positional FileChannel
+ * writes, so the parts of a large file go up or come down in parallel, each with its own range, and
+ * a part that fails is retried on its own.
+ *
+ * With --checksum, a single-request upload sends the file's checksum for S3 to check and keep, and a
+ * download is checksummed part by part as it is written, and checked against the source's checksum
+ * before the file is moved into place.
+ *
+ * With --compress, files of the chosen content types are gzipped on their way up (see CompressedUpload),
+ * and with --decompress, objects compressed that way are gunzipped on their way down.
+ */
+@Slf4j
+public class LocalKeyCopyJob extends KeyCopyJob {
+
+    private static final long MAX_PART_SIZE = 256 * MB;
+    private static final int MAX_PARTS = 10000;
+    private static final int CHUNK_SIZE = 64 * (int) KB;
+
+    public LocalKeyCopyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
+        super(clients, context, summary, notifyLock, comparisonStrategy);
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override
+    boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
+        final MirrorOptions options = context.getOptions();
+        final String key = summary.getKey();
+        final LocalStore source = clients.getSourceStore();
+        final LocalStore destination = clients.getDestinationStore();
+        try {
+            if (options.isVerbose()) log.info("copying " + key + " to: " + keydest);
+            final long size = sourceMetadata.getContentLength();
+            if (source != null && destination != null) {
+                copyFile(source, destination, sourceMetadata);
+            } else if (source != null) {
+                upload(source, sourceMetadata, objectAcl);
+            } else {
+                download(destination, sourceMetadata);
+            }
+            context.getStats().bytesCopied.addAndGet(size);
+            // transfers to or from S3 verify themselves with --checksum, files have no checksums to compare
+            if (!options.hasChecksum() || (source != null && destination != null)) context.getStats().getReconciliation().verified(keydest);
+            if (options.isVerbose()) log.info("successfully copied " + key + " to: " + keydest);
+            return true;
+
+        } catch (AmazonS3Exception e) {
+            error = e.getClass().getName() + "/" + e.getErrorCode();
+            log.error("s3 exception copying " + key + " to: " + keydest + ": " + e);
+        } catch (Exception e) {
+            error = e.getClass().getName();
+            log.error("unexpected exception copying " + key + " to: " + keydest + ": " + e);
+        }
+        return false;
+    }
+
+    /**
+     * Part size for a transfer through this process: the configured one, but small enough to map and
+     * retry comfortably, and big enough to stay within the S3 part count limit.
+     */
+    private long getPartSize(long size) {
+        final long partSize = Math.min(context.getOptions().getUploadPartSize(), MAX_PART_SIZE);
+        return Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    private void copyFile(LocalStore source, LocalStore destination, ObjectMetadata sourceMetadata) throws IOException {
+        final Path temp = destination.createTempFile(keydest);
+        try (FileChannel in = FileChannel.open(source.resolve(summary.getKey()), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            // lets the kernel move the bytes, without them passing through the JVM
+            final long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        destination.commit(temp, keydest, sourceMetadata.getLastModified());
+        if (context.getDestinationIndex() != null) {
+            context.getDestinationIndex().put(keydest, sourceMetadata.getContentLength(), null, sourceMetadata.getLastModified(), null);
+        }
+    }
+
+    private void upload(LocalStore source, ObjectMetadata sourceMetadata, AccessControlList objectAcl) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final String bucket = options.getDestinationBucket();
+        final ObjectStore client = clients.getDestinationClient();
+        final AccessControlList acl = options.isCrossAccountCopy() ? buildCrossAccountAcl(objectAcl != null ? objectAcl : new AccessControlList()) : objectAcl;
+
+        try (FileChannel channel = FileChannel.open(source.resolve(summary.getKey()), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final long partSize = getPartSize(size);
+            final ObjectMetadata metadata = new ObjectMetadata();
+            if (options.isEncrypt()) metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+
+            if (context.getCompression() != null && context.getCompression().shouldCompress(summary.getKey(), sourceMetadata)) {
+                final ContentChecksum.Algorithm algorithm = options.hasChecksum() ? options.getChecksum() : ContentChecksum.Algorithm.CRC32C;
+                // checksummed ahead, so a multipart upload has it in its metadata too; over mapped memory, that costs little next to compressing
+                final String checksum = checksumOf(channel, size, algorithm);
+                final CompressedUpload upload = new CompressedUpload(this, size, metadata, acl);
+                upload.upload(Channels.newInputStream(channel), algorithm, checksum);
+                if (context.getDestinationIndex() != null) context.getDestinationIndex().put(keydest, size, null, null, upload.getVersionId());
+                if (options.hasChecksum()) verifyChecksum(size, size, checksum);
+                return;
+            }
+
+            if (size <= partSize) {
+                metadata.setContentLength(size);
+                String checksum = null;
+                if (options.hasChecksum()) {
+                    // S3 checks the bytes it gets against it, and keeps it
+                    checksum = ContentChecksum.full(options.getChecksum().digest(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+                    metadata.setHeader(options.getChecksum().header, checksum);
+                }
+                final PutObjectResult result = withRetries("upload of " + keydest, () -> {
+                    final PutObjectRequest request = new PutObjectRequest(bucket, keydest, new LocalStore.ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)), metadata)
+                            .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+                    if (acl != null) request.setAccessControlList(acl);
+                    context.getStats().s3copyCount.incrementAndGet();
+                    return client.putObject(request);
+                });
+                if (context.getDestinationIndex() != null) context.getDestinationIndex().put(keydest, size, result.getETag(), null, result.getVersionId());
+                if (options.hasChecksum() && !verifyChecksum(size, size, checksum)) throw new IOException("upload of " + keydest + " failed verification");
+                return;
+            }
+
+            final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(bucket, keydest, metadata)
+                    .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+            if (acl != null) initiateRequest.setAccessControlList(acl);
+            final String uploadId = client.initiateMultipartUpload(initiateRequest).getUploadId();
+            try {
+                final List<Callable<PartETag>> parts = new ArrayList<>();
+                int partNumber = 1;
+                for (long position = 0; position < size; position += partSize, partNumber++) {
+                    final long first = position;
+                    final long length = Math.min(partSize, size - position);
+                    final int number = partNumber;
+                    parts.add(() -> withRetries("upload of part " + number + " of " + keydest, () -> {
+                        final UploadPartRequest request = new UploadPartRequest()
+                                .withBucketName(bucket)
+                                .withKey(keydest)
+                                .withUploadId(uploadId)
+                                .withPartNumber(number)
+                                .withPartSize(length)
+                                .withInputStream(new LocalStore.ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, first, length)));
+                        context.getStats().s3copyCount.incrementAndGet();
+                        return client.uploadPart(request).getPartETag();
+                    }));
+                }
+                final List<PartETag> etags = runParts(source.getPartExecutor(), parts);
+                final CompleteMultipartUploadResult result = client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, keydest, uploadId, etags));
+                if (context.getDestinationIndex() != null) context.getDestinationIndex().put(keydest, size, result.getETag(), null, result.getVersionId());
+                // the SDK checks each part's MD5 against its ETag; whether the whole is there, and its checksum, are checked later
+                if (options.hasChecksum()) verifyLater(size, result.getETag());
+            } catch (Exception e) {
+                // unlike server-side copies, uploads are not resumed: the file may have changed by the next run
+                try {
+                    client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, keydest, uploadId));
+                } catch (Exception abortError) {
+                    log.warn("Error aborting multipart upload of " + keydest + " (uploadId=" + uploadId + "): " + abortError);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the checksum of the whole file, read through mapped regions
+     */
+    private static String checksumOf(FileChannel channel, long size, ContentChecksum.Algorithm algorithm) throws IOException {
+        final ContentChecksum.Digest digest = algorithm.newDigest();
+        for (long position = 0; position < size; position += MAX_PART_SIZE) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_PART_SIZE, size - position)));
+        }
+        return ContentChecksum.full(digest.finish());
+    }
+
+    private void download(LocalStore destination, ObjectMetadata sourceMetadata) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        if (options.isDecompress() && Compression.isCompressed(sourceMetadata)) {
+            downloadDecompressed(destination, sourceMetadata);
+            return;
+        }
+        final long size = sourceMetadata.getContentLength();
+        final long partSize = getPartSize(size);
+
+        final Path temp = destination.createTempFile(keydest);
+        try {
+            final List<byte[]> digests;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                if (size <= partSize) {
+                    digests = Collections.singletonList(withRetries("download of " + summary.getKey(), () -> getRange(out, 0, size)));
+                } else {
+                    final List<Callable<byte[]>> parts = new ArrayList<>();
+                    int partNumber = 1;
+                    for (long position = 0; position < size; position += partSize, partNumber++) {
+                        final long first = position;
+                        final long length = Math.min(partSize, size - position);
+                        final int number = partNumber;
+                        parts.add(() -> withRetries("download of part " + number + " of " + summary.getKey(), () -> getRange(out, first, length)));
+                    }
+                    digests = runParts(destination.getPartExecutor(), parts);
+                }
+            }
+            if (options.hasChecksum()) {
+                if (!verifyChecksum(size, Files.size(temp), ContentChecksum.of(options.getChecksum(), digests))) {
+                    throw new IOException("download of " + summary.getKey() + " failed verification");
+                }
+            } else if (Files.size(temp) != size) {
+                throw new IOException("downloaded " + Files.size(temp) + " bytes of " + summary.getKey() + ", expected " + size);
+            }
+            destination.commit(temp, keydest, sourceMetadata.getLastModified());
+        } catch (Exception e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (context.getDestinationIndex() != null) {
+            context.getDestinationIndex().put(keydest, size, null, sourceMetadata.getLastModified(), null);
+        }
+        if (options.isVerbose()) log.info("downloaded " + size + " bytes to " + destination.resolve(keydest));
+    }
+
+    /**
+     * Downloads an object that was compressed with --compress, gunzipping it on the way. A gzip stream can
+     * only be read from its start, so the object comes down with a single GET (resumed where it stopped if
+     * it fails). Gzip checks the data against the CRC32 at the end of the stream; the result is also checked
+     * against the original size and checksum in the object's metadata before the file is moved into place.
+     */
+    private void downloadDecompressed(LocalStore destination, ObjectMetadata sourceMetadata) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final long originalSize = Compression.getOriginalSize(sourceMetadata);
+        final ContentChecksum.Algorithm algorithm = Compression.getOriginalChecksumAlgorithm(sourceMetadata, options.getChecksum());
+        final ContentChecksum.Digest digest = algorithm == null ? null : algorithm.newDigest();
+
+        final Path temp = destination.createTempFile(keydest);
+        long size = 0;
+        try {
+            // the data goes through a small buffer from the pool on its way to the file
+            final ByteBuffer buffer = clients.getBufferPool().acquire(CHUNK_SIZE);
+            try (InputStream in = new GZIPInputStream(new SourceInputStream(sourceMetadata.getContentLength()), CHUNK_SIZE);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                final ReadableByteChannel inflated = Channels.newChannel(in);
+                while (inflated.read(buffer) != -1) {
+                    buffer.flip();
+                    if (digest != null) digest.update(buffer.duplicate());
+                    size += buffer.remaining();
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                clients.getBufferPool().release(buffer);
+            }
+            if (originalSize >= 0 && size != originalSize) {
+                error = "SizeMismatch";
+                throw new IOException("decompressed " + size + " bytes of " + summary.getKey() + ", expected " + originalSize);
+            }
+            if (digest != null) {
+                final String checksum = ContentChecksum.full(digest.finish());
+                final String expected = Compression.getOriginalChecksum(sourceMetadata, algorithm);
+                if (!checksum.equals(expected)) {
+                    error = "ChecksumMismatch";
+                    context.getStats().checksumMismatches.incrementAndGet();
+                    throw new IOException("checksum mismatch decompressing " + summary.getKey() + ": " + checksum + ", expected " + expected);
+                }
+                context.getStats().checksumsVerified.incrementAndGet();
+            }
+            destination.commit(temp, keydest, sourceMetadata.getLastModified());
+        } catch (Exception e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (options.hasChecksum()) context.getStats().getReconciliation().verified(keydest);
+        if (context.getDestinationIndex() != null) {
+            context.getDestinationIndex().put(keydest, size, null, sourceMetadata.getLastModified(), null);
+        }
+        if (options.isVerbose()) log.info("decompressed " + sourceMetadata.getContentLength() + " bytes to " + size + " bytes in " + destination.resolve(keydest));
+    }
+
+    /**
+     * GETs a range of the source object and writes it at the same position in the file.
+     * Positional writes make parts independent: they can land in any order, and a retry simply rewrites its range.
+     *
+     * @return the checksum of the range with --checksum, null otherwise
+     */
+    private byte[] getRange(FileChannel out, long first, long length) throws IOException, InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final GetObjectRequest request = new GetObjectRequest(options.getSourceBucket(), summary.getKey(), sourceVersionId);
+        if (length > 0) request.setRange(first, first + length - 1);
+        context.getStats().s3getCount.incrementAndGet();
+        long position = first;
+        final ContentChecksum.Digest digest = options.hasChecksum() ? options.getChecksum().newDigest() : null;
+        final ByteBuffer buffer = clients.getBufferPool().acquire(BufferPool.MIN_BUFFER_SIZE);
+        try (S3Object object = clients.getSourceClient().getObject(request);
+             ReadableByteChannel in = Channels.newChannel(object.getObjectContent())) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                if (digest != null) digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) position += out.write(buffer, position);
+                buffer.clear();
+            }
+        } finally {
+            clients.getBufferPool().release(buffer);
+        }
+        if (position - first != length) throw new IOException("got " + (position - first) + " bytes of " + summary.getKey() + " at " + first + ", expected " + length);
+        return digest == null ? null : digest.finish();
+    }
+}
@@ -0,0 +1,119 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lists a local directory (see LocalStore) for the KeyMasters, in place of a bucket listing.
+ *
+ * Directories are walked in parallel, one task per directory on a small fork/join pool, and each
+ * directory's files go to the buffer as a sorted page of their own. Keys therefore do not come out in
+ * global order, which is why a local source cannot be journaled.
+ */
+@Slf4j
+public class LocalKeyLister extends KeyLister {
+
+    private static final int MAX_WALK_THREADS = 8;
+
+    private final LocalStore store;
+    private final String prefix;
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+
+    public LocalKeyLister(MirrorContext context, int maxQueueCapacity, LocalStore store, String prefix) {
+        super(context, maxQueueCapacity);
+        this.store = store;
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    @Override
+    public void run() {
+        final MirrorOptions options = context.getOptions();
+        // start at the deepest directory the prefix names, and filter on the rest of it
+        final int slash = prefix.lastIndexOf('/');
+        final Path start = slash == -1 ? store.getRoot() : store.resolve(prefix.substring(0, slash));
+
+        log.info("walking " + start + "...");
+        final ForkJoinPool pool = new ForkJoinPool(Math.min(options.getMaxThreads(), MAX_WALK_THREADS));
+        try {
+            if (LocalStore.isWalkableDirectory(start)) pool.invoke(new Walk(start));
+            if (!isStopped() && !failed.get()) log.info("No more files found in " + store.getRoot() + ", exiting");
+
+        } catch (Exception e) {
+            failed.set(true);
+            log.error("Error walking " + start + ", LocalKeyLister thread now exiting: " + e);
+
+        } finally {
+            pool.shutdownNow();
+            listingDone(!isStopped() && !failed.get());
+        }
+    }
+
+    private class Walk extends RecursiveAction {
+        private final Path directory;
+
+        Walk(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (isStopped() || failed.get()) return;
+            final List<S3VersionSummary> files = new ArrayList<>();
+            final List<Walk> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    final String key = store.toKey(entry);
+                    if (LocalStore.isWalkableDirectory(entry)) {
+                        final String dirKey = key + "/";
+                        if (dirKey.startsWith(prefix) || prefix.startsWith(dirKey)) subdirectories.add(new Walk(entry));
+                        continue;
+                    }
+                    if (!key.startsWith(prefix) || LocalStore.isTempFile(entry)) continue;
+                    // follows symbolic links to files, and skips anything that is not a regular file
+                    final BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile()) continue;
+                    files.add(toSummary(key, attributes));
+                }
+            } catch (IOException e) {
+                failed.set(true);
+                log.error("Error listing directory " + directory + ": " + e);
+                return;
+            }
+
+            files.sort(Comparator.comparing(S3VersionSummary::getKey));
+            final int pageSize = context.getOptions().getListPageSize();
+            try {
+                for (int i = 0; i < files.size(); i += pageSize) {
+                    if (!addPage(files.subList(i, Math.min(files.size(), i + pageSize)))) return;
+                }
+            } catch (InterruptedException e) {
+                log.error("interrupted!");
+                return;
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    private S3VersionSummary toSummary(String key, BasicFileAttributes attributes) {
+        final S3VersionSummary summary = new S3VersionSummary();
+        summary.setBucketName(store.getRoot().toString());
+        summary.setKey(key);
+        summary.setSize(attributes.size());
+        summary.setLastModified(new Date(attributes.lastModifiedTime().toMillis()));
+        summary.setIsLatest(true);
+        return summary;
+    }
+}
@@ -0,0 +1,168 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Date;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A local directory standing in for a bucket, on either side of a mirror (a file:// source or destination).
+ *
+ * Keys are paths relative to the directory, with '/' separators. Objects have a size and a
+ * Last-Modified (the file's mtime) but no ETag, so they are compared on size and mtime. Files are
+ * written to a temporary file next to their final path and moved into place once complete, so a
+ * reader never sees a partial file.
+ */
+public class LocalStore {
+
+    /**
+     * Files that are being written end with this, and are not listed
+     */
+    public static final String TEMP_SUFFIX = ".s3mirror-part";
+
+    @Getter private final Path root;
+    private final int maxThreads;
+    private ThreadPoolExecutor partExecutor;
+
+    public LocalStore(Path root, int maxThreads) {
+        this.root = root;
+        this.maxThreads = maxThreads;
+    }
+
+    public Path resolve(String key) {
+        final Path path = root.resolve(key).normalize();
+        if (!path.startsWith(root)) throw new IllegalArgumentException("key " + key + " points outside of " + root);
+        return path;
+    }
+
+    public String toKey(Path path) {
+        final String relative = root.relativize(path).toString();
+        return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return size and mtime of the file, like a HEAD request would
+     * @throws AmazonS3Exception with status 404 if there is no such file, so callers can treat both sides the same
+     */
+    public ObjectMetadata getObjectMetadata(String key) throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(resolve(key), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw notFound(key);
+        }
+        if (!attributes.isRegularFile()) throw notFound(key);
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(attributes.size());
+        metadata.setLastModified(new Date(attributes.lastModifiedTime().toMillis()));
+        return metadata;
+    }
+
+    private static AmazonS3Exception notFound(String key) {
+        final AmazonS3Exception e = new AmazonS3Exception("Not Found: " + key);
+        e.setStatusCode(404);
+        e.setErrorCode("NoSuchKey");
+        return e;
+    }
+
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(resolve(key));
+    }
+
+    /**
+     * @return a new, empty file to write the key to, see commit()
+     */
+    public Path createTempFile(String key) throws IOException {
+        final Path path = resolve(key);
+        Files.createDirectories(path.getParent());
+        return Files.createTempFile(path.getParent(), "." + path.getFileName(), TEMP_SUFFIX);
+    }
+
+    /**
+     * Moves a complete temp file into place, with the given mtime (the source's Last-Modified, so the next run sees it unchanged)
+     */
+    public void commit(Path temp, String key, Date lastModified) throws IOException {
+        if (lastModified != null) Files.setLastModifiedTime(temp, FileTime.fromMillis(lastModified.getTime()));
+        Files.move(temp, resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static boolean isTempFile(Path path) {
+        return path.getFileName().toString().endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * @return true if the path is a directory that is not a symbolic link, so walking it cannot loop
+     */
+    public static boolean isWalkableDirectory(Path path) {
+        return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * Thread pool for the parts of large transfers, see MirrorMaster.newPartExecutor()
+     */
+    public synchronized ThreadPoolExecutor getPartExecutor() {
+        if (partExecutor == null) partExecutor = MirrorMaster.newPartExecutor("LocalStore", maxThreads);
+        return partExecutor;
+    }
+
+    public synchronized void close() {
+        if (partExecutor != null) partExecutor.shutdown();
+    }
+
+    public static LocalStore forPath(String path, int maxThreads) {
+        return new LocalStore(Paths.get(path), maxThreads);
+    }
+
+    /**
+     * Reads a (typically memory-mapped) buffer as a stream, without copying it to the heap first.
+     * Supports mark/reset, so the SDK can replay it when it retries a request.
+     */
+    public static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+            buffer.mark();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override public int available() { return buffer.remaining(); }
+        @Override public boolean markSupported() { return true; }
+        @Override public synchronized void mark(int readLimit) { buffer.mark(); }
+        @Override public synchronized void reset() { buffer.reset(); }
+    }
+}
@@ -0,0 +1,253 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.util.BinaryUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import static org.nimesa.s3copy.MirrorConstants.MB;
+
+/**
+ * A SimulatedObjectStore with its buckets on the heap (--backend MEMORY), shared by every client of the process:
+ * the source and destination of a mirror are two buckets of it, or the same one. Nothing is kept after the process exits.
+ *
+ * Bytes are never copied within it: a copy, or a copied part, is a view of the bytes of its source. Seeded objects
+ * (see seed()) have no bytes at all, their content is a fixed pattern made up as it is read, so that millions of
+ * keys take little more memory than their entries in the index.
+ */
+@Slf4j
+public class MemoryObjectStore extends SimulatedObjectStore {
+
+    private static final MemoryObjectStore INSTANCE = new MemoryObjectStore();
+
+    private static final int CHUNK_SIZE = (int) (8 * MB);
+    // the content of seeded objects: this, over and over (random, so it does not compress)
+    private static final byte[] PATTERN = new byte[64 * 1024];
+    static {
+        new Random(0).nextBytes(PATTERN);
+    }
+
+    private final ConcurrentHashMap<String, ConcurrentNavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+    // the ETag of seeded objects, by size
+    private final ConcurrentHashMap<Long, String> patternEtags = new ConcurrentHashMap<>();
+
+    public static MemoryObjectStore get() {
+        return INSTANCE;
+    }
+
+    private MemoryObjectStore() {}
+
+    @Override
+    protected ConcurrentNavigableMap<String, StoredObject> bucket(String bucket) {
+        return buckets.computeIfAbsent(bucket, b -> newBucket());
+    }
+
+    /**
+     * Fills the bucket with count objects of size bytes under the prefix, as many "directories" of 1000 keys
+     * ("prefix000/000000000" to "prefix000/000000999", "prefix001/000001000"...); keys it already has are left as they are.
+     */
+    public void seed(String bucket, String prefix, long count, long size) {
+        final long start = System.currentTimeMillis();
+        final String etag = patternEtags.computeIfAbsent(size, s -> {
+            try {
+                return BinaryUtils.toHex(digest(new Pattern(0, s)));
+            } catch (IOException e) {
+                throw new IllegalStateException("seed: " + e, e);
+            }
+        });
+        final ConcurrentNavigableMap<String, StoredObject> objects = bucket(bucket);
+        final Pattern content = new Pattern(0, size);
+        final String storageClass = StorageClass.Standard.toString();
+        final String keyPrefix = prefix == null ? "" : prefix;
+        for (long i = 0; i < count; i++) {
+            objects.putIfAbsent(String.format("%s%03d/%09d", keyPrefix, i / 1000 % 1000, i),
+                    new StoredObject(size, etag, start, storageClass, null, null, null, null, content));
+        }
+        log.info("seeded " + bucket + "/" + keyPrefix + " with " + count + " keys of " + size + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    @Override
+    protected Content write(InputStream in, long length, MessageDigest md5) throws IOException {
+        if (length < 0) {
+            final byte[] data = in.readAllBytes();
+            md5.update(data);
+            return new Bytes(data, 0, data.length);
+        }
+        final List<Memory> chunks = new ArrayList<>();
+        long remaining = length;
+        while (remaining > 0) {
+            final byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, remaining)];
+            final int n = in.readNBytes(chunk, 0, chunk.length);
+            if (n < chunk.length) throw new EOFException("expected " + length + " bytes, got " + (length - remaining + n));
+            md5.update(chunk);
+            chunks.add(new Bytes(chunk, 0, n));
+            remaining -= n;
+        }
+        return join(chunks);
+    }
+
+    @Override
+    protected Content copyRange(Content content, long first, long last, MessageDigest md5) throws IOException {
+        final Memory range = ((Memory) content).slice(first, last);
+        md5.update(digest(range));
+        return range;
+    }
+
+    @Override
+    protected Content duplicate(Content content) {
+        return content;
+    }
+
+    @Override
+    protected Content concat(List<Content> parts) {
+        final List<Memory> memory = new ArrayList<>(parts.size());
+        for (Content part : parts) memory.add((Memory) part);
+        return join(memory);
+    }
+
+    private static Memory join(List<Memory> parts) {
+        if (parts.isEmpty()) return new Bytes(new byte[0], 0, 0);
+        if (parts.size() == 1) return parts.get(0);
+        return new Joined(parts);
+    }
+
+    /**
+     * Content that a part of can be had without copying it
+     */
+    private interface Memory extends Content {
+        Memory slice(long first, long last);
+    }
+
+    private static class Bytes implements Memory {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        Bytes(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override public long size() { return length; }
+
+        @Override
+        public InputStream open(long first, long last) {
+            return new ByteArrayInputStream(data, offset + (int) first, (int) (last - first + 1));
+        }
+
+        @Override
+        public Memory slice(long first, long last) {
+            return new Bytes(data, offset + (int) first, (int) (last - first + 1));
+        }
+    }
+
+    private static class Joined implements Memory {
+        private final Memory[] parts;
+        // where each part starts
+        private final long[] starts;
+        private final long size;
+
+        Joined(List<Memory> parts) {
+            final List<Memory> flat = new ArrayList<>();
+            for (Memory part : parts) {
+                if (part instanceof Joined) Collections.addAll(flat, ((Joined) part).parts);
+                else if (part.size() > 0) flat.add(part);
+            }
+            this.parts = flat.toArray(new Memory[0]);
+            this.starts = new long[this.parts.length];
+            long position = 0;
+            for (int i = 0; i < this.parts.length; i++) {
+                starts[i] = position;
+                position += this.parts[i].size();
+            }
+            this.size = position;
+        }
+
+        @Override public long size() { return size; }
+
+        private List<Memory> slices(long first, long last) {
+            final List<Memory> slices = new ArrayList<>();
+            for (int i = 0; i < parts.length; i++) {
+                final long start = starts[i];
+                final long end = start + parts[i].size() - 1;
+                if (end < first || start > last) continue;
+                slices.add(parts[i].slice(Math.max(first, start) - start, Math.min(last, end) - start));
+            }
+            return slices;
+        }
+
+        @Override
+        public InputStream open(long first, long last) throws IOException {
+            final List<InputStream> streams = new ArrayList<>();
+            for (Memory slice : slices(first, last)) streams.add(slice.open(0, slice.size() - 1));
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        @Override
+        public Memory slice(long first, long last) {
+            return join(slices(first, last));
+        }
+    }
+
+    /**
+     * size bytes of the pattern, from the offset on
+     */
+    private static class Pattern implements Memory {
+        private final long offset;
+        private final long size;
+
+        Pattern(long offset, long size) {
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override public long size() { return size; }
+
+        @Override
+        public InputStream open(long first, long last) {
+            return new InputStream() {
+                private long position = offset + first;
+                private long remaining = last - first + 1;
+
+                @Override
+                public int read() {
+                    if (remaining == 0) return -1;
+                    remaining--;
+                    return PATTERN[(int) (position++ % PATTERN.length)] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) return 0;
+                    if (remaining == 0) return -1;
+                    final int from = (int) (position % PATTERN.length);
+                    final int n = (int) Math.min(Math.min(len, remaining), PATTERN.length - from);
+                    System.arraycopy(PATTERN, from, b, off, n);
+                    position += n;
+                    remaining -= n;
+                    return n;
+                }
+
+                @Override public int available() { return (int) Math.min(remaining, Integer.MAX_VALUE); }
+            };
+        }
+
+        @Override
+        public Memory slice(long first, long last) {
+            return new Pattern(offset + first, last - first + 1);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.nimesa.s3copy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kohsuke.args4j.CmdLineException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch mode (--jobs): runs every mirror job of a job file concurrently, in this process.
+ *
+ * The jobs share one thread pool of --max-threads threads, whose queue takes turns between the jobs
+ * that have work (see FairQueue), so a big job cannot starve the small ones. They also share the S3
+ * clients: one per region, so one connection pool per region however many jobs use it. Each job has
+ * its own options, context and stats, and its own listing threads.
+ */
+@Slf4j
+public class MirrorBatch {
+
+    private final MirrorMain main;
+    private final MirrorOptions options;
+
+    private final List<Job> jobs = new ArrayList<>();
+    private final Map<String, String> regions = new HashMap<>();
+    private final Map<String, ObjectStore> clientsByRegion = new HashMap<>();
+    private ThreadPoolExecutor executor;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private static class Job {
+        final String name;
+        final MirrorContext context;
+        final MirrorMaster master;
+
+        Job(String name, MirrorContext context, MirrorMaster master) {
+            this.name = name;
+            this.context = context;
+            this.master = master;
+        }
+    }
+
+    public MirrorBatch(MirrorMain main, MirrorOptions options) {
+        this.main = main;
+        this.options = options;
+    }
+
+    /**
+     * Reads the job file and sets up every job, so that a bad line fails the batch before anything is copied.
+     */
+    public void init() throws IOException {
+        if (options.isDaemon() || options.isAsync() || options.hasEvents() || !options.getAlsoTo().isEmpty() || options.isStreaming()) {
+            throw new IllegalArgumentException("--jobs cannot be combined with --daemon, --async, --events, --also-to or streaming");
+        }
+        executor = MirrorMaster.newExecutor(options.getMaxThreads(), new FairQueue());
+
+        // files a job writes to, which no other job may use
+        final Set<String> files = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(options.getJobs()))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                final String where = options.getJobs() + ":" + lineNumber;
+
+                final MirrorOptions jobOptions;
+                try {
+                    jobOptions = options.forJob(tokenize(line));
+                } catch (CmdLineException | IllegalArgumentException e) {
+                    throw new IllegalArgumentException(where + ": " + e.getMessage(), e);
+                }
+                if (jobOptions.isDaemon() || jobOptions.isAsync() || jobOptions.hasEvents() || !jobOptions.getAlsoTo().isEmpty() || jobOptions.isStreaming()
+                        || jobOptions.isPack() || jobOptions.isUnpack()) {
+                    throw new IllegalArgumentException(where + ": a job cannot use --daemon, --async, --events, --also-to, streaming, --pack or --unpack");
+                }
+                if (jobOptions.isLocalSource() && jobOptions.hasJournal()) {
+                    throw new IllegalArgumentException(where + ": a local directory cannot be used as the source with a checkpoint journal");
+                }
+                for (String file : new String[] { jobOptions.getJournalFile(), jobOptions.getDestIndex(), jobOptions.getManifest() }) {
+                    if (file != null && !files.add(new File(file).getAbsolutePath())) {
+                        throw new IllegalArgumentException(where + ": " + file + " is already used by another job");
+                    }
+                }
+
+                final String name = "job " + jobs.size() + " (" + jobOptions.getSource() + " -> " + jobOptions.getDestination() + ")";
+                final MirrorClients clients = new MirrorClients(
+                        jobOptions.isLocalSource() ? null : getClient(jobOptions.getSourceBucket()),
+                        jobOptions.isLocalDestination() ? null : getClient(jobOptions.getDestinationBucket()),
+                        jobOptions.isLocalSource() ? LocalStore.forPath(jobOptions.getSourceBucket(), options.getMaxThreads()) : null,
+                        jobOptions.isLocalDestination() ? LocalStore.forPath(jobOptions.getDestinationBucket(), options.getMaxThreads()) : null);
+                clients.setBufferPool(main.getBufferPool());
+                final MirrorContext context = new MirrorContext(jobOptions, jobOptions.isLocalDestination() ? null
+                        : main.getTargetBucketOwner(clients.getDestinationClient(), jobOptions.getDestinationBucket()));
+                context.getStats().setBufferPool(clients.getBufferPool());
+                main.openResources(context);
+                main.initCycle(context);
+                jobs.add(new Job(name, context, new MirrorMaster(clients, context, executor)));
+            }
+        }
+        if (jobs.isEmpty()) throw new IllegalArgumentException("no jobs in " + options.getJobs());
+        log.info(jobs.size() + " jobs in " + options.getJobs() + ", sharing " + options.getMaxThreads() + " threads and " + clientsByRegion.size() + " connection pools");
+    }
+
+    /**
+     * Runs every job to completion, then releases the thread pool and clients.
+     */
+    public void run() {
+        final long start = System.currentTimeMillis();
+        final List<Thread> threads = new ArrayList<>();
+        try {
+            for (Job job : jobs) {
+                final Thread thread = new Thread(() -> {
+                    try {
+                        job.master.mirror();
+                    } catch (Exception e) {
+                        log.error(job.name + " failed: " + e, e);
+                    }
+                    log.info(job.name + " done, stats:");
+                    job.context.getStats().logStats();
+                    job.context.getStats().getReconciliation().close();
+                }, "MirrorBatch-job-" + threads.size());
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) thread.join();
+            log.info("batch: " + jobs.size() + " jobs done in " + (System.currentTimeMillis() - start) + "ms");
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
+        } finally {
+            MirrorMaster.shutdownExecutor(executor);
+            for (ObjectStore client : clientsByRegion.values()) client.shutdown();
+            done.countDown();
+        }
+    }
+
+    /**
+     * Shutdown hook: stops every job and waits for the batch to wind down.
+     */
+    public void stop() {
+        for (Job job : jobs) job.master.stop();
+        try {
+            if (!done.await(KeyMaster.STOP_TIMEOUT, TimeUnit.MILLISECONDS)) log.warn("batch didn't stop within " + KeyMaster.STOP_TIMEOUT_SECONDS + " seconds");
+        } catch (InterruptedException e) {
+            log.error("interrupted while waiting for the batch to stop");
+        }
+    }
+
+    /**
+     * @return the client for the bucket's region, created the first time a job needs it
+     */
+    private ObjectStore getClient(String bucket) {
+        final String region;
+        if (options.hasEndpoint() || options.hasSimulatedBackend()) {
+            region = "";
+        } else {
+            region = regions.computeIfAbsent(bucket, main::getBucketRegion);
+        }
+        return clientsByRegion.computeIfAbsent(region, r -> main.getObjectStore(options.getMaxConnections(), r.isEmpty() ? null : r, false));
+    }
+
+    /**
+     * Splits a job line on whitespace, keeping what is between double quotes together.
+     */
+    static String[] tokenize(String line) {
+        final List<String> tokens = new ArrayList<>();
+        final StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inToken) tokens.add(token.toString());
+                token.setLength(0);
+                inToken = false;
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("unbalanced quotes in job: " + line);
+        if (inToken) tokens.add(token.toString());
+        return tokens.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,51 @@
+package org.nimesa.s3copy;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * The S3 clients used by a mirror: one for the source bucket and one for the destination bucket, each
+ * pointed at its bucket's region and with its own connection pool, so listing/reading one side never
+ * competes for connections with writing to the other. They are ObjectStores, which with --backend are
+ * not S3 at all.
+ *
+ * A side that is a local directory has a LocalStore instead of a client. Transfers that move bytes
+ * through this process take their buffers from the BufferPool, and when objects are streamed (--stream),
+ * move their parts on the part executor.
+ */
+public class MirrorClients {
+
+    @Getter private final ObjectStore sourceClient;
+    @Getter private final ObjectStore destinationClient;
+
+    @Getter private final LocalStore sourceStore;
+    @Getter private final LocalStore destinationStore;
+
+    @Getter @Setter private BufferPool bufferPool;
+    @Getter @Setter private ThreadPoolExecutor partExecutor;
+
+    public MirrorClients(ObjectStore sourceClient, ObjectStore destinationClient) {
+        this(sourceClient, destinationClient, null, null);
+    }
+
+    public MirrorClients(ObjectStore sourceClient, ObjectStore destinationClient, LocalStore sourceStore, LocalStore destinationStore) {
+        this.sourceClient = sourceClient;
+        this.destinationClient = destinationClient;
+        this.sourceStore = sourceStore;
+        this.destinationStore = destinationStore;
+    }
+
+    public boolean hasLocalSide() {
+        return sourceStore != null || destinationStore != null;
+    }
+
+    public void shutdown() {
+        if (sourceClient != null) sourceClient.shutdown();
+        if (destinationClient != null && destinationClient != sourceClient) destinationClient.shutdown();
+        if (sourceStore != null) sourceStore.close();
+        if (destinationStore != null) destinationStore.close();
+        if (partExecutor != null) partExecutor.shutdown();
+    }
+}
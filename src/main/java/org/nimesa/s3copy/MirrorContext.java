@@ -1,15 +1,84 @@
 package org.nimesa.s3copy;
 
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.Owner;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
-@AllArgsConstructor
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class MirrorContext {
 
     @Getter @Setter private MirrorOptions options;
     @Getter @Setter private Owner owner;
+
     @Getter private final MirrorStats stats = new MirrorStats();
+    @Getter @Setter private MirrorJournal journal;
+    @Getter @Setter private DestinationIndex destinationIndex;
+    @Getter @Setter private Watermark watermark;
+    @Getter @Setter private ResultManifest manifest;
+    @Getter @Setter private MirrorPlan plan;
+    // with --pack and --unpack
+    @Getter @Setter private ObjectPacker packer;
+    @Getter @Setter private PackCatalog packCatalog;
+
+    public MirrorContext(MirrorOptions options, Owner owner) {
+        this.options = options;
+        this.owner = owner;
+        this.compression = options.isCompress() ? new Compression(options) : null;
+        this.verifier = new CopyVerifier(this);
+        if (options.hasJournal()) stats.getReconciliation().setSpillTo(new File(options.getJournalFile() + ".failed"));
+    }
+
+    /**
+     * @return a context for the next run of a daemon: fresh stats and stop flag, same long-lived resources
+     */
+    public MirrorContext nextCycle() {
+        final MirrorContext next = new MirrorContext(options, owner);
+        next.setDestinationIndex(destinationIndex);
+        next.setManifest(manifest);
+        next.setPartLayouts(partLayouts);
+        return next;
+    }
+
+    /**
+     * Closes the journal, result manifest, destination index and table of the archive indexes, whichever are in use.
+     */
+    public void closeResources() {
+        if (journal != null) journal.close();
+        if (manifest != null) manifest.close();
+        if (destinationIndex != null) destinationIndex.close();
+        if (packer != null) packer.close();
+        if (packCatalog != null) packCatalog.close();
+    }
+
+    private final AtomicBoolean stopRequested = new AtomicBoolean(false);
+
+    public void requestStop() { stopRequested.set(true); }
+    public boolean isStopRequested() { return stopRequested.get(); }
+
+    /**
+     * Multipart uploads that have been initiated (or resumed) but not yet completed, by upload id.
+     * Whatever is left here when the mirror is stopped is reported, and resumed by the next run.
+     */
+    @Getter private final Map<String, AbortMultipartUploadRequest> openUploads = new ConcurrentHashMap<>();
+
+    /**
+     * Part sizes of multipart source objects, kept across the cycles of a daemon
+     */
+    @Getter @Setter private PartLayouts partLayouts = new PartLayouts();
+
+    /**
+     * Which objects to compress, with --compress; null without
+     */
+    @Getter private final Compression compression;
+
+    /**
+     * Checks copies after the fact, see --verify
+     */
+    @Getter private final CopyVerifier verifier;
 
 }
@@ -0,0 +1,16 @@
+package org.nimesa.s3copy;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * An additional destination fed from the same source listing (see --also-to). Its context carries
+ * the destination-specific options (bucket, prefix mapping, cross-account) and its own stats.
+ */
+@AllArgsConstructor
+public class MirrorDestination {
+
+    @Getter private final MirrorClients clients;
+    @Getter private final MirrorContext context;
+
+}
@@ -0,0 +1,358 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only checkpoint journal, so an interrupted mirror can be resumed without starting over.
+ *
+ * Three things are recorded: the listing position up to which every key is known to be done with (a
+ * "safe marker"), the individual keys past that position that have been confirmed, and the keys that
+ * failed. On resume, the failed keys are tried again, listing restarts at the safe marker and confirmed
+ * keys are skipped without any request. At most MAX_CONFIRMED confirmed keys are kept, the first ones in
+ * key order: past them, a resumed run compares keys with the destination again, as it would have without
+ * a journal. A failed key does not hold the marker back, unless more than MAX_FAILED of them are kept.
+ *
+ * Callers only enqueue records; a single writer thread appends them and fsyncs once per batch
+ * (group commit). Loading a journal rewrites it compactly, which also drops a torn final record.
+ */
+@Slf4j
+public class MirrorJournal implements AutoCloseable {
+
+    private static final byte START = 'S';
+    private static final byte MARKER = 'M';
+    private static final byte KEY = 'K';
+    private static final byte FINISHED = 'D';
+    private static final byte FAILED = 'F';
+
+    private static final int MAX_BATCH = 4096;
+    // confirmed keys past the safe marker kept on resume, when it stopped moving early in the run we resume
+    private static final int MAX_CONFIRMED = 1_000_000;
+    // failed keys kept to be tried again; past them, the safe marker stops at the next failure
+    private static final int MAX_FAILED = 100_000;
+
+    private final File file;
+    private final String bucket;
+    private final String prefix;
+
+    @Getter private String keyMarker;
+    @Getter private String versionIdMarker;
+    @Getter private boolean finished;
+    private final NavigableSet<String> confirmed = new TreeSet<>();
+    private long confirmedDropped = 0;
+    // keys that did not complete, by id, with what they were listed with. Guarded by "this"
+    private final Map<String, S3VersionSummary> failed = new TreeMap<>();
+    // the failed keys of the run we resume, to be tried again
+    private final List<S3VersionSummary> toRetry = new ArrayList<>();
+
+    // listing pages whose keys are not all finished yet, oldest first. Guarded by "this"
+    private final ArrayDeque<Page> pages = new ArrayDeque<>();
+    private long nextOrdinal = 0;
+    // set once a key failed with MAX_FAILED kept already: the safe marker can no longer move past it during this run
+    private boolean blocked = false;
+
+    private final BlockingQueue<byte[]> records = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private IOException writeError;
+
+    /**
+     * @param resume if true, load the existing journal and continue from it, otherwise start a new one
+     */
+    public MirrorJournal(File file, boolean resume, MirrorOptions options) throws IOException {
+        this.file = file;
+        this.bucket = options.getSourceBucket();
+        this.prefix = options.getPrefix() == null ? "" : options.getPrefix();
+
+        if (resume) {
+            load();
+            log.info("resuming from journal " + file + ": marker=" + keyMarker + ", " + confirmed.size() + " keys already confirmed past it, "
+                    + failed.size() + " failed keys to try again" + (finished ? ", previous run had finished" : ""));
+            toRetry.addAll(failed.values());
+            if (confirmedDropped > 0) log.warn("journal " + file + " has more keys confirmed past its marker than are kept, up to " + confirmedDropped + " of them will be compared again");
+        }
+        compact();
+
+        final FileOutputStream out = new FileOutputStream(file, true);
+        writer = new Thread(() -> writeLoop(out), "MirrorJournal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                final int type = in.read();
+                if (type == -1) break;
+                switch (type) {
+                    case START:
+                        final String journalBucket = in.readUTF();
+                        final String journalPrefix = in.readUTF();
+                        if (!journalBucket.equals(bucket) || !journalPrefix.equals(prefix)) {
+                            throw new IllegalArgumentException("journal " + file + " is for " + journalBucket + "/" + journalPrefix + ", not " + bucket + "/" + prefix);
+                        }
+                        break;
+                    case MARKER:
+                        keyMarker = in.readUTF();
+                        versionIdMarker = emptyToNull(in.readUTF());
+                        // keys at or before the marker are covered by it
+                        confirmed.removeIf(id -> id.substring(0, id.indexOf('\0')).compareTo(keyMarker) <= 0);
+                        break;
+                    case KEY:
+                        final String key = in.readUTF();
+                        final String versionId = in.readUTF();
+                        // failed once, done since
+                        failed.remove(key + '\0' + versionId);
+                        if (keyMarker == null || key.compareTo(keyMarker) > 0) {
+                            confirmed.add(key + '\0' + versionId);
+                            if (confirmed.size() > MAX_CONFIRMED) {
+                                // keep the ones listed first
+                                confirmed.pollLast();
+                                confirmedDropped++;
+                            }
+                        }
+                        break;
+                    case FINISHED:
+                        finished = true;
+                        break;
+                    case FAILED:
+                        final S3VersionSummary summary = readFailed(in);
+                        failed.put(id(summary), summary);
+                        break;
+                    default:
+                        throw new IOException("corrupt journal " + file + ": unknown record type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            log.warn("journal " + file + " ends with an incomplete record (probably a crash mid-write), ignoring it");
+        }
+    }
+
+    /**
+     * Rewrites the journal with only what is still needed, and atomically replaces the old one.
+     */
+    private void compact() throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.write(record(START, bucket, prefix));
+            if (keyMarker != null) out.write(record(MARKER, keyMarker, versionIdMarker));
+            for (String id : confirmed) {
+                final int sep = id.indexOf('\0');
+                out.write(record(KEY, id.substring(0, sep), id.substring(sep + 1)));
+            }
+            for (S3VersionSummary summary : failed.values()) out.write(failedRecord(summary));
+            if (finished) out.write(record(FINISHED));
+            out.flush();
+            fos.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return true if the key was confirmed by the run we are resuming, and needs no work at all
+     */
+    public boolean isConfirmed(S3VersionSummary summary) {
+        return !confirmed.isEmpty() && confirmed.contains(id(summary));
+    }
+
+    /**
+     * @return the keys that failed in the run we resume, as they were listed, to be tried again: the marker is past them
+     */
+    public List<S3VersionSummary> getFailed() {
+        return toRetry;
+    }
+
+    /**
+     * Called by the lister, in listing order, before the keys of a page are handed out.
+     */
+    public synchronized void pageListed(int keyCount, String nextKeyMarker, String nextVersionIdMarker, boolean truncated) {
+        if (blocked) return;
+        pages.addLast(new Page(nextOrdinal, nextOrdinal + keyCount, truncated ? nextKeyMarker : null, nextVersionIdMarker));
+        nextOrdinal += keyCount;
+        advance();
+    }
+
+    /**
+     * Called when the processing of a key is over.
+     *
+     * @param ordinal position of the key in the listing, counting from 0; negative for a failed key tried again
+     * @param inSync  true if the key is now known to be in sync at the destination (copied or already up to date)
+     */
+    public void keyFinished(long ordinal, S3VersionSummary summary, boolean inSync) {
+        if (inSync && !isConfirmed(summary)) enqueue(record(KEY, summary.getKey(), nullToEmpty(summary.getVersionId())));
+        synchronized (this) {
+            if (inSync) {
+                failed.remove(id(summary));
+            } else if (failed.size() < MAX_FAILED || failed.containsKey(id(summary))) {
+                // tried again on resume, the marker goes on past it
+                failed.put(id(summary), summary);
+                enqueue(failedRecord(summary));
+            } else if (!blocked) {
+                log.warn("key " + summary.getKey() + " did not complete, with " + MAX_FAILED + " failed keys already in the journal: its resume marker will not advance past it");
+                blocked = true;
+                pages.clear();
+            }
+            if (blocked) return;
+            for (Page page : pages) {
+                if (page.contains(ordinal)) {
+                    page.finished++;
+                    break;
+                }
+            }
+            advance();
+        }
+    }
+
+    private void advance() {
+        Page last = null;
+        while (!pages.isEmpty() && pages.peekFirst().isDone()) {
+            last = pages.removeFirst();
+        }
+        if (last != null) {
+            if (last.nextKeyMarker == null) {
+                enqueue(record(FINISHED));
+            } else {
+                enqueue(record(MARKER, last.nextKeyMarker, nullToEmpty(last.nextVersionIdMarker)));
+            }
+        }
+    }
+
+    private static class Page {
+        final long startOrdinal;
+        final long endOrdinal;
+        final String nextKeyMarker;
+        final String nextVersionIdMarker;
+        int finished = 0;
+
+        Page(long startOrdinal, long endOrdinal, String nextKeyMarker, String nextVersionIdMarker) {
+            this.startOrdinal = startOrdinal;
+            this.endOrdinal = endOrdinal;
+            this.nextKeyMarker = nextKeyMarker;
+            this.nextVersionIdMarker = nextVersionIdMarker;
+        }
+
+        boolean contains(long ordinal) { return ordinal >= startOrdinal && ordinal < endOrdinal; }
+
+        boolean isDone() { return finished == endOrdinal - startOrdinal; }
+    }
+
+    private void enqueue(byte[] record) {
+        if (closed) return;
+        records.add(record);
+    }
+
+    private void writeLoop(FileOutputStream fos) {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+        final List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!closed || !records.isEmpty()) {
+                final byte[] first = records.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                records.drainTo(batch, MAX_BATCH - 1);
+                for (byte[] r : batch) out.write(r);
+                out.flush();
+                // one fsync for the whole batch
+                fos.getChannel().force(false);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+        } catch (IOException e) {
+            writeError = e;
+            log.error("error writing journal " + file + ", resuming from it may redo some work: " + e, e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.error("error closing journal " + file + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Writes out everything enqueued so far and stops the writer.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            log.error("interrupted while closing journal " + file);
+        }
+        if (writeError == null) log.info("journal " + file + " closed");
+    }
+
+    private static byte[] record(byte type, String... fields) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            for (String field : fields) out.writeUTF(nullToEmpty(field));
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("record: " + e, e);
+        }
+    }
+
+    private static byte[] failedRecord(S3VersionSummary summary) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FAILED);
+            out.writeUTF(summary.getKey());
+            out.writeUTF(nullToEmpty(summary.getVersionId()));
+            out.writeLong(summary.getSize());
+            out.writeUTF(nullToEmpty(summary.getETag()));
+            out.writeLong(summary.getLastModified() == null ? -1 : summary.getLastModified().getTime());
+            out.writeBoolean(summary.isLatest());
+            out.writeBoolean(summary.isDeleteMarker());
+            out.writeUTF(nullToEmpty(summary.getStorageClass()));
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("record: " + e, e);
+        }
+    }
+
+    private S3VersionSummary readFailed(DataInput in) throws IOException {
+        final S3VersionSummary summary = new S3VersionSummary();
+        summary.setBucketName(bucket);
+        summary.setKey(in.readUTF());
+        summary.setVersionId(emptyToNull(in.readUTF()));
+        summary.setSize(in.readLong());
+        summary.setETag(emptyToNull(in.readUTF()));
+        final long lastModified = in.readLong();
+        if (lastModified >= 0) summary.setLastModified(new Date(lastModified));
+        summary.setIsLatest(in.readBoolean());
+        summary.setIsDeleteMarker(in.readBoolean());
+        summary.setStorageClass(emptyToNull(in.readUTF()));
+        return summary;
+    }
+
+    private static String id(S3VersionSummary summary) {
+        return summary.getKey() + '\0' + nullToEmpty(summary.getVersionId());
+    }
+
+    private static String nullToEmpty(String s) { return s == null ? "" : s; }
+
+    private static String emptyToNull(String s) { return s == null || s.isEmpty() ? null : s; }
+}
@@ -2,7 +2,10 @@ package org.nimesa.s3copy;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
+import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
 import com.amazonaws.auth.BasicSessionCredentials;
 import com.amazonaws.services.s3.model.AccessControlList;
@@ -12,10 +15,34 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.kohsuke.args4j.CmdLineParser;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.ProxyConfiguration;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.GetBucketAclRequest;
+import software.amazon.awssdk.services.s3.model.GetBucketAclResponse;
+import software.amazon.awssdk.services.s3.model.GetBucketLocationRequest;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.nimesa.s3copy.MirrorConstants.*;
 
 /**
  * Provides the "main" method. Responsible for parsing options and setting up the MirrorMaster to manage the copy.
@@ -31,9 +58,28 @@ public class MirrorMain {
 
     private final Thread.UncaughtExceptionHandler uncaughtExceptionHandler = (t, e) -> log.error("Uncaught Exception (thread "+t.getName()+"): "+e, e);
 
-    @Getter private AmazonS3Client client;
+    @Getter private MirrorClients clients;
+    @Getter private S3AsyncClient sourceAsyncClient;
+    @Getter private S3AsyncClient destinationAsyncClient;
     @Getter private MirrorContext context;
     @Getter private MirrorMaster master;
+    @Getter private EventMirrorMaster eventMaster;
+    @Getter private MirrorPlanner planner;
+    @Getter private MirrorBatch batch;
+
+    private List<MirrorDestination> destinations = new ArrayList<>();
+
+    // daemon mode: set by the shutdown hook, guarded by "this"
+    private boolean stopping = false;
+    private Thread daemonThread;
+    private final CountDownLatch daemonDone = new CountDownLatch(1);
+
+    // looked up once, the first time clients are built
+    private String sourceRegion;
+    private String destinationRegion;
+
+    // shared by all the clients, so the memory cap holds for the whole process
+    private BufferPool bufferPool;
 
     public MirrorMain(String[] args) { this.args = args; }
 
@@ -44,11 +90,200 @@ public class MirrorMain {
 
     public void run() {
         init();
-        master.mirror();
+        if (batch != null) {
+            batch.run();
+            return;
+        }
+        if (eventMaster != null) {
+            eventMaster.mirror();
+            return;
+        }
+        if (planner != null) {
+            planner.plan();
+            return;
+        }
+        if (options.isDaemon()) {
+            runDaemon();
+            return;
+        }
+        try {
+            runCycle();
+        } finally {
+            if (sourceAsyncClient != null) {
+                sourceAsyncClient.close();
+                destinationAsyncClient.close();
+            }
+        }
+    }
+
+    private void runCycle() {
+        if (sourceAsyncClient != null) {
+            new AsyncMirrorMaster(sourceAsyncClient, destinationAsyncClient, context).mirror();
+        } else {
+            master.mirror();
+        }
+    }
+
+    /**
+     * Runs a mirror every daemon interval, in this process, until it is stopped. Clients, connection pools,
+     * the destination index and the result manifest stay open from one cycle to the next; every cycle
+     * gets fresh stats. A cycle never overlaps the previous one: if it overruns the interval, the next
+     * one starts as soon as it is done.
+     */
+    private void runDaemon() {
+        final long interval = TimeUnit.SECONDS.toMillis(options.getDaemon());
+        long cycle = 0;
+        try {
+            while (true) {
+                final long start = System.currentTimeMillis();
+                cycle++;
+                log.info("daemon: cycle " + cycle + " starting");
+                try {
+                    runCycle();
+                } catch (Exception e) {
+                    log.error("daemon: cycle " + cycle + " failed: " + e, e);
+                }
+                log.info("daemon: cycle " + cycle + " done in " + (System.currentTimeMillis() - start) + "ms, stats:");
+                context.getStats().logStats();
+                for (MirrorDestination destination : destinations) {
+                    log.info("daemon: cycle " + cycle + " stats for additional destination " + destination.getContext().getOptions().getDestinationBucket() + ":");
+                    destination.getContext().getStats().logStats();
+                }
+
+                final long wait = start + interval - System.currentTimeMillis();
+                if (wait < 0) {
+                    log.warn("daemon: cycle " + cycle + " overran the interval by " + (-wait) + "ms, starting the next one now");
+                } else if (Sleep.sleep(wait)) {
+                    break;
+                }
+                if (!nextCycle()) break;
+            }
+        } finally {
+            log.info("daemon: stopping after " + cycle + " cycles");
+            context.closeResources();
+            for (MirrorDestination destination : destinations) destination.getContext().closeResources();
+            if (sourceAsyncClient != null) {
+                sourceAsyncClient.close();
+                destinationAsyncClient.close();
+            }
+            daemonDone.countDown();
+        }
+    }
+
+    /**
+     * Sets up the contexts and master for the next daemon cycle.
+     *
+     * @return false if the daemon is stopping
+     */
+    private synchronized boolean nextCycle() {
+        if (stopping) return false;
+        options.refreshMaxAge();
+        context = context.nextCycle();
+        initCycle(context);
+        final List<MirrorDestination> next = new ArrayList<>();
+        for (MirrorDestination destination : destinations) {
+            final MirrorContext destContext = destination.getContext().nextCycle();
+            destContext.getOptions().refreshMaxAge();
+            next.add(new MirrorDestination(destination.getClients(), destContext));
+        }
+        destinations = next;
+        if (clients != null) master = newMaster();
+        return true;
+    }
+
+    private MirrorMaster newMaster() {
+        final MirrorMaster m = new MirrorMaster(clients, context);
+        // in daemon mode the index and manifest outlive a single mirror run
+        m.setKeepResources(options.isDaemon());
+        for (MirrorDestination destination : destinations) m.addDestination(destination);
+        return m;
+    }
+
+    /**
+     * Opens the checkpoint journal, destination index and result manifest, whichever the context's options ask for
+     */
+    protected void openResources(MirrorContext context) {
+        final MirrorOptions options = context.getOptions();
+        if (options.hasJournal()) {
+            if (options.isDryRun()) {
+                log.warn("dry run, not recording anything in journal " + options.getJournalFile());
+            } else {
+                try {
+                    context.setJournal(new MirrorJournal(new File(options.getJournalFile()), options.getResume() != null, options));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Error opening journal " + options.getJournalFile() + ": " + e, e);
+                }
+            }
+        }
+
+        context.setDestinationIndex(getDestinationIndex(options, options.getDestIndex()));
+
+        if (options.hasRunPlan()) {
+            try {
+                context.setPlan(new MirrorPlan(new File(options.getRunPlan()), options));
+            } catch (IOException e) {
+                throw new IllegalStateException("Error reading plan " + options.getRunPlan() + ": " + e, e);
+            }
+        }
+
+        if (options.getManifest() != null) {
+            try {
+                context.setManifest(new ResultManifest(new File(options.getManifest())));
+            } catch (IOException e) {
+                throw new IllegalStateException("Error creating result manifest " + options.getManifest() + ": " + e, e);
+            }
+        }
+    }
+
+    /**
+     * Per-run state, read again for every daemon cycle
+     */
+    protected void initCycle(MirrorContext context) {
+        final MirrorOptions options = context.getOptions();
+        if (options.hasIncremental()) {
+            try {
+                context.setWatermark(new Watermark(new File(options.getIncremental()), options));
+            } catch (IOException e) {
+                throw new IllegalStateException("Error reading watermark state " + options.getIncremental() + ": " + e, e);
+            }
+        }
+    }
+
+    /**
+     * Shutdown hook: stops the current mirror and, in daemon mode, waits for the daemon loop to close everything.
+     */
+    private void shutdown() {
+        if (batch != null) {
+            batch.stop();
+            return;
+        }
+        final MirrorMaster m;
+        synchronized (this) {
+            stopping = true;
+            m = master;
+        }
+        if (m != null) m.stop();
+        if (eventMaster != null) eventMaster.stop();
+        if (planner != null) planner.stop();
+        if (options.isDaemon()) {
+            if (daemonThread != null) daemonThread.interrupt();
+            try {
+                daemonDone.await(KeyMaster.STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.error("interrupted while waiting for the daemon to stop");
+            }
+        }
+        context.getStats().logStats();
+        context.getStats().getReconciliation().close();
+        for (MirrorDestination destination : destinations) {
+            log.info("stats for additional destination " + destination.getContext().getOptions().getDestinationBucket() + ":");
+            destination.getContext().getStats().logStats();
+            destination.getContext().getStats().getReconciliation().close();
+        }
     }
 
     public void init() {
-        if (client == null) {
+        if (clients == null && sourceAsyncClient == null && batch == null) {
             try {
                 parseArguments();
             } catch (Exception e) {
@@ -57,25 +292,240 @@ public class MirrorMain {
                 System.exit(1);
             }
 
-            client = getAmazonS3Client();
-            context = new MirrorContext(options, getTargetBucketOwner(client));
-            master = new MirrorMaster(client, context);
+            if (options.isDaemon() && options.hasJournal()) {
+                throw new IllegalArgumentException("a checkpoint journal is for resuming a single run, it cannot be used with --daemon");
+            }
+            if (options.hasEvents() && (options.isDaemon() || options.isAsync() || !options.getAlsoTo().isEmpty())) {
+                throw new IllegalArgumentException("--events cannot be combined with --daemon, --async or --also-to");
+            }
+
+            if (options.isStreaming() && (options.isAsync() || options.hasEvents() || !options.getAlsoTo().isEmpty() || options.hasLocalSide())) {
+                throw new IllegalArgumentException("streaming (--stream, --dest-endpoint, --dest-profile) cannot be combined with --async, --events, --also-to or a local directory");
+            }
 
-            Runtime.getRuntime().addShutdownHook(context.getStats().getShutdownHook());
+            if (options.hasLocalSide()) {
+                if (options.isAsync() || options.hasEvents() || options.isAutoTune()) {
+                    throw new IllegalArgumentException("a local directory cannot be used with --async, --events or --auto-tune");
+                }
+                if (options.isLocalSource() && options.hasJournal()) {
+                    throw new IllegalArgumentException("a local directory is not listed in key order, it cannot be used as the source with a checkpoint journal");
+                }
+            }
+
+            if (options.isCompress() && (options.isLocalDestination() || !(options.isStreaming() || options.isLocalSource()))) {
+                throw new IllegalArgumentException("--compress only applies to objects that pass through this process on their way to a bucket: streamed, or uploaded from a local directory");
+            }
+            if (options.isDecompress() && !options.isLocalDestination()) {
+                throw new IllegalArgumentException("--decompress only applies to downloads to a local directory");
+            }
+
+            if (options.hasPlan() || options.hasRunPlan()) {
+                if (options.hasPlan() && options.hasRunPlan()) throw new IllegalArgumentException("--plan makes a plan, --run-plan carries one out: use one or the other");
+                if (options.hasJobs() || options.isDaemon() || options.hasEvents() || options.isAsync() || !options.getAlsoTo().isEmpty() || options.hasLocalSide() || options.hasJournal()) {
+                    throw new IllegalArgumentException("--plan and --run-plan cannot be combined with --jobs, --daemon, --events, --async, --also-to, a checkpoint journal or a local directory");
+                }
+                if (options.hasRunPlan() && options.hasIncremental()) {
+                    throw new IllegalArgumentException("a plan only has the keys modified since the watermark when it was made, --incremental cannot be used with --run-plan");
+                }
+            }
+
+            if (options.isPack() || options.isUnpack()) {
+                if (options.isPack() && options.isUnpack()) throw new IllegalArgumentException("--pack packs, --unpack restores what it packed: use one or the other");
+                if (options.hasJobs() || options.isDaemon() || options.hasEvents() || options.isAsync() || !options.getAlsoTo().isEmpty() || options.hasLocalSide()
+                        || options.hasJournal() || options.hasPlan() || options.hasRunPlan() || options.isDeleteRemoved() || options.hasChecksum()) {
+                    throw new IllegalArgumentException("--pack and --unpack cannot be combined with --jobs, --daemon, --events, --async, --also-to, a checkpoint journal, "
+                            + "a plan, --delete-removed, --checksum or a local directory");
+                }
+            }
+
+            if ((options.hasSimulatedBackend() || options.hasBackendFaults()) && options.isAsync()) {
+                throw new IllegalArgumentException("the async engine has its own S3 client, it cannot be used with --backend other than S3 or with injected latency and errors");
+            }
+            if (options.getBackend() == ObjectStore.Backend.DISK && options.getBackendDir() == null) {
+                throw new IllegalArgumentException("--backend DISK needs a --backend-dir to keep its buckets in");
+            }
+            if (options.getSeedKeys() > 0) {
+                if (options.getBackend() != ObjectStore.Backend.MEMORY || options.hasJobs() || options.isLocalSource()) {
+                    throw new IllegalArgumentException("--seed-keys fills the source bucket of --backend MEMORY, it cannot be used with another backend, --jobs or a local source");
+                }
+                MemoryObjectStore.get().seed(options.getSourceBucket(), options.getPrefix(), options.getSeedKeys(), options.getSeedSize());
+            }
+
+            if (options.hasJobs()) {
+                batch = new MirrorBatch(this, options);
+                try {
+                    batch.init();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Error reading job file " + options.getJobs() + ": " + e, e);
+                }
+                Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+                Thread.setDefaultUncaughtExceptionHandler(uncaughtExceptionHandler);
+                return;
+            }
+
+            if (options.isAsync()) {
+                if (!options.getAlsoTo().isEmpty()) throw new IllegalArgumentException("--also-to is not supported by the async engine");
+                sourceAsyncClient = getS3AsyncClient(options.getSourceBucket(), options.getSourceMaxConnections());
+                destinationAsyncClient = getS3AsyncClient(options.getDestinationBucket(), options.getDestMaxConnections());
+                context = new MirrorContext(options, getTargetBucketOwner(destinationAsyncClient));
+            } else {
+                if (options.isAutoTune()) {
+                    final MirrorClients calibrationClients = getMirrorClients(Calibrator.MAX_CONCURRENCY + 1);
+                    try {
+                        new Calibrator(calibrationClients, options).calibrate();
+                    } catch (RuntimeException e) {
+                        log.warn("calibration failed, keeping configured settings: " + e, e);
+                    } finally {
+                        calibrationClients.shutdown();
+                    }
+                }
+                clients = getMirrorClients();
+                context = new MirrorContext(options, getDestinationOwner(clients));
+                context.getStats().setBufferPool(clients.getBufferPool());
+
+                openResources(context);
+                if (options.isPack() || options.isUnpack()) {
+                    try {
+                        if (options.isPack()) {
+                            context.setPacker(new ObjectPacker(clients, context));
+                        } else {
+                            context.setPackCatalog(new PackCatalog(clients, context));
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Error reading the indexes of the archives: " + e, e);
+                    }
+                }
+
+                for (String spec : options.getAlsoTo()) {
+                    final MirrorOptions destOptions = options.forDestination(spec);
+                    final String bucket = destOptions.getDestinationBucket();
+                    // the source client (and its pool) is shared, each destination gets its own
+                    final ObjectStore destClient = getObjectStore(destOptions.getDestMaxConnections(), options.hasEndpoint() ? null : getBucketRegion(bucket), false);
+                    final MirrorContext destContext = new MirrorContext(destOptions, getTargetBucketOwner(destClient, bucket));
+                    // each destination keeps its own index, next to the main one
+                    destContext.setDestinationIndex(getDestinationIndex(destOptions, options.getDestIndex() + "." + bucket));
+                    // results for all destinations go to the one manifest, each with its bucket
+                    destContext.setManifest(context.getManifest());
+                    destinations.add(new MirrorDestination(new MirrorClients(clients.getSourceClient(), destClient, clients.getSourceStore(), null), destContext));
+                }
+                if (options.hasEvents()) {
+                    eventMaster = new EventMirrorMaster(clients, context, new DirectoryEventSource(new File(options.getEvents())));
+                } else if (options.hasPlan()) {
+                    planner = new MirrorPlanner(clients, context);
+                } else {
+                    master = newMaster();
+                }
+            }
+            initCycle(context);
+
+            if (options.isDaemon()) daemonThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
             Thread.setDefaultUncaughtExceptionHandler(uncaughtExceptionHandler);
         }
     }
 
-    protected AmazonS3Client getAmazonS3Client() {
+    protected DestinationIndex getDestinationIndex(MirrorOptions options, String path) {
+        if (!options.hasDestIndex()) return null;
+        try {
+            return new DestinationIndex(new File(path), options.getDestinationBucket(), DestinationIndex.hoursToMillis(options.getDestIndexMaxAge()));
+        } catch (IOException e) {
+            throw new IllegalStateException("Error opening destination index " + path + ": " + e, e);
+        }
+    }
+
+    protected MirrorClients getMirrorClients() {
+        return getMirrorClients(-1);
+    }
+
+    /**
+     * @param maxConnections pool size for both clients, or -1 to use the source/destination settings from the options
+     */
+    protected MirrorClients getMirrorClients(int maxConnections) {
+        if (sourceRegion == null && !options.hasEndpoint() && !options.isLocalSource()) {
+            sourceRegion = getBucketRegion(options.getSourceBucket());
+        }
+        if (destinationRegion == null && !options.hasEndpoint() && !options.hasDestEndpoint() && !options.isLocalDestination()) {
+            destinationRegion = getBucketRegion(options.getDestinationBucket(), true);
+        }
+        // a local directory gets a LocalStore instead of a client
+        final ObjectStore sourceClient = options.isLocalSource() ? null : getObjectStore(maxConnections > 0 ? maxConnections : options.getSourceMaxConnections(), sourceRegion, false);
+        final ObjectStore destinationClient = options.isLocalDestination() ? null : getObjectStore(maxConnections > 0 ? maxConnections : options.getDestMaxConnections(), destinationRegion, true);
+        final MirrorClients clients = new MirrorClients(sourceClient, destinationClient,
+                options.isLocalSource() ? LocalStore.forPath(options.getSourceBucket(), options.getMaxThreads()) : null,
+                options.isLocalDestination() ? LocalStore.forPath(options.getDestinationBucket(), options.getMaxThreads()) : null);
+        clients.setBufferPool(getBufferPool());
+        if (options.isStreaming()) clients.setPartExecutor(MirrorMaster.newPartExecutor("stream", options.getMaxThreads()));
+        return clients;
+    }
+
+    /**
+     * @return the pool of buffers for transfers through this process, created the first time one is needed
+     */
+    protected synchronized BufferPool getBufferPool() {
+        if (bufferPool == null) {
+            final long capacity = options.getBufferMemory() * MB;
+            if (capacity > Runtime.getRuntime().maxMemory()) {
+                log.warn("--buffer-memory is more than the heap size, the default limit of direct memory: raise -XX:MaxDirectMemorySize to match it");
+            }
+            bufferPool = new BufferPool(capacity);
+        }
+        return bufferPool;
+    }
+
+    protected String getBucketRegion(String bucket) {
+        return getBucketRegion(bucket, false);
+    }
+
+    /**
+     * @param destination true to look the bucket up with the destination's credentials
+     */
+    protected String getBucketRegion(String bucket, boolean destination) {
+        // the stores of --backend have no regions
+        if (options.hasSimulatedBackend()) return null;
+        // a client on the default endpoint can look up the location of any bucket
+        final AmazonS3Client bootstrap = getAmazonS3Client(1, null, destination);
+        try {
+            return getBucketRegion(bootstrap, bucket);
+        } finally {
+            bootstrap.shutdown();
+        }
+    }
+
+    protected String getBucketRegion(AmazonS3Client client, String bucket) {
+        final String location = client.getBucketLocation(bucket);
+        String region;
+        try {
+            // maps the legacy location constraints ("US", "EU") to region names
+            region = com.amazonaws.services.s3.model.Region.fromValue(location).toAWSRegion().getName();
+        } catch (IllegalArgumentException e) {
+            region = location;
+        }
+        log.info("bucket " + bucket + " is in region " + region);
+        return region;
+    }
+
+    protected AmazonS3Client getAmazonS3Client(int maxConnections, String region) {
+        return getAmazonS3Client(maxConnections, region, false);
+    }
+
+    /**
+     * @param destination true for a client to the destination, with its own endpoint and credentials if it has them
+     */
+    protected AmazonS3Client getAmazonS3Client(int maxConnections, String region, boolean destination) {
         ClientConfiguration clientConfiguration = new ClientConfiguration().withProtocol((options.isSsl() ? Protocol.HTTPS : Protocol.HTTP))
-                .withMaxConnections(options.getMaxConnections());
+                .withMaxConnections(maxConnections)
+                .withConnectionTTL(options.getConnectionTtl())
+                .withConnectionMaxIdleMillis(options.getConnectionMaxIdle())
+                .withTcpKeepAlive(options.isTcpKeepAlive());
         if (options.getHasProxy()) {
             clientConfiguration = clientConfiguration
                     .withProxyHost(options.getProxyHost())
                     .withProxyPort(options.getProxyPort());
         }
         AmazonS3Client client = null;
-        if(System.getenv("AWS_SECURITY_TOKEN") != null) {
+        if (destination && options.hasDestAwsKeys()) {
+            client = new AmazonS3Client(new BasicAWSCredentials(options.getDestAWSAccessKeyId(), options.getDestAWSSecretKey()), clientConfiguration);
+        } else if(System.getenv("AWS_SECURITY_TOKEN") != null) {
             BasicSessionCredentials basicSessionCredentials = new BasicSessionCredentials(System.getenv("AWS_ACCESS_KEY_ID"), System.getenv("AWS_SECRET_ACCESS_KEY"), System.getenv("AWS_SECURITY_TOKEN"));
             client = new AmazonS3Client(basicSessionCredentials, clientConfiguration);
         } else if (options.hasAwsKeys()) {
@@ -85,13 +535,110 @@ public class MirrorMain {
         } else {
             throw new IllegalStateException("No authenication method available, please specify IAM Role usage or AWS key and secret");
         }        
-        if (options.hasEndpoint()) client.setEndpoint(options.getEndpoint());
+        if (destination && options.hasDestEndpoint()) {
+            client.setEndpoint(options.getDestEndpoint());
+            // S3-compatible stores behind a custom endpoint generally only support path-style requests
+            client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+        } else if (options.hasEndpoint()) {
+            client.setEndpoint(options.getEndpoint());
+        } else if (region != null) {
+            client.setRegion(RegionUtils.getRegion(region));
+        }
         return client;
     }
 
+    /**
+     * @return the store for one side: a client to S3 in that region, or the --backend that stands in for it,
+     * with the latency and errors asked for in front
+     */
+    protected ObjectStore getObjectStore(int maxConnections, String region, boolean destination) {
+        final ObjectStore store;
+        switch (options.getBackend()) {
+            case MEMORY: store = MemoryObjectStore.get(); break;
+            case DISK: store = DiskObjectStore.forRoot(options.getBackendDir()); break;
+            default: store = new S3ObjectStore(getAmazonS3Client(maxConnections, region, destination));
+        }
+        return options.hasBackendFaults() ? new FaultyObjectStore(store, options.getBackendLatency(), options.getBackendErrors(), options.getBackendThrottle()) : store;
+    }
+
+    protected S3AsyncClient getS3AsyncClient(String bucket, int maxConnections) {
+        NettyNioAsyncHttpClient.Builder httpClient = NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(maxConnections)
+                .maxPendingConnectionAcquires(Math.max(10000, 2 * options.getMaxInFlight()))
+                .tcpKeepAlive(options.isTcpKeepAlive())
+                .connectionMaxIdleTime(Duration.ofMillis(options.getConnectionMaxIdle()));
+        if (options.getConnectionTtl() > 0) httpClient.connectionTimeToLive(Duration.ofMillis(options.getConnectionTtl()));
+        if (options.getHasProxy()) {
+            httpClient.proxyConfiguration(ProxyConfiguration.builder()
+                    .host(options.getProxyHost())
+                    .port(options.getProxyPort())
+                    .build());
+        }
+
+        final AwsCredentialsProvider credentials;
+        if (System.getenv("AWS_SECURITY_TOKEN") != null) {
+            credentials = StaticCredentialsProvider.create(AwsSessionCredentials.create(System.getenv("AWS_ACCESS_KEY_ID"), System.getenv("AWS_SECRET_ACCESS_KEY"), System.getenv("AWS_SECURITY_TOKEN")));
+        } else if (options.hasAwsKeys()) {
+            credentials = StaticCredentialsProvider.create(AwsBasicCredentials.create(options.getAWSAccessKeyId(), options.getAWSSecretKey()));
+        } else if (options.isUseIamRole()) {
+            credentials = software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create();
+        } else {
+            throw new IllegalStateException("No authenication method available, please specify IAM Role usage or AWS key and secret");
+        }
+
+        final S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                .httpClientBuilder(httpClient)
+                .credentialsProvider(credentials)
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .retryPolicy(RetryPolicy.builder().numRetries(options.getMaxRetries()).build())
+                        .build());
+        if (options.hasEndpoint()) {
+            // S3-compatible stores behind a custom endpoint generally only support path-style requests
+            final String endpoint = options.getEndpoint().trim();
+            builder.region(getDefaultRegion())
+                    .endpointOverride(URI.create(endpoint.contains("://") ? endpoint : (options.isSsl() ? "https://" : "http://") + endpoint))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+        } else {
+            builder.region(getBucketRegion(credentials, bucket));
+        }
+        return builder.build();
+    }
+
+    private Region getBucketRegion(AwsCredentialsProvider credentials, String bucket) {
+        // the us-east-1 endpoint answers GetBucketLocation for buckets in any region
+        try (S3AsyncClient bootstrap = S3AsyncClient.builder().credentialsProvider(credentials).region(Region.US_EAST_1).build()) {
+            final String location = bootstrap.getBucketLocation(GetBucketLocationRequest.builder().bucket(bucket).build()).join().locationConstraintAsString();
+            final String region;
+            if (location == null || location.isEmpty()) {
+                region = Region.US_EAST_1.id();
+            } else if (location.equals("EU")) {
+                region = Region.EU_WEST_1.id();
+            } else {
+                region = location;
+            }
+            log.info("bucket " + bucket + " is in region " + region);
+            return Region.of(region);
+        }
+    }
+
+    private Region getDefaultRegion() {
+        return System.getenv("AWS_REGION") != null ? Region.of(System.getenv("AWS_REGION")) : Region.US_EAST_1;
+    }
+
     protected void parseArguments() throws Exception {
         parser.parseArgument(args);
-        
+        options.initDerivedFields();
+
+        // nothing to authenticate to when both sides are local directories, or not S3 (--backend)
+        if ((options.isLocalSource() && options.isLocalDestination()) || options.hasSimulatedBackend()) return;
+
+        if (options.getDestProfile() != null && !options.hasDestAwsKeys()) {
+            loadDestKeysFromProfile();
+            if (!options.hasDestAwsKeys()) {
+                throw new IllegalStateException("Could not find credentials for profile " + options.getDestProfile() + " in ~/.aws/credentials or ~/.aws/config");
+            }
+        }
+
         // for credentials, check for IAM role usage if not then...
         // try the .aws/config file first if there is a profile specified, otherwise defer to
         // .s3cfg before using the default .aws/config credentials 
@@ -110,7 +657,6 @@ public class MirrorMain {
                 throw new IllegalStateException("Could not find IAM Instance Profile credentials from the AWS metadata service.");
             }
         }
-        options.initDerivedFields();
     }
 
     private void loadAwsKeysFromS3Config() {
@@ -198,9 +744,56 @@ public class MirrorMain {
         }
     }
 
-    private Owner getTargetBucketOwner(AmazonS3Client client) {
-        AccessControlList targetBucketAcl = client.getBucketAcl(options.getDestinationBucket());
+    /**
+     * Reads the --dest-profile section of ~/.aws/credentials, or failing that of ~/.aws/config
+     */
+    private void loadDestKeysFromProfile() {
+        final String awsDir = System.getProperty("user.home") + File.separator + ".aws" + File.separator;
+        final String[][] sources = { { awsDir + "credentials", "[" + options.getDestProfile() + "]" },
+                                     { awsDir + "config", "[profile " + options.getDestProfile() + "]" } };
+        for (String[] source : sources) {
+            try {
+                @Cleanup BufferedReader reader = new BufferedReader(new FileReader(source[0]));
+                String line;
+                boolean skipSection = true;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.startsWith("[")) {
+                        skipSection = !line.equals(source[1]);
+                        continue;
+                    }
+                    if (skipSection) continue;
+                    if (line.startsWith("aws_access_key_id")) {
+                        options.setDestAWSAccessKeyId(line.substring(line.indexOf("=") + 1).trim());
+                    } else if (line.startsWith("aws_secret_access_key")) {
+                        options.setDestAWSSecretKey(line.substring(line.indexOf("=") + 1).trim());
+                    }
+                }
+            } catch (Exception e) {
+                // ignore - try the next file
+            }
+            if (options.hasDestAwsKeys()) return;
+        }
+    }
+
+    /**
+     * @return the owner of the destination bucket, which cross-account copies grant full control to
+     */
+    protected Owner getDestinationOwner(MirrorClients clients) {
+        if (options.isLocalDestination()) return null;
+        // S3-compatible stores may not support bucket ACLs, only ask them if the owner is needed
+        if (options.hasSeparateDestination() && !options.isCrossAccountCopy()) return null;
+        return getTargetBucketOwner(clients.getDestinationClient(), options.getDestinationBucket());
+    }
+
+    protected Owner getTargetBucketOwner(ObjectStore client, String bucket) {
+        AccessControlList targetBucketAcl = client.getBucketAcl(bucket);
         return targetBucketAcl.getOwner();
     }
 
+    private Owner getTargetBucketOwner(S3AsyncClient client) {
+        GetBucketAclResponse targetBucketAcl = client.getBucketAcl(GetBucketAclRequest.builder().bucket(options.getDestinationBucket()).build()).join();
+        return new Owner(targetBucketAcl.owner().id(), targetBucketAcl.owner().displayName());
+    }
+
 }
@@ -1,9 +1,17 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages the Starts a KeyLister and sends batches of keys to the ExecutorService for handling by KeyJobs
@@ -13,12 +21,40 @@ public class MirrorMaster {
 
     public static final String VERSION = System.getProperty("s3s3mirror.version");
 
-    private final AmazonS3Client client;
+    private final MirrorClients clients;
     private final MirrorContext context;
+    private final List<MirrorDestination> additionalDestinations = new ArrayList<>();
+
+    private ThreadPoolExecutor executorService;
+    // set when the thread pool belongs to the caller, who shuts it down
+    private final ThreadPoolExecutor sharedExecutor;
+    private KeyMaster copyMaster;
+    private final List<KeyMaster> deleteMasters = new ArrayList<>();
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+    /**
+     * If set, stop() leaves the journal, manifest and index open, for the caller to reuse and close
+     */
+    @Setter private boolean keepResources = false;
+
+    public MirrorMaster(MirrorClients clients, MirrorContext context) {
+        this(clients, context, null);
+    }
 
-    public MirrorMaster(AmazonS3Client client, MirrorContext context) {
-        this.client = client;
+    /**
+     * @param sharedExecutor thread pool to run the jobs on, shared with other mirrors (see MirrorBatch), or null for a pool of our own
+     */
+    public MirrorMaster(MirrorClients clients, MirrorContext context, ThreadPoolExecutor sharedExecutor) {
+        this.clients = clients;
         this.context = context;
+        this.sharedExecutor = sharedExecutor;
+    }
+
+    /**
+     * Adds a destination that receives the same keys as the primary one, from the same source listing.
+     */
+    public void addDestination(MirrorDestination destination) {
+        additionalDestinations.add(destination);
     }
 
     public void mirror() {
@@ -29,39 +65,184 @@ public class MirrorMaster {
 
         if (options.isVerbose() && options.hasCtime()) log.info("will not copy anything older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+")");
 
-        final int maxQueueCapacity = getMaxQueueCapacity(options);
-        final BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>(maxQueueCapacity);
-        final RejectedExecutionHandler rejectedExecutionHandler = (r, executor) -> log.error("Error submitting job: "+r+", possible queue overflow");
+        // the work queue itself is unbounded, queueSlots is what keeps the number of pending jobs in check
+        final Semaphore queueSlots = new Semaphore(getMaxQueueCapacity(options) + options.getMaxThreads());
+        executorService = sharedExecutor != null ? sharedExecutor : newExecutor(options.getMaxThreads(), new LinkedBlockingQueue<>());
 
-        final ThreadPoolExecutor executorService = new ThreadPoolExecutor(options.getMaxThreads(), options.getMaxThreads(), 1, TimeUnit.MINUTES, workQueue, rejectedExecutionHandler);
-
-        final KeyMaster copyMaster = new CopyMaster(client, context, workQueue, executorService);
-        KeyMaster deleteMaster = null;
+        synchronized (stopped) {
+            // stopped before it even started (e.g. a daemon shutting down between cycles)
+            if (stopped.get()) return;
+            copyMaster = new CopyMaster(clients, context, queueSlots, executorService, additionalDestinations);
+        }
 
         try {
+            abortStaleUploads(clients, context);
+            for (MirrorDestination destination : additionalDestinations) abortStaleUploads(destination.getClients(), destination.getContext());
+
             copyMaster.start();
 
             if (context.getOptions().isDeleteRemoved()) {
-                deleteMaster = new DeleteMaster(client, context, workQueue, executorService);
-                deleteMaster.start();
-            }
-
-            while (true) {
-                if (copyMaster.isDone() && (deleteMaster == null || deleteMaster.isDone())) {
-                    log.info("mirror: completed");
-                    break;
+                deleteMasters.add(new DeleteMaster(clients, context, queueSlots, executorService));
+                for (MirrorDestination destination : additionalDestinations) {
+                    deleteMasters.add(new DeleteMaster(destination.getClients(), destination.getContext(), queueSlots, executorService));
                 }
-                if (Sleep.sleep(100)) return;
+                for (KeyMaster deleteMaster : deleteMasters) deleteMaster.start();
             }
 
+            copyMaster.awaitDone();
+            if (context.getPacker() != null) context.getPacker().flush();
+            for (KeyMaster deleteMaster : deleteMasters) deleteMaster.awaitDone();
+            context.getVerifier().awaitDone();
+            for (MirrorDestination destination : additionalDestinations) destination.getContext().getVerifier().awaitDone();
+            log.info("mirror: completed");
+
+            if (context.getWatermark() != null) saveWatermark();
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
         } catch (Exception e) {
             log.error("Unexpected exception in mirror: "+e, e);
 
         } finally {
-            try { copyMaster.stop();   } catch (Exception e) { log.error("Error stopping copyMaster: "+e, e); }
-            if (deleteMaster != null) {
-                try { deleteMaster.stop(); } catch (Exception e) { log.error("Error stopping deleteMaster: "+e, e); }
+            stop();
+        }
+    }
+
+    /**
+     * Stops the mirror cooperatively: listing stops, queued jobs are skipped, and running jobs get
+     * KeyMaster.STOP_TIMEOUT to finish. Multipart uploads still open after that are left for the next run to resume.
+     * Safe to call more than once (e.g. from the shutdown hook after a normal completion).
+     */
+    public void stop() {
+        synchronized (stopped) {
+            if (!stopped.compareAndSet(false, true) || copyMaster == null) return;
+        }
+
+        final boolean completed = copyMaster.isDone() && deleteMasters.stream().allMatch(KeyMaster::isDone);
+        if (!completed) {
+            context.requestStop();
+            for (MirrorDestination destination : additionalDestinations) destination.getContext().requestStop();
+        }
+
+        try { copyMaster.stop();   } catch (Exception e) { log.error("Error stopping copyMaster: "+e, e); }
+        for (KeyMaster deleteMaster : deleteMasters) {
+            try { deleteMaster.stop(); } catch (Exception e) { log.error("Error stopping deleteMaster: "+e, e); }
+        }
+
+        if (sharedExecutor == null) shutdownExecutor(executorService);
+        context.getVerifier().stop();
+        for (MirrorDestination destination : additionalDestinations) destination.getContext().getVerifier().stop();
+
+        reportOpenUploads(context);
+        for (MirrorDestination destination : additionalDestinations) reportOpenUploads(destination.getContext());
+
+        if (!keepResources) {
+            context.closeResources();
+            for (MirrorDestination destination : additionalDestinations) destination.getContext().closeResources();
+        }
+    }
+
+    private void saveWatermark() {
+        if (context.getOptions().isDryRun()) {
+            log.info("dry run, not moving the watermark");
+            return;
+        }
+        if (context.isStopRequested() || !copyMaster.isFullySynced() || context.getVerifier().hasFailures()
+                || (context.getPacker() != null && context.getPacker().hasFailures())) {
+            log.warn("some keys are not in sync, not moving the watermark: the next run will look at them again");
+            return;
+        }
+        try {
+            context.getWatermark().save();
+        } catch (Exception e) {
+            log.error("Error saving watermark: " + e, e);
+        }
+    }
+
+    private void reportOpenUploads(MirrorContext context) {
+        for (AbortMultipartUploadRequest request : context.getOpenUploads().values()) {
+            log.info("leaving multipart upload of " + request.getKey() + " open, the next run will resume it (uploadId=" + request.getUploadId() + ")");
+        }
+        context.getOpenUploads().clear();
+    }
+
+    /**
+     * Aborts the multipart uploads under the destination prefix that were initiated too long ago to be
+     * worth resuming, typically left behind by a run that crashed or was never repeated.
+     */
+    private void abortStaleUploads(MirrorClients clients, MirrorContext context) {
+        final MirrorOptions options = context.getOptions();
+        if (options.isDryRun() || options.getStaleUploadAge() < 0 || clients.getDestinationStore() != null) return;
+        final long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(options.getStaleUploadAge());
+        final ObjectStore client = clients.getDestinationClient();
+        if (!options.hasDestPrefix() && !options.hasPrefix()) {
+            log.warn("aborting multipart uploads older than " + options.getStaleUploadAge() + " hours anywhere in " + options.getDestinationBucket());
+        }
+        try {
+            final ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(options.getDestinationBucket())
+                    .withPrefix(options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix());
+            MultipartUploadListing listing;
+            do {
+                context.getStats().s3getCount.incrementAndGet();
+                listing = client.listMultipartUploads(request);
+                for (MultipartUpload upload : listing.getMultipartUploads()) {
+                    if (upload.getInitiated().getTime() >= cutoff) continue;
+                    log.info("aborting stale multipart upload of " + upload.getKey() + " (uploadId=" + upload.getUploadId() + ", initiated " + upload.getInitiated() + ")");
+                    try {
+                        client.abortMultipartUpload(new AbortMultipartUploadRequest(options.getDestinationBucket(), upload.getKey(), upload.getUploadId()));
+                    } catch (Exception e) {
+                        log.warn("Error aborting stale multipart upload of " + upload.getKey() + ": " + e);
+                    }
+                }
+                request.setKeyMarker(listing.getNextKeyMarker());
+                request.setUploadIdMarker(listing.getNextUploadIdMarker());
+            } while (listing.isTruncated());
+        } catch (Exception e) {
+            log.warn("Error looking for stale multipart uploads in " + options.getDestinationBucket() + ": " + e);
+        }
+    }
+
+    /**
+     * @param workQueue unbounded, the callers' queue slots are what keeps the number of pending jobs in check
+     */
+    static ThreadPoolExecutor newExecutor(int maxThreads, BlockingQueue<Runnable> workQueue) {
+        final RejectedExecutionHandler rejectedExecutionHandler = (r, executor) -> {
+            log.error("Error submitting job: "+r+", executor is shut down");
+            throw new RejectedExecutionException("executor is shut down");
+        };
+        return new ThreadPoolExecutor(maxThreads, maxThreads, 1, TimeUnit.MINUTES, workQueue, rejectedExecutionHandler);
+    }
+
+    /**
+     * Thread pool for the parts of large transfers through this process, separate from the one running the
+     * key jobs (which wait on it). Its threads are daemons, and go away when idle.
+     */
+    static ThreadPoolExecutor newPartExecutor(String name, int maxThreads) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, name + "-part-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Lets running jobs finish, interrupting them if they take more than KeyMaster.STOP_TIMEOUT.
+     */
+    static void shutdownExecutor(ThreadPoolExecutor executorService) {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(KeyMaster.STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                log.warn("jobs still running after " + KeyMaster.STOP_TIMEOUT_SECONDS + " seconds, interrupting them");
+                executorService.shutdownNow();
+                executorService.awaitTermination(KeyMaster.STOP_TIMEOUT, TimeUnit.MILLISECONDS);
             }
+        } catch (InterruptedException e) {
+            log.error("interrupted while waiting for jobs to finish");
+            executorService.shutdownNow();
         }
     }
 
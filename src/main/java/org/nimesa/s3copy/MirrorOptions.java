@@ -6,15 +6,21 @@ import lombok.Getter;
 import lombok.Setter;
 import org.joda.time.DateTime;
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import static org.nimesa.s3copy.MirrorConstants.*;
 
-public class MirrorOptions implements AWSCredentials {
+public class MirrorOptions implements AWSCredentials, Cloneable {
 
     public static final String S3_PROTOCOL_PREFIX = "s3://";
+    public static final String FILE_PROTOCOL_PREFIX = "file://";
 
     public static final String AWS_ACCESS_KEY = "AWS_ACCESS_KEY_ID";
     public static final String AWS_SECRET_KEY = "AWS_SECRET_ACCESS_KEY";
@@ -99,12 +105,58 @@ public class MirrorOptions implements AWSCredentials {
     @Option(name=OPT_MAX_CONNECTIONS, aliases=LONGOPT_MAX_CONNECTIONS, usage=USAGE_MAX_CONNECTIONS)
     @Getter @Setter private int maxConnections = 100;
 
+    public static final String USAGE_SOURCE_MAX_CONNECTIONS = "Maximum number of connections to the source bucket (default is the value of "+LONGOPT_MAX_CONNECTIONS+")";
+    public static final String OPT_SOURCE_MAX_CONNECTIONS = "-ms";
+    public static final String LONGOPT_SOURCE_MAX_CONNECTIONS = "--source-max-connections";
+    @Option(name=OPT_SOURCE_MAX_CONNECTIONS, aliases=LONGOPT_SOURCE_MAX_CONNECTIONS, usage=USAGE_SOURCE_MAX_CONNECTIONS)
+    @Setter private int sourceMaxConnections = -1;
+    public int getSourceMaxConnections() { return sourceMaxConnections > 0 ? sourceMaxConnections : maxConnections; }
+
+    public static final String USAGE_DEST_MAX_CONNECTIONS = "Maximum number of connections to the destination bucket (default is the value of "+LONGOPT_MAX_CONNECTIONS+")";
+    public static final String OPT_DEST_MAX_CONNECTIONS = "-md";
+    public static final String LONGOPT_DEST_MAX_CONNECTIONS = "--dest-max-connections";
+    @Option(name=OPT_DEST_MAX_CONNECTIONS, aliases=LONGOPT_DEST_MAX_CONNECTIONS, usage=USAGE_DEST_MAX_CONNECTIONS)
+    @Setter private int destMaxConnections = -1;
+    public int getDestMaxConnections() { return destMaxConnections > 0 ? destMaxConnections : maxConnections; }
+
+    public static final String USAGE_CONNECTION_TTL = "Maximum time (in milliseconds) a pooled connection is kept, regardless of use (default -1, no limit)";
+    public static final String OPT_CONNECTION_TTL = "-ct";
+    public static final String LONGOPT_CONNECTION_TTL = "--connection-ttl";
+    @Option(name=OPT_CONNECTION_TTL, aliases=LONGOPT_CONNECTION_TTL, usage=USAGE_CONNECTION_TTL)
+    @Getter @Setter private long connectionTtl = -1;
+
+    public static final String USAGE_CONNECTION_MAX_IDLE = "Time (in milliseconds) after which an idle pooled connection is evicted (default 60000)";
+    public static final String OPT_CONNECTION_MAX_IDLE = "-ci";
+    public static final String LONGOPT_CONNECTION_MAX_IDLE = "--connection-max-idle";
+    @Option(name=OPT_CONNECTION_MAX_IDLE, aliases=LONGOPT_CONNECTION_MAX_IDLE, usage=USAGE_CONNECTION_MAX_IDLE)
+    @Getter @Setter private long connectionMaxIdle = 60000;
+
+    public static final String USAGE_TCP_KEEP_ALIVE = "Enable TCP keep-alive on pooled connections";
+    public static final String OPT_TCP_KEEP_ALIVE = "-k";
+    public static final String LONGOPT_TCP_KEEP_ALIVE = "--tcp-keep-alive";
+    @Option(name=OPT_TCP_KEEP_ALIVE, aliases=LONGOPT_TCP_KEEP_ALIVE, usage=USAGE_TCP_KEEP_ALIVE)
+    @Getter @Setter private boolean tcpKeepAlive = false;
+
     public static final String USAGE_MAX_THREADS = "Maximum number of threads (default 100)";
     public static final String OPT_MAX_THREADS = "-t";
     public static final String LONGOPT_MAX_THREADS = "--max-threads";
     @Option(name=OPT_MAX_THREADS, aliases=LONGOPT_MAX_THREADS, usage=USAGE_MAX_THREADS)
     @Getter @Setter private int maxThreads = 100;
 
+    public static final String USAGE_LIST_PAGE_SIZE = "Number of keys to request per listing call, at most 1000 (default is the value of "+LONGOPT_MAX_THREADS+")";
+    public static final String OPT_LIST_PAGE_SIZE = "-g";
+    public static final String LONGOPT_LIST_PAGE_SIZE = "--list-page-size";
+    @Option(name=OPT_LIST_PAGE_SIZE, aliases=LONGOPT_LIST_PAGE_SIZE, usage=USAGE_LIST_PAGE_SIZE)
+    @Setter private int listPageSize = -1;
+    public int getListPageSize() { return listPageSize > 0 ? listPageSize : maxThreads; }
+
+    public static final String USAGE_AUTO_TUNE = "Before mirroring, sample the source bucket and measure request throughput to pick "
+            +LONGOPT_MAX_THREADS+", "+LONGOPT_MAX_CONNECTIONS+", "+LONGOPT_LIST_PAGE_SIZE+" and the multipart part size. Overrides those options";
+    public static final String OPT_AUTO_TUNE = "-T";
+    public static final String LONGOPT_AUTO_TUNE = "--auto-tune";
+    @Option(name=OPT_AUTO_TUNE, aliases=LONGOPT_AUTO_TUNE, usage=USAGE_AUTO_TUNE)
+    @Getter @Setter private boolean autoTune = false;
+
     public static final String USAGE_MAX_RETRIES = "Maximum number of retries for S3 requests (default 5)";
     public static final String OPT_MAX_RETRIES = "-r";
     public static final String LONGOPT_MAX_RETRIES = "--max-retries";
@@ -197,12 +249,32 @@ public class MirrorOptions implements AWSCredentials {
     @Option(name=OPT_DELETE_REMOVED, aliases=LONGOPT_DELETE_REMOVED, usage=USAGE_DELETE_REMOVED)
     @Getter @Setter private boolean deleteRemoved = false;
 
-    @Argument(index=0, required=true, usage="source bucket[/source/prefix]") @Getter @Setter private String source;
-    @Argument(index=1, required=true, usage="destination bucket[/dest/prefix]") @Getter @Setter private String destination;
+    public static final String USAGE_ASYNC = "Use the non-blocking async engine (AWS SDK v2) instead of one thread per in-flight request";
+    public static final String OPT_ASYNC = "-A";
+    public static final String LONGOPT_ASYNC = "--async";
+    @Option(name=OPT_ASYNC, aliases=LONGOPT_ASYNC, usage=USAGE_ASYNC)
+    @Getter @Setter private boolean async = false;
+
+    public static final String USAGE_MAX_IN_FLIGHT = "Maximum number of keys in progress at once when using "+LONGOPT_ASYNC+" (default 1000)";
+    public static final String OPT_MAX_IN_FLIGHT = "-F";
+    public static final String LONGOPT_MAX_IN_FLIGHT = "--max-in-flight";
+    @Option(name=OPT_MAX_IN_FLIGHT, aliases=LONGOPT_MAX_IN_FLIGHT, usage=USAGE_MAX_IN_FLIGHT)
+    @Getter @Setter private int maxInFlight = 1000;
 
+    // required, except in batch mode where every job names its own (checked in initDerivedFields)
+    @Argument(index=0, usage="source bucket[/source/prefix], or "+FILE_PROTOCOL_PREFIX+"/local/directory") @Getter @Setter private String source;
+    @Argument(index=1, usage="destination bucket[/dest/prefix], or "+FILE_PROTOCOL_PREFIX+"/local/directory") @Getter @Setter private String destination;
+
+    /**
+     * For a local directory, its absolute path
+     */
     @Getter private String sourceBucket;
     @Getter private String destinationBucket;
 
+    @Getter private boolean localSource = false;
+    @Getter private boolean localDestination = false;
+    public boolean hasLocalSide() { return localSource || localDestination; }
+
     /**
      * Current max file size allowed in amazon is 5 GB. We can try and provide this as an option too.
      */
@@ -225,19 +297,377 @@ public class MirrorOptions implements AWSCredentials {
     @Option(name=OPT_CROSS_ACCOUNT_COPY, aliases=LONGOPT_CROSS_ACCOUNT_COPY, usage=CROSS_ACCOUNT_USAGE)
     @Getter @Setter private boolean crossAccountCopy = false;
 
+    private static final String JOURNAL_USAGE = "Record progress in this checkpoint journal file, so an interrupted run can be continued with --resume";
+    private static final String OPT_JOURNAL = "-j";
+    private static final String LONGOPT_JOURNAL = "--journal";
+    @Option(name=OPT_JOURNAL, aliases=LONGOPT_JOURNAL, usage=JOURNAL_USAGE)
+    @Getter @Setter private String journal = null;
+
+    private static final String RESUME_USAGE = "Resume an interrupted run from its checkpoint journal: listing restarts at the last safe position "
+            + "and keys already confirmed are skipped. Progress keeps being recorded in the same journal";
+    private static final String OPT_RESUME = "-R";
+    private static final String LONGOPT_RESUME = "--resume";
+    @Option(name=OPT_RESUME, aliases=LONGOPT_RESUME, usage=RESUME_USAGE)
+    @Getter @Setter private String resume = null;
+
+    public boolean hasJournal() { return journal != null || resume != null; }
+    public String getJournalFile() { return resume != null ? resume : journal; }
+
+    private static final String DEST_INDEX_USAGE = "Keep what is known about the destination keys in this local index file between runs. "
+            + "Keys the index shows as unchanged are skipped without a HEAD request";
+    private static final String OPT_DEST_INDEX = "-I";
+    private static final String LONGOPT_DEST_INDEX = "--dest-index";
+    @Option(name=OPT_DEST_INDEX, aliases=LONGOPT_DEST_INDEX, usage=DEST_INDEX_USAGE)
+    @Getter @Setter private String destIndex = null;
+    public boolean hasDestIndex() { return destIndex != null; }
+
+    private static final String DEST_INDEX_MAX_AGE_USAGE = "Index entries older than this many hours are checked against S3 again (default 24, -1 to always trust the index)";
+    private static final String OPT_DEST_INDEX_MAX_AGE = "-Ia";
+    private static final String LONGOPT_DEST_INDEX_MAX_AGE = "--dest-index-max-age";
+    @Option(name=OPT_DEST_INDEX_MAX_AGE, aliases=LONGOPT_DEST_INDEX_MAX_AGE, usage=DEST_INDEX_MAX_AGE_USAGE)
+    @Getter @Setter private int destIndexMaxAge = 24;
+
+    private static final String INCREMENTAL_USAGE = "Incremental mode: keep a watermark per bucket pair in this state file, and only process keys "
+            + "modified since the last run that completed without errors";
+    private static final String OPT_INCREMENTAL = "-w";
+    private static final String LONGOPT_INCREMENTAL = "--incremental";
+    @Option(name=OPT_INCREMENTAL, aliases=LONGOPT_INCREMENTAL, usage=INCREMENTAL_USAGE)
+    @Getter @Setter private String incremental = null;
+    public boolean hasIncremental() { return incremental != null; }
+
+    private static final String INCREMENTAL_OVERLAP_USAGE = "With "+LONGOPT_INCREMENTAL+", also process keys modified up to this many minutes before the watermark (default 60)";
+    private static final String OPT_INCREMENTAL_OVERLAP = "-wo";
+    private static final String LONGOPT_INCREMENTAL_OVERLAP = "--incremental-overlap";
+    @Option(name=OPT_INCREMENTAL_OVERLAP, aliases=LONGOPT_INCREMENTAL_OVERLAP, usage=INCREMENTAL_OVERLAP_USAGE)
+    @Getter @Setter private int incrementalOverlap = 60;
+
+    private static final String STALE_UPLOAD_AGE_USAGE = "Abort multipart uploads under the destination prefix initiated more than this many hours ago, "
+            + "and uploads to a key being copied that can never be resumed (started before its source changed), whoever started them "
+            + "(default 168, -1 to never abort)";
+    private static final String OPT_STALE_UPLOAD_AGE = "-sa";
+    private static final String LONGOPT_STALE_UPLOAD_AGE = "--stale-upload-age";
+    @Option(name=OPT_STALE_UPLOAD_AGE, aliases=LONGOPT_STALE_UPLOAD_AGE, usage=STALE_UPLOAD_AGE_USAGE)
+    @Getter @Setter private int staleUploadAge = 168;
+
+    private static final String MANIFEST_USAGE = "Write the outcome for every key (copied, skipped, deleted or failed, with bytes, latency and error class) "
+            + "to this file, as gzipped JSON lines";
+    private static final String OPT_MANIFEST = "-M";
+    private static final String LONGOPT_MANIFEST = "--manifest";
+    @Option(name=OPT_MANIFEST, aliases=LONGOPT_MANIFEST, usage=MANIFEST_USAGE)
+    @Getter @Setter private String manifest = null;
+
+    private static final String DAEMON_USAGE = "Daemon mode: keep running, and start a mirror every this many seconds. "
+            + "Clients, connection pools and the destination index stay warm between cycles, and cycles never overlap";
+    private static final String OPT_DAEMON = "-dm";
+    private static final String LONGOPT_DAEMON = "--daemon";
+    @Option(name=OPT_DAEMON, aliases=LONGOPT_DAEMON, usage=DAEMON_USAGE)
+    @Getter @Setter private int daemon = 0;
+    public boolean isDaemon() { return daemon > 0; }
+
+    private static final String EVENTS_USAGE = "Event-driven mode: instead of listing the source, mirror the keys named by the S3 event notifications "
+            + "(ObjectCreated/ObjectRemoved) written to this directory, until stopped";
+    private static final String OPT_EVENTS = "-ev";
+    private static final String LONGOPT_EVENTS = "--events";
+    @Option(name=OPT_EVENTS, aliases=LONGOPT_EVENTS, usage=EVENTS_USAGE)
+    @Getter @Setter private String events = null;
+    public boolean hasEvents() { return events != null; }
+
+    private static final String EVENT_WINDOW_USAGE = "With "+LONGOPT_EVENTS+", wait this many milliseconds after the first event for a key, "
+            + "and only act on the latest one (default 2000)";
+    private static final String OPT_EVENT_WINDOW = "-ew";
+    private static final String LONGOPT_EVENT_WINDOW = "--event-window";
+    @Option(name=OPT_EVENT_WINDOW, aliases=LONGOPT_EVENT_WINDOW, usage=EVENT_WINDOW_USAGE)
+    @Getter @Setter private long eventWindow = 2000;
+
+    private static final String JOBS_USAGE = "Batch mode: run every job in this file concurrently, on one thread pool of "+LONGOPT_MAX_THREADS+" threads "
+            + "taking turns between the jobs, and one connection pool per region. One job per line: [options] source destination, "
+            + "the options overriding those given on the command line. Connection settings (credentials, endpoint, proxy, pool size) "
+            + "are the command line ones for every job";
+    private static final String OPT_JOBS = "-J";
+    private static final String LONGOPT_JOBS = "--jobs";
+    @Option(name=OPT_JOBS, aliases=LONGOPT_JOBS, usage=JOBS_USAGE)
+    @Getter @Setter private String jobs = null;
+    public boolean hasJobs() { return jobs != null; }
+
+    private static final String STREAM_USAGE = "Copy objects by streaming them through this process (ranged GETs on the source, PUTs or multipart uploads "
+            + "on the destination) instead of server-side copies. Implied by --dest-endpoint and --dest-profile";
+    private static final String OPT_STREAM = "-st";
+    private static final String LONGOPT_STREAM = "--stream";
+    @Option(name=OPT_STREAM, aliases=LONGOPT_STREAM, usage=STREAM_USAGE)
+    @Getter @Setter private boolean stream = false;
+    public boolean isStreaming() { return stream || hasSeparateDestination(); }
+
+    private static final String BUFFER_MEMORY_USAGE = "The most memory (in MB) that buffers for data passing through this process (streamed objects, "
+            + "local directories) may take, off the heap. Transfers wait for a buffer rather than exceed it. The JVM's -XX:MaxDirectMemorySize "
+            + "must be at least this (default 512)";
+    private static final String OPT_BUFFER_MEMORY = "-bm";
+    private static final String LONGOPT_BUFFER_MEMORY = "--buffer-memory";
+    @Option(name=OPT_BUFFER_MEMORY, aliases=LONGOPT_BUFFER_MEMORY, usage=BUFFER_MEMORY_USAGE)
+    @Getter @Setter private int bufferMemory = 512;
+
+    private static final String CHECKSUM_USAGE = "Verify copies with this content checksum (CRC32C or SHA256), as kept by S3 with the objects: "
+            + "requested on copies and uploads, and compared from the metadata of both sides. Data passing through this process is "
+            + "checksummed on the way. Where S3 has no comparable checksums for both sides, sizes are compared";
+    private static final String OPT_CHECKSUM = "-cs";
+    private static final String LONGOPT_CHECKSUM = "--checksum";
+    @Option(name=OPT_CHECKSUM, aliases=LONGOPT_CHECKSUM, usage=CHECKSUM_USAGE)
+    @Getter @Setter private ContentChecksum.Algorithm checksum = null;
+    public boolean hasChecksum() { return checksum != null; }
+
+    private static final String VERIFY_USAGE = "How copies are checked, after the fact and on threads of their own: NONE (a successful copy request is enough), "
+            + "SAMPLED (a share of the copies, with a HEAD each) or FULL (every copy, against listings of the destination; with "+LONGOPT_CHECKSUM+", "
+            + "with a HEAD each, as listings have no checksums). Copies that do not check out are copied again. Transfers through this process "
+            + "are checked on the way instead (default FULL)";
+    private static final String OPT_VERIFY = "-vf";
+    private static final String LONGOPT_VERIFY = "--verify";
+    @Option(name=OPT_VERIFY, aliases=LONGOPT_VERIFY, usage=VERIFY_USAGE)
+    @Getter @Setter private CopyVerifier.Mode verify = CopyVerifier.Mode.FULL;
+
+    private static final String VERIFY_SAMPLE_USAGE = "Percentage of the copies checked with "+LONGOPT_VERIFY+" SAMPLED (default 1)";
+    private static final String OPT_VERIFY_SAMPLE = "-vs";
+    private static final String LONGOPT_VERIFY_SAMPLE = "--verify-sample";
+    @Option(name=OPT_VERIFY_SAMPLE, aliases=LONGOPT_VERIFY_SAMPLE, usage=VERIFY_SAMPLE_USAGE)
+    @Getter @Setter private double verifySample = 1;
+
+    private static final String VERIFY_THREADS_USAGE = "Threads checking copies for "+LONGOPT_VERIFY+". When they fall too far behind, "
+            + "the copy threads check their own copies (default 4)";
+    private static final String OPT_VERIFY_THREADS = "-vt";
+    private static final String LONGOPT_VERIFY_THREADS = "--verify-threads";
+    @Option(name=OPT_VERIFY_THREADS, aliases=LONGOPT_VERIFY_THREADS, usage=VERIFY_THREADS_USAGE)
+    @Getter @Setter private int verifyThreads = 4;
+
+    private static final String COMPRESS_USAGE = "Gzip objects on their way to the destination, when they are streamed or uploaded from a local directory "
+            + "(server-side copies cannot change the data). Compressed objects get Content-Encoding: gzip, and keep their original size "
+            + "and checksum in their metadata. Only objects of the content types chosen with the options below are compressed";
+    private static final String OPT_COMPRESS = "-gz";
+    private static final String LONGOPT_COMPRESS = "--compress";
+    @Option(name=OPT_COMPRESS, aliases=LONGOPT_COMPRESS, usage=COMPRESS_USAGE)
+    @Getter @Setter private boolean compress = false;
+
+    private static final String COMPRESS_TYPES_USAGE = "Content types to compress with "+LONGOPT_COMPRESS+", comma-separated, \"type/*\" for a whole type. "
+            + "Files, and objects without a content type, are typed by their extension (default "+Compression.DEFAULT_TYPES+")";
+    private static final String OPT_COMPRESS_TYPES = "-gt";
+    private static final String LONGOPT_COMPRESS_TYPES = "--compress-types";
+    @Option(name=OPT_COMPRESS_TYPES, aliases=LONGOPT_COMPRESS_TYPES, usage=COMPRESS_TYPES_USAGE)
+    @Getter @Setter private String compressTypes = Compression.DEFAULT_TYPES;
+
+    private static final String COMPRESS_EXCLUDE_USAGE = "Content types not to compress with "+LONGOPT_COMPRESS+", even if "+LONGOPT_COMPRESS_TYPES+" has them, comma-separated";
+    private static final String OPT_COMPRESS_EXCLUDE = "-gx";
+    private static final String LONGOPT_COMPRESS_EXCLUDE = "--compress-exclude";
+    @Option(name=OPT_COMPRESS_EXCLUDE, aliases=LONGOPT_COMPRESS_EXCLUDE, usage=COMPRESS_EXCLUDE_USAGE)
+    @Getter @Setter private String compressExclude = null;
+
+    private static final String DECOMPRESS_USAGE = "Gunzip objects that were compressed with "+LONGOPT_COMPRESS+" when downloading them to a local directory, "
+            + "checking their original size and checksum";
+    private static final String OPT_DECOMPRESS = "-gd";
+    private static final String LONGOPT_DECOMPRESS = "--decompress";
+    @Option(name=OPT_DECOMPRESS, aliases=LONGOPT_DECOMPRESS, usage=DECOMPRESS_USAGE)
+    @Getter @Setter private boolean decompress = false;
+
+    private static final String PLAN_USAGE = "Plan a mirror from listings of both sides alone, without a request per key, and save the plan to this file: "
+            + "what to copy, skip and delete (with "+LONGOPT_DELETE_REMOVED+"), by size and by prefix, the requests it will take and an estimated "
+            + "duration. Nothing is copied or deleted";
+    private static final String OPT_PLAN = "-pl";
+    private static final String LONGOPT_PLAN = "--plan";
+    @Option(name=OPT_PLAN, aliases=LONGOPT_PLAN, usage=PLAN_USAGE)
+    @Getter @Setter private String plan = null;
+    public boolean hasPlan() { return plan != null; }
+
+    private static final String RUN_PLAN_USAGE = "Carry out a plan saved by "+LONGOPT_PLAN+" instead of listing: its keys are copied without a look at "
+            + "the destination first, and its deletes are made (with "+LONGOPT_DELETE_REMOVED+") once the source is checked for them";
+    private static final String OPT_RUN_PLAN = "-rp";
+    private static final String LONGOPT_RUN_PLAN = "--run-plan";
+    @Option(name=OPT_RUN_PLAN, aliases=LONGOPT_RUN_PLAN, usage=RUN_PLAN_USAGE)
+    @Getter @Setter private String runPlan = null;
+    public boolean hasRunPlan() { return runPlan != null; }
+
+    private static final String BACKEND_USAGE = "What stands in for S3, on both sides: S3 itself, MEMORY (buckets on the heap of this process, "
+            + "gone when it exits) or DISK (buckets kept in --backend-dir). The latter two answer as S3 does and need no credentials, "
+            + "to run and profile a mirror of many keys without S3 (default S3)";
+    private static final String OPT_BACKEND = "-be";
+    private static final String LONGOPT_BACKEND = "--backend";
+    @Option(name=OPT_BACKEND, aliases=LONGOPT_BACKEND, usage=BACKEND_USAGE)
+    @Getter @Setter private ObjectStore.Backend backend = ObjectStore.Backend.S3;
+    public boolean hasSimulatedBackend() { return backend != ObjectStore.Backend.S3; }
+
+    private static final String BACKEND_DIR_USAGE = "Directory the buckets of "+LONGOPT_BACKEND+" DISK are kept in";
+    private static final String OPT_BACKEND_DIR = "-bd";
+    private static final String LONGOPT_BACKEND_DIR = "--backend-dir";
+    @Option(name=OPT_BACKEND_DIR, aliases=LONGOPT_BACKEND_DIR, usage=BACKEND_DIR_USAGE)
+    @Getter @Setter private String backendDir = null;
+
+    private static final String BACKEND_LATENCY_USAGE = "Milliseconds every request takes on top of its own, on average (between half and one and a half times this). "
+            + "Applies to any "+LONGOPT_BACKEND+" (default 0)";
+    private static final String OPT_BACKEND_LATENCY = "-bl";
+    private static final String LONGOPT_BACKEND_LATENCY = "--backend-latency";
+    @Option(name=OPT_BACKEND_LATENCY, aliases=LONGOPT_BACKEND_LATENCY, usage=BACKEND_LATENCY_USAGE)
+    @Getter @Setter private long backendLatency = 0;
+
+    private static final String BACKEND_ERRORS_USAGE = "Percentage of requests that fail with a 500 InternalError before reaching the "+LONGOPT_BACKEND+" (default 0)";
+    private static final String OPT_BACKEND_ERRORS = "-bx";
+    private static final String LONGOPT_BACKEND_ERRORS = "--backend-errors";
+    @Option(name=OPT_BACKEND_ERRORS, aliases=LONGOPT_BACKEND_ERRORS, usage=BACKEND_ERRORS_USAGE)
+    @Getter @Setter private double backendErrors = 0;
+
+    private static final String BACKEND_THROTTLE_USAGE = "Percentage of requests that are throttled with a 503 SlowDown before reaching the "+LONGOPT_BACKEND+" (default 0)";
+    private static final String OPT_BACKEND_THROTTLE = "-bt";
+    private static final String LONGOPT_BACKEND_THROTTLE = "--backend-throttle";
+    @Option(name=OPT_BACKEND_THROTTLE, aliases=LONGOPT_BACKEND_THROTTLE, usage=BACKEND_THROTTLE_USAGE)
+    @Getter @Setter private double backendThrottle = 0;
+    public boolean hasBackendFaults() { return backendLatency > 0 || backendErrors > 0 || backendThrottle > 0; }
+
+    private static final String SEED_KEYS_USAGE = "With "+LONGOPT_BACKEND+" MEMORY, fill the source (under its prefix) with this many objects first, "
+            + "1000 per \"directory\": their bytes are a pattern made up as they are read, they take next to no memory (default 0)";
+    private static final String OPT_SEED_KEYS = "-sk";
+    private static final String LONGOPT_SEED_KEYS = "--seed-keys";
+    @Option(name=OPT_SEED_KEYS, aliases=LONGOPT_SEED_KEYS, usage=SEED_KEYS_USAGE)
+    @Getter @Setter private long seedKeys = 0;
+
+    private static final String SEED_SIZE_USAGE = "Size in bytes of the objects of "+LONGOPT_SEED_KEYS+" (default 1024)";
+    private static final String OPT_SEED_SIZE = "-sz";
+    private static final String LONGOPT_SEED_SIZE = "--seed-size";
+    @Option(name=OPT_SEED_SIZE, aliases=LONGOPT_SEED_SIZE, usage=SEED_SIZE_USAGE)
+    @Getter @Setter private long seedSize = 1024;
+
+    private static final String PACK_USAGE = "Pack small objects (see --pack-max-object) into large archive objects under \".packs/\" in the destination, "
+            + "one or more per group of prefixes, each with an index of its own that any one object can be read back from with a ranged GET. "
+            + "Larger objects are copied as they are. For archival destinations, where requests and per-object overheads dominate";
+    private static final String OPT_PACK = "-pk";
+    private static final String LONGOPT_PACK = "--pack";
+    @Option(name=OPT_PACK, aliases=LONGOPT_PACK, usage=PACK_USAGE)
+    @Getter @Setter private boolean pack = false;
+
+    private static final String PACK_MAX_OBJECT_USAGE = "With "+LONGOPT_PACK+", objects smaller than this many bytes are packed (default 16384)";
+    private static final String OPT_PACK_MAX_OBJECT = "-pm";
+    private static final String LONGOPT_PACK_MAX_OBJECT = "--pack-max-object";
+    @Option(name=OPT_PACK_MAX_OBJECT, aliases=LONGOPT_PACK_MAX_OBJECT, usage=PACK_MAX_OBJECT_USAGE)
+    @Getter @Setter private long packMaxObject = 16384;
+
+    private static final String PACK_SIZE_USAGE = "With "+LONGOPT_PACK+", the size (in MB) an archive is written at (default 256)";
+    private static final String OPT_PACK_SIZE = "-pz";
+    private static final String LONGOPT_PACK_SIZE = "--pack-size";
+    @Option(name=OPT_PACK_SIZE, aliases=LONGOPT_PACK_SIZE, usage=PACK_SIZE_USAGE)
+    @Getter @Setter private int packSize = 256;
+
+    private static final String PACK_DEPTH_USAGE = "With "+LONGOPT_PACK+", how many \"directories\" of a key group it with others: objects of the "
+            + "same group go to the same archives (default 1)";
+    private static final String OPT_PACK_DEPTH = "-pd";
+    private static final String LONGOPT_PACK_DEPTH = "--pack-depth";
+    @Option(name=OPT_PACK_DEPTH, aliases=LONGOPT_PACK_DEPTH, usage=PACK_DEPTH_USAGE)
+    @Getter @Setter private int packDepth = 1;
+
+    private static final String UNPACK_USAGE = "Restore what "+LONGOPT_PACK+" made: the source is where it packed to, the objects in its archives "
+            + "are extracted with a ranged GET each, the others copied as they are";
+    private static final String OPT_UNPACK = "-up";
+    private static final String LONGOPT_UNPACK = "--unpack";
+    @Option(name=OPT_UNPACK, aliases=LONGOPT_UNPACK, usage=UNPACK_USAGE)
+    @Getter @Setter private boolean unpack = false;
+
+    public static final String DEST_AWS_ENDPOINT = "DEST_AWS_ENDPOINT";
+    public static final String DEST_AWS_ACCESS_KEY = "DEST_AWS_ACCESS_KEY_ID";
+    public static final String DEST_AWS_SECRET_KEY = "DEST_AWS_SECRET_ACCESS_KEY";
+    @Getter @Setter private String destAWSAccessKeyId = System.getenv().get(DEST_AWS_ACCESS_KEY);
+    @Getter @Setter private String destAWSSecretKey = System.getenv().get(DEST_AWS_SECRET_KEY);
+
+    public boolean hasDestAwsKeys() { return destAWSAccessKeyId != null && destAWSSecretKey != null; }
+
+    private static final String DEST_ENDPOINT_USAGE = "Endpoint of the destination, when it is not the source's (or set "+DEST_AWS_ENDPOINT+" in your environment). "
+            + "Objects are then streamed through this process, see "+LONGOPT_STREAM;
+    private static final String OPT_DEST_ENDPOINT = "-de";
+    private static final String LONGOPT_DEST_ENDPOINT = "--dest-endpoint";
+    @Option(name=OPT_DEST_ENDPOINT, aliases=LONGOPT_DEST_ENDPOINT, usage=DEST_ENDPOINT_USAGE)
+    @Getter @Setter private String destEndpoint = System.getenv().get(DEST_AWS_ENDPOINT);
+    public boolean hasDestEndpoint() { return destEndpoint != null && destEndpoint.trim().length() > 0; }
+
+    private static final String DEST_PROFILE_USAGE = "Credentials for the destination, from this profile of ~/.aws/credentials or ~/.aws/config "
+            + "(or set "+DEST_AWS_ACCESS_KEY+" and "+DEST_AWS_SECRET_KEY+" in your environment). Objects are then streamed through this process, see "+LONGOPT_STREAM;
+    private static final String OPT_DEST_PROFILE = "-dP";
+    private static final String LONGOPT_DEST_PROFILE = "--dest-profile";
+    @Option(name=OPT_DEST_PROFILE, aliases=LONGOPT_DEST_PROFILE, usage=DEST_PROFILE_USAGE)
+    @Getter @Setter private String destProfile = null;
+
+    /**
+     * @return true if the destination is reached with its own endpoint or credentials, so the source's cannot be used to copy server-side
+     */
+    public boolean hasSeparateDestination() { return hasDestEndpoint() || destProfile != null || hasDestAwsKeys(); }
+
+
+    public static final String CROSS_ACCOUNT_SUFFIX = ",cross-account";
+    private static final String ALSO_TO_USAGE = "Additional destination bucket[/dest/prefix] that receives the same keys, from the same source listing. "
+            + "Can be repeated. Append \""+CROSS_ACCOUNT_SUFFIX+"\" to copy to that destination as with "+LONGOPT_CROSS_ACCOUNT_COPY;
+    private static final String OPT_ALSO_TO = "-D";
+    private static final String LONGOPT_ALSO_TO = "--also-to";
+    @Option(name=OPT_ALSO_TO, aliases=LONGOPT_ALSO_TO, usage=ALSO_TO_USAGE)
+    @Getter @Setter private List<String> alsoTo = new ArrayList<>();
+
+    /**
+     * @param spec an additional destination, as given to --also-to
+     * @return a copy of these options that mirrors to that destination instead
+     */
+    public MirrorOptions forDestination(String spec) {
+        final MirrorOptions copy;
+        try {
+            copy = (MirrorOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("forDestination: "+e, e);
+        }
+        copy.alsoTo = new ArrayList<>();
+        copy.crossAccountCopy = spec.endsWith(CROSS_ACCOUNT_SUFFIX);
+        copy.destination = copy.crossAccountCopy ? spec.substring(0, spec.length() - CROSS_ACCOUNT_SUFFIX.length()) : spec;
+        if (isLocal(copy.destination)) throw new IllegalArgumentException(LONGOPT_ALSO_TO+" only supports buckets: "+spec);
+
+        final String scrubbed = scrubS3ProtocolPrefix(copy.destination);
+        final int slashPos = scrubbed.indexOf('/');
+        if (slashPos == -1) {
+            copy.destinationBucket = scrubbed;
+            copy.destPrefix = null;
+        } else {
+            copy.destinationBucket = scrubbed.substring(0, slashPos);
+            copy.destPrefix = scrubbed.substring(slashPos+1);
+        }
+        return copy;
+    }
+
+    /**
+     * @param args the options and source/destination of one line of a job file
+     * @return a copy of these options, with the job's own on top
+     */
+    public MirrorOptions forJob(String[] args) throws CmdLineException {
+        final MirrorOptions copy;
+        try {
+            copy = (MirrorOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("forJob: "+e, e);
+        }
+        copy.alsoTo = new ArrayList<>(alsoTo);
+        copy.jobs = null;
+        new CmdLineParser(copy).parseArgument(args);
+        copy.initDerivedFields();
+        return copy;
+    }
+
     public void initDerivedFields() {
 
-        if (hasCtime()) {
-            this.maxAge = initMaxAge();
-            this.maxAgeDate = new Date(maxAge).toString();
+        refreshMaxAge();
+
+        if (hasJobs()) {
+            if (source != null) throw new IllegalArgumentException("Cannot use a "+OPT_JOBS+"/"+LONGOPT_JOBS+" argument and a source/destination at the same time");
+            return;
         }
+        if (source == null || destination == null) throw new IllegalArgumentException("A source and a destination are required");
 
         String scrubbed;
         int slashPos;
 
+        localSource = isLocal(source);
+        localDestination = isLocal(destination);
+
         scrubbed = scrubS3ProtocolPrefix(source);
         slashPos = scrubbed.indexOf('/');
-        if (slashPos == -1) {
+        if (localSource) {
+            // the whole path is the "bucket", use --prefix to narrow it down
+            sourceBucket = toLocalPath(source);
+        } else if (slashPos == -1) {
             sourceBucket = scrubbed;
         } else {
             sourceBucket = scrubbed.substring(0, slashPos);
@@ -247,7 +677,9 @@ public class MirrorOptions implements AWSCredentials {
 
         scrubbed = scrubS3ProtocolPrefix(destination);
         slashPos = scrubbed.indexOf('/');
-        if (slashPos == -1) {
+        if (localDestination) {
+            destinationBucket = toLocalPath(destination);
+        } else if (slashPos == -1) {
             destinationBucket = scrubbed;
         } else {
             destinationBucket = scrubbed.substring(0, slashPos);
@@ -256,6 +688,26 @@ public class MirrorOptions implements AWSCredentials {
         }
     }
 
+    /**
+     * Recomputes the ctime cutoff from the current time, for runs that repeat (see --daemon)
+     */
+    public void refreshMaxAge() {
+        if (hasCtime()) {
+            this.maxAge = initMaxAge();
+            this.maxAgeDate = new Date(maxAge).toString();
+        }
+    }
+
+    public static boolean isLocal(String spec) {
+        return spec.trim().startsWith(FILE_PROTOCOL_PREFIX);
+    }
+
+    private static String toLocalPath(String spec) {
+        final String path = spec.trim().substring(FILE_PROTOCOL_PREFIX.length());
+        if (path.isEmpty()) throw new IllegalArgumentException("No directory in " + spec);
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
     protected String scrubS3ProtocolPrefix(String bucket) {
         bucket = bucket.trim();
         if (bucket.startsWith(S3_PROTOCOL_PREFIX)) {
@@ -0,0 +1,263 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A plan made from listings alone (see MirrorPlanner): the source keys to copy and the destination keys
+ * to delete, in key order, saved so a later run can carry it out without listing either side again.
+ *
+ * The file is gzipped: a header with the buckets and prefixes it is for, one record per key, and an end
+ * record with the counts. A plan without its end record was interrupted while it was being made, and
+ * is refused. It is written to a temporary file first, which replaces the plan once it is complete.
+ */
+@Slf4j
+public class MirrorPlan {
+
+    public enum Action { COPY, DELETE }
+
+    private static final int MAGIC = 0x53335054; // "S3PT"
+    private static final byte COPY = 'C';
+    private static final byte DELETE = 'D';
+    private static final byte END = 'E';
+
+    private final File file;
+    @Getter private final long created;
+    @Getter private final boolean deletes;
+    @Getter private long copyCount;
+    @Getter private long deleteCount;
+
+    /**
+     * Opens a saved plan, checking it is complete and made for the buckets and prefixes of these options
+     */
+    public MirrorPlan(File file, MirrorOptions options) throws IOException {
+        this.file = file;
+        try (DataInputStream in = open(file)) {
+            final Header header = Header.read(in);
+            final Header expected = new Header(options, 0, false);
+            if (!header.sameSides(expected)) {
+                throw new IllegalArgumentException("plan " + file + " is for " + header + ", not " + expected);
+            }
+            created = header.created;
+            deletes = header.deletes;
+            while (true) {
+                final byte type = in.readByte();
+                if (type == END) {
+                    copyCount = in.readLong();
+                    deleteCount = in.readLong();
+                    break;
+                }
+                readRecord(type, in);
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("plan " + file + " is incomplete, it was interrupted while being made");
+        }
+        log.info("loaded plan " + file + " made " + new Date(created) + ": " + copyCount + " keys to copy, " + deleteCount + " to delete");
+        if (options.isDeleteRemoved() && !deletes) {
+            log.warn("plan " + file + " was made without " + MirrorOptions.LONGOPT_DELETE_REMOVED + ", it deletes nothing");
+        }
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 64 * 1024)));
+        if (in.readInt() != MAGIC) {
+            in.close();
+            throw new IllegalArgumentException(file + " is not a plan");
+        }
+        return in;
+    }
+
+    /**
+     * @return the record's key as a summary, for a copy (in the source) or a delete (in the destination)
+     */
+    private static S3VersionSummary readRecord(byte type, DataInputStream in) throws IOException {
+        final S3VersionSummary summary = new S3VersionSummary();
+        summary.setKey(in.readUTF());
+        summary.setSize(in.readLong());
+        summary.setIsLatest(true);
+        if (type == COPY) {
+            final long lastModified = in.readLong();
+            if (lastModified >= 0) summary.setLastModified(new Date(lastModified));
+            summary.setETag(emptyToNull(in.readUTF()));
+            summary.setStorageClass(emptyToNull(in.readUTF()));
+        } else if (type != DELETE) {
+            throw new IOException("unknown record type " + type);
+        }
+        return summary;
+    }
+
+    private static String emptyToNull(String s) { return s.isEmpty() ? null : s; }
+
+    private static String nullToEmpty(String s) { return s == null ? "" : s; }
+
+    /**
+     * @return a lister that feeds the keys the plan has for this action to a KeyMaster, in place of a listing
+     */
+    public KeyLister newLister(MirrorContext context, int maxQueueCapacity, Action action) {
+        return new Lister(context, maxQueueCapacity, action);
+    }
+
+    private class Lister extends KeyLister {
+        private final Action action;
+
+        Lister(MirrorContext context, int maxQueueCapacity, Action action) {
+            super(context, maxQueueCapacity);
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            final byte wanted = action == Action.COPY ? COPY : DELETE;
+            final int pageSize = context.getOptions().getListPageSize();
+            boolean completed = false;
+            log.info("reading the keys to " + action.name().toLowerCase() + " from plan " + file + "...");
+            try (DataInputStream in = open(file)) {
+                Header.read(in);
+                List<S3VersionSummary> page = new ArrayList<>(pageSize);
+                byte type;
+                while ((type = in.readByte()) != END) {
+                    final S3VersionSummary summary = readRecord(type, in);
+                    if (type != wanted) continue;
+                    page.add(summary);
+                    if (page.size() >= pageSize) {
+                        if (!addPage(page)) return;
+                        page = new ArrayList<>(pageSize);
+                    }
+                }
+                if (!page.isEmpty() && !addPage(page)) return;
+                completed = true;
+
+            } catch (InterruptedException e) {
+                log.error("interrupted!");
+
+            } catch (Exception e) {
+                log.error("Error reading plan " + file + ", lister thread now exiting: " + e);
+
+            } finally {
+                listingDone(completed);
+            }
+        }
+    }
+
+    /**
+     * What a plan is for: the sides, and whether it looked for keys to delete
+     */
+    private static class Header {
+        final String sourceBucket;
+        final String prefix;
+        final String destinationBucket;
+        final String destPrefix;
+        final long created;
+        final boolean deletes;
+
+        Header(MirrorOptions options, long created, boolean deletes) {
+            this(options.getSourceBucket(), nullToEmpty(options.getPrefix()), options.getDestinationBucket(), nullToEmpty(options.getDestPrefix()), created, deletes);
+        }
+
+        Header(String sourceBucket, String prefix, String destinationBucket, String destPrefix, long created, boolean deletes) {
+            this.sourceBucket = sourceBucket;
+            this.prefix = prefix;
+            this.destinationBucket = destinationBucket;
+            this.destPrefix = destPrefix;
+            this.created = created;
+            this.deletes = deletes;
+        }
+
+        static Header read(DataInputStream in) throws IOException {
+            return new Header(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), in.readBoolean());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(sourceBucket);
+            out.writeUTF(prefix);
+            out.writeUTF(destinationBucket);
+            out.writeUTF(destPrefix);
+            out.writeLong(created);
+            out.writeBoolean(deletes);
+        }
+
+        boolean sameSides(Header other) {
+            return sourceBucket.equals(other.sourceBucket) && prefix.equals(other.prefix)
+                    && destinationBucket.equals(other.destinationBucket) && destPrefix.equals(other.destPrefix);
+        }
+
+        @Override public String toString() {
+            return sourceBucket + "/" + prefix + " to " + destinationBucket + "/" + destPrefix;
+        }
+    }
+
+    /**
+     * Writes a plan, key by key, as it is made. Nothing replaces the plan file until close().
+     */
+    static class Writer implements AutoCloseable {
+        private final File file;
+        private final File tmp;
+        private final DataOutputStream out;
+        private long copies = 0;
+        private long deletes = 0;
+        private boolean finished = false;
+
+        Writer(File file, MirrorOptions options) throws IOException {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024)));
+            out.writeInt(MAGIC);
+            new Header(options, System.currentTimeMillis(), options.isDeleteRemoved()).write(out);
+        }
+
+        void copy(S3VersionSummary summary) throws IOException {
+            out.writeByte(COPY);
+            out.writeUTF(summary.getKey());
+            out.writeLong(summary.getSize());
+            out.writeLong(summary.getLastModified() == null ? -1 : summary.getLastModified().getTime());
+            out.writeUTF(nullToEmpty(summary.getETag()));
+            out.writeUTF(nullToEmpty(summary.getStorageClass()));
+            copies++;
+        }
+
+        /**
+         * @param key a key in the destination
+         */
+        void delete(String key, long size) throws IOException {
+            out.writeByte(DELETE);
+            out.writeUTF(key);
+            out.writeLong(size);
+            deletes++;
+        }
+
+        /**
+         * Marks the plan as complete; without this, close() leaves the plan file as it was
+         */
+        void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (finished) {
+                    out.writeByte(END);
+                    out.writeLong(copies);
+                    out.writeLong(deletes);
+                }
+            } finally {
+                out.close();
+            }
+            if (finished) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else if (!tmp.delete()) {
+                log.warn("could not delete incomplete plan " + tmp);
+            }
+        }
+    }
+}
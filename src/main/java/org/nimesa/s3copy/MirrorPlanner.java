@@ -0,0 +1,516 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategyFactory;
+import org.nimesa.s3copy.comparisonstrategies.SourceEtagComparisonStrategy;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.nimesa.s3copy.MirrorConstants.*;
+
+/**
+ * Plans a mirror from listings alone (--plan): the source and the destination are listed side by side,
+ * in key order, and each source key is compared with the destination's listing entry (or its entry in
+ * the destination index, if there is one) as a copy job would compare it with a HEAD. Nothing is
+ * copied or deleted, and no request is made per key.
+ *
+ * The plan is saved (see MirrorPlan) for --run-plan, and reported: keys and bytes to copy, skip and
+ * delete, the copies by size class and by top-level prefix, the requests carrying it out will take, and
+ * an estimated duration. The estimate comes from a few requests timed at the end: HEADs of sampled
+ * source keys for the latency of a request, and a ranged GET of the largest copy for the transfer rate.
+ * Server-side copies are assumed to go at that rate too, which they usually beat.
+ *
+ * Only the current version of each key is planned. Streamed copies that were compressed on their way
+ * are only known for what they are from their metadata: without a destination index, they are planned
+ * to be copied again.
+ */
+@Slf4j
+public class MirrorPlanner {
+
+    private static final long[] SIZE_CLASSES = {64 * KB, MB, 16 * MB, 256 * MB, MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE};
+    private static final String[] SIZE_CLASS_NAMES = {"< 64 KB", "64 KB - 1 MB", "1 MB - 16 MB", "16 MB - 256 MB", "256 MB - 5 GB", ">= 5 GB"};
+    // beyond this many, top-level prefixes are counted together
+    private static final int MAX_PREFIXES = 10000;
+    private static final int TOP_PREFIXES = 20;
+    private static final int SAMPLE_HEADS = 20;
+    private static final long SAMPLE_GET_BYTES = 8 * MB;
+    // keys per page of the listings a verification with --verify FULL takes, see CopyVerifier
+    private static final int VERIFY_PAGE = 1000;
+
+    private final MirrorClients clients;
+    private final MirrorContext context;
+    private final MirrorOptions options;
+    private final ComparisonStrategy comparisonStrategy;
+
+    /**
+     * Keys and bytes
+     */
+    private static class Tally {
+        long count = 0;
+        long bytes = 0;
+
+        void add(long size) {
+            count++;
+            bytes += size;
+        }
+
+        @Override public String toString() {
+            return count + " keys, " + MirrorStats.formatBytes(bytes);
+        }
+    }
+
+    /**
+     * Requests of each kind, as S3 bills them
+     */
+    private static class Requests {
+        long heads = 0;
+        long gets = 0;
+        long lists = 0;
+        // PUT, COPY and the POSTs of multipart uploads
+        long writes = 0;
+        long deletes = 0;
+
+        long total() { return heads + gets + lists + writes + deletes; }
+
+        @Override public String toString() {
+            return total() + " (HEAD " + heads + ", GET " + gets + ", LIST " + lists + ", PUT/COPY/POST " + writes + ", DELETE " + deletes + ")";
+        }
+    }
+
+    private final Tally source = new Tally();
+    private final Tally destination = new Tally();
+    private final Tally copyNew = new Tally();
+    private final Tally copyChanged = new Tally();
+    private final Tally skipInSync = new Tally();
+    private final Tally skipTooOld = new Tally();
+    private final Tally delete = new Tally();
+    private final Tally onlyAtDestination = new Tally();
+    private final Tally[] sizeClasses = new Tally[SIZE_CLASS_NAMES.length];
+    private final Map<String, Tally> prefixes = new HashMap<>();
+    private final Tally otherPrefixes = new Tally();
+
+    // what carrying out the plan takes, and what a run that lists would take on top of that
+    private final Requests requests = new Requests();
+    private long copyBytes = 0;
+    private long listingHeads = 0;
+    private long indexHits = 0;
+    // sampled copies make a fraction of a HEAD each
+    private double verificationHeads = 0;
+    // with --verify FULL, copies make a fraction of a listing each, see projectVerification()
+    private double verificationLists = 0;
+    private long verificationBatched = 0;
+    private long verificationLastDestination = 0;
+
+    private final List<String> sampleKeys = new ArrayList<>();
+    private S3VersionSummary largestCopy;
+
+    public MirrorPlanner(MirrorClients clients, MirrorContext context) {
+        this.clients = clients;
+        this.context = context;
+        this.options = context.getOptions();
+        // no request is made per key: only layouts already looked up are known not to be reproducible
+        final ComparisonStrategy strategy = ComparisonStrategyFactory.getStrategy(options, summary -> {
+            final Long partSize = context.getPartLayouts().getCached(summary);
+            return partSize == null || partSize > 0;
+        });
+        this.comparisonStrategy = options.isStreaming() ? new SourceEtagComparisonStrategy(strategy) : strategy;
+        for (int i = 0; i < sizeClasses.length; i++) sizeClasses[i] = new Tally();
+    }
+
+    public void plan() {
+        final long start = System.currentTimeMillis();
+        final File file = new File(options.getPlan());
+        final int capacity = MirrorMaster.getMaxQueueCapacity(options);
+        KeyLister sourceLister = null;
+        KeyLister destinationLister = null;
+        try {
+            sourceLister = new KeyLister(clients.getSourceClient(), context, capacity, options.getSourceBucket(), options.getPrefix());
+            destinationLister = new KeyLister(clients.getDestinationClient(), context, capacity, options.getDestinationBucket(),
+                    options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix());
+            new Thread(sourceLister, "plan-source-lister").start();
+            new Thread(destinationLister, "plan-destination-lister").start();
+
+            final Cursor sourceKeys = new Cursor(sourceLister);
+            final Cursor destinationKeys = new Cursor(destinationLister);
+            try (MirrorPlan.Writer writer = new MirrorPlan.Writer(file, options)) {
+                while (sourceKeys.current != null || destinationKeys.current != null) {
+                    if (context.isStopRequested()) {
+                        log.warn("plan: stopped, not saving the plan");
+                        return;
+                    }
+                    final int order = sourceKeys.current == null ? 1 : destinationKeys.current == null ? -1
+                            : compareKeys(relativeSourceKey(sourceKeys.current.getKey()), relativeDestinationKey(destinationKeys.current.getKey()));
+                    if (order < 0) {
+                        planCopy(writer, sourceKeys.current, null);
+                        sourceKeys.advance();
+                    } else if (order > 0) {
+                        planDelete(writer, destinationKeys.current);
+                        destinationKeys.advance();
+                    } else {
+                        planCopy(writer, sourceKeys.current, destinationKeys.current);
+                        sourceKeys.advance();
+                        destinationKeys.advance();
+                    }
+                }
+                if (!sourceLister.isCompleted() || !destinationLister.isCompleted()) {
+                    log.error("plan: listing failed, not saving the plan");
+                    return;
+                }
+                writer.finish();
+            }
+            final long listingMillis = System.currentTimeMillis() - start;
+
+            // a run that lists instead lists the source, and the destination with -X, page by page
+            final int pageSize = options.getListPageSize();
+            final long listings = (sourceKeys.versions + pageSize - 1) / pageSize + (options.isDeleteRemoved() ? (destinationKeys.versions + pageSize - 1) / pageSize : 0);
+            report(file, listingMillis, Math.max(listings, 1));
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
+        } catch (Exception e) {
+            log.error("Unexpected exception planning: " + e, e);
+
+        } finally {
+            if (sourceLister != null) sourceLister.stop();
+            if (destinationLister != null) destinationLister.stop();
+            context.closeResources();
+        }
+    }
+
+    public void stop() {
+        context.requestStop();
+    }
+
+    /**
+     * Walks the current objects of a listing, in key order
+     */
+    private static class Cursor {
+        private final KeyLister lister;
+        private List<KeyRecord> batch = Collections.emptyList();
+        private int next = 0;
+        // everything listed, old versions and delete markers included
+        long versions = 0;
+        S3VersionSummary current;
+
+        Cursor(KeyLister lister) throws InterruptedException {
+            this.lister = lister;
+            advance();
+        }
+
+        void advance() throws InterruptedException {
+            while (true) {
+                if (next >= batch.size()) {
+                    batch = lister.takeNextBatch();
+                    next = 0;
+                    if (batch.isEmpty()) {
+                        current = null;
+                        return;
+                    }
+                }
+                final S3VersionSummary summary = batch.get(next++).toSummary();
+                versions++;
+                if (summary.isLatest() && !summary.isDeleteMarker()) {
+                    current = summary;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * S3 lists keys in the order of their UTF-8 bytes, which is code point order, not that of String.compareTo
+     */
+    static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            final int ca = a.codePointAt(i);
+            final int cb = b.codePointAt(j);
+            if (ca != cb) return Integer.compare(ca, cb);
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    // keys of both sides, as they are mapped onto each other (see KeyCopyJob, KeyDeleteJob)
+    private String relativeSourceKey(String key) {
+        return options.hasDestPrefix() ? key.substring(options.getPrefixLength()) : key;
+    }
+
+    private String relativeDestinationKey(String key) {
+        return options.hasDestPrefix() ? key.substring(options.getDestPrefixLength()) : key;
+    }
+
+    /**
+     * @param listed the destination's listing entry for the key, or null if it has none
+     */
+    private void planCopy(MirrorPlan.Writer writer, S3VersionSummary summary, S3VersionSummary listed) throws Exception {
+        final long size = summary.getSize();
+        source.add(size);
+        if (listed != null) destination.add(listed.getSize());
+        if (sampleKeys.size() < SAMPLE_HEADS) sampleKeys.add(summary.getKey());
+
+        if (summary.getLastModified() != null && CopyMaster.isTooOld(context, summary.getLastModified())) {
+            skipTooOld.add(size);
+            return;
+        }
+        // what a run that lists would HEAD, unless the index knows the key
+        listingHeads++;
+        final ObjectMetadata metadata = listed == null ? null : getDestinationMetadata(listed);
+        if (metadata != null && !isDifferent(summary, metadata)) {
+            skipInSync.add(size);
+            return;
+        }
+        (metadata == null ? copyNew : copyChanged).add(size);
+        writer.copy(summary);
+
+        int sizeClass = 0;
+        while (sizeClass < SIZE_CLASSES.length && size >= SIZE_CLASSES[sizeClass]) sizeClass++;
+        sizeClasses[sizeClass].add(size);
+        final String relative = summary.getKey().substring(options.getPrefixLength());
+        final int slash = relative.indexOf('/');
+        final String prefix = slash == -1 ? "(top level)" : relative.substring(0, slash + 1);
+        Tally tally = prefixes.get(prefix);
+        if (tally == null && prefixes.size() < MAX_PREFIXES) prefixes.put(prefix, tally = new Tally());
+        (tally != null ? tally : otherPrefixes).add(size);
+
+        if (largestCopy == null || size > largestCopy.getSize()) largestCopy = summary;
+        copyBytes += size;
+        projectCopy(summary);
+    }
+
+    /**
+     * @return what the destination index knows about the key, or failing that what its listing entry says
+     */
+    private ObjectMetadata getDestinationMetadata(S3VersionSummary listed) {
+        final DestinationIndex index = context.getDestinationIndex();
+        if (index != null) {
+            try {
+                final ObjectMetadata indexed = index.lookup(listed.getKey());
+                if (indexed != null) {
+                    indexHits++;
+                    listingHeads--;
+                    return indexed;
+                }
+            } catch (Exception e) {
+                log.warn("Error reading destination index for " + listed.getKey() + " (using the listing instead): " + e);
+            }
+        }
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(listed.getSize());
+        metadata.setHeader(Headers.ETAG, listed.getETag());
+        metadata.setLastModified(listed.getLastModified());
+        return metadata;
+    }
+
+    // as KeyCopyJob decides
+    private boolean isDifferent(S3VersionSummary summary, ObjectMetadata metadata) {
+        return comparisonStrategy.sourceDifferent(summary, metadata);
+    }
+
+    private void planDelete(MirrorPlan.Writer writer, S3VersionSummary listed) throws Exception {
+        destination.add(listed.getSize());
+        if (!options.isDeleteRemoved()) {
+            onlyAtDestination.add(listed.getSize());
+            return;
+        }
+        delete.add(listed.getSize());
+        writer.delete(listed.getKey(), listed.getSize());
+        // the source is checked for the key before it is deleted
+        requests.heads++;
+        requests.deletes++;
+    }
+
+    /**
+     * Adds the requests a copy job of the plan makes for the key (see KeyCopyJob, MultipartKeyCopyJob, StreamingKeyCopyJob)
+     */
+    private void projectCopy(S3VersionSummary summary) {
+        final long size = summary.getSize();
+        final int sourceParts = PartLayouts.partCount(summary.getETag());
+        // the source's metadata and ACL
+        requests.heads++;
+        if (!options.hasSeparateDestination()) requests.gets++;
+
+        if (options.isStreaming()) {
+            final long partSize = Math.min(options.getUploadPartSize(), StreamingKeyCopyJob.MAX_PART_SIZE);
+            if (sourceParts > 0) requests.heads++;
+            final long parts = sourceParts > 0 ? sourceParts : size <= partSize ? 0 : (size + partSize - 1) / partSize;
+            if (parts == 0) {
+                requests.gets++;
+                requests.writes++;
+            } else {
+                requests.gets += parts;
+                requests.writes += parts + 2;
+            }
+            // checked on the way, not afterwards
+            return;
+        }
+
+        final boolean sameLayout = ComparisonStrategyFactory.comparesEtags(options) && sourceParts > 0;
+        if (sameLayout || size > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
+            if (sameLayout) requests.heads++;
+            requests.writes += (sameLayout ? sourceParts : (size + options.getUploadPartSize() - 1) / options.getUploadPartSize()) + 2;
+        } else {
+            requests.writes++;
+        }
+        // a HEAD for each copy checked, but with --verify FULL and no checksums
+        if (options.getVerify() == CopyVerifier.Mode.SAMPLED) {
+            verificationHeads += options.getVerifySample() / 100;
+        } else if (options.getVerify() == CopyVerifier.Mode.FULL) {
+            if (options.hasChecksum()) {
+                verificationHeads++;
+            } else {
+                projectVerification();
+            }
+        }
+    }
+
+    /**
+     * Adds the listings --verify FULL takes for a copy: its batch is listed in runs of nearby keys (see CopyVerifier),
+     * a page for each VERIFY_PAGE keys of the destination a run goes through. A copy further from the one before than
+     * a run goes without a hit starts a new run, which takes its first page, and the ones that end it.
+     */
+    private void projectVerification() {
+        final long gap = destination.count - verificationLastDestination;
+        if (verificationBatched++ % CopyVerifier.BATCH_SIZE == 0 || gap > (long) CopyVerifier.MAX_MISSED_PAGES * VERIFY_PAGE) {
+            verificationLists += 1 + CopyVerifier.MAX_MISSED_PAGES;
+        } else {
+            verificationLists += (double) gap / VERIFY_PAGE;
+        }
+        verificationLastDestination = destination.count;
+    }
+
+    private void report(File file, long listingMillis, long listings) {
+        final long copies = copyNew.count + copyChanged.count;
+        requests.heads += Math.round(verificationHeads);
+        requests.lists += Math.round(Math.ceil(verificationLists));
+        final Requests listingRun = new Requests();
+        listingRun.heads = requests.heads + listingHeads + (options.isDeleteRemoved() ? destination.count - delete.count : 0);
+        listingRun.gets = requests.gets;
+        listingRun.lists = requests.lists + listings;
+        listingRun.writes = requests.writes;
+        listingRun.deletes = requests.deletes;
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("plan for ").append(options.getSourceBucket()).append("/").append(options.hasPrefix() ? options.getPrefix() : "")
+                .append(" to ").append(options.getDestinationBucket()).append("/").append(options.hasDestPrefix() ? options.getDestPrefix() : (options.hasPrefix() ? options.getPrefix() : ""))
+                .append(", saved to ").append(file).append("\n");
+        sb.append("listed in ").append(MirrorStats.formatDuration(listingMillis)).append(": source ").append(source)
+                .append(", destination ").append(destination).append("\n");
+        sb.append("to copy: ").append(copies).append(" keys, ").append(MirrorStats.formatBytes(copyBytes))
+                .append(" (new: ").append(copyNew).append(", changed: ").append(copyChanged).append(")\n");
+        sb.append("to skip: ").append(skipInSync.count + skipTooOld.count).append(" keys")
+                .append(" (in sync: ").append(skipInSync).append(", too old: ").append(skipTooOld).append(")\n");
+        if (options.isDeleteRemoved()) {
+            sb.append("to delete: ").append(delete).append("\n");
+        } else {
+            sb.append("only at the destination, not deleted without ").append(MirrorOptions.LONGOPT_DELETE_REMOVED).append(": ").append(onlyAtDestination).append("\n");
+        }
+        sb.append("copies by size:\n");
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (sizeClasses[i].count > 0) sb.append("  ").append(SIZE_CLASS_NAMES[i]).append(": ").append(sizeClasses[i]).append("\n");
+        }
+        sb.append("copies by prefix:\n");
+        final List<Map.Entry<String, Tally>> byBytes = new ArrayList<>(prefixes.entrySet());
+        byBytes.sort((a, b) -> Long.compare(b.getValue().bytes, a.getValue().bytes));
+        for (int i = 0; i < byBytes.size(); i++) {
+            final Map.Entry<String, Tally> entry = byBytes.get(i);
+            if (i < TOP_PREFIXES) {
+                sb.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+            } else {
+                otherPrefixes.count += entry.getValue().count;
+                otherPrefixes.bytes += entry.getValue().bytes;
+            }
+        }
+        if (otherPrefixes.count > 0) sb.append("  (other prefixes): ").append(otherPrefixes).append("\n");
+        sb.append("requests to carry out the plan (--run-plan): ").append(requests).append("\n");
+        sb.append("requests for a run that lists instead: ").append(listingRun)
+                .append(indexHits > 0 ? ", " + indexHits + " HEADs saved by the destination index" : "").append("\n");
+        sb.append(estimate());
+        log.info("\n--------------------------------------------------------------------\n" + sb + "--------------------------------------------------------------------\n");
+    }
+
+    /**
+     * Times a few requests, and projects the duration of the plan's requests and transfers from them
+     */
+    private String estimate() {
+        if (requests.total() == 0) return "nothing to do\n";
+        final long latency = measureLatency();
+        if (latency < 0) return "estimated duration: unknown, no request could be timed\n";
+        final double rate = measureRate(latency);
+
+        // requests and transfers spread over the job threads
+        double millis = requests.total() * (double) latency;
+        if (rate > 0) millis += copyBytes / rate * 1000;
+        millis /= options.getMaxThreads();
+        return "measured: " + latency + "ms per request (median of " + sampleKeys.size() + " HEADs), "
+                + (rate > 0 ? MirrorStats.formatBytes((long) rate) + "/s per transfer" : "transfer rate not measured, the copies are small") + "\n"
+                + "estimated duration with " + options.getMaxThreads() + " threads: " + MirrorStats.formatDuration((long) millis) + "\n";
+    }
+
+    /**
+     * @return the median latency of HEADs of the sampled source keys, in ms, or -1 if none succeeded
+     */
+    private long measureLatency() {
+        final ObjectStore client = clients.getSourceClient();
+        final long[] latencies = new long[sampleKeys.size()];
+        int n = 0;
+        for (String key : sampleKeys) {
+            final long start = System.currentTimeMillis();
+            try {
+                context.getStats().s3getCount.incrementAndGet();
+                client.getObjectMetadata(options.getSourceBucket(), key);
+            } catch (AmazonS3Exception e) {
+                // deleted since it was listed: the round trip still counts
+                if (e.getStatusCode() != 404) continue;
+            } catch (Exception e) {
+                log.warn("plan: error timing a HEAD of " + key + ": " + e);
+                continue;
+            }
+            latencies[n++] = System.currentTimeMillis() - start;
+        }
+        if (n == 0) return -1;
+        final long[] measured = Arrays.copyOf(latencies, n);
+        Arrays.sort(measured);
+        return Math.max(measured[n / 2], 1);
+    }
+
+    /**
+     * @return the rate of a GET of the beginning of the largest copy, in bytes per second, or 0 if the copies are too small to tell
+     */
+    private double measureRate(long latency) {
+        if (largestCopy == null || largestCopy.getSize() < MB) return 0;
+        final long length = Math.min(largestCopy.getSize(), SAMPLE_GET_BYTES);
+        final byte[] buffer = new byte[64 * (int) KB];
+        final long start = System.currentTimeMillis();
+        long read = 0;
+        context.getStats().s3getCount.incrementAndGet();
+        try (S3Object object = clients.getSourceClient().getObject(new GetObjectRequest(options.getSourceBucket(), largestCopy.getKey()).withRange(0, length - 1));
+             InputStream in = object.getObjectContent()) {
+            int n;
+            while ((n = in.read(buffer)) != -1) read += n;
+        } catch (Exception e) {
+            log.warn("plan: error timing a GET of " + largestCopy.getKey() + ": " + e);
+            return 0;
+        }
+        // the time to the first byte is counted with the request
+        final long millis = Math.max(System.currentTimeMillis() - start - latency, 1);
+        return read * 1000.0 / millis;
+    }
+}
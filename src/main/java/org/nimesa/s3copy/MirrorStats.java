@@ -1,13 +1,9 @@
 package org.nimesa.s3copy;
 
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -20,16 +16,14 @@ public class MirrorStats {
 
     private static final String BANNER = "\n--------------------------------------------------------------------\n";
     public void logStats() {
-        log.info(BANNER + "STATS BEGIN\n" + toString() + "STATS END " + BANNER);
-        log.error("sourceBucketList {}", sourceBucketList);
-        log.error("destinationBucketList {}", destinationBucketList);
-        final List<String> arrayList = new ArrayList<>(CollectionUtils.disjunction(sourceBucketList, destinationBucketList));
-        log.error("error files that not copied [{}]", arrayList.toString());
+        log.info(BANNER + "STATS BEGIN\n" + toString() + reconciliation.report() + "STATS END " + BANNER);
     }
 
     private long start = System.currentTimeMillis();
 
     public final AtomicLong objectsRead = new AtomicLong(0);
+    public final AtomicLong objectsSkippedAtListing = new AtomicLong(0);
+    public final AtomicLong eventsCoalesced = new AtomicLong(0);
     public final AtomicLong objectsCopied = new AtomicLong(0);
     public final AtomicLong copyErrors = new AtomicLong(0);
     public final AtomicLong objectsDeleted = new AtomicLong(0);
@@ -39,31 +33,46 @@ public class MirrorStats {
     public final AtomicLong s3deleteCount = new AtomicLong(0);
     public final AtomicLong s3getCount = new AtomicLong(0);
     public final AtomicLong bytesCopied = new AtomicLong(0);
+    public final AtomicLong destIndexHits = new AtomicLong(0);
+    public final AtomicLong partsResumed = new AtomicLong(0);
+    public final AtomicLong checksumsVerified = new AtomicLong(0);
+    public final AtomicLong checksumsUnavailable = new AtomicLong(0);
+    public final AtomicLong checksumMismatches = new AtomicLong(0);
+    public final AtomicLong verificationHeads = new AtomicLong(0);
+    public final AtomicLong verificationListings = new AtomicLong(0);
+    public final AtomicLong verificationMismatches = new AtomicLong(0);
+    public final AtomicLong recopies = new AtomicLong(0);
+    public final AtomicLong objectsCompressed = new AtomicLong(0);
+    public final AtomicLong bytesBeforeCompression = new AtomicLong(0);
+    public final AtomicLong bytesCompressed = new AtomicLong(0);
+    public final AtomicLong objectsPacked = new AtomicLong(0);
+    public final AtomicLong archivesWritten = new AtomicLong(0);
+    public final AtomicLong objectsUnpacked = new AtomicLong(0);
 
     public static final long HOUR = TimeUnit.HOURS.toMillis(1);
     public static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
     public static final long SECOND = TimeUnit.SECONDS.toMillis(1);
 
-    public final Set<String> destinationBucketList = new HashSet<>();
+    /**
+     * Copies attempted but not verified yet
+     */
+    @Getter private final CopyReconciliation reconciliation = new CopyReconciliation();
 
-    public final Set<String> sourceBucketList = new HashSet<>();
-
-    public Set<String>  getSourceBucketList() {
-        return sourceBucketList;
-    }
-
-    public Set<String> getDestinationBucketList() {
-        return destinationBucketList;
-    }
+    /**
+     * Where transfers through this process get their buffers, if they may
+     */
+    @Setter private BufferPool bufferPool;
 
     public String toString () {
         final long durationMillis = System.currentTimeMillis() - start;
         final double durationMinutes = durationMillis / 60000.0d;
-        final String duration = String.format("%d:%02d:%02d", durationMillis / HOUR, (durationMillis % HOUR) / MINUTE, (durationMillis % MINUTE) / SECOND);
+        final String duration = formatDuration(durationMillis);
         final double readRate = objectsRead.get() / durationMinutes;
         final double copyRate = objectsCopied.get() / durationMinutes;
         final double deleteRate = objectsDeleted.get() / durationMinutes;
         return "read: "+objectsRead+ "\n"
+                + "skipped at listing (too old): "+objectsSkippedAtListing+"\n"
+                + "events coalesced: "+eventsCoalesced+"\n"
                 + "copied: "+objectsCopied+"\n"
                 + "copy errors: "+copyErrors+"\n"
                 + "deleted: "+objectsDeleted+"\n"
@@ -75,10 +84,21 @@ public class MirrorStats {
                 + "bytes copied: "+formatBytes(bytesCopied.get())+"\n"
                 + "GET operations: "+s3getCount+"\n"
                 + "COPY operations: "+ s3copyCount+"\n"
-                + "DELETE operations: "+ s3deleteCount+"\n";
+                + "DELETE operations: "+ s3deleteCount+"\n"
+                + "HEADs saved by destination index: "+ destIndexHits+"\n"
+                + "multipart parts resumed: "+ partsResumed+"\n"
+                + "checksums verified: "+ checksumsVerified+" (mismatches: "+checksumMismatches+", not comparable, size checked: "+checksumsUnavailable+")\n"
+                + "verification: "+ verificationHeads+" HEADs, "+verificationListings+" listings, "+verificationMismatches+" mismatches, "+recopies+" copied again\n"
+                + "compressed: "+ objectsCompressed+" objects, "+formatBytes(bytesBeforeCompression.get())+" to "+formatBytes(bytesCompressed.get())+"\n"
+                + "packed: "+ objectsPacked+" objects into "+archivesWritten+" archives, unpacked: "+objectsUnpacked+"\n"
+                + (bufferPool == null ? "" : bufferPool.report());
+    }
+
+    static String formatDuration(long millis) {
+        return String.format("%d:%02d:%02d", millis / HOUR, (millis % HOUR) / MINUTE, (millis % MINUTE) / SECOND);
     }
 
-    private String formatBytes(long bytesCopied) {
+    static String formatBytes(long bytesCopied) {
         if (bytesCopied > MirrorConstants.EB) return ((double) bytesCopied) / ((double) MirrorConstants.EB) + " EB ("+bytesCopied+" bytes)";
         if (bytesCopied > MirrorConstants.PB) return ((double) bytesCopied) / ((double) MirrorConstants.PB) + " PB ("+bytesCopied+" bytes)";
         if (bytesCopied > MirrorConstants.TB) return ((double) bytesCopied) / ((double) MirrorConstants.TB) + " TB ("+bytesCopied+" bytes)";
@@ -1,18 +1,24 @@
 package org.nimesa.s3copy;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
 import lombok.extern.slf4j.Slf4j;
 import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategyFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class MultipartKeyCopyJob extends KeyCopyJob {
 
-    public MultipartKeyCopyJob(AmazonS3Client client, MirrorContext context, S3VersionSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
-        super(client, context, summary, notifyLock, comparisonStrategy);
+    // sizes of the parts found in the upload being resumed, by part number
+    private final Map<Integer, Long> partSizes = new TreeMap<>();
+
+    public MultipartKeyCopyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
+        super(clients, context, summary, notifyLock, comparisonStrategy);
     }
 
     @Override
@@ -22,25 +28,44 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
         String sourceBucketName = options.getSourceBucket();
         int maxPartRetries = options.getMaxRetries();
         String targetBucketName = options.getDestinationBucket();
-        List<CopyPartResult> copyResponses = new ArrayList<>();
-        if (options.isVerbose()) {
-            log.info("Initiating multipart upload request for " + summary.getKey());
-        }
-        InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(targetBucketName, keydest)
-                .withObjectMetadata(sourceMetadata);
+        final ObjectStore client = clients.getDestinationClient();
+        long partSize = getPartSize();
 
-        if (options.isCrossAccountCopy()) {
-            initiateRequest.withAccessControlList(buildCrossAccountAcl(objectAcl));
+        // pick up where an earlier attempt left off, if it left a usable upload behind
+        final Map<Integer, PartETag> copiedParts = new TreeMap<>();
+        String uploadId = null;
+        final MultipartUpload existing = findResumableUpload(client, copiedParts);
+        if (existing != null) {
+            uploadId = existing.getUploadId();
+            if (copiedParts.containsKey(1)) partSize = partSizes.get(1);
+            log.info("resuming multipart copy of " + summary.getKey() + " (uploadId=" + uploadId + "), " + copiedParts.size() + " parts already copied");
+            context.getStats().partsResumed.addAndGet(copiedParts.size());
         } else {
-            initiateRequest.withAccessControlList(objectAcl);
-        }
+            if (options.isVerbose()) {
+                log.info("Initiating multipart upload request for " + summary.getKey());
+            }
+            InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(targetBucketName, keydest)
+                    .withObjectMetadata(sourceMetadata);
 
-        InitiateMultipartUploadResult initResult = client.initiateMultipartUpload(initiateRequest);
+            if (options.isCrossAccountCopy()) {
+                initiateRequest.withAccessControlList(buildCrossAccountAcl(objectAcl));
+            } else {
+                initiateRequest.withAccessControlList(objectAcl);
+            }
+            uploadId = client.initiateMultipartUpload(initiateRequest).getUploadId();
+        }
+        context.getOpenUploads().put(uploadId, new AbortMultipartUploadRequest(targetBucketName, keydest, uploadId));
 
-        long partSize = options.getUploadPartSize();
         long bytePosition = 0;
 
-        for (int i = 1; bytePosition < objectSize; i++) {
+        for (int i = 1; bytePosition < objectSize; i++, bytePosition += partSize) {
+            if (copiedParts.containsKey(i)) continue;
+            if (context.isStopRequested() || Thread.currentThread().isInterrupted()) {
+                // the parts copied so far are kept, the next run resumes from them
+                error = InterruptedException.class.getName();
+                log.warn("stop requested, leaving multipart copy of " + summary.getKey() + " to be resumed (uploadId=" + uploadId + ")");
+                return false;
+            }
             long lastByte = bytePosition + partSize - 1 >= objectSize ? objectSize - 1 : bytePosition + partSize - 1;
             String infoMessage = "copying : " + bytePosition + " to " + lastByte;
             if (options.isVerbose()) {
@@ -51,7 +76,8 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
                     .withDestinationKey(keydest)
                     .withSourceBucketName(sourceBucketName)
                     .withSourceKey(summary.getKey())
-                    .withUploadId(initResult.getUploadId())
+                    .withSourceVersionId(summary.getVersionId())
+                    .withUploadId(uploadId)
                     .withFirstByte(bytePosition)
                     .withLastByte(lastByte)
                     .withPartNumber(i);
@@ -61,23 +87,27 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
                     if (options.isVerbose()) log.info("try :" + tries);
                     context.getStats().s3copyCount.incrementAndGet();
                     CopyPartResult copyPartResult = client.copyPart(copyRequest);
-                    copyResponses.add(copyPartResult);
+                    copiedParts.put(i, copyPartResult.getPartETag());
                     if (options.isVerbose()) log.info("completed " + infoMessage);
                     break;
                 } catch (Exception e) {
                     if (tries == maxPartRetries) {
-                        client.abortMultipartUpload(new AbortMultipartUploadRequest(
-                                targetBucketName, keydest, initResult.getUploadId()));
-                        log.error("Exception while doing multipart copy", e);
+                        error = e.getClass().getName();
+                        log.error("Exception while doing multipart copy, leaving it to be resumed (uploadId=" + uploadId + ")", e);
                         return false;
                     }
                 }
             }
-            bytePosition += partSize;
         }
         CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(targetBucketName, keydest,
-                initResult.getUploadId(), getETags(copyResponses));
-        client.completeMultipartUpload(completeRequest);
+                uploadId, new ArrayList<>(copiedParts.values()));
+        final CompleteMultipartUploadResult completeResult = client.completeMultipartUpload(completeRequest);
+        context.getOpenUploads().remove(uploadId);
+        // the ETag it got is the source's if the source's layout was kept, one of its own otherwise
+        verifyLater(objectSize, completeResult.getETag());
+        if (context.getDestinationIndex() != null) {
+            context.getDestinationIndex().put(keydest, objectSize, completeResult.getETag(), null, completeResult.getVersionId());
+        }
         if(options.isVerbose()) {
             log.info("completed multipart request for : " + summary.getKey());
         }
@@ -85,11 +115,105 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
         return true;
     }
 
-    private List<PartETag> getETags(List<CopyPartResult> copyResponses) {
-        List<PartETag> eTags = new ArrayList<PartETag>();
-        for (CopyPartResult response : copyResponses) {
-            eTags.add(new PartETag(response.getPartNumber(), response.getETag()));
+    /**
+     * @return the source's part size if it was uploaded in equal parts, so the copy gets the same ETag, the configured one otherwise
+     */
+    private long getPartSize() {
+        final MirrorOptions options = context.getOptions();
+        if (ComparisonStrategyFactory.comparesEtags(options)) {
+            final long layout = context.getPartLayouts().getPartSize(clients.getSourceClient(), options.getSourceBucket(), summary, context);
+            if (layout > 0) return layout;
+        }
+        return options.getUploadPartSize();
+    }
+
+    /**
+     * Looks for an upload to the destination key that an earlier attempt left behind. An upload is usable
+     * if it was initiated after the source object was last modified (so its parts came from this version)
+     * and its parts have the sizes of a copy of this object; those parts are put in copiedParts.
+     * Uploads to the key that are not usable are aborted if they never will be (initiated before the
+     * source was last modified) or are older than --stale-upload-age; others are left alone, as another
+     * client may have started them. Nothing is aborted with --stale-upload-age -1.
+     */
+    private MultipartUpload findResumableUpload(ObjectStore client, Map<Integer, PartETag> copiedParts) {
+        final String bucket = context.getOptions().getDestinationBucket();
+        final List<MultipartUpload> uploads = new ArrayList<>();
+        try {
+            final ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(bucket).withPrefix(keydest);
+            MultipartUploadListing listing;
+            do {
+                context.getStats().s3getCount.incrementAndGet();
+                listing = client.listMultipartUploads(request);
+                for (MultipartUpload upload : listing.getMultipartUploads()) {
+                    if (upload.getKey().equals(keydest)) uploads.add(upload);
+                }
+                request.setKeyMarker(listing.getNextKeyMarker());
+                request.setUploadIdMarker(listing.getNextUploadIdMarker());
+            } while (listing.isTruncated());
+        } catch (Exception e) {
+            log.warn("Error listing multipart uploads for " + keydest + " (starting a new one): " + e);
+            return null;
+        }
+
+        // newest first, the one an earlier attempt left last is the likeliest to be usable
+        uploads.sort((a, b) -> b.getInitiated().compareTo(a.getInitiated()));
+        MultipartUpload resumable = null;
+        for (MultipartUpload upload : uploads) {
+            if (resumable == null && summary.getLastModified() != null && upload.getInitiated().after(summary.getLastModified())) {
+                try {
+                    if (loadParts(client, upload, copiedParts)) {
+                        resumable = upload;
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.warn("Error listing parts of upload " + upload.getUploadId() + " for " + keydest + ": " + e);
+                }
+                copiedParts.clear();
+                partSizes.clear();
+            }
+            final int staleUploadAge = context.getOptions().getStaleUploadAge();
+            if (staleUploadAge < 0) continue;
+            final boolean outdated = summary.getLastModified() != null && upload.getInitiated().before(summary.getLastModified());
+            if (!outdated && upload.getInitiated().getTime() >= System.currentTimeMillis() - TimeUnit.HOURS.toMillis(staleUploadAge)) continue;
+            log.info("aborting stale multipart upload of " + keydest + " (uploadId=" + upload.getUploadId() + ", initiated " + upload.getInitiated() + ")");
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, keydest, upload.getUploadId()));
+            } catch (Exception e) {
+                log.warn("Error aborting stale multipart upload " + upload.getUploadId() + ": " + e);
+            }
+        }
+        return resumable;
+    }
+
+    /**
+     * @return true if every part of the upload has the range a copy of this object would give it
+     */
+    private boolean loadParts(ObjectStore client, MultipartUpload upload, Map<Integer, PartETag> copiedParts) {
+        final ListPartsRequest request = new ListPartsRequest(context.getOptions().getDestinationBucket(), keydest, upload.getUploadId());
+        PartListing listing;
+        do {
+            context.getStats().s3getCount.incrementAndGet();
+            listing = client.listParts(request);
+            for (PartSummary part : listing.getParts()) {
+                if (part.getETag() == null || part.getETag().isEmpty()) return false;
+                copiedParts.put(part.getPartNumber(), new PartETag(part.getPartNumber(), part.getETag()));
+                partSizes.put(part.getPartNumber(), part.getSize());
+            }
+            request.setPartNumberMarker(listing.getNextPartNumberMarker());
+        } while (listing.isTruncated());
+
+        if (copiedParts.isEmpty()) return true;
+        // the part size is whatever the upload was started with: part 1 has it, otherwise assume ours
+        final long partSize = partSizes.containsKey(1) ? partSizes.get(1) : getPartSize();
+        final long objectSize = summary.getSize();
+        for (Map.Entry<Integer, Long> part : partSizes.entrySet()) {
+            final long firstByte = (part.getKey() - 1) * partSize;
+            final long expected = Math.min(partSize, objectSize - firstByte);
+            if (firstByte >= objectSize || part.getValue() != expected) {
+                log.info("upload " + upload.getUploadId() + " for " + keydest + " has part " + part.getKey() + " of " + part.getValue() + " bytes, expected " + expected + ", not resuming it");
+                return false;
+            }
         }
-        return eTags;
+        return true;
     }
 }
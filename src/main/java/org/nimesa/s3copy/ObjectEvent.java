@@ -0,0 +1,112 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * An object change, as delivered by an S3 event notification (ObjectCreated:* or ObjectRemoved:*).
+ */
+@AllArgsConstructor
+public class ObjectEvent {
+
+    public enum Type { CREATED, REMOVED }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Getter private final Type type;
+    @Getter private final String bucket;
+    @Getter private final String key;
+    @Getter private final long size;
+    @Getter private final String eTag;
+    @Getter private final String versionId;
+    @Getter private final String sequencer;
+    @Getter private final Date eventTime;
+
+    /**
+     * @return true if this event happened after the other one, for the same key. S3 says to compare
+     * sequencers as strings, after right-padding the shorter one with zeros.
+     */
+    public boolean isAfter(ObjectEvent other) {
+        if (sequencer == null || other.sequencer == null) return eventTime.compareTo(other.eventTime) >= 0;
+        final int length = Math.max(sequencer.length(), other.sequencer.length());
+        return pad(sequencer, length).compareTo(pad(other.sequencer, length)) > 0;
+    }
+
+    public S3VersionSummary toSummary() {
+        final S3VersionSummary summary = new S3VersionSummary();
+        summary.setBucketName(bucket);
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(eTag);
+        summary.setVersionId(versionId);
+        summary.setLastModified(eventTime);
+        summary.setIsLatest(true);
+        return summary;
+    }
+
+    /**
+     * Parses S3 event notifications, either as S3 sends them or wrapped in SNS messages.
+     * Test events and events other than ObjectCreated/ObjectRemoved are skipped.
+     */
+    public static List<ObjectEvent> parse(String json) throws IOException {
+        final List<ObjectEvent> events = new ArrayList<>();
+        // several notifications can follow each other, e.g. one per line
+        final MappingIterator<JsonNode> roots = MAPPER.readerFor(JsonNode.class).readValues(json);
+        while (roots.hasNextValue()) {
+            JsonNode root = roots.nextValue();
+            if (root.has("Message") && root.get("Message").isTextual()) root = MAPPER.readTree(root.get("Message").asText());
+            addEvents(root, events);
+        }
+        return events;
+    }
+
+    private static void addEvents(JsonNode root, List<ObjectEvent> events) throws IOException {
+        for (JsonNode record : root.path("Records")) {
+            final String name = record.path("eventName").asText("");
+            final Type type;
+            if (name.startsWith("ObjectCreated:")) {
+                type = Type.CREATED;
+            } else if (name.startsWith("ObjectRemoved:")) {
+                type = Type.REMOVED;
+            } else {
+                continue;
+            }
+            final JsonNode s3 = record.path("s3");
+            final JsonNode object = s3.path("object");
+            final String time = record.path("eventTime").asText(null);
+            events.add(new ObjectEvent(type,
+                    s3.path("bucket").path("name").asText(),
+                    decodeKey(object.path("key").asText()),
+                    object.path("size").asLong(0),
+                    object.path("eTag").asText(null),
+                    object.path("versionId").asText(null),
+                    object.path("sequencer").asText(null),
+                    time == null ? new Date() : Date.from(Instant.parse(time))));
+        }
+    }
+
+    // keys in notifications are URL-encoded, with spaces as '+'
+    private static String decodeKey(String key) throws UnsupportedEncodingException {
+        return URLDecoder.decode(key, "UTF-8");
+    }
+
+    private static String pad(String s, int length) {
+        final StringBuilder sb = new StringBuilder(s);
+        while (sb.length() < length) sb.append('0');
+        return sb.toString();
+    }
+
+    @Override public String toString() { return type + " " + bucket + "/" + key; }
+}
@@ -0,0 +1,256 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.nimesa.s3copy.MirrorConstants.MB;
+
+/**
+ * Packs small objects into large archive objects at the destination (--pack), so an archival destination holds a
+ * few large objects instead of millions of small ones, each with its own request, minimum billable size and
+ * per-object overhead in colder storage classes.
+ *
+ * Objects are grouped by the first --pack-depth "directories" of their key, relative to the prefix; each group
+ * fills an archive of its own until it reaches --pack-size, then the archive is PUT under ".packs/group/" in the
+ * destination prefix, with its index next to it (see PackIndex). An archive is the objects' bytes one after the
+ * other, nothing more. The archives being filled are on the heap, up to --buffer-memory in all: past that, the
+ * largest is written early.
+ *
+ * Objects are only counted as copied once their archive is written. The indexes already at the destination are
+ * read first, and merged into one table on local disk, sorted by key (see PackIndex.Table), so objects packed by an
+ * earlier run, with the same size and ETag, are not packed again; those that changed go to a new archive, whose index
+ * then has the last word.
+ */
+@Slf4j
+public class ObjectPacker implements AutoCloseable {
+
+    private final MirrorClients clients;
+    private final MirrorContext context;
+    private final String root;
+    private final long archiveSize;
+    private final long maxOpenBytes;
+    // names of the archives of this run start with when it started, so they sort after those of earlier runs
+    private final String run = new SimpleDateFormat("yyyyMMdd'T'HHmmss").format(new Date());
+    private final AtomicInteger sequence = new AtomicInteger(0);
+
+    // what was at the destination when the run started, by key relative to the prefix: a key is listed once a run, so
+    // what this run packs does not need to go in it
+    private final PackIndex.Table packed;
+
+    // archives being filled, by group, guarded by "this"
+    private final Map<String, Archive> open = new HashMap<>();
+    private long openBytes = 0;
+
+    private final AtomicLong failures = new AtomicLong(0);
+
+    public ObjectPacker(MirrorClients clients, MirrorContext context) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        this.clients = clients;
+        this.context = context;
+        this.root = (options.hasDestPrefix() ? options.getDestPrefix() : "") + PackIndex.PACKS_DIR;
+        this.archiveSize = options.getPackSize() * MB;
+        this.maxOpenBytes = Math.max(options.getBufferMemory() * MB, archiveSize);
+        this.packed = PackIndex.loadAll(clients.getDestinationClient(), context, options.getDestinationBucket(), root);
+    }
+
+    /**
+     * @return true if the key is one of the archives or indexes, rather than an object to copy (the source may be the destination)
+     */
+    public boolean isPackObject(String bucket, String key) {
+        return bucket.equals(context.getOptions().getDestinationBucket()) && key.startsWith(root);
+    }
+
+    /**
+     * @return true if the object is in an archive already, as it is now
+     */
+    public boolean isPacked(String relKey, S3VersionSummary summary) throws IOException {
+        final PackIndex.Entry entry = packed.get(relKey);
+        return entry != null && entry.isSameAs(summary.getSize(), summary.getETag());
+    }
+
+    /**
+     * @return where objects with this key go, below the ".packs/" of the destination
+     */
+    String group(String relKey) {
+        int end = -1;
+        for (int i = 0; i < context.getOptions().getPackDepth(); i++) {
+            final int slash = relKey.indexOf('/', end + 1);
+            if (slash == -1) break;
+            end = slash;
+        }
+        return end == -1 ? "" : relKey.substring(0, end + 1);
+    }
+
+    /**
+     * Adds an object to the archive of its group. Writes that archive if this fills it, or the largest one if
+     * there are more bytes waiting than --buffer-memory; on the caller's thread, in both cases.
+     *
+     * @param start when the job started on the object, for the result manifest
+     */
+    void add(PackKeyCopyJob job, String relKey, byte[] data, byte[] md5, String contentType, long start) {
+        Archive full = null;
+        synchronized (this) {
+            final Archive archive = open.computeIfAbsent(group(relKey), Archive::new);
+            archive.add(job, new PackIndex.Entry(relKey, archive.size, data.length, md5, job.summary.getETag(),
+                    job.summary.getLastModified() == null ? 0 : job.summary.getLastModified().getTime(), contentType), data, start);
+            openBytes += data.length;
+            if (archive.size >= archiveSize) {
+                full = archive;
+            } else if (openBytes > maxOpenBytes) {
+                full = Collections.max(open.values(), Comparator.comparingLong((Archive a) -> a.size));
+            }
+            if (full != null) {
+                open.remove(full.group);
+                openBytes -= full.size;
+            }
+        }
+        if (full != null) write(full);
+    }
+
+    /**
+     * Writes the archives still being filled. Called once the copies are done: the objects in them are not in sync until then.
+     */
+    public void flush() {
+        final List<Archive> archives;
+        synchronized (this) {
+            archives = new ArrayList<>(open.values());
+            open.clear();
+            openBytes = 0;
+        }
+        if (!archives.isEmpty()) log.info("writing the last " + archives.size() + " archives...");
+        for (Archive archive : archives) write(archive);
+    }
+
+    /**
+     * @return true if an archive could not be written: its objects are not at the destination
+     */
+    public boolean hasFailures() {
+        return failures.get() > 0;
+    }
+
+    private void write(Archive archive) {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+        final String bucket = options.getDestinationBucket();
+        final String name = String.format("%s-%06d", run, sequence.incrementAndGet());
+        final String archiveKey = root + archive.group + name + PackIndex.ARCHIVE_SUFFIX;
+        final String indexKey = PackIndex.indexKey(archiveKey);
+        final long start = System.currentTimeMillis();
+        try {
+            if (context.isStopRequested()) throw new InterruptedException("stop requested");
+            put(bucket, archiveKey, archive.data, archive.size, archive.md5.digest(), StorageClass.valueOf(options.getStorageClass()));
+            final byte[] index = new PackIndex(archiveKey, start, archive.entries).toBytes();
+            put(bucket, indexKey, Collections.singletonList(index), index.length, md5().digest(index), StorageClass.Standard);
+
+        } catch (Exception e) {
+            log.error("Error writing archive " + bucket + "/" + archiveKey + " of " + archive.entries.size() + " objects: " + e);
+            failures.incrementAndGet();
+            for (int i = 0; i < archive.jobs.size(); i++) {
+                final PackKeyCopyJob job = archive.jobs.get(i);
+                job.error = e.getClass().getName();
+                stats.getReconciliation().failed(job.keydest);
+                stats.copyErrors.incrementAndGet();
+                job.recordResult(job.keydest, ResultManifest.Action.FAILED, 0, archive.starts.get(i));
+            }
+            return;
+        }
+
+        for (int i = 0; i < archive.jobs.size(); i++) {
+            final PackKeyCopyJob job = archive.jobs.get(i);
+            final PackIndex.Entry entry = archive.entries.get(i);
+            // S3 checked the archive against its MD5, made from the bytes as they were read
+            stats.getReconciliation().verified(job.keydest);
+            stats.objectsCopied.incrementAndGet();
+            stats.bytesCopied.addAndGet(entry.getLength());
+            job.recordResult(job.keydest, ResultManifest.Action.COPIED, entry.getLength(), archive.starts.get(i));
+        }
+        stats.archivesWritten.incrementAndGet();
+        stats.objectsPacked.addAndGet(archive.entries.size());
+        log.info("wrote archive " + bucket + "/" + archiveKey + ": " + archive.entries.size() + " objects, "
+                + MirrorStats.formatBytes(archive.size) + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Deletes the table of the indexes
+     */
+    @Override
+    public void close() {
+        try {
+            packed.close();
+        } catch (IOException e) {
+            log.warn("error deleting " + packed.file + ": " + e);
+        }
+    }
+
+    private void put(String bucket, String key, List<byte[]> data, long size, byte[] md5, StorageClass storageClass) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        Exception last = null;
+        for (int tries = 0; tries < options.getMaxRetries(); tries++) {
+            final List<InputStream> streams = new ArrayList<>(data.size());
+            for (byte[] bytes : data) streams.add(new ByteArrayInputStream(bytes));
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(size);
+            metadata.setContentType("application/octet-stream");
+            // S3 refuses the PUT if what it receives does not have this MD5
+            metadata.setContentMD5(BinaryUtils.toBase64(md5));
+            if (options.isEncrypt()) metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+            try {
+                context.getStats().s3copyCount.incrementAndGet();
+                clients.getDestinationClient().putObject(new PutObjectRequest(bucket, key, new SequenceInputStream(Collections.enumeration(streams)), metadata)
+                        .withStorageClass(storageClass));
+                return;
+            } catch (Exception e) {
+                last = e;
+                log.warn("upload of " + bucket + "/" + key + " failed (try #" + tries + "): " + e);
+            }
+            if (Sleep.sleep(10)) throw new InterruptedException("interrupted while waiting to retry upload of " + key);
+        }
+        throw last;
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available: " + e, e);
+        }
+    }
+
+    /**
+     * An archive being filled: the objects' bytes as they were read, and their entries in its index
+     */
+    private static class Archive {
+        final String group;
+        final List<byte[]> data = new ArrayList<>();
+        final List<PackIndex.Entry> entries = new ArrayList<>();
+        final List<PackKeyCopyJob> jobs = new ArrayList<>();
+        final List<Long> starts = new ArrayList<>();
+        final MessageDigest md5 = md5();
+        long size = 0;
+
+        Archive(String group) {
+            this.group = group;
+        }
+
+        void add(PackKeyCopyJob job, PackIndex.Entry entry, byte[] bytes, long start) {
+            data.add(bytes);
+            entries.add(entry);
+            jobs.add(job);
+            starts.add(start);
+            md5.update(bytes);
+            size += bytes.length;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.model.VersionListing;
+
+/**
+ * The requests a mirror makes of a bucket: list, head, get, copy, put, multipart uploads, ACLs and delete.
+ * They take and return the S3 SDK's own request and result types, and fail the way it does (AmazonS3Exception,
+ * with the status code), so the jobs work the same whatever is behind them.
+ *
+ * S3ObjectStore sends them to S3 (or an S3-compatible endpoint). MemoryObjectStore and DiskObjectStore
+ * (--backend) answer them in this process, and FaultyObjectStore adds latency, errors and throttling to
+ * any of them: with those, the listing, queueing, comparison and copy logic can be run and profiled at
+ * scale without S3, its costs or its variance.
+ */
+public interface ObjectStore {
+
+    enum Backend { S3, MEMORY, DISK }
+
+    VersionListing listVersions(ListVersionsRequest request);
+
+    VersionListing listNextBatchOfVersions(VersionListing previous);
+
+    ListObjectsV2Result listObjectsV2(ListObjectsV2Request request);
+
+    ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request);
+
+    default ObjectMetadata getObjectMetadata(String bucket, String key) {
+        return getObjectMetadata(new GetObjectMetadataRequest(bucket, key));
+    }
+
+    S3Object getObject(GetObjectRequest request);
+
+    AccessControlList getObjectAcl(String bucket, String key);
+
+    AccessControlList getBucketAcl(String bucket);
+
+    CopyObjectResult copyObject(CopyObjectRequest request);
+
+    PutObjectResult putObject(PutObjectRequest request);
+
+    void deleteObject(DeleteObjectRequest request);
+
+    InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request);
+
+    UploadPartResult uploadPart(UploadPartRequest request);
+
+    CopyPartResult copyPart(CopyPartRequest request);
+
+    CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request);
+
+    void abortMultipartUpload(AbortMultipartUploadRequest request);
+
+    PartListing listParts(ListPartsRequest request);
+
+    MultipartUploadListing listMultipartUploads(ListMultipartUploadsRequest request);
+
+    void shutdown();
+}
@@ -0,0 +1,176 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * What --unpack restores: the objects in the archives written by --pack under the source prefix, read from their
+ * indexes (see PackIndex) when it starts and merged into one table on local disk, sorted by key. Where several
+ * archives have a key, the one written last has it.
+ *
+ * Its lister lists the source as usual, for the objects that were copied as they are, and merges the packed ones
+ * in as it reads the table through, both being in key order; the archives and indexes themselves are left out by
+ * CopyMaster. A key that is both in an archive and an object of its own is listed once, as whichever of the two
+ * was modified last.
+ */
+@Slf4j
+public class PackCatalog implements AutoCloseable {
+
+    private final String prefix;
+    private final String root;
+    // by key relative to the prefix, in the order it would be listed in
+    private final PackIndex.Table entries;
+
+    public PackCatalog(MirrorClients clients, MirrorContext context) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        this.prefix = options.hasPrefix() ? options.getPrefix() : "";
+        this.root = prefix + PackIndex.PACKS_DIR;
+        this.entries = PackIndex.loadAll(clients.getSourceClient(), context, options.getSourceBucket(), root);
+    }
+
+    /**
+     * @return true if the key is one of the archives or indexes
+     */
+    public boolean isPackObject(String key) {
+        return key.startsWith(root);
+    }
+
+    /**
+     * @return where the listed key is packed, or null if it is not in an archive (or is an object of its own, different from the one packed)
+     */
+    public PackIndex.Entry lookup(S3VersionSummary summary) {
+        if (!summary.getKey().startsWith(prefix)) return null;
+        final PackIndex.Entry entry;
+        try {
+            entry = entries.get(summary.getKey().substring(prefix.length()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("error reading the indexes of the archives: " + e, e);
+        }
+        return entry != null && entry.isSameAs(summary.getSize(), summary.getETag()) ? entry : null;
+    }
+
+    /**
+     * Deletes the table of the indexes
+     */
+    @Override
+    public void close() {
+        try {
+            entries.close();
+        } catch (IOException e) {
+            log.warn("error deleting " + entries.file + ": " + e);
+        }
+    }
+
+    /**
+     * @return a lister of the source, with the packed objects in it
+     */
+    public KeyLister newLister(ObjectStore client, MirrorContext context, int maxQueueCapacity, String bucket) {
+        return new Lister(client, context, maxQueueCapacity, bucket);
+    }
+
+    private class Lister extends KeyLister {
+        private final ObjectStore client;
+        private final String bucket;
+        private Iterator<PackIndex.Entry> packed;
+        // the next packed entry, and its key in the source
+        private PackIndex.Entry nextPacked;
+        private String nextPackedKey;
+
+        Lister(ObjectStore client, MirrorContext context, int maxQueueCapacity, String bucket) {
+            super(context, maxQueueCapacity);
+            this.client = client;
+            this.bucket = bucket;
+        }
+
+        private void advance() {
+            nextPacked = packed.hasNext() ? packed.next() : null;
+            nextPackedKey = nextPacked == null ? null : prefix + nextPacked.getRelKey();
+        }
+
+        private S3VersionSummary toSummary(PackIndex.Entry entry) {
+            final S3VersionSummary summary = new S3VersionSummary();
+            summary.setBucketName(bucket);
+            summary.setKey(prefix + entry.getRelKey());
+            summary.setSize(entry.getLength());
+            summary.setETag(entry.getEtag());
+            if (entry.getLastModified() > 0) summary.setLastModified(new Date(entry.getLastModified()));
+            summary.setIsLatest(true);
+            return summary;
+        }
+
+        @Override
+        public void run() {
+            final MirrorOptions options = context.getOptions();
+            boolean completed = false;
+            log.info("listing " + bucket + "/" + prefix + " with the " + entries.count + " objects packed in it...");
+            try {
+                packed = entries.iterator();
+                advance();
+                VersionListing listing = null;
+                do {
+                    listing = list(listing, options);
+                    final List<S3VersionSummary> page = new ArrayList<>();
+                    for (S3VersionSummary summary : listing.getVersionSummaries()) {
+                        while (nextPacked != null && MirrorPlanner.compareKeys(nextPackedKey, summary.getKey()) < 0) {
+                            page.add(toSummary(nextPacked));
+                            advance();
+                        }
+                        if (nextPacked != null && nextPackedKey.equals(summary.getKey()) && summary.isLatest()) {
+                            final boolean packedIsNewer = summary.getLastModified() == null || nextPacked.getLastModified() > summary.getLastModified().getTime();
+                            page.add(packedIsNewer ? toSummary(nextPacked) : summary);
+                            advance();
+                            continue;
+                        }
+                        page.add(summary);
+                    }
+                    if (!listing.isTruncated()) {
+                        while (nextPacked != null) {
+                            page.add(toSummary(nextPacked));
+                            advance();
+                        }
+                    }
+                    // with the packed keys in it, a page can be longer than the listing's
+                    for (int from = 0; from < page.size(); from += options.getListPageSize()) {
+                        if (!addPage(page.subList(from, Math.min(page.size(), from + options.getListPageSize())))) return;
+                    }
+                } while (listing.isTruncated() && !isStopped());
+                completed = !listing.isTruncated();
+
+            } catch (InterruptedException e) {
+                log.error("interrupted!");
+
+            } catch (Exception e) {
+                log.error("Error listing " + bucket + "/" + prefix + ", lister thread now exiting: " + e);
+
+            } finally {
+                listingDone(completed);
+            }
+        }
+
+        private VersionListing list(VersionListing previous, MirrorOptions options) throws InterruptedException {
+            Exception last = null;
+            for (int tries = 0; tries < options.getMaxRetries(); tries++) {
+                try {
+                    context.getStats().s3getCount.incrementAndGet();
+                    return previous == null
+                            ? client.listVersions(new ListVersionsRequest(bucket, prefix, null, null, null, options.getListPageSize()))
+                            : client.listNextBatchOfVersions(previous);
+                } catch (Exception e) {
+                    last = e;
+                    log.warn("error listing " + bucket + "/" + prefix + " (try #" + tries + "): " + e);
+                }
+                if (Sleep.sleep(50)) throw new InterruptedException("interrupted while waiting to list " + bucket + " again");
+            }
+            throw new IllegalStateException("Too many errors trying to list " + bucket + "/" + prefix + ": " + last, last);
+        }
+    }
+}
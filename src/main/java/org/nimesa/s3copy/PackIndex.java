@@ -0,0 +1,421 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.*;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The index of an archive written by --pack (see ObjectPacker): for each object in it, its key (relative to the
+ * prefix it was packed from), where it starts in the archive, its length and MD5, and its source ETag, last-modified
+ * time and content type. With it, one object can be read back with a ranged GET of the archive.
+ *
+ * It is stored gzipped next to its archive, "name.idx" for "name.pack", always in the STANDARD storage class so that
+ * it can be read even when the archives are not. Names sort in the order the archives were written, entries in the
+ * order the keys are listed in.
+ */
+@Slf4j
+public class PackIndex {
+
+    public static final String PACKS_DIR = ".packs/";
+    public static final String ARCHIVE_SUFFIX = ".pack";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x5333504b; // "S3PK"
+    private static final int TABLE_MAGIC = 0x53335054; // "S3PT"
+    private static final int BLOCK_ENTRIES = 64;
+    // runs merged at once, which is as many files open at once
+    private static final int MAX_MERGE_RUNS = 64;
+
+    @Getter private final String archiveKey;
+    @Getter private final long created;
+    @Getter private final List<Entry> entries;
+
+    public static class Entry {
+        @Getter private final String relKey;
+        @Getter private final long offset;
+        @Getter private final long length;
+        @Getter private final byte[] md5;
+        @Getter private final String etag;
+        @Getter private final long lastModified;
+        @Getter private final String contentType;
+        // set once the entry is read back from its index
+        @Getter private String archiveKey;
+
+        Entry(String relKey, long offset, long length, byte[] md5, String etag, long lastModified, String contentType) {
+            this.relKey = relKey;
+            this.offset = offset;
+            this.length = length;
+            this.md5 = md5;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+        }
+
+        public boolean isSameAs(long size, String etag) {
+            return length == size && this.etag.equals(etag);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(relKey);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.write(md5);
+            out.writeUTF(etag);
+            out.writeLong(lastModified);
+            out.writeUTF(contentType == null ? "" : contentType);
+        }
+
+        static Entry readFrom(DataInput in) throws IOException {
+            final String relKey = in.readUTF();
+            final long offset = in.readLong();
+            final long length = in.readLong();
+            final byte[] md5 = new byte[16];
+            in.readFully(md5);
+            final String etag = in.readUTF();
+            final long lastModified = in.readLong();
+            final String contentType = in.readUTF();
+            return new Entry(relKey, offset, length, md5, etag, lastModified, contentType.isEmpty() ? null : contentType);
+        }
+    }
+
+    // the order S3 lists the keys in
+    static final Comparator<Entry> BY_KEY = (a, b) -> MirrorPlanner.compareKeys(a.relKey, b.relKey);
+
+    PackIndex(String archiveKey, long created, List<Entry> entries) {
+        this.archiveKey = archiveKey;
+        this.created = created;
+        this.entries = entries;
+    }
+
+    /**
+     * @return the key of the index of this archive
+     */
+    static String indexKey(String archiveKey) {
+        return archiveKey.substring(0, archiveKey.length() - ARCHIVE_SUFFIX.length()) + INDEX_SUFFIX;
+    }
+
+    byte[] toBytes() throws IOException {
+        // in key order, so that the indexes can be merged without holding them (see Table); offsets do not depend on it
+        final List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(BY_KEY);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(bytes)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(created);
+            out.writeInt(sorted.size());
+            for (Entry entry : sorted) entry.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static PackIndex read(String indexKey, InputStream raw) throws IOException {
+        final String archiveKey = indexKey.substring(0, indexKey.length() - INDEX_SUFFIX.length()) + ARCHIVE_SUFFIX;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(raw)));
+        if (in.readInt() != MAGIC) throw new IOException(indexKey + " is not the index of an archive");
+        final long created = in.readLong();
+        final int count = in.readInt();
+        final List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Entry entry = Entry.readFrom(in);
+            entry.archiveKey = archiveKey;
+            entries.add(entry);
+        }
+        // indexes written before they were kept sorted; for the others, this only checks they are
+        entries.sort(BY_KEY);
+        return new PackIndex(archiveKey, created, entries);
+    }
+
+    /**
+     * Merges every index under the root (a prefix ending in PACKS_DIR) into one sorted table on local disk. The indexes
+     * are read one at a time, oldest archive first, and each is written out as a sorted run; runs are merged as they
+     * pile up, so that only one index is ever in memory. Where several archives have the same key, the one written
+     * last has it as it was packed last.
+     */
+    static Table loadAll(ObjectStore client, MirrorContext context, String bucket, String root) throws Exception {
+        final long start = System.currentTimeMillis();
+        final List<String> indexKeys = new ArrayList<>();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(root);
+        ListObjectsV2Result listing;
+        do {
+            final ListObjectsV2Request page = request;
+            listing = withRetries(context, "listing of " + bucket + "/" + root, () -> client.listObjectsV2(page));
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                if (summary.getKey().endsWith(INDEX_SUFFIX)) indexKeys.add(summary.getKey());
+            }
+            request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(root).withContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated());
+
+        // by name, whatever group they are in: names start with when their archive was written
+        indexKeys.sort(Comparator.comparing((String key) -> key.substring(key.lastIndexOf('/') + 1)));
+
+        // oldest first
+        final List<Table> runs = new ArrayList<>();
+        long entries = 0;
+        long lastCreated = 0;
+        try {
+            for (String indexKey : indexKeys) {
+                final PackIndex index = withRetries(context, "read of " + bucket + "/" + indexKey, () -> {
+                    try (S3Object object = client.getObject(new GetObjectRequest(bucket, indexKey))) {
+                        return read(indexKey, object.getObjectContent());
+                    }
+                });
+                runs.add(Table.write(index.entries.iterator()));
+                entries += index.entries.size();
+                lastCreated = index.created;
+                if (runs.size() >= MAX_MERGE_RUNS) merge(runs);
+            }
+            merge(runs);
+        } catch (Exception e) {
+            for (Table run : runs) run.close();
+            throw e;
+        }
+        final Table table = runs.get(0);
+        log.info("read " + indexKeys.size() + " archive indexes (" + entries + " objects, " + table.count + " keys) from " + bucket + "/" + root
+                + " in " + (System.currentTimeMillis() - start) + "ms" + (indexKeys.isEmpty() ? "" : ", last archive written " + new Date(lastCreated)));
+        return table;
+    }
+
+    /**
+     * Replaces the runs (oldest first) by the one they merge into
+     */
+    private static void merge(List<Table> runs) throws IOException {
+        if (runs.size() == 1) return;
+        final List<Iterator<Entry>> sources = new ArrayList<>(runs.size());
+        // newest first, so that it wins
+        for (int i = runs.size() - 1; i >= 0; i--) sources.add(runs.get(i).iterator());
+        final Table merged = Table.write(new MergeIterator(sources));
+        for (Table run : runs) run.close();
+        runs.clear();
+        runs.add(merged);
+    }
+
+    private static <T> T withRetries(MirrorContext context, String what, Callable<T> request) throws Exception {
+        final int maxRetries = context.getOptions().getMaxRetries();
+        Exception last = null;
+        for (int tries = 0; tries < maxRetries; tries++) {
+            try {
+                context.getStats().s3getCount.incrementAndGet();
+                return request.call();
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() == 404) throw e;
+                last = e;
+            } catch (Exception e) {
+                last = e;
+            }
+            log.warn(what + " failed (try #" + tries + "): " + last);
+            if (Sleep.sleep(50)) throw new InterruptedException("interrupted while waiting to retry " + what);
+        }
+        throw last;
+    }
+
+    /**
+     * Sorted file of entries, with their archive, on local disk: blocks of entries, followed by the sparse index and a
+     * footer, as a table of the destination index (see DestinationIndex). Only the sparse index is held in memory;
+     * blocks are read with positional reads on lookup. The file is temporary, it is deleted on close.
+     */
+    static class Table implements Closeable {
+        final File file;
+        final int count;
+        private final FileChannel channel;
+        private final long dataEnd;
+        private final String[] blockKeys;
+        private final long[] blockOffsets;
+
+        private Table(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            final long size = channel.size();
+            final ByteBuffer footer = ByteBuffer.allocate(12);
+            channel.read(footer, size - 12);
+            footer.flip();
+            final long indexOffset = footer.getLong();
+            if (footer.getInt() != TABLE_MAGIC) {
+                channel.close();
+                throw new IOException("not a table of archive indexes: " + file);
+            }
+            final ByteBuffer index = ByteBuffer.allocate((int) (size - 12 - indexOffset));
+            channel.read(index, indexOffset);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+            count = in.readInt();
+            final int blocks = in.readInt();
+            blockKeys = new String[blocks];
+            blockOffsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockKeys[i] = in.readUTF();
+                blockOffsets[i] = in.readLong();
+            }
+            dataEnd = indexOffset;
+        }
+
+        private static Entry readEntry(DataInput in) throws IOException {
+            final Entry entry = Entry.readFrom(in);
+            entry.archiveKey = in.readUTF();
+            return entry;
+        }
+
+        /**
+         * @return the entry of the key (relative to the prefix), or null if it is in none of the archives
+         */
+        Entry get(String relKey) throws IOException {
+            int pos = Arrays.binarySearch(blockKeys, relKey, MirrorPlanner::compareKeys);
+            if (pos < 0) pos = -pos - 2;
+            if (pos < 0) return null;
+            final long start = blockOffsets[pos];
+            final long end = pos + 1 < blockOffsets.length ? blockOffsets[pos + 1] : dataEnd;
+            final ByteBuffer block = ByteBuffer.allocate((int) (end - start));
+            while (block.hasRemaining()) {
+                if (channel.read(block, start + block.position()) < 0) break;
+            }
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(block.array()));
+            while (in.available() > 0) {
+                final Entry entry = readEntry(in);
+                final int c = MirrorPlanner.compareKeys(entry.relKey, relKey);
+                if (c == 0) return entry;
+                if (c > 0) break;
+            }
+            return null;
+        }
+
+        /**
+         * @return the entries in key order, read as they are needed
+         */
+        Iterator<Entry> iterator() throws IOException {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            return new Iterator<Entry>() {
+                int remaining = count;
+                @Override public boolean hasNext() { return remaining > 0; }
+                @Override public Entry next() {
+                    if (remaining <= 0) throw new NoSuchElementException();
+                    try {
+                        final Entry entry = readEntry(in);
+                        if (--remaining == 0) in.close();
+                        return entry;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+        }
+
+        /**
+         * @param entries in key order, each key once
+         * @return the table they were written to, in a temporary file
+         */
+        static Table write(Iterator<Entry> entries) throws IOException {
+            final File file = File.createTempFile("s3mirror-packs-", ".tbl");
+            final List<String> blockKeys = new ArrayList<>();
+            final List<Long> blockOffsets = new ArrayList<>();
+            int count = 0;
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                final CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+                final DataOutputStream out = new DataOutputStream(counting);
+                while (entries.hasNext()) {
+                    final Entry entry = entries.next();
+                    if (count % BLOCK_ENTRIES == 0) {
+                        blockKeys.add(entry.relKey);
+                        blockOffsets.add(counting.count);
+                    }
+                    entry.writeTo(out);
+                    out.writeUTF(entry.archiveKey);
+                    count++;
+                }
+                out.flush();
+                final long indexOffset = counting.count;
+                out.writeInt(count);
+                out.writeInt(blockKeys.size());
+                for (int i = 0; i < blockKeys.size(); i++) {
+                    out.writeUTF(blockKeys.get(i));
+                    out.writeLong(blockOffsets.get(i));
+                }
+                out.writeLong(indexOffset);
+                out.writeInt(TABLE_MAGIC);
+                out.flush();
+            } catch (IOException | UncheckedIOException e) {
+                Files.deleteIfExists(file.toPath());
+                throw e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e;
+            }
+            return new Table(file);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+        CountingOutputStream(OutputStream out) { super(out); }
+        @Override public void write(int b) throws IOException { out.write(b); count++; }
+        @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); count += len; }
+    }
+
+    /**
+     * Merges sorted sources into one sorted stream. When a key is in several sources the earliest source
+     * wins (sources are given newest first).
+     */
+    private static class MergeIterator implements Iterator<Entry> {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+        private Entry next;
+
+        private static class Head implements Comparable<Head> {
+            final int source;
+            final Iterator<Entry> iterator;
+            Entry entry;
+            Head(int source, Iterator<Entry> iterator) { this.source = source; this.iterator = iterator; }
+            @Override public int compareTo(Head o) {
+                final int c = BY_KEY.compare(entry, o.entry);
+                return c != 0 ? c : Integer.compare(source, o.source);
+            }
+        }
+
+        MergeIterator(List<Iterator<Entry>> sources) {
+            for (int i = 0; i < sources.size(); i++) advance(new Head(i, sources.get(i)));
+            next = computeNext();
+        }
+
+        private void advance(Head head) {
+            if (head.iterator.hasNext()) {
+                head.entry = head.iterator.next();
+                heads.add(head);
+            }
+        }
+
+        private Entry computeNext() {
+            if (heads.isEmpty()) return null;
+            final Head head = heads.poll();
+            final Entry entry = head.entry;
+            advance(head);
+            // skip the older entries of the same key
+            while (!heads.isEmpty() && heads.peek().entry.relKey.equals(entry.relKey)) advance(heads.poll());
+            return entry;
+        }
+
+        @Override public boolean hasNext() { return next != null; }
+
+        @Override public Entry next() {
+            if (next == null) throw new NoSuchElementException();
+            final Entry result = next;
+            next = computeNext();
+            return result;
+        }
+    }
+}
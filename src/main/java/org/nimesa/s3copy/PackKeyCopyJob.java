@@ -0,0 +1,84 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Packs a small key into an archive at the destination (--pack, see ObjectPacker), instead of copying it.
+ *
+ * Whether it needs to be is told by the indexes of the archives, not by a HEAD of the destination: a key is packed
+ * again if its size or ETag changed. It is read with one GET, which also gives its content type; the rest of its
+ * metadata and its ACL are not kept.
+ */
+@Slf4j
+public class PackKeyCopyJob extends KeyCopyJob {
+
+    public PackKeyCopyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
+        super(clients, context, summary, notifyLock, comparisonStrategy);
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override
+    void copy(SourceObject source) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final ObjectPacker packer = context.getPacker();
+        final String key = summary.getKey();
+        final String relKey = key.substring(options.getPrefixLength());
+        final long start = System.currentTimeMillis();
+
+        if (!summary.isLatest() || summary.isDeleteMarker()) {
+            // an archive only has keys as they are now
+            inSync = true;
+            return;
+        }
+        if (packer.isPacked(relKey, summary)) {
+            if (options.isVerbose()) log.info("already packed as it is, not packing: " + key);
+            inSync = true;
+            recordResult(keydest, ResultManifest.Action.SKIPPED, 0, start);
+            return;
+        }
+        if (options.isDryRun()) {
+            log.info("Would have packed " + key + " into an archive under " + packer.group(relKey));
+            return;
+        }
+
+        context.getStats().getReconciliation().attempted(keydest);
+        final MessageDigest md5 = ObjectPacker.md5();
+        final String[] contentType = new String[1];
+        final byte[] data;
+        try {
+            data = withRetries("download of " + key, () -> {
+                final GetObjectRequest request = new GetObjectRequest(options.getSourceBucket(), key, sourceVersionId);
+                context.getStats().s3getCount.incrementAndGet();
+                try (S3Object object = clients.getSourceClient().getObject(request);
+                     InputStream in = object.getObjectContent()) {
+                    final byte[] bytes = in.readAllBytes();
+                    // changed since it was listed: its ETag would not be that of these bytes
+                    if (bytes.length != summary.getSize()) throw new IOException("got " + bytes.length + " bytes of " + key + ", listed with " + summary.getSize());
+                    contentType[0] = object.getObjectMetadata().getContentType();
+                    return bytes;
+                }
+            });
+        } catch (Exception e) {
+            error = e.getClass().getName();
+            context.getStats().getReconciliation().failed(keydest);
+            context.getStats().copyErrors.incrementAndGet();
+            recordResult(keydest, ResultManifest.Action.FAILED, 0, start);
+            throw e;
+        }
+        md5.update(data);
+        if (options.isVerbose()) log.info("packing " + key + " (" + data.length + " bytes)");
+        packer.add(this, relKey, data, md5.digest(), contentType[0], start);
+        // the archive is written later, and failures to write it are counted by the packer
+        inSync = true;
+    }
+}
@@ -0,0 +1,106 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Part layouts of multipart-uploaded source objects, so copies can be made with the same parts.
+ *
+ * The ETag of a multipart upload is the MD5 of its parts' MD5s, followed by "-" and the part count: two
+ * copies of the same data only have the same ETag if they were uploaded in the same parts. The part
+ * count is in the ETag; the part size is the size of part 1, which a HEAD with partNumber=1 returns.
+ * Only layouts of equal parts (but the last) can be reproduced, which is how uploaders split objects.
+ *
+ * Part sizes are cached by key and ETag, so an object is only looked up once however often it is copied.
+ */
+@Slf4j
+public class PartLayouts {
+
+    private static final int MAX_ENTRIES = 100000;
+    private static final long NO_LAYOUT = -1;
+
+    private final Map<String, Long> partSizes = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    });
+
+    /**
+     * @return the number of parts an object with this ETag was uploaded in, or 0 if it was not a multipart upload
+     */
+    public static int partCount(String etag) {
+        if (etag == null) return 0;
+        final int dash = etag.lastIndexOf('-');
+        if (dash == -1) return 0;
+        try {
+            return Integer.parseInt(etag.substring(dash + 1).replace("\"", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the size of the parts (but the last) the source object was uploaded in,
+     * or -1 if it was not a multipart upload, or its parts do not all have the same size
+     */
+    public long getPartSize(ObjectStore client, String bucket, S3VersionSummary summary, MirrorContext context) {
+        if (partCount(summary.getETag()) == 0) return NO_LAYOUT;
+        final Long cached = getCached(summary);
+        if (cached != null) return cached;
+
+        final ObjectMetadata part1;
+        try {
+            context.getStats().s3getCount.incrementAndGet();
+            part1 = client.getObjectMetadata(new GetObjectMetadataRequest(bucket, summary.getKey(), summary.getVersionId()).withPartNumber(1));
+        } catch (Exception e) {
+            // not cached, the next copy tries again
+            log.warn("Error looking up the part size of " + summary.getKey() + ": " + e);
+            return NO_LAYOUT;
+        }
+        return setPart1Size(summary, part1.getContentLength(), context);
+    }
+
+    /**
+     * @return true unless the source object is a multipart upload whose layout cannot be reproduced; an object
+     * that cannot be looked up is taken to have one that can
+     */
+    public boolean isReproducible(ObjectStore client, String bucket, S3VersionSummary summary, MirrorContext context) {
+        if (partCount(summary.getETag()) == 0) return true;
+        getPartSize(client, bucket, summary, context);
+        final Long cached = getCached(summary);
+        return cached == null || cached > 0;
+    }
+
+    /**
+     * @return the part size (or -1) already known for the object, or null if it has not been looked up
+     */
+    public Long getCached(S3VersionSummary summary) {
+        return partSizes.get(summary.getKey() + "@" + summary.getETag());
+    }
+
+    /**
+     * Works out the layout of a multipart source object from the size of its part 1, as a HEAD with partNumber=1
+     * returns it (for callers that make that request themselves), and caches it
+     *
+     * @return the size of its parts, or -1 if they do not all have the same size
+     */
+    public long setPart1Size(S3VersionSummary summary, long size, MirrorContext context) {
+        final int partCount = partCount(summary.getETag());
+        long partSize = NO_LAYOUT;
+        // equal parts of this size make the part count the ETag says
+        if (size > 0 && (summary.getSize() + size - 1) / size == partCount) {
+            partSize = size;
+        } else if (context.getOptions().isVerbose()) {
+            log.info(summary.getKey() + " has " + partCount + " parts of unequal sizes (part 1: " + size + " bytes), its layout cannot be reproduced");
+        }
+        partSizes.put(summary.getKey() + "@" + summary.getETag(), partSize);
+        return partSize;
+    }
+}
@@ -0,0 +1,40 @@
+package org.nimesa.s3copy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process event source: whatever is published here is mirrored. Handy for embedding and for tests.
+ */
+public class QueueEventSource implements EventSource {
+
+    private final BlockingQueue<ObjectEvent> queue = new LinkedBlockingQueue<>();
+
+    public void publish(ObjectEvent event) {
+        queue.add(event);
+    }
+
+    /**
+     * Publishes the events of an S3 event notification.
+     */
+    public void publish(String notification) throws IOException {
+        queue.addAll(ObjectEvent.parse(notification));
+    }
+
+    @Override
+    public List<ObjectEvent> poll(long timeoutMillis) throws InterruptedException {
+        final List<ObjectEvent> events = new ArrayList<>();
+        final ObjectEvent first = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (first == null) return events;
+        events.add(first);
+        queue.drainTo(events);
+        return events;
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,206 @@
+package org.nimesa.s3copy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Per-object audit trail: one gzipped JSON line per key with what was done to it, how many bytes
+ * that moved, how long it took and, for failures, the class of the error.
+ *
+ * Workers only put a result in a bounded ring buffer, which takes no lock (each slot carries a
+ * sequence number, producers claim slots with a CAS). A single writer thread drains the buffer
+ * into the file. If the writer falls behind, producers wait for a free slot rather than drop a
+ * result. If it stopped on an error, there is no one to wait for: results are dropped, and counted.
+ */
+@Slf4j
+public class ResultManifest implements AutoCloseable {
+
+    public enum Action { COPIED, SKIPPED, DELETED, FAILED }
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 1000000L;
+
+    private final File file;
+    private final AtomicReferenceArray<Result> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong(0);
+    // only touched by the writer thread
+    private long head = 0;
+
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // set if the writer stopped on an error
+    private volatile boolean failed = false;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    public ResultManifest(File file) throws IOException {
+        this.file = file;
+        for (int i = 0; i < CAPACITY; i++) sequences.set(i, i);
+        final Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file), 64 * 1024), StandardCharsets.UTF_8);
+        writer = new Thread(() -> writeLoop(out), "ResultManifest-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static class Result {
+        final String bucket;
+        final String key;
+        final String versionId;
+        final Action action;
+        final long bytes;
+        final long latency;
+        final String error;
+
+        Result(String bucket, String key, String versionId, Action action, long bytes, long latency, String error) {
+            this.bucket = bucket;
+            this.key = key;
+            this.versionId = versionId;
+            this.action = action;
+            this.bytes = bytes;
+            this.latency = latency;
+            this.error = error;
+        }
+    }
+
+    /**
+     * @param bucket  the destination bucket
+     * @param latency how long the key took to process, in milliseconds
+     * @param error   the class of the error that made the key fail, or null
+     */
+    public void record(String bucket, String key, String versionId, Action action, long bytes, long latency, String error) {
+        if (closed) return;
+        if (failed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        final Result result = new Result(bucket, key, versionId, action, bytes, latency, error);
+        while (true) {
+            final long pos = tail.get();
+            final int index = (int) (pos & MASK);
+            final long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(index, result);
+                    // publishes the slot to the writer
+                    sequences.set(index, pos + 1);
+                    return;
+                }
+            } else if (diff < 0) {
+                if (failed) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                // full: the writer is behind, wait for it
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private Result poll() {
+        final int index = (int) (head & MASK);
+        if (sequences.get(index) != head + 1) return null;
+        final Result result = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + CAPACITY);
+        head++;
+        return result;
+    }
+
+    private void writeLoop(Writer out) {
+        final StringBuilder line = new StringBuilder(256);
+        long written = 0;
+        try {
+            boolean dirty = false;
+            while (true) {
+                final Result result = poll();
+                if (result == null) {
+                    if (closed && head == tail.get()) break;
+                    if (dirty) {
+                        out.flush();
+                        dirty = false;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                line.setLength(0);
+                toJson(result, line);
+                out.write(line.toString());
+                dirty = true;
+                written++;
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            log.error("error writing result manifest " + file + ", the results recorded from now on are dropped: " + e, e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.error("error closing result manifest " + file + ": " + e);
+            }
+            log.info("result manifest " + file + " closed (" + written + " results)");
+        }
+    }
+
+    private static void toJson(Result r, StringBuilder sb) {
+        sb.append("{\"bucket\":");
+        quote(r.bucket, sb);
+        sb.append(",\"key\":");
+        quote(r.key, sb);
+        if (r.versionId != null) {
+            sb.append(",\"version\":");
+            quote(r.versionId, sb);
+        }
+        sb.append(",\"action\":\"").append(r.action.name().toLowerCase()).append('"');
+        sb.append(",\"bytes\":").append(r.bytes);
+        sb.append(",\"ms\":").append(r.latency);
+        if (r.error != null) {
+            sb.append(",\"error\":");
+            quote(r.error, sb);
+        }
+        sb.append("}\n");
+    }
+
+    private static void quote(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Writes out every result recorded so far and stops the writer.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            log.error("interrupted while closing result manifest " + file);
+        }
+        if (dropped.get() > 0) log.warn(dropped.get() + " results were dropped from result manifest " + file + " after it could not be written");
+    }
+}
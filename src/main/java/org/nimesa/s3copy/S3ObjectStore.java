@@ -0,0 +1,79 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.model.VersionListing;
+import lombok.Getter;
+
+/**
+ * An ObjectStore that is an S3 bucket (or several, all in the client's region): each request goes to the client as it is.
+ */
+public class S3ObjectStore implements ObjectStore {
+
+    @Getter private final AmazonS3Client client;
+
+    public S3ObjectStore(AmazonS3Client client) {
+        this.client = client;
+    }
+
+    @Override public VersionListing listVersions(ListVersionsRequest request) { return client.listVersions(request); }
+
+    @Override public VersionListing listNextBatchOfVersions(VersionListing previous) { return client.listNextBatchOfVersions(previous); }
+
+    @Override public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) { return client.listObjectsV2(request); }
+
+    @Override public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) { return client.getObjectMetadata(request); }
+
+    @Override public S3Object getObject(GetObjectRequest request) { return client.getObject(request); }
+
+    @Override public AccessControlList getObjectAcl(String bucket, String key) { return client.getObjectAcl(bucket, key); }
+
+    @Override public AccessControlList getBucketAcl(String bucket) { return client.getBucketAcl(bucket); }
+
+    @Override public CopyObjectResult copyObject(CopyObjectRequest request) { return client.copyObject(request); }
+
+    @Override public PutObjectResult putObject(PutObjectRequest request) { return client.putObject(request); }
+
+    @Override public void deleteObject(DeleteObjectRequest request) { client.deleteObject(request); }
+
+    @Override public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) { return client.initiateMultipartUpload(request); }
+
+    @Override public UploadPartResult uploadPart(UploadPartRequest request) { return client.uploadPart(request); }
+
+    @Override public CopyPartResult copyPart(CopyPartRequest request) { return client.copyPart(request); }
+
+    @Override public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) { return client.completeMultipartUpload(request); }
+
+    @Override public void abortMultipartUpload(AbortMultipartUploadRequest request) { client.abortMultipartUpload(request); }
+
+    @Override public PartListing listParts(ListPartsRequest request) { return client.listParts(request); }
+
+    @Override public MultipartUploadListing listMultipartUploads(ListMultipartUploadsRequest request) { return client.listMultipartUploads(request); }
+
+    @Override public void shutdown() { client.shutdown(); }
+}
@@ -0,0 +1,734 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.nimesa.s3copy.MirrorConstants.MB;
+
+/**
+ * An ObjectStore answered in this process, the way S3 answers: the base of MemoryObjectStore and DiskObjectStore,
+ * which keep the bytes (see Content) while this keeps the keys, in listing order, and the multipart uploads.
+ *
+ * Buckets exist as soon as they are used, and are not versioned: every key has the one version "null". Objects
+ * get the MD5 of their bytes as their ETag, and those completed from parts the MD5 of their parts' MD5s and the
+ * part count, as S3 gives them, so comparisons, part layouts and verification go as they would against S3. Listings
+ * ignore delimiters, which the mirror does not use. Checksum headers sent with uploads are kept as they are, not checked.
+ */
+@Slf4j
+public abstract class SimulatedObjectStore implements ObjectStore {
+
+    public static final Owner OWNER = new Owner("simulated", "s3mirror");
+    public static final String NULL_VERSION = "null";
+    private static final String STANDARD = StorageClass.Standard.toString();
+    private static final int MAX_KEYS = 1000;
+    private static final long MIN_PART_SIZE = 5 * MB;
+
+    // headers of an object that are not kept with the others, as they are worked out from the object itself
+    private static final Set<String> DERIVED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    static {
+        DERIVED_HEADERS.addAll(Arrays.asList(Headers.CONTENT_LENGTH, Headers.ETAG, Headers.LAST_MODIFIED, Headers.CONTENT_MD5,
+                Headers.S3_VERSION_ID, Headers.STORAGE_CLASS, Headers.S3_PARTS_COUNT, Headers.CONTENT_RANGE, "Accept-Ranges"));
+    }
+
+    /**
+     * The bytes of an object or a part, wherever the store keeps them
+     */
+    protected interface Content {
+        long size();
+
+        /**
+         * @return a stream of the bytes from first to last, inclusive
+         */
+        InputStream open(long first, long last) throws IOException;
+
+        /**
+         * Frees the bytes, once no object or part has them any more
+         */
+        default void discard() {}
+    }
+
+    /**
+     * An object: its content, and what a HEAD or a listing says about it
+     */
+    protected static class StoredObject {
+        final long size;
+        final String etag;
+        final long lastModified;
+        final String storageClass;
+        // the sizes of the parts it was uploaded in, or null if it was not a multipart upload
+        final long[] partSizes;
+        // Content-Type, Cache-Control, x-amz-checksum-*... and the user metadata, null if there are none
+        final Map<String, String> headers;
+        final Map<String, String> userMetadata;
+        final Date expires;
+        final Content content;
+
+        StoredObject(long size, String etag, long lastModified, String storageClass, long[] partSizes,
+                     Map<String, String> headers, Map<String, String> userMetadata, Date expires, Content content) {
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storageClass = storageClass;
+            this.partSizes = partSizes;
+            this.headers = headers;
+            this.userMetadata = userMetadata;
+            this.expires = expires;
+            this.content = content;
+        }
+
+        StoredObject withContent(Content content) {
+            return new StoredObject(size, etag, lastModified, storageClass, partSizes, headers, userMetadata, expires, content);
+        }
+
+        ObjectMetadata toMetadata() {
+            final ObjectMetadata metadata = new ObjectMetadata();
+            if (headers != null) headers.forEach(metadata::setHeader);
+            if (userMetadata != null) metadata.setUserMetadata(new HashMap<>(userMetadata));
+            if (expires != null) metadata.setHttpExpiresDate(expires);
+            metadata.setContentLength(size);
+            metadata.setHeader(Headers.ETAG, etag);
+            metadata.setLastModified(new Date(lastModified));
+            // as S3 does, the default storage class goes without saying
+            if (!STANDARD.equals(storageClass)) metadata.setHeader(Headers.STORAGE_CLASS, storageClass);
+            return metadata;
+        }
+    }
+
+    private static class Part {
+        final Content content;
+        final String etag;
+        final long lastModified = System.currentTimeMillis();
+
+        Part(Content content, String etag) {
+            this.content = content;
+            this.etag = etag;
+        }
+    }
+
+    private static class Upload {
+        final String bucket;
+        final String key;
+        final String uploadId = UUID.randomUUID().toString();
+        final Date initiated = new Date();
+        final String storageClass;
+        final ObjectMetadata metadata;
+        final ConcurrentSkipListMap<Integer, Part> parts = new ConcurrentSkipListMap<>();
+
+        Upload(String bucket, String key, String storageClass, ObjectMetadata metadata) {
+            this.bucket = bucket;
+            this.key = key;
+            this.storageClass = storageClass;
+            this.metadata = metadata;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * @return the bucket's objects by key, in listing order (see newBucket()), loaded or created the first time it is used
+     */
+    protected abstract ConcurrentNavigableMap<String, StoredObject> bucket(String bucket);
+
+    /**
+     * @param length the number of bytes to read, or -1 for all there are
+     * @return new content with the bytes read, which are added to the digest as they are read
+     */
+    protected abstract Content write(InputStream in, long length, MessageDigest md5) throws IOException;
+
+    /**
+     * @return new content with the bytes from first to last of the content, which are added to the digest
+     */
+    protected abstract Content copyRange(Content content, long first, long last, MessageDigest md5) throws IOException;
+
+    /**
+     * @return content with the same bytes, for another object
+     */
+    protected abstract Content duplicate(Content content) throws IOException;
+
+    /**
+     * @return new content with the bytes of the parts, one after the other; the parts are discarded after
+     */
+    protected abstract Content concat(List<Content> parts) throws IOException;
+
+    /**
+     * Keeps the object under the key
+     *
+     * @return the object it replaces, if any, to be discarded
+     */
+    protected StoredObject store(String bucket, String key, StoredObject object) throws IOException {
+        return bucket(bucket).put(key, object);
+    }
+
+    /**
+     * @return the object removed, if any, to be discarded
+     */
+    protected StoredObject remove(String bucket, String key) throws IOException {
+        return bucket(bucket).remove(key);
+    }
+
+    /**
+     * Keys are listed as S3 lists them: in the order of their UTF-8 bytes, which is that of their code points
+     */
+    protected static ConcurrentNavigableMap<String, StoredObject> newBucket() {
+        return new ConcurrentSkipListMap<>(MirrorPlanner::compareKeys);
+    }
+
+    private void commit(String bucket, String key, StoredObject object) {
+        try {
+            final StoredObject replaced = store(bucket, key, object);
+            if (replaced != null && replaced.content != object.content) replaced.content.discard();
+        } catch (IOException e) {
+            object.content.discard();
+            throw internalError("storing " + bucket + "/" + key, e);
+        }
+    }
+
+    private StoredObject getStored(String bucket, String key, String code) {
+        final StoredObject object = bucket(bucket).get(key);
+        if (object == null) throw error(404, code, "The specified key does not exist: " + bucket + "/" + key);
+        return object;
+    }
+
+    private Upload getUpload(String bucket, String key, String uploadId) {
+        final Upload upload = uploads.get(uploadId);
+        if (upload == null || !upload.bucket.equals(bucket) || !upload.key.equals(key)) {
+            throw error(404, "NoSuchUpload", "The specified upload does not exist: " + uploadId);
+        }
+        return upload;
+    }
+
+    /**
+     * @return up to max keys of the bucket that start with the prefix and come after the marker, and one more if there is one
+     */
+    private List<Map.Entry<String, StoredObject>> page(String bucket, String prefix, String marker, int max) {
+        final ConcurrentNavigableMap<String, StoredObject> objects = bucket(bucket);
+        final ConcurrentNavigableMap<String, StoredObject> from = marker != null && MirrorPlanner.compareKeys(marker, prefix) >= 0
+                ? objects.tailMap(marker, false) : objects.tailMap(prefix, true);
+        final List<Map.Entry<String, StoredObject>> page = new ArrayList<>(Math.min(max + 1, 1024));
+        for (Map.Entry<String, StoredObject> entry : from.entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || page.size() > max) break;
+            page.add(entry);
+        }
+        return page;
+    }
+
+    private static int maxKeys(Integer requested) {
+        return requested == null || requested <= 0 ? MAX_KEYS : Math.min(requested, MAX_KEYS);
+    }
+
+    @Override
+    public VersionListing listVersions(ListVersionsRequest request) {
+        final int max = maxKeys(request.getMaxResults());
+        final List<Map.Entry<String, StoredObject>> page = page(request.getBucketName(), nullToEmpty(request.getPrefix()), request.getKeyMarker(), max);
+        final VersionListing listing = new VersionListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setKeyMarker(request.getKeyMarker());
+        listing.setVersionIdMarker(request.getVersionIdMarker());
+        listing.setDelimiter(request.getDelimiter());
+        listing.setMaxKeys(max);
+        for (Map.Entry<String, StoredObject> entry : page.subList(0, Math.min(max, page.size()))) {
+            final StoredObject object = entry.getValue();
+            final S3VersionSummary summary = new S3VersionSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(entry.getKey());
+            summary.setVersionId(NULL_VERSION);
+            summary.setIsLatest(true);
+            summary.setSize(object.size);
+            summary.setETag(object.etag);
+            summary.setLastModified(new Date(object.lastModified));
+            summary.setStorageClass(object.storageClass);
+            listing.getVersionSummaries().add(summary);
+        }
+        if (page.size() > max) {
+            listing.setTruncated(true);
+            listing.setNextKeyMarker(page.get(max - 1).getKey());
+            listing.setNextVersionIdMarker(NULL_VERSION);
+        }
+        return listing;
+    }
+
+    @Override
+    public VersionListing listNextBatchOfVersions(VersionListing previous) {
+        if (!previous.isTruncated()) {
+            final VersionListing empty = new VersionListing();
+            empty.setBucketName(previous.getBucketName());
+            empty.setPrefix(previous.getPrefix());
+            empty.setDelimiter(previous.getDelimiter());
+            empty.setMaxKeys(previous.getMaxKeys());
+            empty.setKeyMarker(previous.getNextKeyMarker());
+            empty.setVersionIdMarker(previous.getNextVersionIdMarker());
+            return empty;
+        }
+        return listVersions(new ListVersionsRequest(previous.getBucketName(), previous.getPrefix(), previous.getNextKeyMarker(),
+                previous.getNextVersionIdMarker(), previous.getDelimiter(), previous.getMaxKeys()));
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        final int max = maxKeys(request.getMaxKeys());
+        // the continuation token is the last key of the previous page
+        final String marker = request.getContinuationToken() != null ? request.getContinuationToken() : request.getStartAfter();
+        final List<Map.Entry<String, StoredObject>> page = page(request.getBucketName(), nullToEmpty(request.getPrefix()), marker, max);
+        final ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(request.getBucketName());
+        result.setPrefix(request.getPrefix());
+        result.setStartAfter(request.getStartAfter());
+        result.setContinuationToken(request.getContinuationToken());
+        result.setDelimiter(request.getDelimiter());
+        result.setMaxKeys(max);
+        for (Map.Entry<String, StoredObject> entry : page.subList(0, Math.min(max, page.size()))) {
+            final StoredObject object = entry.getValue();
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(entry.getKey());
+            summary.setSize(object.size);
+            summary.setETag(object.etag);
+            summary.setLastModified(new Date(object.lastModified));
+            summary.setStorageClass(object.storageClass);
+            result.getObjectSummaries().add(summary);
+        }
+        result.setKeyCount(result.getObjectSummaries().size());
+        if (page.size() > max) {
+            result.setTruncated(true);
+            result.setNextContinuationToken(page.get(max - 1).getKey());
+        }
+        return result;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+        final StoredObject object = getStored(request.getBucketName(), request.getKey(), "404 Not Found");
+        final ObjectMetadata metadata = object.toMetadata();
+        final Integer partNumber = request.getPartNumber();
+        if (partNumber != null) {
+            final int parts = object.partSizes == null ? 1 : object.partSizes.length;
+            if (partNumber < 1 || partNumber > parts) throw error(416, "InvalidPartNumber", "The requested partnumber is not satisfiable");
+            if (object.partSizes != null) {
+                metadata.setContentLength(object.partSizes[partNumber - 1]);
+                metadata.setHeader(Headers.S3_PARTS_COUNT, parts);
+            }
+        }
+        return metadata;
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        final StoredObject object = getStored(request.getBucketName(), request.getKey(), "NoSuchKey");
+        final ObjectMetadata metadata = object.toMetadata();
+        long first = 0;
+        long last = object.size - 1;
+        final long[] range = request.getRange();
+        if (range != null) {
+            if (range[0] >= object.size) throw error(416, "InvalidRange", "The requested range is not satisfiable");
+            first = range[0];
+            last = Math.min(range[1], object.size - 1);
+            metadata.setHeader(Headers.CONTENT_RANGE, "bytes " + first + "-" + last + "/" + object.size);
+        }
+        metadata.setContentLength(last - first + 1);
+        final S3Object result = new S3Object();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setObjectMetadata(metadata);
+        try {
+            result.setObjectContent(object.size == 0 ? new ByteArrayInputStream(new byte[0]) : object.content.open(first, last));
+        } catch (IOException e) {
+            throw internalError("reading " + request.getBucketName() + "/" + request.getKey(), e);
+        }
+        return result;
+    }
+
+    @Override
+    public AccessControlList getObjectAcl(String bucket, String key) {
+        getStored(bucket, key, "NoSuchKey");
+        return ownerAcl();
+    }
+
+    @Override
+    public AccessControlList getBucketAcl(String bucket) {
+        return ownerAcl();
+    }
+
+    private static AccessControlList ownerAcl() {
+        final AccessControlList acl = new AccessControlList();
+        acl.setOwner(OWNER);
+        acl.grantPermission(new CanonicalGrantee(OWNER.getId()), Permission.FullControl);
+        return acl;
+    }
+
+    @Override
+    public CopyObjectResult copyObject(CopyObjectRequest request) {
+        final StoredObject source = getStored(request.getSourceBucketName(), request.getSourceKey(), "NoSuchKey");
+        if (source.size > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
+            throw error(400, "InvalidRequest", "The specified copy source is larger than the maximum allowable size for a copy source: "
+                    + MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE);
+        }
+        final ObjectMetadata replacement = request.getNewObjectMetadata();
+        Map<String, String> headers = source.headers;
+        Map<String, String> userMetadata = source.userMetadata;
+        Date expires = source.expires;
+        if (replacement != null) {
+            // the data is the same, and so are its checksums
+            headers = headersOf(replacement);
+            if (source.headers != null) {
+                for (Map.Entry<String, String> header : source.headers.entrySet()) {
+                    if (header.getKey().toLowerCase().startsWith("x-amz-checksum-")) {
+                        if (headers == null) headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                        headers.put(header.getKey(), header.getValue());
+                    }
+                }
+            }
+            userMetadata = userMetadataOf(replacement);
+            expires = replacement.getHttpExpiresDate();
+        }
+        final Content content;
+        final String etag;
+        try {
+            content = duplicate(source.content);
+            // a copy is a single upload, whatever the source was
+            etag = source.partSizes == null ? source.etag : BinaryUtils.toHex(digest(content));
+        } catch (IOException e) {
+            throw internalError("copying " + request.getSourceBucketName() + "/" + request.getSourceKey(), e);
+        }
+        final StoredObject copy = new StoredObject(source.size, etag, System.currentTimeMillis(), storageClassOf(request.getStorageClass()),
+                null, headers, userMetadata, expires, content);
+        commit(request.getDestinationBucketName(), request.getDestinationKey(), copy);
+
+        final CopyObjectResult result = new CopyObjectResult();
+        result.setETag(etag);
+        result.setLastModifiedDate(new Date(copy.lastModified));
+        return result;
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        final ObjectMetadata metadata = request.getMetadata() == null ? new ObjectMetadata() : request.getMetadata();
+        final MessageDigest md5 = md5();
+        final Content content;
+        try (InputStream in = request.getFile() != null ? new FileInputStream(request.getFile()) : request.getInputStream()) {
+            final long length = request.getFile() != null ? request.getFile().length()
+                    : metadata.getRawMetadataValue(Headers.CONTENT_LENGTH) != null ? metadata.getContentLength() : -1;
+            content = write(in, length, md5);
+        } catch (EOFException e) {
+            throw error(400, "IncompleteBody", "You did not provide the number of bytes specified by the Content-Length HTTP header");
+        } catch (IOException e) {
+            throw internalError("writing " + request.getBucketName() + "/" + request.getKey(), e);
+        }
+        final byte[] digest = md5.digest();
+        if (metadata.getContentMD5() != null && !metadata.getContentMD5().equals(BinaryUtils.toBase64(digest))) {
+            content.discard();
+            throw error(400, "BadDigest", "The Content-MD5 you specified did not match what was received.");
+        }
+        final String etag = BinaryUtils.toHex(digest);
+        final StoredObject object = new StoredObject(content.size(), etag, System.currentTimeMillis(), storageClassOf(request.getStorageClass()),
+                null, headersOf(metadata), userMetadataOf(metadata), metadata.getHttpExpiresDate(), content);
+        commit(request.getBucketName(), request.getKey(), object);
+
+        final PutObjectResult result = new PutObjectResult();
+        result.setETag(etag);
+        result.setMetadata(object.toMetadata());
+        return result;
+    }
+
+    @Override
+    public void deleteObject(DeleteObjectRequest request) {
+        try {
+            final StoredObject removed = remove(request.getBucketName(), request.getKey());
+            if (removed != null) removed.content.discard();
+        } catch (IOException e) {
+            throw internalError("deleting " + request.getBucketName() + "/" + request.getKey(), e);
+        }
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        final Upload upload = new Upload(request.getBucketName(), request.getKey(), storageClassOf(request.getStorageClass() == null ? null : request.getStorageClass().toString()),
+                request.getObjectMetadata() == null ? new ObjectMetadata() : request.getObjectMetadata());
+        uploads.put(upload.uploadId, upload);
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(upload.bucket);
+        result.setKey(upload.key);
+        result.setUploadId(upload.uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        final Upload upload = getUpload(request.getBucketName(), request.getKey(), request.getUploadId());
+        final MessageDigest md5 = md5();
+        final Content content;
+        try (InputStream in = request.getFile() != null ? new FileInputStream(request.getFile()) : request.getInputStream()) {
+            if (request.getFile() != null) ((FileInputStream) in).getChannel().position(request.getFileOffset());
+            content = write(in, request.getPartSize(), md5);
+        } catch (EOFException e) {
+            throw error(400, "IncompleteBody", "You did not provide the number of bytes specified by the Content-Length HTTP header");
+        } catch (IOException e) {
+            throw internalError("writing part " + request.getPartNumber() + " of " + request.getBucketName() + "/" + request.getKey(), e);
+        }
+        final String etag = addPart(upload, request.getPartNumber(), content, md5);
+        final UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(etag);
+        return result;
+    }
+
+    @Override
+    public CopyPartResult copyPart(CopyPartRequest request) {
+        final Upload upload = getUpload(request.getDestinationBucketName(), request.getDestinationKey(), request.getUploadId());
+        final StoredObject source = getStored(request.getSourceBucketName(), request.getSourceKey(), "NoSuchKey");
+        final long first = request.getFirstByte() == null ? 0 : request.getFirstByte();
+        final long last = request.getLastByte() == null ? source.size - 1 : request.getLastByte();
+        if (first < 0 || first > last || last >= source.size) {
+            throw error(400, "InvalidArgument", "Range specified is not valid for source object of size: " + source.size);
+        }
+        final MessageDigest md5 = md5();
+        final Content content;
+        try {
+            content = copyRange(source.content, first, last, md5);
+        } catch (IOException e) {
+            throw internalError("copying part " + request.getPartNumber() + " of " + request.getSourceBucketName() + "/" + request.getSourceKey(), e);
+        }
+        final String etag = addPart(upload, request.getPartNumber(), content, md5);
+        final CopyPartResult result = new CopyPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(etag);
+        result.setLastModifiedDate(new Date());
+        return result;
+    }
+
+    private String addPart(Upload upload, int partNumber, Content content, MessageDigest md5) {
+        final String etag = BinaryUtils.toHex(md5.digest());
+        synchronized (upload) {
+            if (uploads.get(upload.uploadId) != upload) {
+                // completed or aborted meanwhile
+                content.discard();
+                throw error(404, "NoSuchUpload", "The specified upload does not exist: " + upload.uploadId);
+            }
+            final Part replaced = upload.parts.put(partNumber, new Part(content, etag));
+            if (replaced != null) replaced.content.discard();
+        }
+        return etag;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        final Upload upload = getUpload(request.getBucketName(), request.getKey(), request.getUploadId());
+        final List<PartETag> etags = new ArrayList<>(request.getPartETags());
+        if (etags.isEmpty()) throw error(400, "MalformedXML", "The XML you provided was not well-formed or did not validate against our published schema");
+        etags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+
+        final StoredObject object;
+        synchronized (upload) {
+            final List<Part> parts = new ArrayList<>(etags.size());
+            for (PartETag etag : etags) {
+                final Part part = upload.parts.get(etag.getPartNumber());
+                if (part == null || !part.etag.equals(etag.getETag().replace("\"", ""))) {
+                    throw error(400, "InvalidPart", "One or more of the specified parts could not be found: part " + etag.getPartNumber());
+                }
+                if (!parts.isEmpty() && parts.get(parts.size() - 1).content.size() < MIN_PART_SIZE) {
+                    throw error(400, "EntityTooSmall", "Your proposed upload is smaller than the minimum allowed size");
+                }
+                parts.add(part);
+            }
+            final MessageDigest md5 = md5();
+            final List<Content> contents = new ArrayList<>(parts.size());
+            final long[] partSizes = new long[parts.size()];
+            for (int i = 0; i < parts.size(); i++) {
+                md5.update(BinaryUtils.fromHex(parts.get(i).etag));
+                contents.add(parts.get(i).content);
+                partSizes[i] = parts.get(i).content.size();
+            }
+            final Content content;
+            try {
+                content = concat(contents);
+            } catch (IOException e) {
+                throw internalError("completing " + upload.bucket + "/" + upload.key, e);
+            }
+            uploads.remove(upload.uploadId);
+            for (Part part : upload.parts.values()) part.content.discard();
+            object = new StoredObject(content.size(), BinaryUtils.toHex(md5.digest()) + "-" + parts.size(), System.currentTimeMillis(),
+                    upload.storageClass, partSizes, headersOf(upload.metadata), userMetadataOf(upload.metadata), upload.metadata.getHttpExpiresDate(), content);
+        }
+        commit(upload.bucket, upload.key, object);
+
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(upload.bucket);
+        result.setKey(upload.key);
+        result.setETag(object.etag);
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        final Upload upload = getUpload(request.getBucketName(), request.getKey(), request.getUploadId());
+        synchronized (upload) {
+            if (uploads.remove(upload.uploadId) == null) return;
+            for (Part part : upload.parts.values()) part.content.discard();
+        }
+    }
+
+    @Override
+    public PartListing listParts(ListPartsRequest request) {
+        final Upload upload = getUpload(request.getBucketName(), request.getKey(), request.getUploadId());
+        final int max = maxKeys(request.getMaxParts());
+        final int marker = request.getPartNumberMarker() == null ? 0 : request.getPartNumberMarker();
+        final PartListing listing = new PartListing();
+        listing.setBucketName(upload.bucket);
+        listing.setKey(upload.key);
+        listing.setUploadId(upload.uploadId);
+        listing.setStorageClass(upload.storageClass);
+        listing.setMaxParts(max);
+        listing.setPartNumberMarker(marker);
+        final List<PartSummary> summaries = new ArrayList<>();
+        for (Map.Entry<Integer, Part> entry : upload.parts.tailMap(marker, false).entrySet()) {
+            if (summaries.size() == max) {
+                listing.setTruncated(true);
+                listing.setNextPartNumberMarker(summaries.get(max - 1).getPartNumber());
+                break;
+            }
+            final PartSummary summary = new PartSummary();
+            summary.setPartNumber(entry.getKey());
+            summary.setETag(entry.getValue().etag);
+            summary.setSize(entry.getValue().content.size());
+            summary.setLastModified(new Date(entry.getValue().lastModified));
+            summaries.add(summary);
+        }
+        listing.setParts(summaries);
+        return listing;
+    }
+
+    @Override
+    public MultipartUploadListing listMultipartUploads(ListMultipartUploadsRequest request) {
+        final String prefix = nullToEmpty(request.getPrefix());
+        final int max = maxKeys(request.getMaxUploads());
+        final List<Upload> matching = new ArrayList<>();
+        for (Upload upload : uploads.values()) {
+            if (upload.bucket.equals(request.getBucketName()) && upload.key.startsWith(prefix)) matching.add(upload);
+        }
+        matching.sort(Comparator.<Upload, String>comparing(u -> u.key, MirrorPlanner::compareKeys).thenComparing(u -> u.initiated).thenComparing(u -> u.uploadId));
+
+        int start = 0;
+        if (request.getKeyMarker() != null) {
+            while (start < matching.size() && MirrorPlanner.compareKeys(matching.get(start).key, request.getKeyMarker()) < 0) start++;
+            if (request.getUploadIdMarker() == null) {
+                while (start < matching.size() && matching.get(start).key.equals(request.getKeyMarker())) start++;
+            } else {
+                for (int i = start; i < matching.size() && matching.get(i).key.equals(request.getKeyMarker()); i++) {
+                    if (matching.get(i).uploadId.equals(request.getUploadIdMarker())) {
+                        start = i + 1;
+                        break;
+                    }
+                }
+            }
+        }
+        final MultipartUploadListing listing = new MultipartUploadListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setKeyMarker(request.getKeyMarker());
+        listing.setUploadIdMarker(request.getUploadIdMarker());
+        listing.setMaxUploads(max);
+        final List<MultipartUpload> page = new ArrayList<>();
+        for (Upload upload : matching.subList(start, Math.min(matching.size(), start + max))) {
+            final MultipartUpload summary = new MultipartUpload();
+            summary.setKey(upload.key);
+            summary.setUploadId(upload.uploadId);
+            summary.setInitiated(upload.initiated);
+            summary.setStorageClass(upload.storageClass);
+            summary.setOwner(OWNER);
+            summary.setInitiator(OWNER);
+            page.add(summary);
+        }
+        listing.setMultipartUploads(page);
+        if (start + max < matching.size()) {
+            listing.setTruncated(true);
+            listing.setNextKeyMarker(page.get(page.size() - 1).getKey());
+            listing.setNextUploadIdMarker(page.get(page.size() - 1).getUploadId());
+        }
+        return listing;
+    }
+
+    /**
+     * The buckets belong to the process (or the directory), not to one client: nothing to do
+     */
+    @Override
+    public void shutdown() {}
+
+    /**
+     * @return the headers worth keeping of metadata sent with an object, null if there are none
+     */
+    protected static Map<String, String> headersOf(ObjectMetadata metadata) {
+        Map<String, String> headers = null;
+        for (Map.Entry<String, Object> header : metadata.getRawMetadata().entrySet()) {
+            if (!(header.getValue() instanceof String) || DERIVED_HEADERS.contains(header.getKey())) continue;
+            if (headers == null) headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.put(header.getKey(), (String) header.getValue());
+        }
+        return headers;
+    }
+
+    private static Map<String, String> userMetadataOf(ObjectMetadata metadata) {
+        return metadata.getUserMetadata().isEmpty() ? null : new HashMap<>(metadata.getUserMetadata());
+    }
+
+    private static String storageClassOf(String storageClass) {
+        return storageClass == null ? STANDARD : storageClass;
+    }
+
+    private static String nullToEmpty(String s) { return s == null ? "" : s; }
+
+    protected static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available: " + e, e);
+        }
+    }
+
+    /**
+     * @return the MD5 of the content's bytes
+     */
+    protected static byte[] digest(Content content) throws IOException {
+        final MessageDigest md5 = md5();
+        if (content.size() == 0) return md5.digest();
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = content.open(0, content.size() - 1)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) md5.update(buffer, 0, n);
+        }
+        return md5.digest();
+    }
+
+    /**
+     * @return an exception like the ones the S3 client throws for this response
+     */
+    public static AmazonS3Exception error(int status, String code, String message) {
+        final AmazonS3Exception e = new AmazonS3Exception(message);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        e.setErrorType(status >= 500 ? AmazonServiceException.ErrorType.Service : AmazonServiceException.ErrorType.Client);
+        e.setServiceName("Amazon S3");
+        return e;
+    }
+
+    private static AmazonS3Exception internalError(String what, IOException cause) {
+        log.error("Error " + what + ": " + cause);
+        final AmazonS3Exception e = error(500, "InternalError", "We encountered an internal error " + what + ": " + cause);
+        e.initCause(cause);
+        return e;
+    }
+}
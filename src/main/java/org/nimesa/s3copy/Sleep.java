@@ -6,7 +6,7 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class Sleep {
 
-    public static boolean sleep(int millis) {
+    public static boolean sleep(long millis) {
         try {
             Thread.sleep(millis);
         } catch (InterruptedException e) {
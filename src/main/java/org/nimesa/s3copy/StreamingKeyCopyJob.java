@@ -0,0 +1,259 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.*;
+import lombok.extern.slf4j.Slf4j;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.nimesa.s3copy.comparisonstrategies.SourceEtagComparisonStrategy;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.nimesa.s3copy.MirrorConstants.*;
+
+/**
+ * Copies a key by streaming it through this process (--stream): GETs from the source client and PUTs
+ * to the destination client, for destinations that a server-side copy cannot reach (another endpoint,
+ * or credentials of their own).
+ *
+ * Large objects, and multipart sources (in their own part layout, see PartLayouts), are moved in parts,
+ * in parallel: each part is a ranged GET into a buffer from the BufferPool, uploaded as one part of a
+ * multipart upload, then released. A part that fails is retried
+ * on its own. The destination gets the source's ETag in its metadata, as its own ETag depends on the
+ * part size (see SourceEtagComparisonStrategy).
+ *
+ * With --checksum, each part is checksummed as it passes through, on its own thread, and the object's
+ * checksum is checked against the source's before the upload is completed. A single PUT sends it along,
+ * so S3 checks the bytes it received as well.
+ *
+ * With --compress, objects of the chosen content types are read with a single GET instead, and gzipped
+ * on their way (see CompressedUpload).
+ */
+@Slf4j
+public class StreamingKeyCopyJob extends KeyCopyJob {
+
+    private static final long MIN_PART_SIZE = 5 * MB;
+    static final long MAX_PART_SIZE = 64 * MB;
+    private static final int MAX_PARTS = 10000;
+    // parts should be small enough for this many to fit in the pool at once
+    private static final int MIN_PARTS_IN_FLIGHT = 4;
+
+    // the checksum of the data as it passed through, with --checksum
+    private String checksum;
+
+    public StreamingKeyCopyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
+        super(clients, context, summary, notifyLock, comparisonStrategy);
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override
+    boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
+        final MirrorOptions options = context.getOptions();
+        final String key = summary.getKey();
+        try {
+            if (options.isVerbose()) log.info("streaming " + key + " to: " + keydest);
+            final long size = sourceMetadata.getContentLength();
+            final String versionId = stream(sourceMetadata, objectAcl);
+            if (context.getDestinationIndex() != null) {
+                context.getDestinationIndex().put(keydest, size, sourceMetadata.getETag(), null, versionId);
+            }
+            context.getStats().bytesCopied.addAndGet(size);
+            if (options.hasChecksum()) {
+                verifyChecksum(size, size, checksum);
+            } else {
+                context.getStats().getReconciliation().verified(keydest);
+            }
+            if (options.isVerbose()) log.info("successfully streamed " + key + " to: " + keydest);
+            return true;
+
+        } catch (AmazonS3Exception e) {
+            error = e.getClass().getName() + "/" + e.getErrorCode();
+            log.error("s3 exception streaming " + key + " to: " + keydest + ": " + e);
+        } catch (Exception e) {
+            error = e.getClass().getName();
+            log.error("unexpected exception streaming " + key + " to: " + keydest + ": " + e);
+        }
+        return false;
+    }
+
+    /**
+     * @return the source's part size, if it was uploaded in equal parts that fit in the buffer pool, or -1
+     */
+    private long getSourcePartSize(BufferPool pool) {
+        final MirrorOptions options = context.getOptions();
+        final long partSize = context.getPartLayouts().getPartSize(clients.getSourceClient(), options.getSourceBucket(), summary, context);
+        return partSize <= pool.getMaxBufferSize() ? partSize : -1;
+    }
+
+    /**
+     * Part size for a streamed object: the configured one, but small enough for several parts to be in
+     * flight within the buffer pool, and big enough to stay within the S3 part count limit. Rounded up
+     * to the size of the pool's buffers, so parts fill them.
+     */
+    private long getPartSize(BufferPool pool, long size) {
+        long partSize = Math.min(context.getOptions().getUploadPartSize(), MAX_PART_SIZE);
+        partSize = Math.min(partSize, Math.max(MIN_PART_SIZE, pool.getCapacity() / MIN_PARTS_IN_FLIGHT));
+        partSize = BufferPool.bufferSizeFor(Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS));
+        if (partSize > pool.getMaxBufferSize()) {
+            throw new IllegalStateException("parts of " + summary.getKey() + " (" + partSize + " bytes) do not fit in the buffer pool, raise --buffer-memory");
+        }
+        return partSize;
+    }
+
+    /**
+     * @return the version id of the new destination object
+     */
+    private String stream(ObjectMetadata sourceMetadata, AccessControlList objectAcl) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final String bucket = options.getDestinationBucket();
+        final ObjectStore client = clients.getDestinationClient();
+        final BufferPool pool = clients.getBufferPool();
+        final AccessControlList acl = options.isCrossAccountCopy() ? buildCrossAccountAcl(objectAcl != null ? objectAcl : new AccessControlList()) : objectAcl;
+
+        final long size = sourceMetadata.getContentLength();
+        final ObjectMetadata metadata = getDestinationMetadata(sourceMetadata);
+        final ContentChecksum.Algorithm algorithm = options.getChecksum();
+
+        if (context.getCompression() != null && context.getCompression().shouldCompress(summary.getKey(), sourceMetadata)) {
+            // the source's layout means nothing for the compressed data, which is read in one go
+            final CompressedUpload upload = new CompressedUpload(this, size, metadata, acl);
+            try (InputStream raw = new SourceInputStream(size)) {
+                upload.upload(raw, algorithm != null ? algorithm : ContentChecksum.Algorithm.CRC32C, null);
+            }
+            if (algorithm != null) checksum = upload.getChecksum();
+            return upload.getVersionId();
+        }
+
+        // the source's layout, if it has one, gives the copy the same ETag (and composite checksum)
+        final long sourcePartSize = getSourcePartSize(pool);
+        final long partSize = sourcePartSize > 0 ? sourcePartSize : getPartSize(pool, size);
+
+        if (sourcePartSize <= 0 && size <= partSize) {
+            final ByteBuffer buffer = pool.acquire((int) size);
+            try {
+                withRetries("download of " + summary.getKey(), () -> getRange(buffer, 0));
+                metadata.setContentLength(size);
+                if (algorithm != null) {
+                    checksum = ContentChecksum.full(algorithm.digest(buffer));
+                    checkSourceChecksum(checksum);
+                    // S3 checks the bytes it gets against it, and keeps it
+                    metadata.setHeader(algorithm.header, checksum);
+                }
+                final PutObjectResult result = withRetries("upload of " + keydest, () -> {
+                    final PutObjectRequest request = new PutObjectRequest(bucket, keydest, new LocalStore.ByteBufferInputStream(buffer.duplicate()), metadata)
+                            .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+                    if (acl != null) request.setAccessControlList(acl);
+                    context.getStats().s3copyCount.incrementAndGet();
+                    return client.putObject(request);
+                });
+                return result.getVersionId();
+            } finally {
+                pool.release(buffer);
+            }
+        }
+
+        final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(bucket, keydest, metadata)
+                .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+        if (acl != null) initiateRequest.setAccessControlList(acl);
+        final String uploadId = client.initiateMultipartUpload(initiateRequest).getUploadId();
+        try {
+            final List<Callable<PartETag>> parts = new ArrayList<>();
+            final List<byte[]> digests = new ArrayList<>();
+            int partNumber = 1;
+            for (long position = 0; position < size; position += partSize, partNumber++) {
+                final long first = position;
+                final int length = (int) Math.min(partSize, size - position);
+                final int number = partNumber;
+                digests.add(null);
+                parts.add(() -> {
+                    // waits here while the pool is spent, until parts ahead of this one are uploaded
+                    final ByteBuffer buffer = pool.acquire(length);
+                    try {
+                        withRetries("download of part " + number + " of " + summary.getKey(), () -> getRange(buffer, first));
+                        if (algorithm != null) {
+                            final byte[] digest = algorithm.digest(buffer);
+                            synchronized (digests) {
+                                digests.set(number - 1, digest);
+                            }
+                        }
+                        return withRetries("upload of part " + number + " of " + keydest, () -> {
+                            final UploadPartRequest request = new UploadPartRequest()
+                                    .withBucketName(bucket)
+                                    .withKey(keydest)
+                                    .withUploadId(uploadId)
+                                    .withPartNumber(number)
+                                    .withPartSize(length)
+                                    .withInputStream(new LocalStore.ByteBufferInputStream(buffer.duplicate()));
+                            context.getStats().s3copyCount.incrementAndGet();
+                            return client.uploadPart(request).getPartETag();
+                        });
+                    } finally {
+                        pool.release(buffer);
+                    }
+                });
+            }
+            final List<PartETag> etags = runParts(clients.getPartExecutor(), parts);
+            if (algorithm != null) {
+                checksum = ContentChecksum.composite(algorithm, digests);
+                checkSourceChecksum(checksum);
+            }
+            return client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, keydest, uploadId, etags)).getVersionId();
+        } catch (Exception e) {
+            // the source may have changed by the next run, so the upload is not kept for resuming
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, keydest, uploadId));
+            } catch (Exception abortError) {
+                log.warn("Error aborting multipart upload of " + keydest + " (uploadId=" + uploadId + "): " + abortError);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the headers and user metadata of the source that a server-side copy would keep, and the source's ETag
+     */
+    private ObjectMetadata getDestinationMetadata(ObjectMetadata sourceMetadata) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        if (sourceMetadata.getContentType() != null) metadata.setContentType(sourceMetadata.getContentType());
+        if (sourceMetadata.getContentEncoding() != null) metadata.setContentEncoding(sourceMetadata.getContentEncoding());
+        if (sourceMetadata.getContentDisposition() != null) metadata.setContentDisposition(sourceMetadata.getContentDisposition());
+        if (sourceMetadata.getContentLanguage() != null) metadata.setContentLanguage(sourceMetadata.getContentLanguage());
+        if (sourceMetadata.getCacheControl() != null) metadata.setCacheControl(sourceMetadata.getCacheControl());
+        if (sourceMetadata.getHttpExpiresDate() != null) metadata.setHttpExpiresDate(sourceMetadata.getHttpExpiresDate());
+        metadata.setUserMetadata(new HashMap<>(sourceMetadata.getUserMetadata()));
+        metadata.addUserMetadata(SourceEtagComparisonStrategy.SOURCE_ETAG_METADATA, sourceMetadata.getETag());
+        if (context.getOptions().isEncrypt()) metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        return metadata;
+    }
+
+    /**
+     * GETs the range of the source object starting at first, filling the buffer up to its limit.
+     * The buffer is flipped, ready to be read from, when this returns.
+     */
+    private int getRange(ByteBuffer buffer, long first) throws IOException {
+        final MirrorOptions options = context.getOptions();
+        final int length = buffer.limit();
+        final GetObjectRequest request = new GetObjectRequest(options.getSourceBucket(), summary.getKey(), sourceVersionId);
+        if (length > 0) request.setRange(first, first + length - 1);
+        context.getStats().s3getCount.incrementAndGet();
+        buffer.clear().limit(length);
+        try (S3Object object = clients.getSourceClient().getObject(request);
+             InputStream in = object.getObjectContent()) {
+            final ReadableByteChannel channel = Channels.newChannel(in);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) ;
+            // reads to the end, so the connection goes back to the pool instead of being aborted
+            if (!buffer.hasRemaining() && in.read() != -1) throw new IOException("got more than " + length + " bytes of " + summary.getKey() + " at " + first);
+        }
+        if (buffer.hasRemaining()) throw new IOException("got " + buffer.position() + " bytes of " + summary.getKey() + " at " + first + ", expected " + length);
+        buffer.flip();
+        return length;
+    }
+}
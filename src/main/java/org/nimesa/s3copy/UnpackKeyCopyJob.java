@@ -0,0 +1,117 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.nimesa.s3copy.comparisonstrategies.ComparisonStrategy;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Restores a key packed by --pack (--unpack, see PackCatalog): reads it from its archive with a ranged GET,
+ * checks it against the MD5 in the archive's index, and PUTs it to the destination. It is compared with the
+ * destination as any other key, with the size and ETag it had when it was packed.
+ *
+ * The archive must be readable: one in a Glacier storage class has to be restored first.
+ */
+@Slf4j
+public class UnpackKeyCopyJob extends KeyCopyJob {
+
+    private final PackIndex.Entry entry;
+
+    public UnpackKeyCopyJob(MirrorClients clients, MirrorContext context, S3VersionSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy, PackIndex.Entry entry) {
+        super(clients, context, summary, notifyLock, comparisonStrategy);
+        this.entry = entry;
+        // there is no such object in the source, only the bytes in the archive
+        sourceVersionId = null;
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override
+    protected ObjectMetadata getSourceMetadata(String key, MirrorOptions options) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(entry.getLength());
+        if (entry.getContentType() != null) metadata.setContentType(entry.getContentType());
+        metadata.setHeader(Headers.ETAG, entry.getEtag());
+        if (entry.getLastModified() > 0) metadata.setLastModified(new Date(entry.getLastModified()));
+        return metadata;
+    }
+
+    @Override
+    protected AccessControlList getAccessControlList(MirrorOptions options, String key) {
+        // archives do not keep the ACLs of what is in them
+        return null;
+    }
+
+    @Override
+    boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
+        final MirrorOptions options = context.getOptions();
+        final String key = summary.getKey();
+        try {
+            if (options.isVerbose()) log.info("unpacking " + key + " from " + entry.getArchiveKey() + " to: " + keydest);
+            final byte[] data = withRetries("read of " + key + " from " + entry.getArchiveKey(), this::read);
+
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(data.length);
+            if (entry.getContentType() != null) metadata.setContentType(entry.getContentType());
+            metadata.setContentMD5(BinaryUtils.toBase64(entry.getMd5()));
+            if (options.isEncrypt()) metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+            final AccessControlList acl = options.isCrossAccountCopy() ? buildCrossAccountAcl(new AccessControlList()) : null;
+            final PutObjectResult result = withRetries("upload of " + keydest, () -> {
+                final PutObjectRequest request = new PutObjectRequest(options.getDestinationBucket(), keydest, new ByteArrayInputStream(data), metadata)
+                        .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+                if (acl != null) request.setAccessControlList(acl);
+                context.getStats().s3copyCount.incrementAndGet();
+                return clients.getDestinationClient().putObject(request);
+            });
+            if (context.getDestinationIndex() != null) {
+                context.getDestinationIndex().put(keydest, data.length, result.getETag(), null, result.getVersionId());
+            }
+            context.getStats().bytesCopied.addAndGet(data.length);
+            context.getStats().objectsUnpacked.incrementAndGet();
+            // S3 checked what it got against the MD5 in the index, which the bytes read matched
+            context.getStats().getReconciliation().verified(keydest);
+            if (options.isVerbose()) log.info("successfully unpacked " + key + " to: " + keydest);
+            return true;
+
+        } catch (AmazonS3Exception e) {
+            error = e.getClass().getName() + "/" + e.getErrorCode();
+            log.error("s3 exception unpacking " + key + " to: " + keydest + ": " + e);
+        } catch (Exception e) {
+            error = e.getClass().getName();
+            log.error("unexpected exception unpacking " + key + " to: " + keydest + ": " + e);
+        }
+        return false;
+    }
+
+    private byte[] read() throws IOException {
+        final MirrorOptions options = context.getOptions();
+        final byte[] data;
+        if (entry.getLength() == 0) {
+            data = new byte[0];
+        } else {
+            final GetObjectRequest request = new GetObjectRequest(options.getSourceBucket(), entry.getArchiveKey());
+            request.setRange(entry.getOffset(), entry.getOffset() + entry.getLength() - 1);
+            context.getStats().s3getCount.incrementAndGet();
+            try (S3Object object = clients.getSourceClient().getObject(request);
+                 InputStream in = object.getObjectContent()) {
+                data = in.readAllBytes();
+            }
+        }
+        final MessageDigest md5 = ObjectPacker.md5();
+        md5.update(data);
+        if (data.length != entry.getLength() || !Arrays.equals(md5.digest(), entry.getMd5())) {
+            context.getStats().checksumMismatches.incrementAndGet();
+            throw new IOException("what was read of " + entry.getArchiveKey() + " for " + summary.getKey() + " is not what was packed");
+        }
+        return data;
+    }
+}
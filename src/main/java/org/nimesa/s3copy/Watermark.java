@@ -0,0 +1,100 @@
+package org.nimesa.s3copy;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * High-water mark for incremental mirroring of a bucket pair.
+ *
+ * After a run that left every key in sync, we store when it started and the latest Last-Modified it
+ * listed. The next run only processes keys modified after the older of the two, minus an overlap
+ * that covers clock skew and multipart uploads (whose Last-Modified is when they were initiated, not
+ * completed). Several bucket pairs can share one state file; it is replaced atomically on save.
+ */
+@Slf4j
+public class Watermark {
+
+    private final File file;
+    private final String pair;
+    private final long runStart = System.currentTimeMillis();
+    private final AtomicLong latestSeen = new AtomicLong(0);
+
+    /**
+     * Keys last modified before this are skipped, or -1 if there is no mark yet and everything is processed
+     */
+    @Getter private final long cutoff;
+
+    public Watermark(File file, MirrorOptions options) throws IOException {
+        this.file = file;
+        this.pair = options.getSourceBucket() + "/" + nullToEmpty(options.getPrefix())
+                + " -> " + options.getDestinationBucket() + "/" + nullToEmpty(options.getDestPrefix());
+
+        final String mark = load().getProperty(pair);
+        if (mark == null) {
+            cutoff = -1;
+            log.info("no watermark for " + pair + " yet, processing every key");
+        } else {
+            final String[] fields = mark.split(",");
+            final long previousStart = Long.parseLong(fields[0]);
+            final long previousLatest = Long.parseLong(fields[1]);
+            latestSeen.set(previousLatest);
+            final long since = previousLatest > 0 ? Math.min(previousStart, previousLatest) : previousStart;
+            cutoff = since - TimeUnit.MINUTES.toMillis(options.getIncrementalOverlap());
+            log.info("watermark for " + pair + ": only processing keys modified since " + new Date(cutoff));
+        }
+    }
+
+    /**
+     * Called for every listed key, whether or not it is processed.
+     *
+     * @return true if the key was modified after the cutoff
+     */
+    public boolean isModifiedSince(Date lastModified) {
+        final long time = lastModified.getTime();
+        latestSeen.accumulateAndGet(time, Math::max);
+        return cutoff < 0 || time >= cutoff;
+    }
+
+    /**
+     * Moves the mark to this run. Only call this once every key of the run is known to be in sync.
+     */
+    public void save() throws IOException {
+        // batch jobs running in the same process may share the state file
+        synchronized (Watermark.class) {
+            doSave();
+        }
+    }
+
+    private void doSave() throws IOException {
+        final Properties state = load();
+        state.setProperty(pair, runStart + "," + latestSeen.get());
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            state.store(out, "s3mirror watermarks: run start,latest Last-Modified seen");
+            out.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("watermark for " + pair + " moved to " + new Date(runStart));
+    }
+
+    private Properties load() throws IOException {
+        final Properties state = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                state.load(in);
+            }
+        }
+        return state;
+    }
+
+    private static String nullToEmpty(String s) { return s == null ? "" : s; }
+}
@@ -1,19 +1,37 @@
 package org.nimesa.s3copy.comparisonstrategies;
 
+import com.amazonaws.services.s3.model.S3VersionSummary;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import org.nimesa.s3copy.MirrorOptions;
 
+import java.util.function.Predicate;
+
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class ComparisonStrategyFactory {
     public static ComparisonStrategy getStrategy(MirrorOptions mirrorOptions) {
+        return getStrategy(mirrorOptions, source -> true);
+    }
+
+    /**
+     * @param layoutReproducible tells whether a copy of a multipart source can have its part layout (see PartLayouts)
+     */
+    public static ComparisonStrategy getStrategy(MirrorOptions mirrorOptions, Predicate<S3VersionSummary> layoutReproducible) {
         if (mirrorOptions.isSizeOnly()) {
             return new SizeOnlyComparisonStrategy();
-        } else if (mirrorOptions.isSizeAndLastModified()) {
+        } else if (mirrorOptions.isSizeAndLastModified() || mirrorOptions.hasLocalSide()) {
+            // files have no ETag to compare
             return new SizeAndLastModifiedComparisonStrategy();
         } else {
             System.out.println("found etag comparison strategies");
-            return new EtagComparisonStrategy();
+            return new MultipartEtagComparisonStrategy(layoutReproducible);
         }
     }
+
+    /**
+     * @return true if the strategy for these options compares ETags, so copies should keep the source's part layout
+     */
+    public static boolean comparesEtags(MirrorOptions mirrorOptions) {
+        return !mirrorOptions.isSizeOnly() && !mirrorOptions.isSizeAndLastModified() && !mirrorOptions.hasLocalSide();
+    }
 }
@@ -0,0 +1,32 @@
+package org.nimesa.s3copy.comparisonstrategies;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+
+/**
+ * For downloads with --decompress: a file decompressed from an object does not have the object's size,
+ * but it does have the object's Last-Modified as its mtime (see LocalStore.commit), which marks it as
+ * written from that very version of the object.
+ */
+public class DecompressedComparisonStrategy implements ComparisonStrategy {
+
+    private final ComparisonStrategy delegate;
+
+    public DecompressedComparisonStrategy(ComparisonStrategy delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean sourceDifferent(S3VersionSummary source, ObjectMetadata destination) {
+        if (isDecompressedCopy(source, destination)) return false;
+        return delegate.sourceDifferent(source, destination);
+    }
+
+    /**
+     * @return true if the destination has another size than the source, but was written from it
+     */
+    public static boolean isDecompressedCopy(S3VersionSummary source, ObjectMetadata destination) {
+        return source.getSize() != destination.getContentLength()
+                && destination.getLastModified() != null && destination.getLastModified().equals(source.getLastModified());
+    }
+}
@@ -0,0 +1,42 @@
+package org.nimesa.s3copy.comparisonstrategies;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import org.nimesa.s3copy.PartLayouts;
+
+import java.util.function.Predicate;
+
+/**
+ * Compares ETags, knowing that a multipart upload's ETag depends on its part layout (see PartLayouts).
+ * Copies are made with the source's layout, so their ETags match the source's; but when the two were
+ * uploaded with different part counts (a copy made before layouts were kept, or with another tool),
+ * or the source's layout cannot be reproduced (parts of unequal sizes, so the copy has parts of
+ * --upload-part-size), the ETags say nothing about the content, and the source is only taken to have
+ * changed if it was modified after the destination was written.
+ */
+public class MultipartEtagComparisonStrategy extends SizeOnlyComparisonStrategy {
+
+    private final Predicate<S3VersionSummary> layoutReproducible;
+
+    public MultipartEtagComparisonStrategy() {
+        this(source -> true);
+    }
+
+    /**
+     * @param layoutReproducible tells whether a copy of a multipart source can have its part layout
+     */
+    public MultipartEtagComparisonStrategy(Predicate<S3VersionSummary> layoutReproducible) {
+        this.layoutReproducible = layoutReproducible;
+    }
+
+    @Override
+    public boolean sourceDifferent(S3VersionSummary source, ObjectMetadata destination) {
+        if (super.sourceDifferent(source, destination)) return true;
+        if (source.getETag().equals(destination.getETag())) return false;
+        final int partCount = PartLayouts.partCount(source.getETag());
+        if (partCount != PartLayouts.partCount(destination.getETag()) || (partCount > 0 && !layoutReproducible.test(source))) {
+            return destination.getLastModified() == null || source.getLastModified().after(destination.getLastModified());
+        }
+        return true;
+    }
+}
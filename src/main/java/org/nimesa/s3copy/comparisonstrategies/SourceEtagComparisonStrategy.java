@@ -0,0 +1,52 @@
+package org.nimesa.s3copy.comparisonstrategies;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import org.nimesa.s3copy.Compression;
+
+/**
+ * For destinations written by streaming, whose ETag depends on how they were uploaded rather than on
+ * the source's: compares the source ETag recorded in the destination's metadata, when there is one,
+ * in place of the destination's own ETag. Likewise for destinations compressed on their way (see
+ * Compression), the size they were compressed from stands in for their own.
+ */
+public class SourceEtagComparisonStrategy implements ComparisonStrategy {
+
+    /**
+     * User metadata that streamed objects carry, with the ETag of the source they were copied from
+     */
+    public static final String SOURCE_ETAG_METADATA = "s3mirror-source-etag";
+
+    private final ComparisonStrategy delegate;
+
+    public SourceEtagComparisonStrategy(ComparisonStrategy delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean sourceDifferent(S3VersionSummary source, ObjectMetadata destination) {
+        final String sourceEtag = getSourceEtag(destination);
+        final boolean compressed = isCompressedCopy(source, destination);
+        if (sourceEtag == null && !compressed) return delegate.sourceDifferent(source, destination);
+        final ObjectMetadata recorded = destination.clone();
+        if (sourceEtag != null) recorded.setHeader(Headers.ETAG, sourceEtag);
+        if (compressed) recorded.setContentLength(source.getSize());
+        return delegate.sourceDifferent(source, recorded);
+    }
+
+    /**
+     * @return the source ETag recorded in the metadata, or null if there is none
+     */
+    public static String getSourceEtag(ObjectMetadata metadata) {
+        return metadata.getUserMetaDataOf(SOURCE_ETAG_METADATA);
+    }
+
+    /**
+     * @return true if the destination was compressed from data of the source's size. A copy of an object
+     * that was compressed already has the same original size, but then also the source's own size.
+     */
+    public static boolean isCompressedCopy(S3VersionSummary source, ObjectMetadata destination) {
+        return Compression.getOriginalSize(destination) == source.getSize();
+    }
+}
@@ -0,0 +1,140 @@
+package org.nimesa.s3copy;
+
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SimulatedObjectStoreTest {
+
+    private static final byte[] DATA = "the quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    // the memory store is one per process: each test gets a bucket of its own
+    private static String newBucket() {
+        return "test-" + UUID.randomUUID();
+    }
+
+    private static PutObjectRequest put(String bucket, String key, byte[] data, String contentMD5) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(data.length);
+        if (contentMD5 != null) metadata.setContentMD5(contentMD5);
+        return new PutObjectRequest(bucket, key, new ByteArrayInputStream(data), metadata);
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        return BinaryUtils.toBase64(MessageDigest.getInstance("MD5").digest(data));
+    }
+
+    private static byte[] get(ObjectStore store, String bucket, String key) throws Exception {
+        try (S3Object object = store.getObject(new GetObjectRequest(bucket, key));
+             InputStream in = object.getObjectContent()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static int statusOf(Runnable request) {
+        try {
+            request.run();
+        } catch (AmazonS3Exception e) {
+            return e.getStatusCode();
+        }
+        return 200;
+    }
+
+    private void roundTrip(SimulatedObjectStore store) throws Exception {
+        final String bucket = newBucket();
+        final PutObjectResult result = store.putObject(put(bucket, "a/key", DATA, md5(DATA)));
+        assertEquals(BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(DATA)), result.getETag());
+        assertArrayEquals(DATA, get(store, bucket, "a/key"));
+        assertEquals(DATA.length, store.getObjectMetadata(new GetObjectMetadataRequest(bucket, "a/key")).getContentLength());
+    }
+
+    private void badDigest(SimulatedObjectStore store) throws Exception {
+        final String bucket = newBucket();
+        try {
+            store.putObject(put(bucket, "a/key", DATA, md5("something else".getBytes(StandardCharsets.UTF_8))));
+            fail("a PUT whose Content-MD5 does not match its content was accepted");
+        } catch (AmazonS3Exception e) {
+            assertEquals(400, e.getStatusCode());
+            assertEquals("BadDigest", e.getErrorCode());
+        }
+        // nothing was kept of it
+        assertEquals(404, statusOf(() -> store.getObjectMetadata(new GetObjectMetadataRequest(bucket, "a/key"))));
+    }
+
+    @Test
+    public void memoryStoreRoundTrip() throws Exception {
+        roundTrip(MemoryObjectStore.get());
+    }
+
+    @Test
+    public void diskStoreRoundTrip() throws Exception {
+        roundTrip(DiskObjectStore.forRoot(folder.getRoot().getPath()));
+    }
+
+    @Test
+    public void memoryStoreRejectsBadDigest() throws Exception {
+        badDigest(MemoryObjectStore.get());
+    }
+
+    @Test
+    public void diskStoreRejectsBadDigest() throws Exception {
+        badDigest(DiskObjectStore.forRoot(folder.getRoot().getPath()));
+    }
+
+    @Test
+    public void faultyStorePassesRequestsThroughWithoutFaults() throws Exception {
+        final String bucket = newBucket();
+        final ObjectStore store = new FaultyObjectStore(MemoryObjectStore.get(), 0, 0, 0);
+        store.putObject(put(bucket, "a/key", DATA, null));
+        assertArrayEquals(DATA, get(store, bucket, "a/key"));
+    }
+
+    @Test
+    public void faultyStoreFailsRequestsBeforeTheyReachTheStore() throws Exception {
+        final String bucket = newBucket();
+        final ObjectStore failing = new FaultyObjectStore(MemoryObjectStore.get(), 0, 100, 0);
+        try {
+            failing.putObject(put(bucket, "a/key", DATA, null));
+            fail("a PUT went through a store failing every request");
+        } catch (AmazonS3Exception e) {
+            assertEquals(500, e.getStatusCode());
+            assertEquals("InternalError", e.getErrorCode());
+        }
+        assertEquals(404, statusOf(() -> MemoryObjectStore.get().getObjectMetadata(new GetObjectMetadataRequest(bucket, "a/key"))));
+
+        final ObjectStore throttling = new FaultyObjectStore(MemoryObjectStore.get(), 0, 0, 100);
+        try {
+            throttling.getObjectMetadata(new GetObjectMetadataRequest(bucket, "a/key"));
+            fail("a HEAD went through a store throttling every request");
+        } catch (AmazonS3Exception e) {
+            assertEquals(503, e.getStatusCode());
+            assertEquals("SlowDown", e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void faultyStoreKeepsTheBadDigestOfTheStoreBehind() throws Exception {
+        final String bucket = newBucket();
+        final ObjectStore store = new FaultyObjectStore(MemoryObjectStore.get(), 0, 0, 0);
+        try {
+            store.putObject(put(bucket, "a/key", DATA, md5(new byte[0])));
+            fail("a PUT whose Content-MD5 does not match its content was accepted");
+        } catch (AmazonS3Exception e) {
+            assertEquals("BadDigest", e.getErrorCode());
+        }
+        store.putObject(put(bucket, "a/key", DATA, md5(DATA)));
+        assertArrayEquals(DATA, get(store, bucket, "a/key"));
+    }
+}
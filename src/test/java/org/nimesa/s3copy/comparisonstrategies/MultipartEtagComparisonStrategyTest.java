@@ -0,0 +1,66 @@
+package org.nimesa.s3copy.comparisonstrategies;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class MultipartEtagComparisonStrategyTest {
+
+    private static final long SIZE = 100L << 20;
+    private static final Date EARLIER = new Date(1000000L);
+    private static final Date LATER = new Date(2000000L);
+
+    private static S3VersionSummary source(String etag, Date lastModified) {
+        final S3VersionSummary summary = new S3VersionSummary();
+        summary.setKey("key");
+        summary.setSize(SIZE);
+        summary.setETag(etag);
+        summary.setLastModified(lastModified);
+        return summary;
+    }
+
+    private static ObjectMetadata destination(String etag, Date lastModified) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(SIZE);
+        metadata.setHeader(Headers.ETAG, etag);
+        metadata.setLastModified(lastModified);
+        return metadata;
+    }
+
+    @Test
+    public void sameEtagIsTheSame() {
+        assertFalse(new MultipartEtagComparisonStrategy().sourceDifferent(source("abc-10", LATER), destination("abc-10", EARLIER)));
+    }
+
+    @Test
+    public void otherEtagWithTheSameReproducibleLayoutIsDifferent() {
+        assertTrue(new MultipartEtagComparisonStrategy().sourceDifferent(source("abc-10", EARLIER), destination("def-10", LATER)));
+    }
+
+    @Test
+    public void otherPartCountFallsBackOnLastModified() {
+        final ComparisonStrategy strategy = new MultipartEtagComparisonStrategy();
+        assertFalse(strategy.sourceDifferent(source("abc-10", EARLIER), destination("def-7", LATER)));
+        assertTrue(strategy.sourceDifferent(source("abc-10", LATER), destination("def-7", EARLIER)));
+    }
+
+    @Test
+    public void layoutThatCannotBeReproducedFallsBackOnLastModified() {
+        final ComparisonStrategy strategy = new MultipartEtagComparisonStrategy(source -> false);
+        // a copy made in parts of --upload-part-size, which happen to be as many: not copied again every run
+        assertFalse(strategy.sourceDifferent(source("abc-10", EARLIER), destination("def-10", LATER)));
+        assertTrue(strategy.sourceDifferent(source("abc-10", LATER), destination("def-10", EARLIER)));
+    }
+
+    @Test
+    public void otherSizeIsDifferent() {
+        final ObjectMetadata destination = destination("abc-10", LATER);
+        destination.setContentLength(SIZE - 1);
+        assertTrue(new MultipartEtagComparisonStrategy(source -> false).sourceDifferent(source("abc-10", EARLIER), destination));
+    }
+}